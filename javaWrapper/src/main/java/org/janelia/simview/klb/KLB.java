@@ -7,7 +7,7 @@ import net.imagej.axis.CalibratedAxis;
 import net.imagej.axis.LinearAxis;
 import net.imglib2.Cursor;
 import net.imglib2.Dimensions;
-import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImg;
@@ -16,7 +16,6 @@ import net.imglib2.img.basictypeaccess.array.*;
 import net.imglib2.img.cell.Cell;
 import net.imglib2.img.cell.CellImg;
 import net.imglib2.img.cell.CellImgFactory;
-import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
@@ -26,17 +25,25 @@ import net.imglib2.type.numeric.integer.GenericShortType;
 import net.imglib2.type.numeric.integer.LongType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.IntervalView;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
-import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
+/**
+ * Reads and writes KLB files.
+ * <p>
+ * Instances are thread-safe: each call takes a snapshot of the immutable {@link ReadOptions} / {@link WriteOptions} of
+ * the instance when it starts and keeps all other state on its own stack, so a single configured instance can serve
+ * any number of threads without locking. Changing the options of a shared instance affects all calls started
+ * afterwards; calls that need other options use {@link #with(ReadOptions)} / {@link #with(WriteOptions)}.
+ */
 public abstract class KLB< T extends RealType< T > & NativeType< T > >
 {
     public enum CompressionType
@@ -44,6 +51,49 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
         NONE, BZIP2, ZLIB
     }
 
+    /**
+     * How the native library gets the compressed blocks of a file when reading, see {@link #setReadStrategy(ReadStrategy)}
+     */
+    public enum ReadStrategy
+    {
+        /**
+         * Chosen for each read from the size of the blocks to read and the free memory
+         */
+        AUTO,
+        /**
+         * Each thread reads runs of adjacent blocks as it gets to them; memory use stays small and ROI reads only
+         * touch the blocks they need
+         */
+        PER_BLOCK,
+        /**
+         * All blocks to read are read into memory with a single large read before decompressing them, which makes the
+         * fewest requests (e.g. for network file systems)
+         */
+        PRELOAD,
+        /**
+         * The file is memory mapped and blocks are decompressed straight from the page cache (e.g. for local disks or
+         * files that are read repeatedly)
+         */
+        MMAP
+    }
+
+    /**
+     * Order in which the blocks are stored in a file, see {@link #setBlockOrder(BlockOrder)}
+     */
+    public enum BlockOrder
+    {
+        /**
+         * Index order: x fastest, then y, z, c and t
+         */
+        LINEAR,
+        /**
+         * Z-order (Morton order) of the blocks along x, y and z within each channel and timepoint, so that blocks that
+         * are close in space are close in the file and a compact 3D ROI is read with few, large reads. Files are
+         * written with header version 5, which older versions of the library cannot read.
+         */
+        MORTON
+    }
+
     public class Header
     {
         /**
@@ -97,24 +147,301 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
     }
 
     /**
-     * Number of threads to use for parallel de-/compression, default is all available processors
+     * Options of reads: number of threads and read strategy. Instances are immutable, so they can be shared between
+     * threads and passed to {@link #with(ReadOptions)} for a single call.
+     */
+    public static final class ReadOptions
+    {
+        /**
+         * All available processors, read strategy AUTO
+         */
+        public static final ReadOptions DEFAULT = new ReadOptions( 0, ReadStrategy.AUTO );
+
+        private final int numThreads;
+        private final ReadStrategy readStrategy;
+
+        private ReadOptions( final int numThreads, final ReadStrategy readStrategy )
+        {
+            this.numThreads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+            this.readStrategy = readStrategy == null ? ReadStrategy.AUTO : readStrategy;
+        }
+
+        /**
+         * @param numThreads number of threads to use for parallel decompression, all available processors if not
+         *                   positive
+         */
+        public ReadOptions withNumThreads( final int numThreads )
+        {
+            return new ReadOptions( numThreads, readStrategy );
+        }
+
+        /**
+         * @see KLB#setReadStrategy(ReadStrategy)
+         */
+        public ReadOptions withReadStrategy( final ReadStrategy readStrategy )
+        {
+            return new ReadOptions( numThreads, readStrategy );
+        }
+
+        public int getNumThreads()
+        {
+            return numThreads;
+        }
+
+        public ReadStrategy getReadStrategy()
+        {
+            return readStrategy;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format( "ReadOptions[numThreads=%d, readStrategy=%s]", numThreads, readStrategy );
+        }
+    }
+
+    /**
+     * Options of writes: number of threads, write buffer size, block order and constant blocks. writeROI and
+     * appendTimepoint only use the number of threads.
+     * Instances are immutable, so they can be shared between threads and passed to {@link #with(WriteOptions)} for a
+     * single call.
+     */
+    public static final class WriteOptions
+    {
+        /**
+         * All available processors, 500 MB write buffer, LINEAR block order, no constant blocks
+         */
+        public static final WriteOptions DEFAULT = new WriteOptions( 0, 500L * 1024 * 1024, BlockOrder.LINEAR, false );
+
+        private final int numThreads;
+        private final long writeBufferBytes;
+        private final BlockOrder blockOrder;
+        private final boolean constantBlocks;
+
+        private WriteOptions( final int numThreads, final long writeBufferBytes, final BlockOrder blockOrder, final boolean constantBlocks )
+        {
+            this.numThreads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+            this.writeBufferBytes = Math.max( 0, writeBufferBytes );
+            this.blockOrder = blockOrder == null ? BlockOrder.LINEAR : blockOrder;
+            this.constantBlocks = constantBlocks;
+        }
+
+        /**
+         * @param numThreads number of threads to use for parallel compression, all available processors if not
+         *                   positive
+         */
+        public WriteOptions withNumThreads( final int numThreads )
+        {
+            return new WriteOptions( numThreads, writeBufferBytes, blockOrder, constantBlocks );
+        }
+
+        /**
+         * @see KLB#setWriteBufferSize(long)
+         */
+        public WriteOptions withWriteBufferSize( final long writeBufferBytes )
+        {
+            return new WriteOptions( numThreads, writeBufferBytes, blockOrder, constantBlocks );
+        }
+
+        public int getNumThreads()
+        {
+            return numThreads;
+        }
+
+        /**
+         * Not used by transcode, which always writes LINEAR order.
+         *
+         * @see KLB#setBlockOrder(BlockOrder)
+         */
+        public WriteOptions withBlockOrder( final BlockOrder blockOrder )
+        {
+            return new WriteOptions( numThreads, writeBufferBytes, blockOrder, constantBlocks );
+        }
+
+        public long getWriteBufferSize()
+        {
+            return writeBufferBytes;
+        }
+
+        public BlockOrder getBlockOrder()
+        {
+            return blockOrder;
+        }
+
+        /**
+         * @see KLB#setConstantBlocks(boolean)
+         */
+        public WriteOptions withConstantBlocks( final boolean constantBlocks )
+        {
+            return new WriteOptions( numThreads, writeBufferBytes, blockOrder, constantBlocks );
+        }
+
+        public boolean getConstantBlocks()
+        {
+            return constantBlocks;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format( "WriteOptions[numThreads=%d, writeBufferBytes=%d, blockOrder=%s, constantBlocks=%b]", numThreads, writeBufferBytes, blockOrder, constantBlocks );
+        }
+    }
+
+    /**
+     * Options are replaced as a whole, never modified, and every call takes a snapshot of them when it starts, so an
+     * instance can be used from many threads at once (e.g. a single instance shared by all threads of a server).
+     * Setters take effect for calls started afterwards; to use other options for some calls only, use
+     * {@link #with(ReadOptions)} and {@link #with(WriteOptions)} instead of changing a shared instance.
+     */
+    private volatile ReadOptions readOptions = ReadOptions.DEFAULT;
+    private volatile WriteOptions writeOptions = WriteOptions.DEFAULT;
+
+    /**
+     * Size limit of the direct ByteBuffers of {@link #readFullOffHeap(String)}
+     */
+    private static final long MAX_OFF_HEAP_CHUNK_BYTES = 1L << 30;
+
+    /**
+     * Returns a new instance of the same implementation with default options, for {@link #with(ReadOptions)}
+     */
+    protected abstract KLB< T > newDefaultInstance();
+
+    /**
+     * Returns a new instance that reads with the given options and writes with the write options of this instance.
+     * Instances are cheap, so this can be called for each call that needs options of its own, e.g.
+     * {@code klb.with( options.withNumThreads( 1 ) ).readROIinPlace( ... )}.
+     */
+    public KLB< T > with( final ReadOptions readOptions )
+    {
+        final KLB< T > klb = newDefaultInstance();
+        klb.readOptions = readOptions == null ? ReadOptions.DEFAULT : readOptions;
+        klb.writeOptions = writeOptions;
+        return klb;
+    }
+
+    /**
+     * Returns a new instance that writes with the given options and reads with the read options of this instance.
      */
-    protected int numThreads = Runtime.getRuntime().availableProcessors();
+    public KLB< T > with( final WriteOptions writeOptions )
+    {
+        final KLB< T > klb = newDefaultInstance();
+        klb.readOptions = readOptions;
+        klb.writeOptions = writeOptions == null ? WriteOptions.DEFAULT : writeOptions;
+        return klb;
+    }
+
+    public ReadOptions getReadOptions()
+    {
+        return readOptions;
+    }
+
+    public WriteOptions getWriteOptions()
+    {
+        return writeOptions;
+    }
+
+    public void setReadOptions( final ReadOptions readOptions )
+    {
+        this.readOptions = readOptions == null ? ReadOptions.DEFAULT : readOptions;
+    }
+
+    public void setWriteOptions( final WriteOptions writeOptions )
+    {
+        this.writeOptions = writeOptions == null ? WriteOptions.DEFAULT : writeOptions;
+    }
 
     /**
-     * Set number of threads to use for parallel de-/compression, default is all available processors
+     * Set number of threads to use for parallel de-/compression (of reads and writes), default is all available
+     * processors
      */
-    public void setNumThreads( final int n )
+    public synchronized void setNumThreads( final int n )
     {
-        numThreads = n;
+        readOptions = readOptions.withNumThreads( n );
+        writeOptions = writeOptions.withNumThreads( n );
     }
 
     /**
-     * Get number of threads used for parallel de-/compression
+     * Get number of threads used for parallel decompression
      */
     public int getNumThreads()
     {
-        return numThreads;
+        return readOptions.getNumThreads();
+    }
+
+    /**
+     * Set how the native library gets the compressed blocks of a file when reading, default is AUTO. The best choice
+     * depends on the storage: one large read (PRELOAD) usually wins on network file systems, mapping (MMAP) on local
+     * disks. PRELOAD and MMAP fall back to PER_BLOCK if the memory cannot be allocated or the file cannot be mapped.
+     */
+    public synchronized void setReadStrategy( final ReadStrategy readStrategy )
+    {
+        readOptions = readOptions.withReadStrategy( readStrategy );
+    }
+
+    /**
+     * Get how the native library gets the compressed blocks of a file when reading
+     */
+    public ReadStrategy getReadStrategy()
+    {
+        return readOptions.getReadStrategy();
+    }
+
+    /**
+     * Set the upper limit of the memory in which the native library collects compressed blocks before writing them,
+     * default is 500 MB. At most a tenth of the image is buffered. A limit below the size of a compressed block (e.g.
+     * 0) writes each block as soon as it has been compressed, which keeps the memory of large writes bounded by the
+     * compression queues.
+     */
+    public synchronized void setWriteBufferSize( final long writeBufferBytes )
+    {
+        writeOptions = writeOptions.withWriteBufferSize( writeBufferBytes );
+    }
+
+    /**
+     * Get the upper limit of the memory in which compressed blocks are collected before writing them
+     */
+    public long getWriteBufferSize()
+    {
+        return writeOptions.getWriteBufferSize();
+    }
+
+    /**
+     * Set the order in which the blocks of written files are stored, default is LINEAR. MORTON keeps blocks that are
+     * close in space close in the file, which cuts the number of seeks of subvolume reads on spinning disks and network
+     * storage. Transcoded files are written in LINEAR order.
+     */
+    public synchronized void setBlockOrder( final BlockOrder blockOrder )
+    {
+        writeOptions = writeOptions.withBlockOrder( blockOrder );
+    }
+
+    /**
+     * Get the order in which the blocks of written files are stored
+     */
+    public BlockOrder getBlockOrder()
+    {
+        return writeOptions.getBlockOrder();
+    }
+
+    /**
+     * Set whether blocks whose voxels all have the same value (e.g. background) are stored as that value instead of
+     * being compressed, default is false. This makes such blocks nearly free to write and read, but the files have
+     * header version 4, and older readers (e.g. older builds of this library, pyklb or the Matlab wrapper) fail on
+     * those blocks. Files in MORTON block order can only be read by this version anyway and always store constant
+     * blocks this way.
+     */
+    public synchronized void setConstantBlocks( final boolean constantBlocks )
+    {
+        writeOptions = writeOptions.withConstantBlocks( constantBlocks );
+    }
+
+    /**
+     * Get whether constant blocks of written files are stored as a single value
+     */
+    public boolean getConstantBlocks()
+    {
+        return writeOptions.getConstantBlocks();
     }
 
     /**
@@ -126,15 +453,52 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
      */
     public abstract Header readHeader( final String filePath ) throws IOException;
 
+    /**
+     * Read header from a KLB file in memory or in a channel
+     *
+     * @param source KLB file
+     * @return org.janelia.simview.KLB.Header instance
+     * @throws IOException
+     */
+    public abstract Header readHeader( final KlbSource source ) throws IOException;
+
 
     /***********************************************************
      * Read entire image
      ***********************************************************/
 
-    public abstract void readFullInPlace( final String filePath, final byte[] out )
+    public void readFullInPlace( final String filePath, final byte[] out )
+            throws IOException
+    {
+        readFullInPlace( filePath, out, null );
+    }
+
+    public void readFullInPlace( final String filePath, final Buffer out )
+            throws IOException
+    {
+        readFullInPlace( filePath, out, null );
+    }
+
+    public abstract void readFullInPlace( final String filePath, final byte[] out, final KlbProgress progress )
+            throws IOException;
+
+    public abstract void readFullInPlace( final String filePath, final Buffer out, final KlbProgress progress )
+            throws IOException;
+
+    public void readFullInPlace( final KlbSource source, final byte[] out )
+            throws IOException
+    {
+        readFullInPlace( source, out, null );
+    }
+
+    /**
+     * Reads a whole KLB file from memory or from a channel, see {@link KlbSource}. Blocks are fetched and decoded by
+     * all threads in parallel, so high-latency channels are read with several requests in flight.
+     */
+    public abstract void readFullInPlace( final KlbSource source, final byte[] out, final KlbProgress progress )
             throws IOException;
 
-    public abstract void readFullInPlace( final String filePath, final Buffer out )
+    public abstract void readFullInPlace( final KlbSource source, final Buffer out, final KlbProgress progress )
             throws IOException;
 
 
@@ -144,46 +508,82 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
 
     public void readFullInPlace( final String filePath, final short[] out )
             throws IOException
+    {
+        readFullInPlace( filePath, out, null );
+    }
+
+    public void readFullInPlace( final String filePath, final short[] out, final KlbProgress progress )
+            throws IOException
     {
         final ByteBuffer bytes = ByteBuffer.allocate( 2 * out.length );
-        readFullInPlace( filePath, bytes.array() );
+        readFullInPlace( filePath, bytes.array(), progress );
         bytes.asShortBuffer().get( out );
     }
 
     public void readFullInPlace( final String filePath, final int[] out )
             throws IOException
+    {
+        readFullInPlace( filePath, out, null );
+    }
+
+    public void readFullInPlace( final String filePath, final int[] out, final KlbProgress progress )
+            throws IOException
     {
         final ByteBuffer bytes = ByteBuffer.allocate( 4 * out.length );
-        readFullInPlace( filePath, bytes.array() );
+        readFullInPlace( filePath, bytes.array(), progress );
         bytes.asIntBuffer().get( out );
     }
 
     public void readFullInPlace( final String filePath, final long[] out )
             throws IOException
+    {
+        readFullInPlace( filePath, out, null );
+    }
+
+    public void readFullInPlace( final String filePath, final long[] out, final KlbProgress progress )
+            throws IOException
     {
         final ByteBuffer bytes = ByteBuffer.allocate( 8 * out.length );
-        readFullInPlace( filePath, bytes.array() );
+        readFullInPlace( filePath, bytes.array(), progress );
         bytes.asLongBuffer().get( out );
     }
 
     public void readFullInPlace( final String filePath, final float[] out )
             throws IOException
+    {
+        readFullInPlace( filePath, out, null );
+    }
+
+    public void readFullInPlace( final String filePath, final float[] out, final KlbProgress progress )
+            throws IOException
     {
         final ByteBuffer bytes = ByteBuffer.allocate( 4 * out.length );
-        readFullInPlace( filePath, bytes.array() );
+        readFullInPlace( filePath, bytes.array(), progress );
         bytes.asFloatBuffer().get( out );
     }
 
     public void readFullInPlace( final String filePath, final double[] out )
             throws IOException
+    {
+        readFullInPlace( filePath, out, null );
+    }
+
+    public void readFullInPlace( final String filePath, final double[] out, final KlbProgress progress )
+            throws IOException
     {
         final ByteBuffer bytes = ByteBuffer.allocate( 8 * out.length );
-        readFullInPlace( filePath, bytes.array() );
+        readFullInPlace( filePath, bytes.array(), progress );
         bytes.asDoubleBuffer().get( out );
     }
 
     public void readFullInPlace( final String filePath, final Img< T > out, final boolean noChecks )
             throws IOException
+    {
+        readFullInPlace( filePath, out, noChecks, null );
+    }
+
+    public void readFullInPlace( final String filePath, final Img< T > out, final boolean noChecks, final KlbProgress progress )
+            throws IOException
     {
         Header header = null;
         if ( !noChecks ) {
@@ -197,35 +597,35 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
             }
         }
         if ( out instanceof CellImg ) {
-            readCellImgInPlace( filePath, header, ( CellImg ) out );
+            readCellImgInPlace( filePath, header, ( CellImg ) out, progress );
         } else {
-            readArrayImgInPlace( filePath, ( ArrayImg ) out );
+            readArrayImgInPlace( filePath, ( ArrayImg ) out, progress );
         }
     }
 
-    private < A extends ArrayDataAccess< A > > void readArrayImgInPlace( final String filePath, final ArrayImg< T, A > out )
+    private < A extends ArrayDataAccess< A > > void readArrayImgInPlace( final String filePath, final ArrayImg< T, A > out, final KlbProgress progress )
             throws IOException
     {
         final Object buffer = out.update( null ).getCurrentStorageArray();
         final T type = out.firstElement();
         if ( type instanceof GenericByteType ) {
-            readFullInPlace( filePath, (byte[]) buffer );
+            readFullInPlace( filePath, (byte[]) buffer, progress );
         } else if ( type instanceof GenericShortType ) {
-            readFullInPlace( filePath, (short[]) buffer );
+            readFullInPlace( filePath, (short[]) buffer, progress );
         } else if ( type instanceof GenericIntType ) {
-            readFullInPlace( filePath, (int[]) buffer );
+            readFullInPlace( filePath, (int[]) buffer, progress );
         } else if ( type instanceof LongType ) {
-            readFullInPlace( filePath, (long[]) buffer );
+            readFullInPlace( filePath, (long[]) buffer, progress );
         } else if ( type instanceof FloatType ) {
-            readFullInPlace( filePath, (float[]) buffer );
+            readFullInPlace( filePath, (float[]) buffer, progress );
         } else if ( type instanceof DoubleType ) {
-            readFullInPlace( filePath, (double[]) buffer );
+            readFullInPlace( filePath, (double[]) buffer, progress );
         } else {
             throw new IOException( "Unknown or unsupported KLB data type" );
         }
     }
 
-    private < A extends ArrayDataAccess< A > > void readCellImgInPlace( final String filePath, Header header, final CellImg< T, A > out )
+    private < A extends ArrayDataAccess< A > > void readCellImgInPlace( final String filePath, Header header, final CellImg< T, A > out, final KlbProgress progress )
             throws IOException
     {
         if ( header == null ) {
@@ -252,22 +652,22 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
             }
             switch ( type.getBitsPerPixel() ) {
                 case 8:
-                    readROIinPlace( filePath, klbMin, klbMax, (( ByteArray ) cell.getData()).getCurrentStorageArray() );
+                    readROIinPlace( filePath, klbMin, klbMax, (( ByteArray ) cell.getData()).getCurrentStorageArray(), progress );
                     break;
                 case 16:
-                    readROIinPlace( filePath, klbMin, klbMax, (( ShortArray ) cell.getData()).getCurrentStorageArray() );
+                    readROIinPlace( filePath, klbMin, klbMax, (( ShortArray ) cell.getData()).getCurrentStorageArray(), progress );
                     break;
                 case 32:
                     if ( type instanceof IntegerType )
-                        readROIinPlace( filePath, klbMin, klbMax, (( IntArray ) cell.getData()).getCurrentStorageArray() );
+                        readROIinPlace( filePath, klbMin, klbMax, (( IntArray ) cell.getData()).getCurrentStorageArray(), progress );
                     else
-                        readROIinPlace( filePath, klbMin, klbMax, (( FloatArray ) cell.getData()).getCurrentStorageArray() );
+                        readROIinPlace( filePath, klbMin, klbMax, (( FloatArray ) cell.getData()).getCurrentStorageArray(), progress );
                     break;
                 case 64:
                     if ( type instanceof IntegerType )
-                        readROIinPlace( filePath, klbMin, klbMax, (( LongArray ) cell.getData()).getCurrentStorageArray() );
+                        readROIinPlace( filePath, klbMin, klbMax, (( LongArray ) cell.getData()).getCurrentStorageArray(), progress );
                     else
-                        readROIinPlace( filePath, klbMin, klbMax, (( DoubleArray ) cell.getData()).getCurrentStorageArray() );
+                        readROIinPlace( filePath, klbMin, klbMax, (( DoubleArray ) cell.getData()).getCurrentStorageArray(), progress );
                     break;
                 default:
                     throw new IOException( String.format( "Unknown or unsupported KLB data type of file %s.", filePath ) );
@@ -285,75 +685,193 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
      */
     public < A extends ArrayDataAccess< A > > ImgPlus< T > readFull( final String filePath )
             throws IOException
+    {
+        return readFull( filePath, null );
+    }
+
+    /**
+     * Read the entire image. Returns an instance of ArrayImg if possible, else CellImg.
+     *
+     * @param filePath file system path to KLB file
+     * @param progress reports progress and allows to cancel reading, can be null
+     * @return entire image, ArrayImg if possible, else CellImg
+     * @throws IOException InterruptedIOException if cancelled through progress
+     */
+    public < A extends ArrayDataAccess< A > > ImgPlus< T > readFull( final String filePath, final KlbProgress progress )
+            throws IOException
     {
         final Header header = readHeader( filePath );
         final Img< T > img = newEmptyImage( header.imageSize, header.blockSize, header.dataType );
         if ( img instanceof CellImg ) {
-            readCellImgInPlace( filePath, header, ( CellImg< T, A > ) img );
+            readCellImgInPlace( filePath, header, ( CellImg< T, A > ) img, progress );
         } else {
-            readArrayImgInPlace( filePath, ( ArrayImg< T, A > ) img );
+            readArrayImgInPlace( filePath, ( ArrayImg< T, A > ) img, progress );
         }
         return imgToImgPlus( img, header, filePath );
     }
 
-
-    /***********************************************************
-     * Read ROI
-     ***********************************************************/
-
-    public abstract void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final byte[] out )
-            throws IOException;
-
-    public abstract void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Buffer out )
-            throws IOException;
-
-
-    // The following functions provide default implementations for images that are better represented by
-    // short[], int[], etc. than byte[]. The required conversions copy the image, so if possible, concrete
-    // implementations of KLB should override these functions to read the corresponding data types directly.
-
-    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final short[] out )
+    /**
+     * Read the entire image into off-heap memory. The native library decodes the blocks straight into direct
+     * ByteBuffers of at most 1 GB each, which are wrapped as the cells of a CellImg without copying. Unlike
+     * {@link #readFull(String)}, the image does not count against the Java heap, but against the limit of direct
+     * memory (-XX:MaxDirectMemorySize, by default equal to the maximum heap size).
+     *
+     * @param filePath file system path to KLB file
+     * @return entire image, CellImg
+     * @throws IOException
+     */
+    public ImgPlus< T > readFullOffHeap( final String filePath )
             throws IOException
     {
-        final ByteBuffer bytes = ByteBuffer.allocate( 2 * out.length );
-        readROIinPlace( filePath, xyzctMin, xyzctMax, bytes.array() );
-        bytes.asShortBuffer().get( out );
+        return readFullOffHeap( filePath, null );
     }
 
-    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int[] out )
+    /**
+     * Read the entire image into off-heap memory, see {@link #readFullOffHeap(String)}.
+     *
+     * @param filePath file system path to KLB file
+     * @param progress reports progress and allows to cancel reading, can be null
+     * @return entire image, CellImg
+     * @throws IOException InterruptedIOException if cancelled through progress
+     */
+    public ImgPlus< T > readFullOffHeap( final String filePath, final KlbProgress progress )
             throws IOException
     {
-        final ByteBuffer bytes = ByteBuffer.allocate( 4 * out.length );
-        readROIinPlace( filePath, xyzctMin, xyzctMax, bytes.array() );
+        final Header header = readHeader( filePath );
+        final KlbOffHeapImg< T > img = new KlbOffHeapImg< T >( header.imageSize, header.dataType, MAX_OFF_HEAP_CHUNK_BYTES );
+        readFullInPlace( filePath, img.getChunks(), img.getChunkSizeBytes(), img.getChunkPeriodBytes(), progress );
+        return imgToImgPlus( img.getImg(), header, filePath );
+    }
+
+    /**
+     * Reads the entire image into direct ByteBuffers: each period of chunkPeriodBytes of the image is split into
+     * consecutive chunks of chunkSizeBytes (see {@link KlbOffHeapImg})
+     */
+    protected abstract void readFullInPlace( final String filePath, final ByteBuffer[] chunks, final long chunkSizeBytes, final long chunkPeriodBytes, final KlbProgress progress )
+            throws IOException;
+
+
+    /***********************************************************
+     * Read ROI
+     ***********************************************************/
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final byte[] out )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, out, null );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Buffer out )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, out, null );
+    }
+
+    public abstract void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final byte[] out, final KlbProgress progress )
+            throws IOException;
+
+    public abstract void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Buffer out, final KlbProgress progress )
+            throws IOException;
+
+    public void readROIinPlace( final KlbSource source, final long[] xyzctMin, final long[] xyzctMax, final byte[] out )
+            throws IOException
+    {
+        readROIinPlace( source, xyzctMin, xyzctMax, out, null );
+    }
+
+    /**
+     * Reads a ROI of a KLB file in memory or in a channel, see {@link KlbSource}. Only the blocks intersecting the
+     * ROI are fetched.
+     */
+    public abstract void readROIinPlace( final KlbSource source, final long[] xyzctMin, final long[] xyzctMax, final byte[] out, final KlbProgress progress )
+            throws IOException;
+
+    public abstract void readROIinPlace( final KlbSource source, final long[] xyzctMin, final long[] xyzctMax, final Buffer out, final KlbProgress progress )
+            throws IOException;
+
+
+    // The following functions provide default implementations for images that are better represented by
+    // short[], int[], etc. than byte[]. The required conversions copy the image, so if possible, concrete
+    // implementations of KLB should override these functions to read the corresponding data types directly.
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final short[] out )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, out, null );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final short[] out, final KlbProgress progress )
+            throws IOException
+    {
+        final ByteBuffer bytes = ByteBuffer.allocate( 2 * out.length );
+        readROIinPlace( filePath, xyzctMin, xyzctMax, bytes.array(), progress );
+        bytes.asShortBuffer().get( out );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int[] out )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, out, null );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int[] out, final KlbProgress progress )
+            throws IOException
+    {
+        final ByteBuffer bytes = ByteBuffer.allocate( 4 * out.length );
+        readROIinPlace( filePath, xyzctMin, xyzctMax, bytes.array(), progress );
         bytes.asIntBuffer().get( out );
     }
 
     public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] out )
             throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, out, null );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] out, final KlbProgress progress )
+            throws IOException
     {
         final ByteBuffer bytes = ByteBuffer.allocate( 8 * out.length );
-        readROIinPlace( filePath, xyzctMin, xyzctMax, bytes.array() );
+        readROIinPlace( filePath, xyzctMin, xyzctMax, bytes.array(), progress );
         bytes.asLongBuffer().get( out );
     }
 
     public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final float[] out )
             throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, out, null );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final float[] out, final KlbProgress progress )
+            throws IOException
     {
         final ByteBuffer bytes = ByteBuffer.allocate( 4 * out.length );
-        readROIinPlace( filePath, xyzctMin, xyzctMax, bytes.array() );
+        readROIinPlace( filePath, xyzctMin, xyzctMax, bytes.array(), progress );
         bytes.asFloatBuffer().get( out );
     }
 
     public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final double[] out )
             throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, out, null );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final double[] out, final KlbProgress progress )
+            throws IOException
     {
         final ByteBuffer bytes = ByteBuffer.allocate( 8 * out.length );
-        readROIinPlace( filePath, xyzctMin, xyzctMax, bytes.array() );
+        readROIinPlace( filePath, xyzctMin, xyzctMax, bytes.array(), progress );
         bytes.asDoubleBuffer().get( out );
     }
 
     public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Img< T > out, final boolean noChecks )
             throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, out, noChecks, null );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Img< T > out, final boolean noChecks, final KlbProgress progress )
+            throws IOException
     {
         Header header = null;
         if ( !noChecks ) {
@@ -367,41 +885,41 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
             }
         }
         if ( out instanceof CellImg ) {
-            readCellImgROIinPlace( filePath, header, xyzctMin, xyzctMax, ( CellImg ) out );
+            readCellImgROIinPlace( filePath, header, xyzctMin, xyzctMax, ( CellImg ) out, progress );
         } else {
-            readArrayImgROIinPlace( filePath, xyzctMin, xyzctMax, ( ArrayImg ) out );
+            readArrayImgROIinPlace( filePath, xyzctMin, xyzctMax, ( ArrayImg ) out, progress );
         }
     }
 
     @SuppressWarnings( "unchecked" )
-    private < A extends ArrayDataAccess< A > > void readArrayImgROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final ArrayImg< T, A > out )
+    private < A extends ArrayDataAccess< A > > void readArrayImgROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final ArrayImg< T, A > out, final KlbProgress progress )
             throws IOException
     {
         final T type = out.firstElement();
         if ( type instanceof GenericByteType ) {
             final byte[] buffer = (( ArrayImg< T, ByteArray > ) out).update( null ).getCurrentStorageArray();
-            readROIinPlace( filePath, xyzctMin, xyzctMax, buffer );
+            readROIinPlace( filePath, xyzctMin, xyzctMax, buffer, progress );
         } else if ( type instanceof GenericShortType ) {
             final short[] buffer = (( ArrayImg< T, ShortArray > ) out).update( null ).getCurrentStorageArray();
-            readROIinPlace( filePath, xyzctMin, xyzctMax, buffer );
+            readROIinPlace( filePath, xyzctMin, xyzctMax, buffer, progress );
         } else if ( type instanceof GenericIntType ) {
             final int[] buffer = (( ArrayImg< T, IntArray > ) out).update( null ).getCurrentStorageArray();
-            readROIinPlace( filePath, xyzctMin, xyzctMax, buffer );
+            readROIinPlace( filePath, xyzctMin, xyzctMax, buffer, progress );
         } else if ( type instanceof LongType ) {
             final long[] buffer = (( ArrayImg< T, LongArray > ) out).update( null ).getCurrentStorageArray();
-            readROIinPlace( filePath, xyzctMin, xyzctMax, buffer );
+            readROIinPlace( filePath, xyzctMin, xyzctMax, buffer, progress );
         } else if ( type instanceof FloatType ) {
             final float[] buffer = (( ArrayImg< T, FloatArray > ) out).update( null ).getCurrentStorageArray();
-            readROIinPlace( filePath, xyzctMin, xyzctMax, buffer );
+            readROIinPlace( filePath, xyzctMin, xyzctMax, buffer, progress );
         } else if ( type instanceof DoubleType ) {
             final double[] buffer = (( ArrayImg< T, DoubleArray > ) out).update( null ).getCurrentStorageArray();
-            readROIinPlace( filePath, xyzctMin, xyzctMax, buffer );
+            readROIinPlace( filePath, xyzctMin, xyzctMax, buffer, progress );
         } else {
             throw new IOException( "Unknown or unsupported KLB data type" );
         }
     }
 
-    private < A extends ArrayDataAccess< A > > void readCellImgROIinPlace( final String filePath, Header header, final long[] xyzctMin, final long[] xyzctMax, final CellImg< T, A > out )
+    private < A extends ArrayDataAccess< A > > void readCellImgROIinPlace( final String filePath, Header header, final long[] xyzctMin, final long[] xyzctMax, final CellImg< T, A > out, final KlbProgress progress )
             throws IOException
     {
         if ( header == null ) {
@@ -428,22 +946,22 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
             }
             switch ( type.getBitsPerPixel() ) {
                 case 8:
-                    readROIinPlace( filePath, klbMin, klbMax, (( ByteArray ) cell.getData()).getCurrentStorageArray() );
+                    readROIinPlace( filePath, klbMin, klbMax, (( ByteArray ) cell.getData()).getCurrentStorageArray(), progress );
                     break;
                 case 16:
-                    readROIinPlace( filePath, klbMin, klbMax, (( ShortArray ) cell.getData()).getCurrentStorageArray() );
+                    readROIinPlace( filePath, klbMin, klbMax, (( ShortArray ) cell.getData()).getCurrentStorageArray(), progress );
                     break;
                 case 32:
                     if ( type instanceof IntegerType )
-                        readROIinPlace( filePath, klbMin, klbMax, (( IntArray ) cell.getData()).getCurrentStorageArray() );
+                        readROIinPlace( filePath, klbMin, klbMax, (( IntArray ) cell.getData()).getCurrentStorageArray(), progress );
                     else
-                        readROIinPlace( filePath, klbMin, klbMax, (( FloatArray ) cell.getData()).getCurrentStorageArray() );
+                        readROIinPlace( filePath, klbMin, klbMax, (( FloatArray ) cell.getData()).getCurrentStorageArray(), progress );
                     break;
                 case 64:
                     if ( type instanceof IntegerType )
-                        readROIinPlace( filePath, klbMin, klbMax, (( LongArray ) cell.getData()).getCurrentStorageArray() );
+                        readROIinPlace( filePath, klbMin, klbMax, (( LongArray ) cell.getData()).getCurrentStorageArray(), progress );
                     else
-                        readROIinPlace( filePath, klbMin, klbMax, (( DoubleArray ) cell.getData()).getCurrentStorageArray() );
+                        readROIinPlace( filePath, klbMin, klbMax, (( DoubleArray ) cell.getData()).getCurrentStorageArray(), progress );
                     break;
                 default:
                     throw new IOException( String.format( "Unknown or unsupported KLB data type of file %s.", filePath ) );
@@ -452,34 +970,623 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
     }
 
     /**
-     * Read subvolume from image. Returns an instance of ArrayImg if possible, else CellImg.
-     * <p>
-     * When reading as a CellImg (Img.size() > Integer.MAX_VALUE), ensure that xyzctMin points to the start of a
-     * KLB block for max performance. Otherwise, all KLB blocks that intersect with multiple ImgCells will be
-     * uncompressed multiple times (when populating each intersecting ImgCell).
+     * Read subvolume from image. Returns an instance of ArrayImg if possible, else CellImg.
+     * <p>
+     * When reading as a CellImg (Img.size() > Integer.MAX_VALUE), ensure that xyzctMin points to the start of a
+     * KLB block for max performance. Otherwise, all KLB blocks that intersect with multiple ImgCells will be
+     * uncompressed multiple times (when populating each intersecting ImgCell).
+     *
+     * @param filePath file system path to KLB file
+     * @param xyzctMin lower limit of bounding box subvolume, in order xyzct
+     * @param xyzctMax upper limit of bounding box subvolume (inclusive), in order xyzct
+     * @return subvolume, as ArrayImg or CellImg, as appropriate
+     * @throws IOException
+     */
+    public ImgPlus< T > readROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax )
+            throws IOException
+    {
+        return readROI( filePath, xyzctMin, xyzctMax, null );
+    }
+
+    /**
+     * Read subvolume from image, reporting progress to (and allowing cancellation through) the given KlbProgress.
+     *
+     * @param filePath file system path to KLB file
+     * @param xyzctMin lower limit of bounding box subvolume, in order xyzct
+     * @param xyzctMax upper limit of bounding box subvolume (inclusive), in order xyzct
+     * @param progress reports progress and allows to cancel reading, can be null
+     * @return subvolume, as ArrayImg or CellImg, as appropriate
+     * @throws IOException InterruptedIOException if cancelled through progress
+     * @see #readROI(String, long[], long[])
+     */
+    public ImgPlus< T > readROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final KlbProgress progress )
+            throws IOException
+    {
+        final Header header = readHeader( filePath );
+        final long[] roiSize = new long[ xyzctMin.length ];
+        for ( int d = 0; d < xyzctMin.length; ++d ) {
+            roiSize[ d ] = 1 + xyzctMax[ d ] - xyzctMin[ d ];
+        }
+        // todo: blocks may be out of alignment
+        final Img< T > img = newEmptyImage( roiSize, header.blockSize, header.dataType );
+        if ( img instanceof CellImg ) {
+            readCellImgROIinPlace( filePath, header, xyzctMin, xyzctMax, ( CellImg ) img, progress );
+        } else {
+            readArrayImgROIinPlace( filePath, xyzctMin, xyzctMax, ( ArrayImg ) img, progress );
+        }
+        return imgToImgPlus( img, header, filePath );
+    }
+
+
+    /***********************************************************
+     * Read strided / binned / thresholded ROI
+     ***********************************************************/
+
+    /**
+     * Read a subsampled subvolume into a pre-allocated buffer. Along each dimension d, output pixel i is computed
+     * from the input pixels xyzctMin[d] + i * xyzctStep[d] ... xyzctMin[d] + i * xyzctStep[d] + xyzctBin[d] - 1
+     * (cropped at xyzctMax[d]): a bin of 1 picks every step-th pixel, a bin equal to the step averages
+     * non-overlapping neighborhoods (rounded for integer types). Subsampling happens while blocks are decompressed,
+     * so the full resolution subvolume is never held in memory. See {@link #getSampledSize(long[], long[], long[])}
+     * for the required buffer size.
+     *
+     * @param filePath  file system path to KLB file
+     * @param xyzctMin  lower limit of bounding box subvolume, in order xyzct
+     * @param xyzctMax  upper limit of bounding box subvolume (inclusive), in order xyzct
+     * @param xyzctStep distance between consecutive output pixels in input pixels (&gt;= 1), in order xyzct; null
+     *                  for 1 along all dimensions
+     * @param xyzctBin  number of input pixels averaged per output pixel (1 &lt;= bin &lt;= step), in order xyzct;
+     *                  null for 1 along all dimensions
+     * @param out       output buffer, in native byte order
+     * @param progress  reports progress and allows to cancel reading, can be null
+     * @throws IOException
+     */
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final byte[] out, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, xyzctStep, xyzctBin, Double.NEGATIVE_INFINITY, out, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final Buffer out, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, xyzctStep, xyzctBin, Double.NEGATIVE_INFINITY, out, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final short[] out, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, xyzctStep, xyzctBin, Double.NEGATIVE_INFINITY, out, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final int[] out, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, xyzctStep, xyzctBin, Double.NEGATIVE_INFINITY, out, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final long[] out, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, xyzctStep, xyzctBin, Double.NEGATIVE_INFINITY, out, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final float[] out, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, xyzctStep, xyzctBin, Double.NEGATIVE_INFINITY, out, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final double[] out, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, xyzctStep, xyzctBin, Double.NEGATIVE_INFINITY, out, progress );
+    }
+
+    /**
+     * Read a subvolume into a pre-allocated buffer, setting all pixels below threshold to 0. If the file stores
+     * per-block statistics (see {@link KlbBlockStats}), blocks whose maximum is below threshold are not decompressed
+     * at all, which makes reading sparse images (e.g. mostly background) much faster.
+     *
+     * @param filePath  file system path to KLB file
+     * @param xyzctMin  lower limit of bounding box subvolume, in order xyzct
+     * @param xyzctMax  upper limit of bounding box subvolume (inclusive), in order xyzct
+     * @param threshold pixels below this value are read as 0
+     * @param out       output buffer, in native byte order
+     * @param progress  reports progress and allows to cancel reading, can be null
+     * @throws IOException
+     */
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final double threshold, final byte[] out, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, threshold, out, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final double threshold, final Buffer out, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, threshold, out, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final double threshold, final short[] out, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, threshold, out, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final double threshold, final int[] out, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, threshold, out, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final double threshold, final long[] out, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, threshold, out, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final double threshold, final float[] out, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, threshold, out, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final double threshold, final double[] out, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, threshold, out, progress );
+    }
+
+    /**
+     * Read a subvolume into a larger pre-allocated buffer, e.g. one tile of a mosaic, without packing it into an
+     * intermediate buffer first: the decompressed blocks are scattered straight into out. Pixel (x, y, z, c, t) of
+     * the subvolume is written to pixel outOffset + x * outStrides[0] + y * outStrides[1] + ... + t * outStrides[4]
+     * of out; the other pixels of out are not modified.
+     *
+     * @param filePath   file system path to KLB file
+     * @param xyzctMin   lower limit of bounding box subvolume, in order xyzct
+     * @param xyzctMax   upper limit of bounding box subvolume (inclusive), in order xyzct
+     * @param out        output buffer, in native byte order
+     * @param outOffset  index of pixel (0, 0, 0, 0, 0) of the subvolume in out, in pixels
+     * @param outStrides distance between neighboring pixels of the subvolume in out, in pixels, in order xyzct; the
+     *                   stride of dimensions of size 1 is ignored
+     * @param progress   reports progress and allows to cancel reading, can be null
+     * @throws IOException also if the subvolume exceeds out
+     */
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final byte[] out, final long outOffset, final long[] outStrides, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, Double.NEGATIVE_INFINITY, out, outOffset, outStrides, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Buffer out, final long outOffset, final long[] outStrides, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, Double.NEGATIVE_INFINITY, out, outOffset, outStrides, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final short[] out, final long outOffset, final long[] outStrides, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, Double.NEGATIVE_INFINITY, out, outOffset, outStrides, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int[] out, final long outOffset, final long[] outStrides, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, Double.NEGATIVE_INFINITY, out, outOffset, outStrides, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] out, final long outOffset, final long[] outStrides, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, Double.NEGATIVE_INFINITY, out, outOffset, outStrides, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final float[] out, final long outOffset, final long[] outStrides, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, Double.NEGATIVE_INFINITY, out, outOffset, outStrides, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final double[] out, final long outOffset, final long[] outStrides, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, Double.NEGATIVE_INFINITY, out, outOffset, outStrides, progress );
+    }
+
+    /**
+     * Read a subvolume into an interval of an ArrayImg, e.g. Views.interval( mosaic, tileMin, tileMax ), without
+     * an intermediate copy. As for {@link #readROI(String, long[], long[])}, dimensions of size 1 of the file are
+     * dropped: the others map to the dimensions of the view in order, whose sizes have to match the subvolume.
+     *
+     * @param filePath file system path to KLB file
+     * @param xyzctMin lower limit of bounding box subvolume, in order xyzct
+     * @param xyzctMax upper limit of bounding box subvolume (inclusive), in order xyzct
+     * @param out      interval of an ArrayImg of the data type of the file
+     * @param progress reports progress and allows to cancel reading, can be null
+     * @throws IOException
+     * @see #readROIinPlace(String, long[], long[], byte[], long, long[], KlbProgress)
+     */
+    @SuppressWarnings( "unchecked" )
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final IntervalView< T > out, final KlbProgress progress )
+            throws IOException
+    {
+        if ( !( out.getSource() instanceof ArrayImg ) ) {
+            throw new IOException( "Output must be an interval of an ArrayImg." );
+        }
+        final ArrayImg< T, ? extends ArrayDataAccess< ? > > img = ( ArrayImg< T, ? extends ArrayDataAccess< ? > > ) out.getSource();
+        final Header header = readHeader( filePath );
+        if ( img.firstElement().getClass() != header.dataType.getClass() ) {
+            throw new IOException( String.format( "Output of type %s cannot hold the pixels of KLB file %s.", img.firstElement().getClass().getSimpleName(), filePath ) );
+        }
+
+        // strides of the ArrayImg, and offset of the interval in it
+        final long[] imgStrides = new long[ img.numDimensions() ];
+        long outOffset = 0;
+        for ( int d = 0; d < imgStrides.length; ++d ) {
+            imgStrides[ d ] = d == 0 ? 1 : imgStrides[ d - 1 ] * img.dimension( d - 1 );
+            outOffset += out.min( d ) * imgStrides[ d ];
+        }
+        final long[] outStrides = new long[ 5 ];
+        int i = 0;
+        for ( int d = 0; d < outStrides.length; ++d ) {
+            if ( header.imageSize[ d ] == 1 ) {
+                continue;
+            }
+            if ( i == out.numDimensions() || out.dimension( i ) != 1 + xyzctMax[ d ] - xyzctMin[ d ] ) {
+                throw new IOException( String.format( "Size of the output does not match the ROI %s - %s of KLB file %s.", Arrays.toString( xyzctMin ), Arrays.toString( xyzctMax ), filePath ) );
+            }
+            outStrides[ d ] = imgStrides[ i++ ];
+        }
+        for ( ; i < out.numDimensions(); ++i ) {
+            if ( out.dimension( i ) != 1 ) {
+                throw new IOException( String.format( "Size of the output does not match the ROI %s - %s of KLB file %s.", Arrays.toString( xyzctMin ), Arrays.toString( xyzctMax ), filePath ) );
+            }
+        }
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, Double.NEGATIVE_INFINITY, img.update( null ).getCurrentStorageArray(), outOffset, outStrides, progress );
+    }
+
+    /**
+     * Strided / binned / thresholded read into a byte[], short[], int[], long[], float[], double[] or direct Buffer.
+     *
+     * @param xyzctStep can be null
+     * @param xyzctBin  can be null
+     * @param threshold Double.NEGATIVE_INFINITY to read all pixels
+     */
+    protected void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final double threshold, final Object out, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, xyzctStep, xyzctBin, threshold, out, 0, null, progress );
+    }
+
+    /**
+     * Strided / binned / thresholded read into a byte[], short[], int[], long[], float[], double[] or direct Buffer.
+     *
+     * @param xyzctStep  can be null
+     * @param xyzctBin   can be null
+     * @param threshold  Double.NEGATIVE_INFINITY to read all pixels
+     * @param outStrides null to pack the output (outOffset is then ignored), see
+     *                   {@link #readROIinPlace(String, long[], long[], byte[], long, long[], KlbProgress)}
+     */
+    protected void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final double threshold, final Object out, final long outOffset, final long[] outStrides, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, xyzctStep, xyzctBin, threshold, out, outOffset, outStrides, null, 1, 0, progress );
+    }
+
+    /**
+     * Strided / binned / thresholded read into a byte[], short[], int[], long[], float[], double[] or direct Buffer,
+     * which concrete implementations of KLB have to provide.
+     *
+     * @param outType null to read the pixels as stored (scale and offset are then ignored), see
+     *                {@link #readROIinPlace(String, long[], long[], float[], double, double, KlbProgress)}
+     */
+    protected abstract void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final double threshold, final Object out, final long outOffset, final long[] outStrides, final NativeType< ? > outType, final double scale, final double offset, final KlbProgress progress )
+            throws IOException;
+
+    /**
+     * Size of the output of a strided / binned read of the given bounding box, in order xyzct.
+     *
+     * @param xyzctStep distance between consecutive output pixels, can be null
+     */
+    public static long[] getSampledSize( final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep )
+    {
+        final long[] step = sampling( xyzctStep );
+        final long[] size = new long[ xyzctMin.length ];
+        for ( int d = 0; d < size.length; ++d ) {
+            size[ d ] = (xyzctMax[ d ] - xyzctMin[ d ] + step[ d ]) / step[ d ];
+        }
+        return size;
+    }
+
+    /**
+     * Read a subsampled subvolume, e.g. a preview of a large image, without decompressing it into memory at full
+     * resolution. Pixel spacing of the returned image is scaled by the step.
+     *
+     * @param filePath  file system path to KLB file
+     * @param xyzctMin  lower limit of bounding box subvolume, in order xyzct
+     * @param xyzctMax  upper limit of bounding box subvolume (inclusive), in order xyzct
+     * @param xyzctStep distance between consecutive output pixels in input pixels, in order xyzct, can be null
+     * @param xyzctBin  number of input pixels averaged per output pixel, in order xyzct, can be null
+     * @return subsampled subvolume, as ArrayImg or CellImg, as appropriate
+     * @throws IOException
+     * @see #readROIinPlace(String, long[], long[], long[], long[], byte[], KlbProgress)
+     */
+    public ImgPlus< T > readROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin )
+            throws IOException
+    {
+        return readROI( filePath, xyzctMin, xyzctMax, xyzctStep, xyzctBin, null );
+    }
+
+    public ImgPlus< T > readROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final KlbProgress progress )
+            throws IOException
+    {
+        return readROI( filePath, xyzctMin, xyzctMax, xyzctStep, xyzctBin, Double.NEGATIVE_INFINITY, progress );
+    }
+
+    /**
+     * Read a subvolume, setting all pixels below threshold to 0 and skipping blocks that are entirely below it.
+     *
+     * @see #readROIinPlace(String, long[], long[], double, byte[], KlbProgress)
+     */
+    public ImgPlus< T > readROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final double threshold )
+            throws IOException
+    {
+        return readROI( filePath, xyzctMin, xyzctMax, null, null, threshold, null );
+    }
+
+    private ImgPlus< T > readROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final double threshold, final KlbProgress progress )
+            throws IOException
+    {
+        final long[] step = sampling( xyzctStep ), bin = sampling( xyzctBin );
+        final Header header = readHeader( filePath );
+        final long[] outSize = getSampledSize( xyzctMin, xyzctMax, step );
+        for ( int d = 0; d < 5; ++d ) {
+            header.imageSize[ d ] = outSize[ d ];
+            header.pixelSpacing[ d ] *= step[ d ];
+        }
+
+        final Img< T > img = newEmptyImage( outSize, null, header.dataType );
+        if ( img instanceof CellImg ) {
+            readSampledCellImgInPlace( filePath, xyzctMin, xyzctMax, step, bin, threshold, outSize, ( CellImg ) img, progress );
+        } else {
+            readROIinPlace( filePath, xyzctMin, xyzctMax, step, bin, threshold, (( ArrayImg< T, ? extends ArrayDataAccess< ? > > ) img).update( null ).getCurrentStorageArray(), progress );
+        }
+        return imgToImgPlus( img, header, filePath );
+    }
+
+    /**
+     * Each cell is a sampled read of its own bounding box. Cells start at output pixels, so bins never straddle cells.
+     */
+    private < A extends ArrayDataAccess< A > > void readSampledCellImgInPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] step, final long[] bin, final double threshold, final long[] outSize, final CellImg< T, A > out, final KlbProgress progress )
+            throws IOException
+    {
+        final int[] cellDims = new int[ out.numDimensions() ];
+        final long[] cellOffset = new long[ cellDims.length ];
+        final long[] klbMin = new long[ 5 ];
+        final long[] klbMax = new long[ 5 ];
+        final Cursor< Cell< A > > cursor = out.getCells().cursor();
+        while ( cursor.hasNext() ) {
+            final Cell< A > cell = cursor.next();
+            cell.dimensions( cellDims );
+            cell.min( cellOffset );
+            int i = 0;
+            for ( int d = 0; d < klbMin.length; ++d ) {
+                if ( outSize[ d ] == 1 ) {
+                    klbMin[ d ] = xyzctMin[ d ];
+                    klbMax[ d ] = xyzctMax[ d ];
+                } else {
+                    klbMin[ d ] = xyzctMin[ d ] + cellOffset[ i ] * step[ d ];
+                    klbMax[ d ] = Math.min( xyzctMax[ d ], klbMin[ d ] + (cellDims[ i++ ] - 1) * step[ d ] + bin[ d ] - 1 );
+                }
+            }
+            readROIinPlace( filePath, klbMin, klbMax, step, bin, threshold, cell.getData().getCurrentStorageArray(), progress );
+        }
+    }
+
+    /**
+     * Returns the given step or bin sizes, or 1 along all dimensions if null
+     */
+    protected static long[] sampling( final long[] factors )
+    {
+        if ( factors != null ) {
+            return factors;
+        }
+        final long[] ones = new long[ 5 ];
+        Arrays.fill( ones, 1 );
+        return ones;
+    }
+
+
+    /***********************************************************
+     * Read with type conversion
+     ***********************************************************/
+
+    /**
+     * Read the entire image converted to float, e.g. with the offset and gain correction of a camera. Pixel values
+     * are converted to value * scale + offset while the blocks are decompressed, so neither a second pass over the
+     * image nor an image of the stored type is needed.
+     *
+     * @param filePath file system path to KLB file
+     * @param out      output buffer
+     * @param scale    factor applied to each stored value
+     * @param offset   added to each scaled value
+     * @param progress reports progress and allows to cancel reading, can be null
+     * @throws IOException
+     */
+    public void readFullInPlace( final String filePath, final float[] out, final double scale, final double offset, final KlbProgress progress )
+            throws IOException
+    {
+        final Header header = readHeader( filePath );
+        readROIinPlace( filePath, new long[ 5 ], lastPixel( header ), out, scale, offset, progress );
+    }
+
+    public void readFullInPlace( final String filePath, final double[] out, final double scale, final double offset, final KlbProgress progress )
+            throws IOException
+    {
+        final Header header = readHeader( filePath );
+        readROIinPlace( filePath, new long[ 5 ], lastPixel( header ), out, scale, offset, progress );
+    }
+
+    /**
+     * Read a subvolume converted to float as value * scale + offset.
+     *
+     * @see #readFullInPlace(String, float[], double, double, KlbProgress)
+     */
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final float[] out, final double scale, final double offset, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, Double.NEGATIVE_INFINITY, out, 0, null, new FloatType(), scale, offset, progress );
+    }
+
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final double[] out, final double scale, final double offset, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, Double.NEGATIVE_INFINITY, out, 0, null, new DoubleType(), scale, offset, progress );
+    }
+
+    /**
+     * Read a subvolume converted to any KLB data type as value * scale + offset (rounded and saturated for integer
+     * types), e.g. into an off-heap buffer.
+     *
+     * @param outType data type of out
+     * @param out     direct output buffer, in native byte order
+     * @see #readFullInPlace(String, float[], double, double, KlbProgress)
+     */
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final NativeType< ? > outType, final double scale, final double offset, final Buffer out, final KlbProgress progress )
+            throws IOException
+    {
+        readROIinPlace( filePath, xyzctMin, xyzctMax, null, null, Double.NEGATIVE_INFINITY, out, 0, null, outType, scale, offset, progress );
+    }
+
+    private static long[] lastPixel( final KLB< ? >.Header header )
+    {
+        final long[] xyzctMax = new long[ 5 ];
+        for ( int d = 0; d < 5; ++d ) {
+            xyzctMax[ d ] = header.imageSize[ d ] - 1;
+        }
+        return xyzctMax;
+    }
+
+
+    /***********************************************************
+     * Read with permuted axes
+     ***********************************************************/
+
+    /**
+     * Dimension order of ImageJ (xyczt), see {@link #readFull(String, int[], KlbProgress)}
+     */
+    public static final int[] XYCZT = { 0, 1, 3, 2, 4 };
+
+    private static final int[] XYZCT = { 0, 1, 2, 3, 4 };
+
+    /**
+     * Read the entire image with its dimensions in another order than xyzct, e.g. {@link #XYCZT}. The blocks are
+     * scattered into that memory order while they are decompressed, so the result is a plain ArrayImg (or CellImg)
+     * rather than a permuted view of one, at no extra cost. Dimensions of size 1 are dropped as for
+     * {@link #readFull(String)}.
+     *
+     * @param filePath   file system path to KLB file
+     * @param xyzctOrder dimension of the file (0 = x, 1 = y, 2 = z, 3 = c, 4 = t) of each dimension of the result,
+     *                   a permutation of 0...4
+     * @param progress   reports progress and allows to cancel reading, can be null
+     * @return entire image, ArrayImg if possible, else CellImg
+     * @throws IOException
+     */
+    public ImgPlus< T > readFull( final String filePath, final int[] xyzctOrder, final KlbProgress progress )
+            throws IOException
+    {
+        return readPermuted( filePath, null, null, xyzctOrder, progress );
+    }
+
+    /**
+     * Read a subvolume with its dimensions in another order than xyzct.
      *
-     * @param filePath file system path to KLB file
-     * @param xyzctMin lower limit of bounding box subvolume, in order xyzct
-     * @param xyzctMax upper limit of bounding box subvolume (inclusive), in order xyzct
-     * @return subvolume, as ArrayImg or CellImg, as appropriate
-     * @throws IOException
+     * @param xyzctMin   lower limit of bounding box subvolume, in order xyzct
+     * @param xyzctMax   upper limit of bounding box subvolume (inclusive), in order xyzct
+     * @param xyzctOrder dimension of the file of each dimension of the result, a permutation of 0...4
+     * @see #readFull(String, int[], KlbProgress)
      */
-    public ImgPlus< T > readROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax )
+    public ImgPlus< T > readROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int[] xyzctOrder, final KlbProgress progress )
+            throws IOException
+    {
+        return readPermuted( filePath, xyzctMin, xyzctMax, xyzctOrder, progress );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private < A extends ArrayDataAccess< A > > ImgPlus< T > readPermuted( final String filePath, long[] xyzctMin, long[] xyzctMax, final int[] xyzctOrder, final KlbProgress progress )
             throws IOException
     {
+        final boolean[] isUsed = new boolean[ 5 ];
+        boolean isPermutation = xyzctOrder.length == 5;
+        for ( int k = 0; isPermutation && k < 5; ++k ) {
+            final int d = xyzctOrder[ k ];
+            isPermutation = d >= 0 && d < 5 && !isUsed[ d ];
+            isUsed[ isPermutation ? d : 0 ] = true;
+        }
+        if ( !isPermutation ) {
+            throw new IllegalArgumentException( "Dimension order must be a permutation of 0...4: " + Arrays.toString( xyzctOrder ) );
+        }
         final Header header = readHeader( filePath );
-        final long[] roiSize = new long[ xyzctMin.length ];
-        for ( int d = 0; d < xyzctMin.length; ++d ) {
-            roiSize[ d ] = 1 + xyzctMax[ d ] - xyzctMin[ d ];
+        if ( xyzctMin == null ) {
+            xyzctMin = new long[ 5 ];
+            xyzctMax = new long[ 5 ];
+            for ( int d = 0; d < 5; ++d ) {
+                xyzctMax[ d ] = header.imageSize[ d ] - 1;
+            }
         }
-        // todo: blocks may be out of alignment
-        final Img< T > img = newEmptyImage( roiSize, header.blockSize, header.dataType );
+
+        // image (and block) size in the requested order, and dimension of the file of each dimension of the image
+        final long[] size = new long[ 5 ], blockSize = new long[ 5 ];
+        final int[] imgToFile = new int[ 5 ];
+        int n = 0;
+        for ( int k = 0; k < 5; ++k ) {
+            final int d = xyzctOrder[ k ];
+            size[ k ] = 1 + xyzctMax[ d ] - xyzctMin[ d ];
+            blockSize[ k ] = header.blockSize[ d ];
+            if ( size[ k ] > 1 ) {
+                imgToFile[ n++ ] = d;
+            }
+        }
+
+        // each cell (or the whole ArrayImg) is a ROI of the file, read with the strides of the cell
+        final Img< T > img = newEmptyImage( size, blockSize, header.dataType );
+        final int[] cellDims = new int[ img.numDimensions() ];
+        final long[] cellOffset = new long[ cellDims.length ];
         if ( img instanceof CellImg ) {
-            readCellImgROIinPlace( filePath, header, xyzctMin, xyzctMax, ( CellImg ) img );
+            final Cursor< Cell< A > > cursor = (( CellImg< T, A > ) img).getCells().cursor();
+            while ( cursor.hasNext() ) {
+                final Cell< A > cell = cursor.next();
+                cell.dimensions( cellDims );
+                cell.min( cellOffset );
+                readPermutedCell( filePath, xyzctMin, imgToFile, cellOffset, cellDims, cell.getData().getCurrentStorageArray(), progress );
+            }
         } else {
-            readArrayImgROIinPlace( filePath, xyzctMin, xyzctMax, ( ArrayImg ) img );
+            for ( int i = 0; i < cellDims.length; ++i ) {
+                cellDims[ i ] = ( int ) img.dimension( i );
+            }
+            readPermutedCell( filePath, xyzctMin, imgToFile, cellOffset, cellDims, (( ArrayImg< T, A > ) img).update( null ).getCurrentStorageArray(), progress );
         }
-        return imgToImgPlus( img, header, filePath );
+        return imgToImgPlus( img, header, filePath, size, xyzctOrder );
+    }
+
+    private void readPermutedCell( final String filePath, final long[] xyzctMin, final int[] imgToFile, final long[] cellOffset, final int[] cellDims, final Object out, final KlbProgress progress )
+            throws IOException
+    {
+        final long[] klbMin = xyzctMin.clone();
+        final long[] klbMax = xyzctMin.clone();
+        final long[] strides = new long[ 5 ];
+        long stride = 1;
+        for ( int i = 0; i < cellDims.length; ++i ) {
+            final int d = imgToFile[ i ];
+            klbMin[ d ] += cellOffset[ i ];
+            klbMax[ d ] = klbMin[ d ] + cellDims[ i ] - 1;
+            strides[ d ] = stride;
+            stride *= cellDims[ i ];
+        }
+        readROIinPlace( filePath, klbMin, klbMax, null, null, Double.NEGATIVE_INFINITY, out, 0, strides, progress );
     }
 
 
@@ -487,12 +1594,65 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
      * Write
      ***********************************************************/
 
-    public abstract void writeFull( final byte[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
+    public void writeFull( final byte[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
+            throws IOException
+    {
+        writeFull( img, filePath, imageSize, dataType, pixelSpacing, blockSize, compressionType, metadata, null );
+    }
+
+    public void writeFull( final Buffer img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
+            throws IOException
+    {
+        writeFull( img, filePath, imageSize, dataType, pixelSpacing, blockSize, compressionType, metadata, null );
+    }
+
+    public abstract void writeFull( final byte[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
             throws IOException;
 
-    public abstract void writeFull( final Buffer img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
+    public abstract void writeFull( final Buffer img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
             throws IOException;
 
+    /**
+     * Writes a KLB file to a channel instead of a file system path, e.g. a socket or an object store upload. The
+     * block offsets precede the blocks in the file: if the channel is a SeekableByteChannel, they are written back
+     * once all blocks have been written (the file starts at the position of the channel when the call is made).
+     * Otherwise, the image is compressed twice, first to find the offsets, then to write it, which takes about twice
+     * as long but needs no more memory than writing to a file. The channel is not closed.
+     *
+     * @param img      image in order xyzct, in native byte order
+     * @param channel  destination of the file
+     * @param progress reports progress (both passes, if the image is compressed twice) and allows to cancel, can be
+     *                 null. A cancelled write leaves an incomplete file in the channel
+     * @throws IOException
+     */
+    public abstract void writeFull( final byte[] img, final WritableByteChannel channel, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
+            throws IOException;
+
+    public abstract void writeFull( final Buffer img, final WritableByteChannel channel, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
+            throws IOException;
+
+    public void writeFull( final byte[] img, final WritableByteChannel channel, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
+            throws IOException
+    {
+        writeFull( img, channel, imageSize, dataType, pixelSpacing, blockSize, compressionType, metadata, null );
+    }
+
+    /**
+     * Writes a KLB file to a stream, see {@link #writeFull(byte[], WritableByteChannel, long[], NativeType, float[], long[], CompressionType, byte[], KlbProgress)}.
+     * Streams are not seekable, so the image is compressed twice. The stream is not closed.
+     */
+    public void writeFull( final byte[] img, final OutputStream stream, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
+            throws IOException
+    {
+        writeFull( img, Channels.newChannel( stream ), imageSize, dataType, pixelSpacing, blockSize, compressionType, metadata, progress );
+    }
+
+    public void writeFull( final Buffer img, final OutputStream stream, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
+            throws IOException
+    {
+        writeFull( img, Channels.newChannel( stream ), imageSize, dataType, pixelSpacing, blockSize, compressionType, metadata, progress );
+    }
+
 
     // The following functions provide default implementations for images that are better represented by
     // short[], int[], etc. than byte[]. The required conversions copy the image, so if possible, concrete
@@ -500,58 +1660,125 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
 
     public void writeFull( final short[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
             throws IOException
+    {
+        writeFull( img, filePath, imageSize, dataType, pixelSpacing, blockSize, compressionType, metadata, null );
+    }
+
+    public void writeFull( final short[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
+            throws IOException
     {
         final ByteBuffer buffer = ByteBuffer.allocate( 2 * img.length );
         buffer.asShortBuffer().put( img );
-        writeFull( buffer.array(), filePath, imageSize, dataType, pixelSpacing, blockSize, compressionType, metadata );
+        writeFull( buffer.array(), filePath, imageSize, dataType, pixelSpacing, blockSize, compressionType, metadata, progress );
     }
 
     public void writeFull( final int[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
             throws IOException
+    {
+        writeFull( img, filePath, imageSize, dataType, pixelSpacing, blockSize, compressionType, metadata, null );
+    }
+
+    public void writeFull( final int[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
+            throws IOException
     {
         final ByteBuffer buffer = ByteBuffer.allocate( 4 * img.length );
         buffer.asIntBuffer().put( img );
-        writeFull( buffer.array(), filePath, imageSize, dataType, pixelSpacing, blockSize, compressionType, metadata );
+        writeFull( buffer.array(), filePath, imageSize, dataType, pixelSpacing, blockSize, compressionType, metadata, progress );
     }
 
     public void writeFull( final long[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
             throws IOException
+    {
+        writeFull( img, filePath, imageSize, dataType, pixelSpacing, blockSize, compressionType, metadata, null );
+    }
+
+    public void writeFull( final long[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
+            throws IOException
     {
         final ByteBuffer buffer = ByteBuffer.allocate( 8 * img.length );
         buffer.asLongBuffer().put( img );
-        writeFull( buffer.array(), filePath, imageSize, dataType, pixelSpacing, blockSize, compressionType, metadata );
+        writeFull( buffer.array(), filePath, imageSize, dataType, pixelSpacing, blockSize, compressionType, metadata, progress );
     }
 
     public void writeFull( final float[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
             throws IOException
+    {
+        writeFull( img, filePath, imageSize, dataType, pixelSpacing, blockSize, compressionType, metadata, null );
+    }
+
+    public void writeFull( final float[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
+            throws IOException
     {
         final ByteBuffer buffer = ByteBuffer.allocate( 4 * img.length );
         buffer.asFloatBuffer().put( img );
-        writeFull( buffer.array(), filePath, imageSize, ( T ) dataType, pixelSpacing, blockSize, compressionType, metadata );
+        writeFull( buffer.array(), filePath, imageSize, ( T ) dataType, pixelSpacing, blockSize, compressionType, metadata, progress );
     }
 
     public void writeFull( final double[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
             throws IOException
+    {
+        writeFull( img, filePath, imageSize, dataType, pixelSpacing, blockSize, compressionType, metadata, null );
+    }
+
+    public void writeFull( final double[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
+            throws IOException
     {
         final ByteBuffer buffer = ByteBuffer.allocate( 8 * img.length );
         buffer.asDoubleBuffer().put( img );
-        writeFull( buffer.array(), filePath, imageSize, ( T ) dataType, pixelSpacing, blockSize, compressionType, metadata );
+        writeFull( buffer.array(), filePath, imageSize, ( T ) dataType, pixelSpacing, blockSize, compressionType, metadata, progress );
     }
 
     public void writeFull( final Img< T > img, final String filePath, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
             throws IOException
+    {
+        writeFull( img, filePath, pixelSpacing, blockSize, compressionType, metadata, null );
+    }
+
+    public void writeFull( final Img< T > img, final String filePath, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
+            throws IOException
     {
         if ( img instanceof CellImg ) {
-            writeFull( ( CellImg ) img, filePath, pixelSpacing, blockSize, compressionType, metadata );
-        } else if ( img instanceof PlanarImg ) {
-            writeFull( ( PlanarImg ) img, filePath, pixelSpacing, blockSize, compressionType, metadata );
+            writeFull( ( CellImg ) img, filePath, pixelSpacing, blockSize, compressionType, metadata, progress );
+        } else if ( img instanceof ArrayImg ) {
+            writeFull( ( ArrayImg ) img, filePath, pixelSpacing, blockSize, compressionType, metadata, progress );
         } else {
-            writeFull( ( ArrayImg ) img, filePath, pixelSpacing, blockSize, compressionType, metadata );
+            writeFull( ( RandomAccessibleInterval< T > ) img, filePath, pixelSpacing, blockSize, compressionType, metadata, progress );
         }
     }
 
+    public void writeFull( final RandomAccessibleInterval< T > img, final String filePath, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
+            throws IOException
+    {
+        writeFull( img, filePath, pixelSpacing, blockSize, compressionType, metadata, null );
+    }
+
+    /**
+     * Writes any image of up to 5 dimensions (in order xyzct), e.g. a view or the lazily computed result of a
+     * processing pipeline, without copying it into an ArrayImg first. Each thread pulls the pixels of one KLB block at a
+     * time from img and compresses them, and the blocks are written in file order as they are done, so only a few
+     * blocks per thread are held in memory. img has to support random access from several threads at once.
+     *
+     * @param img          image to write, its min is written at the origin of the file
+     * @param filePath     file system path to KLB file
+     * @param pixelSpacing in order xyzct, can be null
+     * @param blockSize    in order xyzct, can be null
+     * @param progress     reports progress (blocks written) and allows to cancel, can be null
+     * @throws IOException
+     */
+    public void writeFull( final RandomAccessibleInterval< T > img, final String filePath, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
+            throws IOException
+    {
+        KlbIntervalWriter.write( this, img, filePath, pixelSpacing, blockSize, compressionType, metadata, progress );
+    }
+
     public void writeFull( final ImgPlus< T > img, final String filePath, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
             throws IOException
+    {
+        writeFull( img, filePath, blockSize, compressionType, metadata, null );
+    }
+
+    public void writeFull( final ImgPlus< T > img, final String filePath, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
+            throws IOException
     {
         final float[] pixelSpacing = { 1, 1, 1, 1, 1 };
         for ( int d = 0; d < img.numDimensions(); ++d ) {
@@ -570,11 +1797,11 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
                 pixelSpacing[ 4 ] = scale;
             }
         }
-        writeFull( img.getImg(), filePath, pixelSpacing, blockSize, compressionType, metadata );
+        writeFull( img.getImg(), filePath, pixelSpacing, blockSize, compressionType, metadata, progress );
     }
 
     @SuppressWarnings( "unchecked" )
-    private < A extends ArrayDataAccess< A > > void writeFull( final ArrayImg< T, A > img, final String filePath, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
+    private < A extends ArrayDataAccess< A > > void writeFull( final ArrayImg< T, A > img, final String filePath, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
             throws IOException
     {
         final long[] dims = { 1, 1, 1, 1, 1 };
@@ -582,28 +1809,28 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
         final T type = img.firstElement();
         if ( type instanceof GenericByteType ) {
             final byte[] buffer = (( ArrayImg< T, ByteArray > ) img).update( null ).getCurrentStorageArray();
-            writeFull( buffer, filePath, dims, type, pixelSpacing, blockSize, compressionType, metadata );
+            writeFull( buffer, filePath, dims, type, pixelSpacing, blockSize, compressionType, metadata, progress );
         } else if ( type instanceof GenericShortType ) {
             final short[] buffer = (( ArrayImg< T, ShortArray > ) img).update( null ).getCurrentStorageArray();
-            writeFull( buffer, filePath, dims, type, pixelSpacing, blockSize, compressionType, metadata );
+            writeFull( buffer, filePath, dims, type, pixelSpacing, blockSize, compressionType, metadata, progress );
         } else if ( type instanceof GenericIntType ) {
             final int[] buffer = (( ArrayImg< T, IntArray > ) img).update( null ).getCurrentStorageArray();
-            writeFull( buffer, filePath, dims, type, pixelSpacing, blockSize, compressionType, metadata );
+            writeFull( buffer, filePath, dims, type, pixelSpacing, blockSize, compressionType, metadata, progress );
         } else if ( type instanceof LongType ) {
             final long[] buffer = (( ArrayImg< T, LongArray > ) img).update( null ).getCurrentStorageArray();
-            writeFull( buffer, filePath, dims, type, pixelSpacing, blockSize, compressionType, metadata );
+            writeFull( buffer, filePath, dims, type, pixelSpacing, blockSize, compressionType, metadata, progress );
         } else if ( type instanceof FloatType ) {
             final float[] buffer = (( ArrayImg< T, FloatArray > ) img).update( null ).getCurrentStorageArray();
-            writeFull( buffer, filePath, dims, type, pixelSpacing, blockSize, compressionType, metadata );
+            writeFull( buffer, filePath, dims, type, pixelSpacing, blockSize, compressionType, metadata, progress );
         } else if ( type instanceof DoubleType ) {
             final double[] buffer = (( ArrayImg< T, DoubleArray > ) img).update( null ).getCurrentStorageArray();
-            writeFull( buffer, filePath, dims, type, pixelSpacing, blockSize, compressionType, metadata );
+            writeFull( buffer, filePath, dims, type, pixelSpacing, blockSize, compressionType, metadata, progress );
         } else {
             throw new IOException( "Unknown or unsupported KLB data type" );
         }
     }
 
-    private < A extends ArrayDataAccess< A > > void writeFull( final CellImg< T, Cell< A > > img, final String filePath, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
+    private < A extends ArrayDataAccess< A > > void writeFull( final CellImg< T, Cell< A > > img, final String filePath, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
             throws IOException
     {
         final T type = img.firstElement();
@@ -633,65 +1860,28 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
 
             if ( type instanceof GenericByteType ) {
                 final byte[] buffer = ( byte[] ) cell.getData().getData().getCurrentStorageArray();
-                writeFull( buffer, cellFilePath, cellDimsL, type, pixelSpacing, blockSize, compressionType, metadata );
+                writeFull( buffer, cellFilePath, cellDimsL, type, pixelSpacing, blockSize, compressionType, metadata, progress );
             } else if ( type instanceof GenericShortType ) {
                 final short[] buffer = ( short[] ) cell.getData().getData().getCurrentStorageArray();
-                writeFull( buffer, cellFilePath, cellDimsL, type, pixelSpacing, blockSize, compressionType, metadata );
+                writeFull( buffer, cellFilePath, cellDimsL, type, pixelSpacing, blockSize, compressionType, metadata, progress );
             } else if ( type instanceof GenericIntType ) {
                 final int[] buffer = ( int[] ) cell.getData().getData().getCurrentStorageArray();
-                writeFull( buffer, cellFilePath, cellDimsL, type, pixelSpacing, blockSize, compressionType, metadata );
+                writeFull( buffer, cellFilePath, cellDimsL, type, pixelSpacing, blockSize, compressionType, metadata, progress );
             } else if ( type instanceof LongType ) {
                 final long[] buffer = ( long[] ) cell.getData().getData().getCurrentStorageArray();
-                writeFull( buffer, cellFilePath, cellDimsL, type, pixelSpacing, blockSize, compressionType, metadata );
+                writeFull( buffer, cellFilePath, cellDimsL, type, pixelSpacing, blockSize, compressionType, metadata, progress );
             } else if ( type instanceof FloatType ) {
                 final float[] buffer = ( float[] ) cell.getData().getData().getCurrentStorageArray();
-                writeFull( buffer, cellFilePath, cellDimsL, type, pixelSpacing, blockSize, compressionType, metadata );
+                writeFull( buffer, cellFilePath, cellDimsL, type, pixelSpacing, blockSize, compressionType, metadata, progress );
             } else if ( type instanceof DoubleType ) {
                 final double[] buffer = ( double[] ) cell.getData().getData().getCurrentStorageArray();
-                writeFull( buffer, cellFilePath, cellDimsL, type, pixelSpacing, blockSize, compressionType, metadata );
+                writeFull( buffer, cellFilePath, cellDimsL, type, pixelSpacing, blockSize, compressionType, metadata, progress );
             } else {
                 throw new IOException( "Unknown or unsupported KLB data type" );
             }
         }
     }
 
-    private < A extends ArrayDataAccess< A > > void writeFull( final PlanarImg< T, A > img, final String filePath, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
-            throws IOException
-    {
-        final Img< T > target = getImgFactory( img, blockSize ).create( img, img.firstElement() );
-        final ExecutorService taskExecutor = Executors.newFixedThreadPool( numThreads );
-        final List< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
-        final long size = target.size();
-        final long threadChunkSize = size / numThreads;
-        final long threadChunkMod = size % numThreads;
-        for ( int portionID = 0; portionID < numThreads; ++portionID ) {
-            final long startPosition = portionID * threadChunkSize;
-            final long loopSize = (portionID == numThreads - 1) ? threadChunkSize + threadChunkMod : threadChunkSize;
-            tasks.add(() -> {
-                final RandomAccess< T > sourceRa = img.randomAccess();
-                final Cursor< T > targetCur = target.localizingCursor();
-                targetCur.jumpFwd( startPosition );
-                for ( long j = 0; j < loopSize; ++j ) {
-                    targetCur.fwd();
-                    sourceRa.setPosition( targetCur );
-                    targetCur.get().set( sourceRa.get() );
-                }
-                return null;
-            });
-        }
-
-        try {
-            // invokeAll() returns when all tasks are complete
-            taskExecutor.invokeAll( tasks );
-            taskExecutor.shutdown();
-        } catch ( final InterruptedException e ) {
-            e.printStackTrace();
-        }
-
-        writeFull( target, filePath, pixelSpacing, blockSize, compressionType, metadata );
-    }
-
-
     /***********************************************************
      * Helper functions
      ***********************************************************/
@@ -726,12 +1916,22 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
     }
 
     private ImgPlus< T > imgToImgPlus( final Img< T > img, final Header header, final String name )
+    {
+        return imgToImgPlus( img, header, name, header.imageSize, XYZCT );
+    }
+
+    /**
+     * @param imageSize  size of each dimension of the image before dimensions of size 1 were dropped
+     * @param xyzctOrder dimension of the file of each of these dimensions
+     */
+    private ImgPlus< T > imgToImgPlus( final Img< T > img, final Header header, final String name, final long[] imageSize, final int[] xyzctOrder )
     {
         final AxisType[] axisTypes = new AxisType[ img.numDimensions() ];
         final double[] pixelSpacing = new double[ axisTypes.length ];
         int i = 0;
-        for ( int d = 0; d < 5; ++d ) {
-            if ( header.imageSize[ d ] > 1 ) {
+        for ( int k = 0; k < 5; ++k ) {
+            final int d = xyzctOrder[ k ];
+            if ( imageSize[ k ] > 1 ) {
                 axisTypes[ i ] = KlbScifio.AXIS_TYPES[ d ];
                 pixelSpacing[ i++ ] = header.pixelSpacing[ d ];
             }
@@ -828,4 +2028,228 @@ public abstract class KLB< T extends RealType< T > & NativeType< T > >
         }
         return cellSize;
     }
+
+
+    /***********************************************************
+     * Write ROI
+     ***********************************************************/
+
+    /**
+     * Replaces a subvolume of an existing KLB file, e.g. to edit a few labels of a large label volume. Only the
+     * blocks intersecting the subvolume are decompressed (unless they are replaced entirely), updated and compressed
+     * again. They are written after the end of the file, together with their offsets (a header extension), which
+     * replace the old blocks once written completely, so an interrupted write leaves the file as it was. The space of
+     * the old blocks is not reclaimed; {@link #transcode(String, String, long[], CompressionType)} compacts files that
+     * have been updated many times. Readers of older versions of this library do not see the update. The compressed
+     * blocks are kept in memory until they are written, so of the write options only the number of threads applies.
+     * <p>
+     * The file has to be written by this version of the library.
+     *
+     * @param filePath file system path to KLB file
+     * @param xyzctMin lower limit of bounding box subvolume, in order xyzct
+     * @param xyzctMax upper limit of bounding box subvolume (inclusive), in order xyzct
+     * @param img      new content of the subvolume, same data type as the file, in native byte order
+     * @param progress reports progress (blocks compressed) and allows to cancel, can be null
+     * @throws IOException
+     */
+    public void writeROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final byte[] img, final KlbProgress progress )
+            throws IOException
+    {
+        writeROI( filePath, xyzctMin, xyzctMax, ( Object ) img, progress );
+    }
+
+    public void writeROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final short[] img, final KlbProgress progress )
+            throws IOException
+    {
+        writeROI( filePath, xyzctMin, xyzctMax, ( Object ) img, progress );
+    }
+
+    public void writeROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int[] img, final KlbProgress progress )
+            throws IOException
+    {
+        writeROI( filePath, xyzctMin, xyzctMax, ( Object ) img, progress );
+    }
+
+    public void writeROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] img, final KlbProgress progress )
+            throws IOException
+    {
+        writeROI( filePath, xyzctMin, xyzctMax, ( Object ) img, progress );
+    }
+
+    public void writeROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final float[] img, final KlbProgress progress )
+            throws IOException
+    {
+        writeROI( filePath, xyzctMin, xyzctMax, ( Object ) img, progress );
+    }
+
+    public void writeROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final double[] img, final KlbProgress progress )
+            throws IOException
+    {
+        writeROI( filePath, xyzctMin, xyzctMax, ( Object ) img, progress );
+    }
+
+    public void writeROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Buffer img, final KlbProgress progress )
+            throws IOException
+    {
+        writeROI( filePath, xyzctMin, xyzctMax, ( Object ) img, progress );
+    }
+
+    /**
+     * Writes a byte[], short[], int[], long[], float[], double[] or direct Buffer, which concrete implementations of
+     * KLB have to provide.
+     */
+    protected abstract void writeROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Object img, final KlbProgress progress )
+            throws IOException;
+
+
+    /***********************************************************
+     * Append
+     ***********************************************************/
+
+    /**
+     * Appends a timepoint to an existing KLB file without rewriting it, e.g. to store a time series while it is
+     * acquired. Only the blocks of the new timepoint are compressed; they are written after the end of the file,
+     * together with their offsets (a header extension), so the header and the blocks already in the file are not
+     * touched. {@link #readHeader(String)} and all reads include the appended timepoints. Readers of older versions
+     * of this library only see the timepoints written by writeFull.
+     * <p>
+     * The file has to be written by this version of the library and with a block size of 1 along t. Only whole
+     * timepoints (all channels) can be appended, since the blocks of all channels of a timepoint are stored
+     * before those of the next timepoint. The compressed blocks of the timepoint are kept in memory until they are
+     * written, so of the write options only the number of threads applies.
+     *
+     * @param filePath file system path to KLB file
+     * @param img      one timepoint (image size of the file along xyzc), same data type as the file, in native byte
+     *                 order
+     * @param progress reports progress (blocks compressed) and allows to cancel, can be null
+     * @throws IOException
+     */
+    public void appendTimepoint( final String filePath, final byte[] img, final KlbProgress progress )
+            throws IOException
+    {
+        appendTimepoint( filePath, ( Object ) img, progress );
+    }
+
+    public void appendTimepoint( final String filePath, final short[] img, final KlbProgress progress )
+            throws IOException
+    {
+        appendTimepoint( filePath, ( Object ) img, progress );
+    }
+
+    public void appendTimepoint( final String filePath, final int[] img, final KlbProgress progress )
+            throws IOException
+    {
+        appendTimepoint( filePath, ( Object ) img, progress );
+    }
+
+    public void appendTimepoint( final String filePath, final long[] img, final KlbProgress progress )
+            throws IOException
+    {
+        appendTimepoint( filePath, ( Object ) img, progress );
+    }
+
+    public void appendTimepoint( final String filePath, final float[] img, final KlbProgress progress )
+            throws IOException
+    {
+        appendTimepoint( filePath, ( Object ) img, progress );
+    }
+
+    public void appendTimepoint( final String filePath, final double[] img, final KlbProgress progress )
+            throws IOException
+    {
+        appendTimepoint( filePath, ( Object ) img, progress );
+    }
+
+    public void appendTimepoint( final String filePath, final Buffer img, final KlbProgress progress )
+            throws IOException
+    {
+        appendTimepoint( filePath, ( Object ) img, progress );
+    }
+
+    /**
+     * Appends a byte[], short[], int[], long[], float[], double[] or direct Buffer, which concrete implementations of
+     * KLB have to provide.
+     */
+    protected abstract void appendTimepoint( final String filePath, final Object img, final KlbProgress progress )
+            throws IOException;
+
+
+    /***********************************************************
+     * Transcode
+     ***********************************************************/
+
+    public void transcode( final String srcPath, final String dstPath, final long[] blockSize, final CompressionType compressionType )
+            throws IOException
+    {
+        transcode( srcPath, dstPath, blockSize, compressionType, null );
+    }
+
+    /**
+     * Re-encodes a KLB file with a different compression type and / or block size, decoding and re-encoding it block
+     * by block. The image is streamed in slabs that are one output block high in z, c and t, so it is never held in
+     * memory as a whole. Image size, data type, pixel spacing and metadata are kept. The blocks of the output are
+     * always stored in LINEAR order, whatever the block order of the write options.
+     *
+     * @param srcPath         file system path to the source KLB file
+     * @param dstPath         file system path to the KLB file to write, must differ from srcPath
+     * @param blockSize       block size of the output, in order xyzct, null to keep the block size of the source
+     * @param compressionType compression type of the output
+     * @param progress        reports progress (blocks written) and allows to cancel, can be null
+     * @throws IOException
+     */
+    public abstract void transcode( final String srcPath, final String dstPath, final long[] blockSize, final CompressionType compressionType, final KlbProgress progress )
+            throws IOException;
+
+
+    /***********************************************************
+     * Verify
+     ***********************************************************/
+
+    public long[] verify( final String filePath ) throws IOException
+    {
+        return verify( filePath, null );
+    }
+
+    /**
+     * Checks every block of a KLB file against the CRC-32 of its compressed bytes that was stored when it was written,
+     * without decompressing anything. Blocks are read in the order they are stored, in large runs that are shared
+     * between the threads, so the check is bound by disk bandwidth rather than by decompression.
+     *
+     * @param filePath file system path to KLB file
+     * @param progress reports progress (blocks checked) and allows to cancel, can be null
+     * @return indices of the blocks whose checksum does not match (empty if the file is intact), in ascending order,
+     * or null if the file has no checksums (e.g. written by an older version)
+     * @throws IOException
+     */
+    public abstract long[] verify( final String filePath, final KlbProgress progress ) throws IOException;
+
+
+    /***********************************************************
+     * Extract
+     ***********************************************************/
+
+    /**
+     * Writes a subvolume of a KLB file to a new KLB file, without decompressing the blocks it consists of wherever
+     * possible. If xyzctMin is aligned with the block grid, all blocks that lie entirely within the subvolume are
+     * copied verbatim (with {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)})
+     * and only the blocks cut by xyzctMax are decompressed, cropped and compressed again. Otherwise, the whole
+     * subvolume is read and written. Block size, compression type, pixel spacing and metadata are kept.
+     *
+     * @param srcPath  file system path to the source KLB file
+     * @param xyzctMin lower limit of bounding box subvolume, in order xyzct
+     * @param xyzctMax upper limit of bounding box subvolume (inclusive), in order xyzct
+     * @param dstPath  file system path to the KLB file to write
+     * @throws IOException
+     */
+    public void extract( final String srcPath, final long[] xyzctMin, final long[] xyzctMax, final String dstPath )
+            throws IOException
+    {
+        KlbExtractor.extract( this, srcPath, xyzctMin, xyzctMax, dstPath );
+    }
+
+    /**
+     * Compresses a single block (pixels in native byte order, x fastest) with the given value of the compression
+     * type enum of the native library, as done when writing a file.
+     */
+    protected abstract byte[] compressBlock( final byte[] block, final int compressionType ) throws IOException;
 }
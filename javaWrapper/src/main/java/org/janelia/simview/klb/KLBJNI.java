@@ -2,17 +2,32 @@ package org.janelia.simview.klb;
 
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.integer.*;
-import net.imglib2.type.numeric.real.DoubleType;
-import net.imglib2.type.numeric.real.FloatType;
 import org.janelia.simview.util.NativeLibraryLoader;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 
 public class KLBJNI< T extends RealType< T > & NativeType< T > > extends KLB< T >
 {
+    /**
+     * Error code of the native library for operations cancelled through a KlbProgress
+     */
+    private static final int KLB_ERROR_CANCELLED = 10;
+    private static final int KLB_ERROR_NO_CHECKSUMS = 11;
 
     // load bundled native libraries
     static {
@@ -45,7 +60,12 @@ public class KLBJNI< T extends RealType< T > & NativeType< T > > extends KLB< T
     }
 
     @Override
-    @SuppressWarnings( "unchecked" )
+    protected KLB< T > newDefaultInstance()
+    {
+        return new KLBJNI< T >();
+    }
+
+    @Override
     public Header readHeader( final String filePath ) throws IOException
     {
         final Header header = new Header();
@@ -54,43 +74,32 @@ public class KLBJNI< T extends RealType< T > & NativeType< T > > extends KLB< T
         final int err = jniReadHeader( filePath, header.imageSize, header.blockSize, header.pixelSpacing, dataAndCompressionType, meta );
         if ( err != 0 )
             throw new IOException( String.format( "Could not read KLB header of file %s, error code %d.", filePath, err ) );
+        return setHeaderTypes( header, meta, dataAndCompressionType, "file " + filePath );
+    }
+
+    @Override
+    public Header readHeader( final KlbSource source ) throws IOException
+    {
+        final Header header = new Header();
+        final int[] dataAndCompressionType = new int[ 2 ];
+        final byte[] meta = new byte[ 256 ];
+        final ChannelSource channel = ChannelSource.of( source );
+        final int err = jniReadHeaderFromSource( source.direct, source.array, channel, header.imageSize, header.blockSize, header.pixelSpacing, dataAndCompressionType, meta );
+        ChannelSource.check( channel, err, "Could not read KLB header" );
+        return setHeaderTypes( header, meta, dataAndCompressionType, "source" );
+    }
 
+    /**
+     * Completes a header read by the native library with its metadata and the data and compression type (codes of
+     * the native library)
+     */
+    private Header setHeaderTypes( final Header header, final byte[] meta, final int[] dataAndCompressionType, final String what ) throws IOException
+    {
         header.metadata = meta;
 
-        switch ( dataAndCompressionType[ 0 ] ) {
-            case 0:
-                header.dataType = ( T ) new UnsignedByteType();
-                break;
-            case 1:
-                header.dataType = ( T ) new UnsignedShortType();
-                break;
-            case 2:
-                header.dataType = ( T ) new UnsignedIntType();
-                break;
-            case 3:
-                header.dataType = ( T ) new UnsignedLongType();
-                break;
-            case 4:
-                header.dataType = ( T ) new ByteType();
-                break;
-            case 5:
-                header.dataType = ( T ) new ShortType();
-                break;
-            case 6:
-                header.dataType = ( T ) new IntType();
-                break;
-            case 7:
-                header.dataType = ( T ) new LongType();
-                break;
-            case 8:
-                header.dataType = ( T ) new FloatType();
-                break;
-            case 9:
-                header.dataType = ( T ) new DoubleType();
-                break;
-            default:
-                throw new IOException( String.format( "Unknown or unsupported KLB data type of file %s.", filePath ) );
-        }
+        header.dataType = KlbFileHeader.newDataType( dataAndCompressionType[ 0 ] );
+        if ( header.dataType == null )
+            throw new IOException( String.format( "Unknown or unsupported KLB data type of %s.", what ) );
 
         switch ( dataAndCompressionType[ 1 ] ) {
             case 0:
@@ -103,7 +112,7 @@ public class KLBJNI< T extends RealType< T > & NativeType< T > > extends KLB< T
                 header.compressionType = CompressionType.ZLIB;
                 break;
             default:
-                throw new IOException( String.format( "Unknown or unsupported compression type of file %s.", filePath ) );
+                throw new IOException( String.format( "Unknown or unsupported compression type of %s.", what ) );
         }
 
         return header;
@@ -115,21 +124,50 @@ public class KLBJNI< T extends RealType< T > & NativeType< T > > extends KLB< T
      ***********************************************************/
 
     @Override
-    public void readFullInPlace( final String filePath, final byte[] out )
+    public void readFullInPlace( final String filePath, final byte[] out, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniReadFull( filePath, numThreads, out );
-        if ( err != 0 )
-            throw new IOException( String.format( "Could not read KLB file %s, error code %d.", filePath, err ) );
+        final ReadOptions options = getReadOptions();
+        final int err = run( progress, status -> jniReadFull( filePath, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        check( err, String.format( "Could not read KLB file %s, error code %d.", filePath, err ) );
     }
 
     @Override
-    public void readFullInPlace( final String filePath, final Buffer out )
+    public void readFullInPlace( final String filePath, final Buffer out, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniReadFull( filePath, numThreads, out );
-        if ( err != 0 )
-            throw new IOException( String.format( "Could not read KLB file %s, error code %d.", filePath, err ) );
+        final ReadOptions options = getReadOptions();
+        final int err = run( progress, status -> jniReadFull( filePath, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        check( err, String.format( "Could not read KLB file %s, error code %d.", filePath, err ) );
+    }
+
+    @Override
+    public void readFullInPlace( final KlbSource source, final byte[] out, final KlbProgress progress )
+            throws IOException
+    {
+        final ReadOptions options = getReadOptions();
+        final ChannelSource channel = ChannelSource.of( source );
+        final int err = run( progress, status -> jniReadFullFromSource( source.direct, source.array, channel, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        ChannelSource.check( channel, err, "Could not read KLB file" );
+    }
+
+    @Override
+    public void readFullInPlace( final KlbSource source, final Buffer out, final KlbProgress progress )
+            throws IOException
+    {
+        final ReadOptions options = getReadOptions();
+        final ChannelSource channel = ChannelSource.of( source );
+        final int err = run( progress, status -> jniReadFullFromSource( source.direct, source.array, channel, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        ChannelSource.check( channel, err, "Could not read KLB file" );
+    }
+
+    @Override
+    protected void readFullInPlace( final String filePath, final ByteBuffer[] chunks, final long chunkSizeBytes, final long chunkPeriodBytes, final KlbProgress progress )
+            throws IOException
+    {
+        final ReadOptions options = getReadOptions();
+        final int err = run( progress, status -> jniReadFullChunks( filePath, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), chunks, chunkSizeBytes, chunkPeriodBytes, status ) );
+        check( err, String.format( "Could not read KLB file %s, error code %d.", filePath, err ) );
     }
 
 
@@ -137,48 +175,48 @@ public class KLBJNI< T extends RealType< T > & NativeType< T > > extends KLB< T
     // This avoids copying the image to convert from byte[] to short[], int[], etc.
 
     @Override
-    public void readFullInPlace( final String filePath, final short[] out )
+    public void readFullInPlace( final String filePath, final short[] out, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniReadFull( filePath, numThreads, out );
-        if ( err != 0 )
-            throw new IOException( String.format( "Could not read KLB file %s, error code %d.", filePath, err ) );
+        final ReadOptions options = getReadOptions();
+        final int err = run( progress, status -> jniReadFull( filePath, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        check( err, String.format( "Could not read KLB file %s, error code %d.", filePath, err ) );
     }
 
     @Override
-    public void readFullInPlace( final String filePath, final int[] out )
+    public void readFullInPlace( final String filePath, final int[] out, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniReadFull( filePath, numThreads, out );
-        if ( err != 0 )
-            throw new IOException( String.format( "Could not read KLB file %s, error code %d.", filePath, err ) );
+        final ReadOptions options = getReadOptions();
+        final int err = run( progress, status -> jniReadFull( filePath, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        check( err, String.format( "Could not read KLB file %s, error code %d.", filePath, err ) );
     }
 
     @Override
-    public void readFullInPlace( final String filePath, final long[] out )
+    public void readFullInPlace( final String filePath, final long[] out, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniReadFull( filePath, numThreads, out );
-        if ( err != 0 )
-            throw new IOException( String.format( "Could not read KLB file %s, error code %d.", filePath, err ) );
+        final ReadOptions options = getReadOptions();
+        final int err = run( progress, status -> jniReadFull( filePath, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        check( err, String.format( "Could not read KLB file %s, error code %d.", filePath, err ) );
     }
 
     @Override
-    public void readFullInPlace( final String filePath, final float[] out )
+    public void readFullInPlace( final String filePath, final float[] out, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniReadFull( filePath, numThreads, out );
-        if ( err != 0 )
-            throw new IOException( String.format( "Could not read KLB file %s, error code %d.", filePath, err ) );
+        final ReadOptions options = getReadOptions();
+        final int err = run( progress, status -> jniReadFull( filePath, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        check( err, String.format( "Could not read KLB file %s, error code %d.", filePath, err ) );
     }
 
     @Override
-    public void readFullInPlace( final String filePath, final double[] out )
+    public void readFullInPlace( final String filePath, final double[] out, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniReadFull( filePath, numThreads, out );
-        if ( err != 0 )
-            throw new IOException( String.format( "Could not read KLB file %s, error code %d.", filePath, err ) );
+        final ReadOptions options = getReadOptions();
+        final int err = run( progress, status -> jniReadFull( filePath, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        check( err, String.format( "Could not read KLB file %s, error code %d.", filePath, err ) );
     }
 
 
@@ -187,21 +225,41 @@ public class KLBJNI< T extends RealType< T > & NativeType< T > > extends KLB< T
      ***********************************************************/
 
     @Override
-    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final byte[] out )
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final byte[] out, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniReadROI( filePath, xyzctMin, xyzctMax, numThreads, out );
-        if ( err != 0 )
-            throw new IOException( String.format( "Could not read ROI from KLB file %s, error code %d.", filePath, err ) );
+        final ReadOptions options = getReadOptions();
+        final int err = run( progress, status -> jniReadROI( filePath, xyzctMin, xyzctMax, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        check( err, String.format( "Could not read ROI from KLB file %s, error code %d.", filePath, err ) );
     }
 
     @Override
-    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Buffer out )
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Buffer out, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniReadROI( filePath, xyzctMin, xyzctMax, numThreads, out );
-        if ( err != 0 )
-            throw new IOException( String.format( "Could not read ROI from KLB file %s, error code %d.", filePath, err ) );
+        final ReadOptions options = getReadOptions();
+        final int err = run( progress, status -> jniReadROI( filePath, xyzctMin, xyzctMax, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        check( err, String.format( "Could not read ROI from KLB file %s, error code %d.", filePath, err ) );
+    }
+
+    @Override
+    public void readROIinPlace( final KlbSource source, final long[] xyzctMin, final long[] xyzctMax, final byte[] out, final KlbProgress progress )
+            throws IOException
+    {
+        final ReadOptions options = getReadOptions();
+        final ChannelSource channel = ChannelSource.of( source );
+        final int err = run( progress, status -> jniReadROIFromSource( source.direct, source.array, channel, xyzctMin, xyzctMax, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        ChannelSource.check( channel, err, "Could not read ROI from KLB file" );
+    }
+
+    @Override
+    public void readROIinPlace( final KlbSource source, final long[] xyzctMin, final long[] xyzctMax, final Buffer out, final KlbProgress progress )
+            throws IOException
+    {
+        final ReadOptions options = getReadOptions();
+        final ChannelSource channel = ChannelSource.of( source );
+        final int err = run( progress, status -> jniReadROIFromSource( source.direct, source.array, channel, xyzctMin, xyzctMax, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        ChannelSource.check( channel, err, "Could not read ROI from KLB file" );
     }
 
 
@@ -209,48 +267,81 @@ public class KLBJNI< T extends RealType< T > & NativeType< T > > extends KLB< T
     // This avoids copying the image to convert from byte[] to short[], int[], etc.
 
     @Override
-    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final short[] out )
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final short[] out, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniReadROI( filePath, xyzctMin, xyzctMax, numThreads, out );
-        if ( err != 0 )
-            throw new IOException( String.format( "Could not read ROI from KLB file %s, error code %d.", filePath, err ) );
+        final ReadOptions options = getReadOptions();
+        final int err = run( progress, status -> jniReadROI( filePath, xyzctMin, xyzctMax, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        check( err, String.format( "Could not read ROI from KLB file %s, error code %d.", filePath, err ) );
     }
 
     @Override
-    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int[] out )
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int[] out, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniReadROI( filePath, xyzctMin, xyzctMax, numThreads, out );
-        if ( err != 0 )
-            throw new IOException( String.format( "Could not read ROI from KLB file %s, error code %d.", filePath, err ) );
+        final ReadOptions options = getReadOptions();
+        final int err = run( progress, status -> jniReadROI( filePath, xyzctMin, xyzctMax, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        check( err, String.format( "Could not read ROI from KLB file %s, error code %d.", filePath, err ) );
     }
 
     @Override
-    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] out )
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] out, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniReadROI( filePath, xyzctMin, xyzctMax, numThreads, out );
-        if ( err != 0 )
-            throw new IOException( String.format( "Could not read ROI from KLB file %s, error code %d.", filePath, err ) );
+        final ReadOptions options = getReadOptions();
+        final int err = run( progress, status -> jniReadROI( filePath, xyzctMin, xyzctMax, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        check( err, String.format( "Could not read ROI from KLB file %s, error code %d.", filePath, err ) );
     }
 
     @Override
-    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final float[] out )
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final float[] out, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniReadROI( filePath, xyzctMin, xyzctMax, numThreads, out );
-        if ( err != 0 )
-            throw new IOException( String.format( "Could not read ROI from KLB file %s, error code %d.", filePath, err ) );
+        final ReadOptions options = getReadOptions();
+        final int err = run( progress, status -> jniReadROI( filePath, xyzctMin, xyzctMax, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        check( err, String.format( "Could not read ROI from KLB file %s, error code %d.", filePath, err ) );
     }
 
     @Override
-    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final double[] out )
+    public void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final double[] out, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniReadROI( filePath, xyzctMin, xyzctMax, numThreads, out );
-        if ( err != 0 )
-            throw new IOException( String.format( "Could not read ROI from KLB file %s, error code %d.", filePath, err ) );
+        final ReadOptions options = getReadOptions();
+        final int err = run( progress, status -> jniReadROI( filePath, xyzctMin, xyzctMax, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), out, status ) );
+        check( err, String.format( "Could not read ROI from KLB file %s, error code %d.", filePath, err ) );
+    }
+
+
+    /***********************************************************
+     * Read strided / binned / thresholded ROI
+     ***********************************************************/
+
+    @Override
+    protected void readROIinPlace( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final double threshold, final Object out, final long outOffset, final long[] outStrides, final NativeType< ? > outType, final double scale, final double offset, final KlbProgress progress )
+            throws IOException
+    {
+        final ReadOptions options = getReadOptions();
+        final long[] step = sampling( xyzctStep ), bin = sampling( xyzctBin );
+        final int outDataType = outType == null ? -1 : getDataType( outType );
+        final int err;
+        if ( out instanceof byte[] ) {
+            err = run( progress, status -> jniReadROISampled( filePath, xyzctMin, xyzctMax, step, bin, threshold, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), ( byte[] ) out, outOffset, outStrides, outDataType, scale, offset, status ) );
+        } else if ( out instanceof short[] ) {
+            err = run( progress, status -> jniReadROISampled( filePath, xyzctMin, xyzctMax, step, bin, threshold, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), ( short[] ) out, outOffset, outStrides, outDataType, scale, offset, status ) );
+        } else if ( out instanceof int[] ) {
+            err = run( progress, status -> jniReadROISampled( filePath, xyzctMin, xyzctMax, step, bin, threshold, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), ( int[] ) out, outOffset, outStrides, outDataType, scale, offset, status ) );
+        } else if ( out instanceof long[] ) {
+            err = run( progress, status -> jniReadROISampled( filePath, xyzctMin, xyzctMax, step, bin, threshold, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), ( long[] ) out, outOffset, outStrides, outDataType, scale, offset, status ) );
+        } else if ( out instanceof float[] ) {
+            err = run( progress, status -> jniReadROISampled( filePath, xyzctMin, xyzctMax, step, bin, threshold, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), ( float[] ) out, outOffset, outStrides, outDataType, scale, offset, status ) );
+        } else if ( out instanceof double[] ) {
+            err = run( progress, status -> jniReadROISampled( filePath, xyzctMin, xyzctMax, step, bin, threshold, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), ( double[] ) out, outOffset, outStrides, outDataType, scale, offset, status ) );
+        } else if ( out instanceof Buffer && (( Buffer ) out).isDirect() ) {
+            err = run( progress, status -> jniReadROISampled( filePath, xyzctMin, xyzctMax, step, bin, threshold, options.getNumThreads(), getReadStrategy( options.getReadStrategy() ), ( Buffer ) out, outOffset, outStrides, outDataType, scale, offset, status ) );
+        } else {
+            throw new IOException( "Output must be a primitive array or a direct Buffer." );
+        }
+        check( err, String.format( "Could not read ROI from KLB file %s, error code %d.", filePath, err ) );
     }
 
 
@@ -259,21 +350,45 @@ public class KLBJNI< T extends RealType< T > & NativeType< T > > extends KLB< T
      ***********************************************************/
 
     @Override
-    public void writeFull( final byte[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
+    public void writeFull( final byte[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniWriteFull( img, filePath, imageSize, getDataType( dataType ), numThreads, pixelSpacing, blockSize, getCompressionType( compressionType ), metadata );
-        if ( err != 0 )
-            throw new IOException( "Failed to write " + err );
+        final WriteOptions options = getWriteOptions();
+        final int klbDataType = getDataType( dataType );
+        final int err = run( progress, status -> jniWriteFull( img, filePath, imageSize, klbDataType, options.getNumThreads(), options.getWriteBufferSize(), getBlockOrder( options.getBlockOrder() ), options.getConstantBlocks(), pixelSpacing, blockSize, getCompressionType( compressionType ), metadata, status ) );
+        check( err, "Failed to write " + err );
     }
 
     @Override
-    public void writeFull( final Buffer img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
+    public void writeFull( final Buffer img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniWriteFull( img, filePath, imageSize, getDataType( dataType ), numThreads, pixelSpacing, blockSize, getCompressionType( compressionType ), metadata );
-        if ( err != 0 )
-            throw new IOException( "Failed to write " + err );
+        final WriteOptions options = getWriteOptions();
+        final int klbDataType = getDataType( dataType );
+        final int err = run( progress, status -> jniWriteFull( img, filePath, imageSize, klbDataType, options.getNumThreads(), options.getWriteBufferSize(), getBlockOrder( options.getBlockOrder() ), options.getConstantBlocks(), pixelSpacing, blockSize, getCompressionType( compressionType ), metadata, status ) );
+        check( err, "Failed to write " + err );
+    }
+
+    @Override
+    public void writeFull( final byte[] img, final WritableByteChannel channel, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
+            throws IOException
+    {
+        final WriteOptions options = getWriteOptions();
+        final int klbDataType = getDataType( dataType );
+        final ChannelSink sink = new ChannelSink( channel );
+        final int err = run( progress, status -> jniWriteFullToChannel( img, sink, imageSize, klbDataType, options.getNumThreads(), options.getWriteBufferSize(), getBlockOrder( options.getBlockOrder() ), options.getConstantBlocks(), pixelSpacing, blockSize, getCompressionType( compressionType ), metadata, status ) );
+        sink.check( err );
+    }
+
+    @Override
+    public void writeFull( final Buffer img, final WritableByteChannel channel, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
+            throws IOException
+    {
+        final WriteOptions options = getWriteOptions();
+        final int klbDataType = getDataType( dataType );
+        final ChannelSink sink = new ChannelSink( channel );
+        final int err = run( progress, status -> jniWriteFullToChannel( img, sink, imageSize, klbDataType, options.getNumThreads(), options.getWriteBufferSize(), getBlockOrder( options.getBlockOrder() ), options.getConstantBlocks(), pixelSpacing, blockSize, getCompressionType( compressionType ), metadata, status ) );
+        sink.check( err );
     }
 
 
@@ -281,48 +396,179 @@ public class KLBJNI< T extends RealType< T > & NativeType< T > > extends KLB< T
     // This avoids copying the image to convert from byte[] to short[], int[], etc.
 
     @Override
-    public void writeFull( final short[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
+    public void writeFull( final short[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniWriteFull( img, filePath, imageSize, getDataType( dataType ), numThreads, pixelSpacing, blockSize, getCompressionType( compressionType ), metadata );
-        if ( err != 0 )
-            throw new IOException( "Failed to write " + err );
+        final WriteOptions options = getWriteOptions();
+        final int klbDataType = getDataType( dataType );
+        final int err = run( progress, status -> jniWriteFull( img, filePath, imageSize, klbDataType, options.getNumThreads(), options.getWriteBufferSize(), getBlockOrder( options.getBlockOrder() ), options.getConstantBlocks(), pixelSpacing, blockSize, getCompressionType( compressionType ), metadata, status ) );
+        check( err, "Failed to write " + err );
     }
 
     @Override
-    public void writeFull( final int[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
+    public void writeFull( final int[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniWriteFull( img, filePath, imageSize, getDataType( dataType ), numThreads, pixelSpacing, blockSize, getCompressionType( compressionType ), metadata );
-        if ( err != 0 )
-            throw new IOException( "Failed to write " + err );
+        final WriteOptions options = getWriteOptions();
+        final int klbDataType = getDataType( dataType );
+        final int err = run( progress, status -> jniWriteFull( img, filePath, imageSize, klbDataType, options.getNumThreads(), options.getWriteBufferSize(), getBlockOrder( options.getBlockOrder() ), options.getConstantBlocks(), pixelSpacing, blockSize, getCompressionType( compressionType ), metadata, status ) );
+        check( err, "Failed to write " + err );
     }
 
     @Override
-    public void writeFull( final long[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
+    public void writeFull( final long[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniWriteFull( img, filePath, imageSize, getDataType( dataType ), numThreads, pixelSpacing, blockSize, getCompressionType( compressionType ), metadata );
-        if ( err != 0 )
-            throw new IOException( "Failed to write " + err );
+        final WriteOptions options = getWriteOptions();
+        final int klbDataType = getDataType( dataType );
+        final int err = run( progress, status -> jniWriteFull( img, filePath, imageSize, klbDataType, options.getNumThreads(), options.getWriteBufferSize(), getBlockOrder( options.getBlockOrder() ), options.getConstantBlocks(), pixelSpacing, blockSize, getCompressionType( compressionType ), metadata, status ) );
+        check( err, "Failed to write " + err );
     }
 
     @Override
-    public void writeFull( final float[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
+    public void writeFull( final float[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniWriteFull( img, filePath, imageSize, getDataType( dataType ), numThreads, pixelSpacing, blockSize, getCompressionType( compressionType ), metadata );
-        if ( err != 0 )
-            throw new IOException( "Failed to write " + err );
+        final WriteOptions options = getWriteOptions();
+        final int klbDataType = getDataType( dataType );
+        final int err = run( progress, status -> jniWriteFull( img, filePath, imageSize, klbDataType, options.getNumThreads(), options.getWriteBufferSize(), getBlockOrder( options.getBlockOrder() ), options.getConstantBlocks(), pixelSpacing, blockSize, getCompressionType( compressionType ), metadata, status ) );
+        check( err, "Failed to write " + err );
     }
 
     @Override
-    public void writeFull( final double[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata )
+    public void writeFull( final double[] img, final String filePath, final long[] imageSize, final T dataType, final float[] pixelSpacing, final long[] blockSize, final CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
             throws IOException
     {
-        final int err = jniWriteFull( img, filePath, imageSize, getDataType( dataType ), numThreads, pixelSpacing, blockSize, getCompressionType( compressionType ), metadata );
-        if ( err != 0 )
-            throw new IOException( "Failed to write " + err );
+        final WriteOptions options = getWriteOptions();
+        final int klbDataType = getDataType( dataType );
+        final int err = run( progress, status -> jniWriteFull( img, filePath, imageSize, klbDataType, options.getNumThreads(), options.getWriteBufferSize(), getBlockOrder( options.getBlockOrder() ), options.getConstantBlocks(), pixelSpacing, blockSize, getCompressionType( compressionType ), metadata, status ) );
+        check( err, "Failed to write " + err );
+    }
+
+
+    /***********************************************************
+     * Write ROI
+     ***********************************************************/
+
+    @Override
+    protected void writeROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Object img, final KlbProgress progress )
+            throws IOException
+    {
+        final WriteOptions options = getWriteOptions();
+        final int err;
+        if ( img instanceof byte[] ) {
+            err = run( progress, status -> jniWriteROI( filePath, xyzctMin, xyzctMax, ( byte[] ) img, options.getNumThreads(), status ) );
+        } else if ( img instanceof short[] ) {
+            err = run( progress, status -> jniWriteROI( filePath, xyzctMin, xyzctMax, ( short[] ) img, options.getNumThreads(), status ) );
+        } else if ( img instanceof int[] ) {
+            err = run( progress, status -> jniWriteROI( filePath, xyzctMin, xyzctMax, ( int[] ) img, options.getNumThreads(), status ) );
+        } else if ( img instanceof long[] ) {
+            err = run( progress, status -> jniWriteROI( filePath, xyzctMin, xyzctMax, ( long[] ) img, options.getNumThreads(), status ) );
+        } else if ( img instanceof float[] ) {
+            err = run( progress, status -> jniWriteROI( filePath, xyzctMin, xyzctMax, ( float[] ) img, options.getNumThreads(), status ) );
+        } else if ( img instanceof double[] ) {
+            err = run( progress, status -> jniWriteROI( filePath, xyzctMin, xyzctMax, ( double[] ) img, options.getNumThreads(), status ) );
+        } else if ( img instanceof Buffer && (( Buffer ) img).isDirect() ) {
+            final long numBytes = sizeInBytes( ( Buffer ) img );
+            err = run( progress, status -> jniWriteROI( filePath, xyzctMin, xyzctMax, ( Buffer ) img, numBytes, options.getNumThreads(), status ) );
+        } else {
+            throw new IOException( "Image must be a primitive array or a direct Buffer." );
+        }
+        check( err, String.format( "Could not write ROI to KLB file %s, error code %d.", filePath, err ) );
+    }
+
+
+    /***********************************************************
+     * Append
+     ***********************************************************/
+
+    @Override
+    protected void appendTimepoint( final String filePath, final Object img, final KlbProgress progress )
+            throws IOException
+    {
+        final WriteOptions options = getWriteOptions();
+        final int err;
+        if ( img instanceof byte[] ) {
+            err = run( progress, status -> jniAppendTimepoint( filePath, ( byte[] ) img, options.getNumThreads(), status ) );
+        } else if ( img instanceof short[] ) {
+            err = run( progress, status -> jniAppendTimepoint( filePath, ( short[] ) img, options.getNumThreads(), status ) );
+        } else if ( img instanceof int[] ) {
+            err = run( progress, status -> jniAppendTimepoint( filePath, ( int[] ) img, options.getNumThreads(), status ) );
+        } else if ( img instanceof long[] ) {
+            err = run( progress, status -> jniAppendTimepoint( filePath, ( long[] ) img, options.getNumThreads(), status ) );
+        } else if ( img instanceof float[] ) {
+            err = run( progress, status -> jniAppendTimepoint( filePath, ( float[] ) img, options.getNumThreads(), status ) );
+        } else if ( img instanceof double[] ) {
+            err = run( progress, status -> jniAppendTimepoint( filePath, ( double[] ) img, options.getNumThreads(), status ) );
+        } else if ( img instanceof Buffer && (( Buffer ) img).isDirect() ) {
+            final long numBytes = sizeInBytes( ( Buffer ) img );
+            err = run( progress, status -> jniAppendTimepoint( filePath, ( Buffer ) img, numBytes, options.getNumThreads(), status ) );
+        } else {
+            throw new IOException( "Image must be a primitive array or a direct Buffer." );
+        }
+        check( err, String.format( "Could not append timepoint to KLB file %s, error code %d.", filePath, err ) );
+    }
+
+
+    /***********************************************************
+     * Transcode
+     ***********************************************************/
+
+    @Override
+    public void transcode( final String srcPath, final String dstPath, final long[] blockSize, final CompressionType compressionType, final KlbProgress progress )
+            throws IOException
+    {
+        final WriteOptions options = getWriteOptions();
+        if ( Paths.get( srcPath ).toAbsolutePath().normalize().equals( Paths.get( dstPath ).toAbsolutePath().normalize() ) ) {
+            throw new IOException( String.format( "Cannot transcode KLB file %s onto itself.", srcPath ) );
+        }
+        final int err = run( progress, status -> jniTranscode( srcPath, dstPath, blockSize, getCompressionType( compressionType ), options.getNumThreads(), options.getWriteBufferSize(), options.getConstantBlocks(), status ) );
+        check( err, String.format( "Could not transcode KLB file %s to %s, error code %d.", srcPath, dstPath, err ) );
+    }
+
+
+    /***********************************************************
+     * Verify
+     ***********************************************************/
+
+    @Override
+    public long[] verify( final String filePath, final KlbProgress progress ) throws IOException
+    {
+        final ReadOptions options = getReadOptions();
+        final Header header = readHeader( filePath );
+        long numBlocks = 1;
+        for ( int d = 0; d < 5; ++d ) {
+            numBlocks *= (header.imageSize[ d ] + header.blockSize[ d ] - 1) / header.blockSize[ d ];
+        }
+        if ( numBlocks > Integer.MAX_VALUE ) {
+            throw new IOException( String.format( "KLB file %s has too many blocks to verify (%d).", filePath, numBlocks ) );
+        }
+        final byte[] corrupt = new byte[ ( int ) numBlocks ];
+        final int err = run( progress, status -> jniVerify( filePath, corrupt, options.getNumThreads(), status ) );
+        if ( err == KLB_ERROR_NO_CHECKSUMS ) {
+            return null;
+        }
+        check( err, String.format( "Could not verify KLB file %s, error code %d.", filePath, err ) );
+
+        final long[] blocks = new long[ corrupt.length ];
+        int n = 0;
+        for ( int i = 0; i < corrupt.length; ++i ) {
+            if ( corrupt[ i ] != 0 ) {
+                blocks[ n++ ] = i;
+            }
+        }
+        return Arrays.copyOf( blocks, n );
+    }
+
+
+    @Override
+    protected byte[] compressBlock( final byte[] block, final int compressionType ) throws IOException
+    {
+        final byte[] compressed = jniCompressBlock( block, compressionType );
+        if ( compressed == null ) {
+            throw new IOException( String.format( "Could not compress block with compression type %d.", compressionType ) );
+        }
+        return compressed;
     }
 
 
@@ -330,6 +576,22 @@ public class KLBJNI< T extends RealType< T > & NativeType< T > > extends KLB< T
      * Helper functions
      ***********************************************************/
 
+    /**
+     * Capacity of a direct buffer in bytes.
+     */
+    private static long sizeInBytes( final Buffer buffer )
+    {
+        if ( buffer instanceof ShortBuffer || buffer instanceof CharBuffer ) {
+            return 2L * buffer.capacity();
+        } else if ( buffer instanceof IntBuffer || buffer instanceof FloatBuffer ) {
+            return 4L * buffer.capacity();
+        } else if ( buffer instanceof LongBuffer || buffer instanceof DoubleBuffer ) {
+            return 8L * buffer.capacity();
+        }
+        return buffer.capacity();
+    }
+
+
     /**
      * Get value of data type enum of native library.
      *
@@ -337,30 +599,9 @@ public class KLBJNI< T extends RealType< T > & NativeType< T > > extends KLB< T
      * @return
      * @throws IOException
      */
-    private int getDataType( final T dataType ) throws IOException
+    private static int getDataType( final NativeType< ? > dataType ) throws IOException
     {
-        if ( dataType instanceof UnsignedByteType )
-            return 0;
-        else if ( dataType instanceof UnsignedShortType )
-            return 1;
-        else if ( dataType instanceof UnsignedIntType )
-            return 2;
-        else if ( dataType instanceof UnsignedLongType )
-            return 3;
-        else if ( dataType instanceof ByteType )
-            return 4;
-        else if ( dataType instanceof ShortType )
-            return 5;
-        else if ( dataType instanceof IntType )
-            return 6;
-        else if ( dataType instanceof LongType )
-            return 7;
-        else if ( dataType instanceof FloatType )
-            return 8;
-        else if ( dataType instanceof DoubleType )
-            return 9;
-        else
-            throw new IOException( "Unknown or unsupported data type" );
+        return KlbFileHeader.dataType( dataType );
     }
 
     /**
@@ -386,6 +627,189 @@ public class KLBJNI< T extends RealType< T > & NativeType< T > > extends KLB< T
         }
     }
 
+    /**
+     * Get value of read strategy enum of native library.
+     *
+     * @param readStrategy
+     * @return value of read strategy enum of native library
+     */
+    private static int getReadStrategy( final ReadStrategy readStrategy )
+    {
+        switch ( readStrategy ) {
+            case PER_BLOCK:
+                return 1;
+            case PRELOAD:
+                return 2;
+            case MMAP:
+                return 3;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Get value of block order enum of native library.
+     *
+     * @param blockOrder
+     * @return value of block order enum of native library
+     */
+    private static int getBlockOrder( final BlockOrder blockOrder )
+    {
+        return blockOrder == BlockOrder.MORTON ? 1 : 0;
+    }
+
+    /**
+     * Runs a native call, passing it the status block of the given progress (null if no progress is requested).
+     */
+    private static int run( final KlbProgress progress, final NativeCall call )
+    {
+        if ( progress == null )
+            return call.run( null );
+        progress.begin();
+        try {
+            return call.run( progress.getStatus() );
+        } finally {
+            progress.end();
+        }
+    }
+
+    private static void check( final int err, final String message ) throws IOException
+    {
+        if ( err == KLB_ERROR_CANCELLED )
+            throw new InterruptedIOException( "KLB operation was cancelled." );
+        if ( err != 0 )
+            throw new IOException( message );
+    }
+
+    private interface NativeCall
+    {
+        int run( final ByteBuffer status );
+    }
+
+    /**
+     * Destination of {@link #writeFull(byte[], WritableByteChannel, long[], NativeType, float[], long[], CompressionType, byte[], KlbProgress)},
+     * called by the native library from the thread that writes the file. IOExceptions of the channel are kept until
+     * the native call returns, the native library only sees that the write failed.
+     */
+    private static final class ChannelSink
+    {
+        private final WritableByteChannel channel;
+        private final long start;
+        private IOException error;
+
+        ChannelSink( final WritableByteChannel channel ) throws IOException
+        {
+            this.channel = channel;
+            start = isSeekable() ? ( ( SeekableByteChannel ) channel ).position() : 0;
+        }
+
+        boolean isSeekable()
+        {
+            return channel instanceof SeekableByteChannel;
+        }
+
+        int write( final ByteBuffer bytes )
+        {
+            try {
+                while ( bytes.hasRemaining() ) {
+                    channel.write( bytes );
+                }
+                return 0;
+            } catch ( final IOException e ) {
+                error = e;
+                return 5;
+            }
+        }
+
+        /**
+         * Overwrites bytes at position, relative to the start of the file, and returns to the end of the file
+         */
+        int writeAt( final ByteBuffer bytes, final long position )
+        {
+            final SeekableByteChannel seekable = ( SeekableByteChannel ) channel;
+            try {
+                final long end = seekable.position();
+                seekable.position( start + position );
+                final int err = write( bytes );
+                seekable.position( end );
+                return err;
+            } catch ( final IOException e ) {
+                error = e;
+                return 5;
+            }
+        }
+
+        void check( final int err ) throws IOException
+        {
+            if ( err != 0 && err != KLB_ERROR_CANCELLED && error != null ) {
+                throw new IOException( String.format( "Failed to write KLB file to channel, error code %d.", err ), error );
+            }
+            KLBJNI.check( err, String.format( "Failed to write KLB file to channel, error code %d.", err ) );
+        }
+    }
+
+    /**
+     * Channel of a {@link KlbSource}, read by the native library from all decoding threads at once. IOExceptions of
+     * the channel are kept until the native call returns, the native library only sees that the read failed.
+     */
+    private static final class ChannelSource
+    {
+        private final SeekableByteChannel channel;
+        private final long size;
+        private volatile IOException error;
+
+        private ChannelSource( final SeekableByteChannel channel ) throws IOException
+        {
+            this.channel = channel;
+            size = channel.size();
+        }
+
+        /**
+         * Returns the channel of source, or null if the file is in memory
+         */
+        static ChannelSource of( final KlbSource source ) throws IOException
+        {
+            return source.channel == null ? null : new ChannelSource( source.channel );
+        }
+
+        long size()
+        {
+            return size;
+        }
+
+        /**
+         * Reads bytes at position until bytes is full or the channel ends, and returns the number of bytes read
+         */
+        int read( final ByteBuffer bytes, final long position )
+        {
+            try {
+                if ( channel instanceof FileChannel ) {
+                    final FileChannel file = ( FileChannel ) channel;
+                    while ( bytes.hasRemaining() && file.read( bytes, position + bytes.position() ) > 0 ) {
+                    }
+                } else {
+                    synchronized ( channel ) {
+                        channel.position( position );
+                        while ( bytes.hasRemaining() && channel.read( bytes ) > 0 ) {
+                        }
+                    }
+                }
+                return bytes.position();
+            } catch ( final IOException e ) {
+                error = e;
+                return -1;
+            }
+        }
+
+        static void check( final ChannelSource channel, final int err, final String message ) throws IOException
+        {
+            if ( err != 0 && err != KLB_ERROR_CANCELLED && channel != null && channel.error != null ) {
+                throw new IOException( String.format( "%s from channel, error code %d.", message, err ), channel.error );
+            }
+            KLBJNI.check( err, String.format( "%s from %s, error code %d.", message, channel == null ? "memory" : "channel", err ) );
+        }
+    }
+
 
     /***********************************************************
      * JNI function declarations
@@ -393,45 +817,109 @@ public class KLBJNI< T extends RealType< T > & NativeType< T > > extends KLB< T
 
     private native int jniReadHeader( final String filePath, final long[] imageSize, final long[] blockSize, final float[] pixelSpacing, final int[] dataAndCompressionType, final byte[] metadata );
 
-    private native int jniReadFull( final String filePath, final int numThreads, final byte[] out );
+    private native int jniReadFull( final String filePath, final int numThreads, final int readStrategy, final byte[] out, final ByteBuffer status );
+
+    private native int jniReadFull( final String filePath, final int numThreads, final int readStrategy, final short[] out, final ByteBuffer status );
+
+    private native int jniReadFull( final String filePath, final int numThreads, final int readStrategy, final int[] out, final ByteBuffer status );
+
+    private native int jniReadFull( final String filePath, final int numThreads, final int readStrategy, final long[] out, final ByteBuffer status );
+
+    private native int jniReadFull( final String filePath, final int numThreads, final int readStrategy, final float[] out, final ByteBuffer status );
+
+    private native int jniReadFull( final String filePath, final int numThreads, final int readStrategy, final double[] out, final ByteBuffer status );
+
+    private native int jniReadFull( final String filePath, final int numThreads, final int readStrategy, final Buffer out, final ByteBuffer status );
+
+    private native int jniReadHeaderFromSource( final Buffer direct, final byte[] array, final ChannelSource channel, final long[] imageSize, final long[] blockSize, final float[] pixelSpacing, final int[] dataAndCompressionType, final byte[] metadata );
+
+    private native int jniReadFullFromSource( final Buffer direct, final byte[] array, final ChannelSource channel, final int numThreads, final int readStrategy, final byte[] out, final ByteBuffer status );
+
+    private native int jniReadFullFromSource( final Buffer direct, final byte[] array, final ChannelSource channel, final int numThreads, final int readStrategy, final Buffer out, final ByteBuffer status );
+
+    private native int jniReadFullChunks( final String filePath, final int numThreads, final int readStrategy, final ByteBuffer[] chunks, final long chunkSizeBytes, final long chunkPeriodBytes, final ByteBuffer status );
+
+    private native int jniReadROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numThreads, final int readStrategy, final byte[] out, final ByteBuffer status );
+
+    private native int jniReadROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numThreads, final int readStrategy, final short[] out, final ByteBuffer status );
+
+    private native int jniReadROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numThreads, final int readStrategy, final int[] out, final ByteBuffer status );
+
+    private native int jniReadROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numThreads, final int readStrategy, final long[] out, final ByteBuffer status );
+
+    private native int jniReadROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numThreads, final int readStrategy, final float[] out, final ByteBuffer status );
+
+    private native int jniReadROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numThreads, final int readStrategy, final double[] out, final ByteBuffer status );
+
+    private native int jniReadROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numThreads, final int readStrategy, final Buffer out, final ByteBuffer status );
+
+    private native int jniReadROIFromSource( final Buffer direct, final byte[] array, final ChannelSource channel, final long[] xyzctMin, final long[] xyzctMax, final int numThreads, final int readStrategy, final byte[] out, final ByteBuffer status );
+
+    private native int jniReadROIFromSource( final Buffer direct, final byte[] array, final ChannelSource channel, final long[] xyzctMin, final long[] xyzctMax, final int numThreads, final int readStrategy, final Buffer out, final ByteBuffer status );
+
+    private native int jniReadROISampled( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final double threshold, final int numThreads, final int readStrategy, final byte[] out, final long outOffset, final long[] outStrides, final int outDataType, final double scale, final double offset, final ByteBuffer status );
+
+    private native int jniReadROISampled( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final double threshold, final int numThreads, final int readStrategy, final short[] out, final long outOffset, final long[] outStrides, final int outDataType, final double scale, final double offset, final ByteBuffer status );
+
+    private native int jniReadROISampled( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final double threshold, final int numThreads, final int readStrategy, final int[] out, final long outOffset, final long[] outStrides, final int outDataType, final double scale, final double offset, final ByteBuffer status );
+
+    private native int jniReadROISampled( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final double threshold, final int numThreads, final int readStrategy, final long[] out, final long outOffset, final long[] outStrides, final int outDataType, final double scale, final double offset, final ByteBuffer status );
+
+    private native int jniReadROISampled( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final double threshold, final int numThreads, final int readStrategy, final float[] out, final long outOffset, final long[] outStrides, final int outDataType, final double scale, final double offset, final ByteBuffer status );
+
+    private native int jniReadROISampled( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final double threshold, final int numThreads, final int readStrategy, final double[] out, final long outOffset, final long[] outStrides, final int outDataType, final double scale, final double offset, final ByteBuffer status );
+
+    private native int jniReadROISampled( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] xyzctStep, final long[] xyzctBin, final double threshold, final int numThreads, final int readStrategy, final Buffer out, final long outOffset, final long[] outStrides, final int outDataType, final double scale, final double offset, final ByteBuffer status );
+
+    private native int jniWriteFull( final byte[] img, final String filePath, final long[] imageSize, final int dataType, final int numThreads, final long writeBufferBytes, final int blockOrder, final boolean constantBlocks, final float[] pixelSpacing, final long[] blockSize, final int compressionType, final byte[] metadata, final ByteBuffer status );
+
+    private native int jniWriteFull( final short[] img, final String filePath, final long[] imageSize, final int dataType, final int numThreads, final long writeBufferBytes, final int blockOrder, final boolean constantBlocks, final float[] pixelSpacing, final long[] blockSize, final int compressionType, final byte[] metadata, final ByteBuffer status );
+
+    private native int jniWriteFull( final int[] img, final String filePath, final long[] imageSize, final int dataType, final int numThreads, final long writeBufferBytes, final int blockOrder, final boolean constantBlocks, final float[] pixelSpacing, final long[] blockSize, final int compressionType, final byte[] metadata, final ByteBuffer status );
+
+    private native int jniWriteFull( final long[] img, final String filePath, final long[] imageSize, final int dataType, final int numThreads, final long writeBufferBytes, final int blockOrder, final boolean constantBlocks, final float[] pixelSpacing, final long[] blockSize, final int compressionType, final byte[] metadata, final ByteBuffer status );
+
+    private native int jniWriteFull( final float[] img, final String filePath, final long[] imageSize, final int dataType, final int numThreads, final long writeBufferBytes, final int blockOrder, final boolean constantBlocks, final float[] pixelSpacing, final long[] blockSize, final int compressionType, final byte[] metadata, final ByteBuffer status );
+
+    private native int jniWriteFull( final double[] img, final String filePath, final long[] imageSize, final int dataType, final int numThreads, final long writeBufferBytes, final int blockOrder, final boolean constantBlocks, final float[] pixelSpacing, final long[] blockSize, final int compressionType, final byte[] metadata, final ByteBuffer status );
 
-    private native int jniReadFull( final String filePath, final int numThreads, final short[] out );
+    private native int jniWriteFull( final Buffer img, final String filePath, final long[] imageSize, final int dataType, final int numThreads, final long writeBufferBytes, final int blockOrder, final boolean constantBlocks, final float[] pixelSpacing, final long[] blockSize, final int compressionType, final byte[] metadata, final ByteBuffer status );
 
-    private native int jniReadFull( final String filePath, final int numThreads, final int[] out );
+    private native int jniWriteFullToChannel( final byte[] img, final ChannelSink sink, final long[] imageSize, final int dataType, final int numThreads, final long writeBufferBytes, final int blockOrder, final boolean constantBlocks, final float[] pixelSpacing, final long[] blockSize, final int compressionType, final byte[] metadata, final ByteBuffer status );
 
-    private native int jniReadFull( final String filePath, final int numThreads, final long[] out );
+    private native int jniWriteFullToChannel( final Buffer img, final ChannelSink sink, final long[] imageSize, final int dataType, final int numThreads, final long writeBufferBytes, final int blockOrder, final boolean constantBlocks, final float[] pixelSpacing, final long[] blockSize, final int compressionType, final byte[] metadata, final ByteBuffer status );
 
-    private native int jniReadFull( final String filePath, final int numThreads, final float[] out );
+    private native int jniWriteROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final byte[] img, final int numThreads, final ByteBuffer status );
 
-    private native int jniReadFull( final String filePath, final int numThreads, final double[] out );
+    private native int jniWriteROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final short[] img, final int numThreads, final ByteBuffer status );
 
-    private native int jniReadFull( final String filePath, final int numThreads, final Buffer out );
+    private native int jniWriteROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int[] img, final int numThreads, final ByteBuffer status );
 
-    private native int jniReadROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numThreads, final byte[] out );
+    private native int jniWriteROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final long[] img, final int numThreads, final ByteBuffer status );
 
-    private native int jniReadROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numThreads, final short[] out );
+    private native int jniWriteROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final float[] img, final int numThreads, final ByteBuffer status );
 
-    private native int jniReadROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numThreads, final int[] out );
+    private native int jniWriteROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final double[] img, final int numThreads, final ByteBuffer status );
 
-    private native int jniReadROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numThreads, final long[] out );
+    private native int jniWriteROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Buffer img, final long numBytes, final int numThreads, final ByteBuffer status );
 
-    private native int jniReadROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numThreads, final float[] out );
+    private native int jniAppendTimepoint( final String filePath, final byte[] img, final int numThreads, final ByteBuffer status );
 
-    private native int jniReadROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numThreads, final double[] out );
+    private native int jniAppendTimepoint( final String filePath, final short[] img, final int numThreads, final ByteBuffer status );
 
-    private native int jniReadROI( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numThreads, final Buffer out );
+    private native int jniAppendTimepoint( final String filePath, final int[] img, final int numThreads, final ByteBuffer status );
 
-    private native int jniWriteFull( final byte[] img, final String filePath, final long[] imageSize, final int dataType, final int numThreads, final float[] pixelSpacing, final long[] blockSize, final int compressionType, final byte[] metadata );
+    private native int jniAppendTimepoint( final String filePath, final long[] img, final int numThreads, final ByteBuffer status );
 
-    private native int jniWriteFull( final short[] img, final String filePath, final long[] imageSize, final int dataType, final int numThreads, final float[] pixelSpacing, final long[] blockSize, final int compressionType, final byte[] metadata );
+    private native int jniAppendTimepoint( final String filePath, final float[] img, final int numThreads, final ByteBuffer status );
 
-    private native int jniWriteFull( final int[] img, final String filePath, final long[] imageSize, final int dataType, final int numThreads, final float[] pixelSpacing, final long[] blockSize, final int compressionType, final byte[] metadata );
+    private native int jniAppendTimepoint( final String filePath, final double[] img, final int numThreads, final ByteBuffer status );
 
-    private native int jniWriteFull( final long[] img, final String filePath, final long[] imageSize, final int dataType, final int numThreads, final float[] pixelSpacing, final long[] blockSize, final int compressionType, final byte[] metadata );
+    private native int jniAppendTimepoint( final String filePath, final Buffer img, final long numBytes, final int numThreads, final ByteBuffer status );
 
-    private native int jniWriteFull( final float[] img, final String filePath, final long[] imageSize, final int dataType, final int numThreads, final float[] pixelSpacing, final long[] blockSize, final int compressionType, final byte[] metadata );
+    private native int jniTranscode( final String srcPath, final String dstPath, final long[] blockSize, final int compressionType, final int numThreads, final long writeBufferBytes, final boolean constantBlocks, final ByteBuffer status );
 
-    private native int jniWriteFull( final double[] img, final String filePath, final long[] imageSize, final int dataType, final int numThreads, final float[] pixelSpacing, final long[] blockSize, final int compressionType, final byte[] metadata );
+    private native int jniVerify( final String filePath, final byte[] corruptBlocks, final int numThreads, final ByteBuffer status );
 
-    private native int jniWriteFull( final Buffer img, final String filePath, final long[] imageSize, final int dataType, final int numThreads, final float[] pixelSpacing, final long[] blockSize, final int compressionType, final byte[] metadata );
+    private native byte[] jniCompressBlock( final byte[] block, final int compressionType );
 }
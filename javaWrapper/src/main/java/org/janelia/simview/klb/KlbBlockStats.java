@@ -0,0 +1,197 @@
+package org.janelia.simview.klb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Minimum, maximum and number of non-zero pixels of each block of a KLB file, as recorded by the native library when
+ * writing (header version 3 and higher). Allows to find the blocks of interest, e.g. those that are not background,
+ * without decompressing anything. Values of all data types are stored as double.
+ * <p>
+ * Blocks are numbered x fastest, as in the block offset table of the header, followed by the blocks of the timepoints
+ * appended with {@link KLB#appendTimepoint(String, byte[], KlbProgress)}. Blocks rewritten with KLB.writeROI have the
+ * statistics of their new content.
+ */
+public final class KlbBlockStats
+{
+    /**
+     * Condition on the statistics of a block, see {@link #blocksWhere(BlockPredicate)}
+     */
+    public interface BlockPredicate
+    {
+        boolean test( final double min, final double max, final long nonZeroCount );
+    }
+
+    private final long[] imageSize, blockSize;
+    private final long[] numBlocksPerDim;
+    private final double[] min, max;
+    private final long[] nonZeroCount;
+
+    private KlbBlockStats( final KlbFileHeader header, final ByteBuffer payload ) throws IOException
+    {
+        imageSize = header.fullImageSize();
+        blockSize = header.blockSize.clone();
+        numBlocksPerDim = new long[ 5 ];
+        long n = 1;
+        for ( int d = 0; d < 5; ++d ) {
+            numBlocksPerDim[ d ] = (imageSize[ d ] + blockSize[ d ] - 1) / blockSize[ d ];
+            n *= numBlocksPerDim[ d ];
+        }
+        if ( n > Integer.MAX_VALUE ) {
+            throw new IOException( "Too many blocks." );
+        }
+        min = new double[ ( int ) n ];
+        max = new double[ ( int ) n ];
+        nonZeroCount = new long[ ( int ) n ];
+        get( payload, 0, ( int ) header.numBlocks() );
+    }
+
+    /**
+     * Copies the statistics of n blocks, starting with block first, from payload
+     */
+    private void get( final ByteBuffer payload, final int first, final int n )
+    {
+        for ( int i = first; i < first + n; ++i ) {
+            min[ i ] = payload.getDouble();
+            max[ i ] = payload.getDouble();
+            nonZeroCount[ i ] = payload.getLong();
+        }
+    }
+
+    /**
+     * Reads the block statistics of a KLB file.
+     *
+     * @param filePath file system path to KLB file
+     * @return block statistics, or null if the file does not store them (e.g. written by an older version)
+     * @throws IOException
+     */
+    public static KlbBlockStats read( final String filePath ) throws IOException
+    {
+        try ( final FileChannel channel = FileChannel.open( Paths.get( filePath ), StandardOpenOption.READ ) ) {
+            final KlbFileHeader header = KlbFileHeader.read( channel, false );
+            final ByteBuffer payload = header.readExtension( channel, KlbFileHeader.EXTENSION_BLOCK_STATS );
+            if ( payload == null ) {
+                return null;
+            }
+            if ( payload.remaining() != 24 * header.numBlocks() ) {
+                throw new IOException( String.format( "Invalid block statistics in KLB file %s.", filePath ) );
+            }
+            final KlbBlockStats stats = new KlbBlockStats( header, payload );
+            final int blocksPerTimepoint = ( int ) (header.numBlocks() / Math.max( 1, header.imageSize[ 4 ] ));
+            int first = ( int ) header.numBlocks();
+            for ( final long[] timepoint : header.findAppendedTimepoints( channel ) ) {
+                // after t, number of blocks, end offsets and flags
+                final ByteBuffer timepointStats = ByteBuffer.allocate( 24 * blocksPerTimepoint ).order( KlbFileHeader.BYTE_ORDER );
+                KlbFileHeader.readFully( channel, timepointStats, timepoint[ 0 ] + 8 + 9L * blocksPerTimepoint );
+                timepointStats.flip();
+                stats.get( timepointStats, first, blocksPerTimepoint );
+                first += blocksPerTimepoint;
+            }
+            for ( final long[] update : header.findExtensions( channel, KlbFileHeader.EXTENSION_UPDATED_BLOCKS ) ) {
+                stats.update( channel, update[ 0 ] );
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Replaces the statistics of the blocks rewritten by KLB.writeROI (including blocks of appended timepoints), stored
+     * in the extension at position
+     */
+    private void update( final FileChannel channel, final long position ) throws IOException
+    {
+        final ByteBuffer count = ByteBuffer.allocate( 8 ).order( KlbFileHeader.BYTE_ORDER );
+        KlbFileHeader.readFully( channel, count, position );
+        final int n = count.getInt( 0 );
+        final ByteBuffer blocks = ByteBuffer.allocate( 8 * n ).order( KlbFileHeader.BYTE_ORDER );
+        final ByteBuffer stats = ByteBuffer.allocate( 24 * n ).order( KlbFileHeader.BYTE_ORDER );
+        KlbFileHeader.readFully( channel, blocks, position + 8 );
+        KlbFileHeader.readFully( channel, stats, position + 8 + 17L * n );// after block indices, end offsets and flags
+        blocks.flip();
+        stats.flip();
+        for ( int i = 0; i < n; ++i ) {
+            final long block = blocks.getLong();
+            final double blockMin = stats.getDouble(), blockMax = stats.getDouble();
+            final long blockNonZeroCount = stats.getLong();
+            if ( block < min.length ) {
+                min[ ( int ) block ] = blockMin;
+                max[ ( int ) block ] = blockMax;
+                nonZeroCount[ ( int ) block ] = blockNonZeroCount;
+            }
+        }
+    }
+
+    public int getNumBlocks()
+    {
+        return min.length;
+    }
+
+    /**
+     * Number of blocks along each dimension, in order xyzct
+     */
+    public long[] getNumBlocksPerDim()
+    {
+        return numBlocksPerDim.clone();
+    }
+
+    public double getMin( final int block )
+    {
+        return min[ block ];
+    }
+
+    public double getMax( final int block )
+    {
+        return max[ block ];
+    }
+
+    public long getNonZeroCount( final int block )
+    {
+        return nonZeroCount[ block ];
+    }
+
+    /**
+     * Lower limit of the bounding box of a block in the image, in order xyzct
+     */
+    public long[] getBlockMin( final int block )
+    {
+        final long[] blockMin = new long[ 5 ];
+        long index = block;
+        for ( int d = 0; d < 5; ++d ) {
+            blockMin[ d ] = (index % numBlocksPerDim[ d ]) * blockSize[ d ];
+            index /= numBlocksPerDim[ d ];
+        }
+        return blockMin;
+    }
+
+    /**
+     * Upper limit (inclusive) of the bounding box of a block in the image, in order xyzct
+     */
+    public long[] getBlockMax( final int block )
+    {
+        final long[] blockMax = getBlockMin( block );
+        for ( int d = 0; d < 5; ++d ) {
+            blockMax[ d ] = Math.min( blockMax[ d ] + blockSize[ d ], imageSize[ d ] ) - 1;
+        }
+        return blockMax;
+    }
+
+    /**
+     * Returns the indices of all blocks whose statistics satisfy the predicate, e.g.
+     * blocksWhere( ( min, max, nonZeroCount ) -&gt; max &gt; threshold ).
+     */
+    public int[] blocksWhere( final BlockPredicate predicate )
+    {
+        final int[] blocks = new int[ min.length ];
+        int n = 0;
+        for ( int i = 0; i < min.length; ++i ) {
+            if ( predicate.test( min[ i ], max[ i ], nonZeroCount[ i ] ) ) {
+                blocks[ n++ ] = i;
+            }
+        }
+        return Arrays.copyOf( blocks, n );
+    }
+}
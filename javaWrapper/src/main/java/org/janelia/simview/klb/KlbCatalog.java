@@ -0,0 +1,472 @@
+package org.janelia.simview.klb;
+
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Persistent index of the headers of all KLB files in a directory tree.
+ * <p>
+ * Opening a dataset of many KLB files (e.g. one per time point) otherwise requires reading every header, which is
+ * slow on network storage. The catalog stores image size, data type, block size, pixel spacing, compressed size and,
+ * optionally, the block offset tables of all files in a compact binary index. Entries are keyed by the path relative
+ * to the root directory and are valid as long as file size and modification time are unchanged, hence
+ * {@link #refresh()} only parses headers of new or modified files, in parallel.
+ * <p>
+ * The index is a cache: if it is missing, unreadable or was written by an incompatible version, it is rebuilt.
+ */
+public class KlbCatalog
+{
+    /**
+     * Default name of the index file, stored in the root directory
+     */
+    public static final String DEFAULT_INDEX_NAME = ".klbcatalog";
+
+    private static final int MAGIC = 0x4b4c4243; // "KLBC"
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * Header of a single KLB file of the catalog
+     */
+    public static class Entry
+    {
+        private final String path;
+        private final long fileSize, lastModified;
+        private final KlbFileHeader header;
+
+        private Entry( final String path, final long fileSize, final long lastModified, final KlbFileHeader header )
+        {
+            this.path = path;
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+            this.header = header;
+        }
+
+        /**
+         * Path relative to the root directory of the catalog, with '/' as separator
+         */
+        public String getPath()
+        {
+            return path;
+        }
+
+        public long getFileSize()
+        {
+            return fileSize;
+        }
+
+        /**
+         * Modification time in milliseconds since the epoch
+         */
+        public long getLastModified()
+        {
+            return lastModified;
+        }
+
+        /**
+         * Image size, in order xyzct, including the timepoints appended with
+         * {@link KLB#appendTimepoint(String, byte[], KlbProgress)}
+         */
+        public long[] getImageSize()
+        {
+            return header.fullImageSize();
+        }
+
+        /**
+         * Size of KLB blocks, in order xyzct
+         */
+        public long[] getBlockSize()
+        {
+            return header.blockSize.clone();
+        }
+
+        /**
+         * Physical pixel spacing, in order xyzct
+         */
+        public float[] getPixelSpacing()
+        {
+            return header.pixelSpacing.clone();
+        }
+
+        /**
+         * Value of the data type enum of the native library
+         */
+        public int getDataType()
+        {
+            return header.dataType;
+        }
+
+        public KLB.CompressionType getCompressionType()
+        {
+            return header.compressionType < KLB.CompressionType.values().length ? KLB.CompressionType.values()[ header.compressionType ] : null;
+        }
+
+        public byte[] getMetadata()
+        {
+            return header.metadata.clone();
+        }
+
+        /**
+         * Sum of the compressed sizes of all blocks of the timepoints written with the file, i.e. file size without
+         * the header and without the extensions (e.g. appended timepoints and blocks rewritten with
+         * {@link KLB#writeROI(String, long[], long[], byte[], KlbProgress)})
+         */
+        public long getCompressedSize()
+        {
+            return header.compressedSize;
+        }
+
+        /**
+         * Cumulative compressed block sizes (end of each block relative to the end of the header), or null if the
+         * catalog was built without block offsets. Files written with {@link KLB.BlockOrder#MORTON} store their blocks
+         * in another order, so for them the offsets only give the size of each block. The blocks of appended
+         * timepoints are not included. The offsets always describe the blocks as originally written: blocks rewritten
+         * with {@link KLB#writeROI(String, long[], long[], byte[], KlbProgress)} are stored in an extension at the end
+         * of the file, and reading the original blocks of such files returns stale content.
+         */
+        public long[] getBlockOffsets()
+        {
+            return header.blockOffsets == null ? null : header.blockOffsets.clone();
+        }
+
+        /**
+         * Returns the header in the form returned by KLB.readHeader, without touching the file.
+         */
+        public < T extends RealType< T > & NativeType< T > > KLB< T >.Header toHeader( final KLB< T > klb )
+                throws IOException
+        {
+            return header.toHeader( klb );
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format( "%s: %s, type %d, block size %s, %d bytes compressed", path, Arrays.toString( header.fullImageSize() ), header.dataType, Arrays.toString( header.blockSize ), header.compressedSize );
+        }
+    }
+
+    private final Path root;
+    private final Path indexFile;
+    private final boolean withBlockOffsets;
+    private final Map< String, Entry > entries = new TreeMap< String, Entry >();
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private boolean dirty = false;
+
+    /**
+     * Opens the catalog of a directory tree, with the index stored as {@link #DEFAULT_INDEX_NAME} in the root
+     * directory and without block offset tables. New and modified files are indexed, and the index is saved if it
+     * changed.
+     *
+     * @param root root directory of the dataset
+     * @return up-to-date catalog
+     * @throws IOException
+     */
+    public static KlbCatalog open( final Path root ) throws IOException
+    {
+        return open( root, root.resolve( DEFAULT_INDEX_NAME ), false );
+    }
+
+    /**
+     * Opens the catalog of a directory tree. New and modified files are indexed, and the index is saved if it changed.
+     *
+     * @param root             root directory of the dataset
+     * @param indexFile        location of the index, need not exist
+     * @param withBlockOffsets whether to also store the block offset table of each file
+     * @return up-to-date catalog
+     * @throws IOException
+     */
+    public static KlbCatalog open( final Path root, final Path indexFile, final boolean withBlockOffsets )
+            throws IOException
+    {
+        final KlbCatalog catalog = new KlbCatalog( root, indexFile, withBlockOffsets );
+        catalog.load();
+        catalog.refresh();
+        if ( catalog.dirty ) {
+            catalog.save();
+        }
+        return catalog;
+    }
+
+    /**
+     * Creates an empty catalog. Use {@link #open(Path, Path, boolean)} to load an existing index.
+     */
+    public KlbCatalog( final Path root, final Path indexFile, final boolean withBlockOffsets )
+    {
+        this.root = root.toAbsolutePath().normalize();
+        this.indexFile = indexFile;
+        this.withBlockOffsets = withBlockOffsets;
+    }
+
+    /**
+     * Set number of threads used to parse headers, default is all available processors. On network storage, more
+     * threads than processors may pay off, since parsing is bound by latency.
+     */
+    public void setNumThreads( final int n )
+    {
+        numThreads = Math.max( 1, n );
+    }
+
+    public Path getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * Returns all entries, sorted by path
+     */
+    public synchronized List< Entry > getEntries()
+    {
+        return new ArrayList< Entry >( entries.values() );
+    }
+
+    /**
+     * Returns the entry of a file, or null if it is not in the catalog.
+     *
+     * @param file absolute path or path relative to the root directory
+     */
+    public synchronized Entry get( final Path file )
+    {
+        return entries.get( key( file.isAbsolute() ? file : root.resolve( file ) ) );
+    }
+
+    public Entry get( final String file )
+    {
+        return get( Paths.get( file ) );
+    }
+
+    /**
+     * Updates the catalog: files that were added or modified since the last refresh are (re-)indexed, entries of
+     * removed files are dropped. Files that are not valid KLB files are skipped.
+     *
+     * @return number of added, updated or removed entries
+     * @throws IOException
+     */
+    public synchronized int refresh() throws IOException
+    {
+        final Map< String, BasicFileAttributes > files = new TreeMap< String, BasicFileAttributes >();
+        Files.walkFileTree( root, new SimpleFileVisitor< Path >()
+        {
+            @Override
+            public FileVisitResult visitFile( final Path file, final BasicFileAttributes attrs )
+            {
+                if ( attrs.isRegularFile() && file.getFileName().toString().toLowerCase().endsWith( ".klb" ) ) {
+                    files.put( key( file ), attrs );
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed( final Path file, final IOException e )
+            {
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+
+        int changes = 0;
+        final Iterator< String > it = entries.keySet().iterator();
+        while ( it.hasNext() ) {
+            if ( !files.containsKey( it.next() ) ) {
+                it.remove();
+                changes++;
+            }
+        }
+
+        final List< Callable< Entry > > tasks = new ArrayList< Callable< Entry > >();
+        for ( final Map.Entry< String, BasicFileAttributes > file : files.entrySet() ) {
+            final String path = file.getKey();
+            final long size = file.getValue().size();
+            final long lastModified = file.getValue().lastModifiedTime().toMillis();
+            final Entry entry = entries.get( path );
+            if ( entry == null || entry.fileSize != size || entry.lastModified != lastModified ) {
+                tasks.add( () -> {
+                    try {
+                        return new Entry( path, size, lastModified, KlbFileHeader.read( root.resolve( path ), withBlockOffsets ) );
+                    } catch ( final IOException e ) {
+                        // not a (complete) KLB file, e.g. still being written
+                        return new Entry( path, size, lastModified, null );
+                    }
+                } );
+            }
+        }
+        if ( tasks.isEmpty() ) {
+            dirty |= changes > 0;
+            return changes;
+        }
+
+        final ExecutorService taskExecutor = Executors.newFixedThreadPool( Math.min( numThreads, tasks.size() ) );
+        try {
+            for ( final Future< Entry > result : taskExecutor.invokeAll( tasks ) ) {
+                final Entry entry = result.get();
+                if ( entry.header == null ) {
+                    if ( entries.remove( entry.path ) != null ) {
+                        changes++;
+                    }
+                } else {
+                    entries.put( entry.path, entry );
+                    changes++;
+                }
+            }
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while indexing KLB files." );
+        } catch ( final ExecutionException e ) {
+            throw new IOException( "Failed to index KLB files.", e.getCause() );
+        } finally {
+            taskExecutor.shutdownNow();
+        }
+        dirty |= changes > 0;
+        return changes;
+    }
+
+    /**
+     * Writes the index. The file is replaced atomically where supported, so concurrent readers never see a partial
+     * index.
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException
+    {
+        final Path dir = indexFile.toAbsolutePath().getParent();
+        final Path tmp = Files.createTempFile( dir, indexFile.getFileName().toString(), ".tmp" );
+        try {
+            try ( final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) ) ) {
+                out.writeInt( MAGIC );
+                out.writeInt( FORMAT_VERSION );
+                out.writeBoolean( withBlockOffsets );
+                out.writeInt( entries.size() );
+                for ( final Entry entry : entries.values() ) {
+                    write( out, entry );
+                }
+            }
+            try {
+                Files.move( tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            } catch ( final AtomicMoveNotSupportedException e ) {
+                Files.move( tmp, indexFile, StandardCopyOption.REPLACE_EXISTING );
+            }
+        } finally {
+            Files.deleteIfExists( tmp );
+        }
+        dirty = false;
+    }
+
+    /**
+     * Loads the index, if it exists and is compatible. Otherwise, the catalog remains empty.
+     */
+    private synchronized void load()
+    {
+        entries.clear();
+        if ( !Files.isRegularFile( indexFile ) ) {
+            return;
+        }
+        try ( final DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( indexFile ) ) ) ) {
+            if ( in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION ) {
+                dirty = true;
+                return;
+            }
+            // an index without offsets cannot serve a catalog that needs them
+            final boolean hasBlockOffsets = in.readBoolean();
+            if ( withBlockOffsets && !hasBlockOffsets ) {
+                dirty = true;
+                return;
+            }
+            final int n = in.readInt();
+            for ( int i = 0; i < n; ++i ) {
+                final Entry entry = read( in, hasBlockOffsets && withBlockOffsets );
+                entries.put( entry.path, entry );
+            }
+            dirty = hasBlockOffsets != withBlockOffsets;
+        } catch ( final IOException e ) {
+            entries.clear();
+            dirty = true;
+        }
+    }
+
+    private static void write( final DataOutputStream out, final Entry entry ) throws IOException
+    {
+        final KlbFileHeader header = entry.header;
+        out.writeUTF( entry.path );
+        out.writeLong( entry.fileSize );
+        out.writeLong( entry.lastModified );
+        out.writeByte( header.version );
+        for ( int d = 0; d < 5; ++d ) {
+            out.writeLong( header.imageSize[ d ] );
+            out.writeLong( header.blockSize[ d ] );
+            out.writeFloat( header.pixelSpacing[ d ] );
+        }
+        out.writeByte( header.dataType );
+        out.writeByte( header.compressionType );
+        // metadata is mostly unused, store it without trailing zeros
+        int metadataLength = header.metadata.length;
+        while ( metadataLength > 0 && header.metadata[ metadataLength - 1 ] == 0 ) {
+            metadataLength--;
+        }
+        out.writeShort( metadataLength );
+        out.write( header.metadata, 0, metadataLength );
+        out.writeLong( header.compressedSize );
+        out.writeLong( header.appendedTimepoints );
+        if ( header.blockOffsets == null ) {
+            out.writeInt( -1 );
+        } else {
+            out.writeInt( header.blockOffsets.length );
+            for ( final long offset : header.blockOffsets ) {
+                out.writeLong( offset );
+            }
+        }
+    }
+
+    private static Entry read( final DataInputStream in, final boolean keepBlockOffsets ) throws IOException
+    {
+        final String path = in.readUTF();
+        final long fileSize = in.readLong();
+        final long lastModified = in.readLong();
+        final KlbFileHeader header = new KlbFileHeader();
+        header.version = in.readUnsignedByte();
+        for ( int d = 0; d < 5; ++d ) {
+            header.imageSize[ d ] = in.readLong();
+            header.blockSize[ d ] = in.readLong();
+            header.pixelSpacing[ d ] = in.readFloat();
+        }
+        header.dataType = in.readUnsignedByte();
+        header.compressionType = in.readUnsignedByte();
+        final int metadataLength = in.readUnsignedShort();
+        if ( metadataLength > header.metadata.length ) {
+            throw new IOException( "Corrupt KLB catalog." );
+        }
+        in.readFully( header.metadata, 0, metadataLength );
+        header.compressedSize = in.readLong();
+        header.appendedTimepoints = in.readLong();
+        final int numBlockOffsets = in.readInt();
+        if ( numBlockOffsets >= 0 ) {
+            final long[] offsets = new long[ numBlockOffsets ];
+            for ( int i = 0; i < numBlockOffsets; ++i ) {
+                offsets[ i ] = in.readLong();
+            }
+            if ( keepBlockOffsets ) {
+                header.blockOffsets = offsets;
+            }
+        }
+        return new Entry( path, fileSize, lastModified, header );
+    }
+
+    private String key( final Path file )
+    {
+        final Path relative = root.relativize( file.toAbsolutePath().normalize() );
+        final StringBuilder key = new StringBuilder();
+        for ( final Path part : relative ) {
+            if ( key.length() > 0 ) {
+                key.append( '/' );
+            }
+            key.append( part.toString() );
+        }
+        return key.toString();
+    }
+}
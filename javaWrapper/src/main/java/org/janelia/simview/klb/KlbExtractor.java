@@ -0,0 +1,289 @@
+package org.janelia.simview.klb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Implementation of {@link KLB#extract(String, long[], long[], String)}.
+ * <p>
+ * If the subvolume starts on the block grid, block b of the output corresponds to exactly one block of the source.
+ * Where both have the same extent, the compressed block (and its statistics, flags and checksum) is copied as is; runs
+ * of blocks that are consecutive in the source are copied with a single transferTo. The remaining blocks, cut by the
+ * upper limit of the subvolume, are read, cropped and compressed again in parallel.
+ */
+final class KlbExtractor
+{
+    static final int STATS_SIZE = 24;
+
+    private KlbExtractor()
+    {
+    }
+
+    static void extract( final KLB< ? > klb, final String srcPath, final long[] xyzctMin, final long[] xyzctMax, final String dstPath )
+            throws IOException
+    {
+        try ( final FileChannel src = FileChannel.open( Paths.get( srcPath ), StandardOpenOption.READ ) ) {
+            final KlbFileHeader in = KlbFileHeader.read( src, true );
+            final long[] imageSize = klb.readHeader( srcPath ).imageSize;// including appended timepoints
+            // appended timepoints and updated blocks are not in the block offset table, and blocks are only copied in index
+            // order
+            boolean aligned = xyzctMax[ 4 ] < in.imageSize[ 4 ] && in.findExtensions( src, KlbFileHeader.EXTENSION_UPDATED_BLOCKS ).isEmpty()
+                    && in.findExtensions( src, KlbFileHeader.EXTENSION_BLOCK_ORDER ).isEmpty() && klb.getBlockOrder() == KLB.BlockOrder.LINEAR;
+            for ( int d = 0; d < 5; ++d ) {
+                if ( xyzctMin[ d ] < 0 || xyzctMin[ d ] > xyzctMax[ d ] || xyzctMax[ d ] >= imageSize[ d ] ) {
+                    throw new IOException( String.format( "Subvolume to extract exceeds the image size of KLB file %s.", srcPath ) );
+                }
+                aligned &= xyzctMin[ d ] % in.blockSize[ d ] == 0;
+            }
+            if ( aligned ) {
+                extractBlocks( klb, srcPath, src, in, xyzctMin, xyzctMax, dstPath );
+            } else {
+                extractPixels( klb, srcPath, in, xyzctMin, xyzctMax, dstPath );
+            }
+        }
+    }
+
+    /**
+     * Subvolume is not aligned with the block grid: no block can be reused.
+     */
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    private static void extractPixels( final KLB klb, final String srcPath, final KlbFileHeader in, final long[] xyzctMin, final long[] xyzctMax, final String dstPath )
+            throws IOException
+    {
+        final long[] size = new long[ 5 ];
+        long numBytes = in.bytesPerPixel();
+        for ( int d = 0; d < 5; ++d ) {
+            size[ d ] = xyzctMax[ d ] - xyzctMin[ d ] + 1;
+            numBytes *= size[ d ];
+        }
+        if ( numBytes > Integer.MAX_VALUE ) {
+            throw new IOException( String.format( "Subvolume of %s is not aligned with the block grid and too large to be held in memory (%d bytes).", srcPath, numBytes ) );
+        }
+        final byte[] pixels = new byte[ ( int ) numBytes ];
+        klb.readROIinPlace( srcPath, xyzctMin, xyzctMax, pixels, null );
+        klb.writeFull( pixels, dstPath, size, KlbFileHeader.newDataType( in.dataType ), in.pixelSpacing, in.blockSize, KLB.CompressionType.values()[ in.compressionType ], in.metadata, null );
+    }
+
+    private static void extractBlocks( final KLB< ? > klb, final String srcPath, final FileChannel src, final KlbFileHeader in, final long[] xyzctMin, final long[] xyzctMax, final String dstPath )
+            throws IOException
+    {
+        final KlbFileHeader out = new KlbFileHeader();
+        out.version = in.version;
+        out.dataType = in.dataType;
+        out.compressionType = in.compressionType;
+        System.arraycopy( in.pixelSpacing, 0, out.pixelSpacing, 0, 5 );
+        System.arraycopy( in.metadata, 0, out.metadata, 0, in.metadata.length );
+        for ( int d = 0; d < 5; ++d ) {
+            out.imageSize[ d ] = xyzctMax[ d ] - xyzctMin[ d ] + 1;
+            out.blockSize[ d ] = Math.min( in.blockSize[ d ], out.imageSize[ d ] );
+        }
+        final int numBlocks = ( int ) out.numBlocks();
+        out.blockOffsets = new long[ numBlocks ];
+
+        final ByteBuffer inStats = in.readExtension( src, KlbFileHeader.EXTENSION_BLOCK_STATS );
+        final ByteBuffer inFlags = in.readExtension( src, KlbFileHeader.EXTENSION_BLOCK_FLAGS );
+        final ByteBuffer inChecksums = in.readExtension( src, KlbFileHeader.EXTENSION_BLOCK_CHECKSUMS );
+        final ByteBuffer outStats = inStats == null ? null : ByteBuffer.allocate( STATS_SIZE * numBlocks ).order( KlbFileHeader.BYTE_ORDER );
+        final ByteBuffer outChecksums = inChecksums == null ? null : ByteBuffer.allocate( 4 * numBlocks ).order( KlbFileHeader.BYTE_ORDER );
+        final boolean withFlags = out.version >= KlbFileHeader.VERSION_BLOCK_FLAGS;
+        final byte[] outFlags = new byte[ numBlocks ];
+
+        // source block of each output block, and whether it can be copied
+        final long[] outBlocksPerDim = out.numBlocksPerDim(), inBlocksPerDim = in.numBlocksPerDim();
+        final int[] srcBlock = new int[ numBlocks ];
+        final byte[][] recompressed = new byte[ numBlocks ][];
+        final List< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+        for ( int b = 0; b < numBlocks; ++b ) {
+            final long[] min = new long[ 5 ], max = new long[ 5 ];
+            long index = b, srcIndex = 0, srcStride = 1;
+            boolean verbatim = true;
+            for ( int d = 0; d < 5; ++d ) {
+                final long o = index % outBlocksPerDim[ d ];
+                index /= outBlocksPerDim[ d ];
+                final long s = xyzctMin[ d ] / in.blockSize[ d ] + o;
+                srcIndex += s * srcStride;
+                srcStride *= inBlocksPerDim[ d ];
+                min[ d ] = xyzctMin[ d ] + o * out.blockSize[ d ];
+                max[ d ] = Math.min( min[ d ] + out.blockSize[ d ], xyzctMax[ d ] + 1 ) - 1;
+                verbatim &= max[ d ] == Math.min( (s + 1) * in.blockSize[ d ], in.imageSize[ d ] ) - 1;
+            }
+            srcBlock[ b ] = ( int ) srcIndex;
+            if ( verbatim ) {
+                if ( inStats != null ) {
+                    copyRecord( inStats, srcBlock[ b ], outStats, b );
+                }
+                if ( inFlags != null ) {
+                    outFlags[ b ] = inFlags.get( srcBlock[ b ] );
+                }
+                if ( inChecksums != null ) {
+                    outChecksums.putInt( 4 * b, inChecksums.getInt( inChecksums.position() + 4 * srcBlock[ b ] ) );
+                }
+                continue;
+            }
+
+            final int block = b;
+            tasks.add( () -> {
+                long numBytes = in.bytesPerPixel();
+                for ( int d = 0; d < 5; ++d ) {
+                    numBytes *= max[ d ] - min[ d ] + 1;
+                }
+                final byte[] pixels = new byte[ ( int ) numBytes ];
+                final KLB< ? > reader = KLB.newInstance();
+                reader.setNumThreads( 1 );
+                reader.readROIinPlace( srcPath, min, max, pixels, null );
+                if ( outStats != null ) {
+                    putStats( pixels, in.dataType, outStats, block );
+                }
+                if ( withFlags && isConstant( pixels, in.bytesPerPixel() ) ) {
+                    outFlags[ block ] = KlbFileHeader.BLOCK_FLAG_CONSTANT;
+                    recompressed[ block ] = Arrays.copyOf( pixels, in.bytesPerPixel() );
+                } else {
+                    recompressed[ block ] = klb.compressBlock( pixels, in.compressionType );
+                }
+                if ( outChecksums != null ) {
+                    final CRC32 crc = new CRC32();
+                    crc.update( recompressed[ block ] );
+                    outChecksums.putInt( 4 * block, ( int ) crc.getValue() );
+                }
+                return null;
+            } );
+        }
+        recompress( tasks, klb.getNumThreads(), srcPath );
+
+        try ( final FileChannel dst = FileChannel.open( Paths.get( dstPath ), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ) ) {
+            dst.position( out.sizeInBytes() );
+            long offset = 0;
+            int b = 0;
+            while ( b < numBlocks ) {
+                if ( recompressed[ b ] != null ) {
+                    writeFully( dst, ByteBuffer.wrap( recompressed[ b ] ) );
+                    offset += recompressed[ b ].length;
+                    out.blockOffsets[ b++ ] = offset;
+                    continue;
+                }
+                // copy a run of blocks that are consecutive in the source at once
+                int e = b + 1;
+                while ( e < numBlocks && recompressed[ e ] == null && srcBlock[ e ] == srcBlock[ e - 1 ] + 1 ) {
+                    e++;
+                }
+                final long start = srcBlock[ b ] == 0 ? 0 : in.blockOffsets[ srcBlock[ b ] - 1 ];
+                transferFully( src, in.sizeInBytes() + start, in.blockOffsets[ srcBlock[ e - 1 ] ] - start, dst );
+                for ( ; b < e; ++b ) {
+                    offset += in.blockOffsets[ srcBlock[ b ] ] - (srcBlock[ b ] == 0 ? 0 : in.blockOffsets[ srcBlock[ b ] - 1 ]);
+                    out.blockOffsets[ b ] = offset;
+                }
+            }
+
+            if ( outStats != null ) {
+                writeExtension( dst, KlbFileHeader.EXTENSION_BLOCK_STATS, outStats );
+            }
+            if ( withFlags ) {
+                writeExtension( dst, KlbFileHeader.EXTENSION_BLOCK_FLAGS, ByteBuffer.wrap( outFlags ) );
+            }
+            if ( outChecksums != null ) {
+                writeExtension( dst, KlbFileHeader.EXTENSION_BLOCK_CHECKSUMS, outChecksums );
+            }
+            dst.position( 0 );
+            writeFully( dst, out.toByteBuffer() );
+        }
+    }
+
+    private static void recompress( final List< Callable< Void > > tasks, final int numThreads, final String srcPath )
+            throws IOException
+    {
+        if ( tasks.isEmpty() ) {
+            return;
+        }
+        final ExecutorService taskExecutor = Executors.newFixedThreadPool( Math.max( 1, Math.min( numThreads, tasks.size() ) ) );
+        try {
+            for ( final Future< Void > result : taskExecutor.invokeAll( tasks ) ) {
+                result.get();
+            }
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while extracting from " + srcPath );
+        } catch ( final ExecutionException e ) {
+            throw new IOException( String.format( "Failed to recompress blocks of %s.", srcPath ), e.getCause() );
+        } finally {
+            taskExecutor.shutdownNow();
+        }
+    }
+
+    private static void copyRecord( final ByteBuffer from, final int fromIndex, final ByteBuffer to, final int toIndex )
+    {
+        for ( int i = 0; i < STATS_SIZE; ++i ) {
+            to.put( toIndex * STATS_SIZE + i, from.get( from.position() + fromIndex * STATS_SIZE + i ) );
+        }
+    }
+
+    static void putStats( final byte[] pixels, final int dataType, final ByteBuffer stats, final int block )
+    {
+        final PixelAccess access = PixelAccess.wrap( pixels, dataType );
+        final int numPixels = pixels.length / KlbFileHeader.bytesPerPixel( dataType );
+        double min = access.get( 0 ), max = min;
+        long nonZero = 0;
+        for ( int i = 0; i < numPixels; ++i ) {
+            final double value = access.get( i );
+            min = Math.min( min, value );
+            max = Math.max( max, value );
+            if ( value != 0 ) {
+                nonZero++;
+            }
+        }
+        stats.putDouble( block * STATS_SIZE, min );
+        stats.putDouble( block * STATS_SIZE + 8, max );
+        stats.putLong( block * STATS_SIZE + 16, nonZero );
+    }
+
+    static boolean isConstant( final byte[] pixels, final int bytesPerPixel )
+    {
+        for ( int i = bytesPerPixel; i < pixels.length; ++i ) {
+            if ( pixels[ i ] != pixels[ i % bytesPerPixel ] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void writeExtension( final FileChannel dst, final int tag, final ByteBuffer payload ) throws IOException
+    {
+        final ByteBuffer extensionHeader = ByteBuffer.allocate( 4 + 8 ).order( KlbFileHeader.BYTE_ORDER );
+        extensionHeader.putInt( tag ).putLong( payload.capacity() ).flip();
+        writeFully( dst, extensionHeader );
+        payload.clear();
+        writeFully( dst, payload );
+    }
+
+    static void writeFully( final FileChannel dst, final ByteBuffer buffer ) throws IOException
+    {
+        while ( buffer.hasRemaining() ) {
+            dst.write( buffer );
+        }
+    }
+
+    private static void transferFully( final FileChannel src, long position, long count, final FileChannel dst )
+            throws IOException
+    {
+        while ( count > 0 ) {
+            final long n = src.transferTo( position, count, dst );
+            if ( n <= 0 ) {
+                throw new IOException( "Truncated KLB file." );
+            }
+            position += n;
+            count -= n;
+        }
+    }
+}
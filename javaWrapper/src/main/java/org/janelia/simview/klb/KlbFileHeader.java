@@ -0,0 +1,507 @@
+package org.janelia.simview.klb;
+
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.*;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * On-disk KLB header, parsed in Java without going through the native library. Mirrors klb_image_header: header
+ * version, image size, pixel spacing, data type, compression type, metadata, block size and the block offset table.
+ * <p>
+ * The native library writes the header in native byte order, which is little endian on all supported platforms.
+ */
+final class KlbFileHeader
+{
+    static final int METADATA_SIZE = 256;
+
+    /**
+     * Size of the header without the block offset table
+     */
+    static final int FIXED_SIZE = 1 + 5 * 4 + 5 * 4 + 1 + 1 + METADATA_SIZE + 5 * 4;
+
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    /**
+     * Files with this header version or higher can store extensions after the last block
+     */
+    static final int VERSION_EXTENSIONS = 3;
+
+    /**
+     * Extension tag of the per-block statistics ("BSTA")
+     */
+    static final int EXTENSION_BLOCK_STATS = 0x41545342;
+
+    /**
+     * Files with this header version or higher can contain blocks that are not encoded with the compression type of
+     * the header, marked in the {@link #EXTENSION_BLOCK_FLAGS} extension
+     */
+    static final int VERSION_BLOCK_FLAGS = 4;
+
+    /**
+     * Extension tag of the per-block flags ("BFLG"), one byte per block
+     */
+    static final int EXTENSION_BLOCK_FLAGS = 0x474C4642;
+
+    /**
+     * Block flag: all pixels of the block have the same value, which is stored uncompressed as the only content of the
+     * block
+     */
+    static final int BLOCK_FLAG_CONSTANT = 1;
+
+    /**
+     * Extension tag of the per-block checksums ("BCRC"), one int per block: CRC-32 (as computed by
+     * {@link java.util.zip.CRC32}) of the compressed bytes of the block
+     */
+    static final int EXTENSION_BLOCK_CHECKSUMS = 0x43524342;
+
+    /**
+     * Extension tag of a timepoint appended with KLB.appendTimepoint ("TAPP")
+     */
+    static final int EXTENSION_APPENDED_TIMEPOINT = 0x50504154;
+
+    /**
+     * Extension tag of blocks rewritten by KLB.writeROI ("BUPD"), which replace the blocks of the same index in the
+     * block offset table or in earlier extensions. Payload: int number of blocks n, int 0, n x long block index, n x
+     * long block end offset, n x byte block flags, n x block statistics, n x int block checksum, blocks.
+     */
+    static final int EXTENSION_UPDATED_BLOCKS = 0x44505542;
+
+    /**
+     * Files with this header version or higher can store their blocks in another order than their index, given by
+     * the {@link #EXTENSION_BLOCK_ORDER} extension. The block offset table still holds the end of each block as if
+     * they were stored in index order.
+     */
+    static final int VERSION_BLOCK_ORDER = 5;
+
+    /**
+     * Extension tag of the order of the blocks in the file ("BORD"). Payload: int {@link #BLOCK_ORDER_MORTON}, int 0.
+     */
+    static final int EXTENSION_BLOCK_ORDER = 0x44524F42;
+
+    /**
+     * Block order: Z-order of the block coordinates along x, y and z within each (c, t) volume, volumes in index order
+     */
+    static final int BLOCK_ORDER_MORTON = 1;
+
+    int version;
+
+    /**
+     * Image size as stored in the header, i.e. without the timepoints appended later (see {@link #fullImageSize()})
+     */
+    final long[] imageSize = new long[ 5 ];
+    final float[] pixelSpacing = new float[ 5 ];
+    int dataType;
+    int compressionType;
+    final byte[] metadata = new byte[ METADATA_SIZE ];
+    final long[] blockSize = new long[ 5 ];
+
+    /**
+     * Cumulative compressed block sizes as stored in the file, i.e. the end of block i relative to the end of the
+     * header. Null if only the fixed portion of the header was read.
+     */
+    long[] blockOffsets;
+
+    /**
+     * Sum of the compressed sizes of all blocks
+     */
+    long compressedSize;
+
+    /**
+     * Number of timepoints appended with KLB.appendTimepoint after the file was written ({@link
+     * #EXTENSION_APPENDED_TIMEPOINT}), which are not included in imageSize and the block offset table
+     */
+    long appendedTimepoints;
+
+    /**
+     * Image size including the appended timepoints, as returned by KLB.readHeader
+     */
+    long[] fullImageSize()
+    {
+        final long[] size = imageSize.clone();
+        size[ 4 ] += appendedTimepoints;
+        return size;
+    }
+
+    /**
+     * Number of blocks along each dimension, in order xyzct
+     */
+    long[] numBlocksPerDim()
+    {
+        final long[] n = new long[ 5 ];
+        for ( int d = 0; d < 5; ++d ) {
+            n[ d ] = (imageSize[ d ] + blockSize[ d ] - 1) / blockSize[ d ];
+        }
+        return n;
+    }
+
+    long numBlocks()
+    {
+        long n = 1;
+        for ( final long i : numBlocksPerDim() ) {
+            n *= i;
+        }
+        return n;
+    }
+
+    /**
+     * Indexes of the blocks in the order they are stored in the file, as klb_image_header::getBlockStorageOrder
+     */
+    int[] storageOrder( final KLB.BlockOrder blockOrder )
+    {
+        final int numBlocks = ( int ) numBlocks();
+        final Integer[] order = new Integer[ numBlocks ];
+        for ( int i = 0; i < numBlocks; ++i ) {
+            order[ i ] = i;
+        }
+        if ( blockOrder == KLB.BlockOrder.MORTON ) {
+            final long[] n = numBlocksPerDim();
+            final long blocksPerVolume = n[ 0 ] * n[ 1 ] * n[ 2 ];
+            final long[] code = new long[ numBlocks ];
+            for ( int i = 0; i < numBlocks; ++i ) {
+                final long xyz = i % blocksPerVolume;
+                code[ i ] = mortonCode( xyz % n[ 0 ], ( xyz / n[ 0 ] ) % n[ 1 ], xyz / ( n[ 0 ] * n[ 1 ] ) );
+            }
+            // (c, t) volume, then Z-order within the volume, then index (grids of more than 2^21 blocks along a dimension)
+            Arrays.sort( order, ( a, b ) -> {
+                final int c = Long.compare( a / blocksPerVolume, b / blocksPerVolume );
+                if ( c != 0 ) {
+                    return c;
+                }
+                final int z = Long.compare( code[ a ], code[ b ] );
+                return z != 0 ? z : Integer.compare( a, b );
+            } );
+        }
+        final int[] result = new int[ numBlocks ];
+        for ( int i = 0; i < numBlocks; ++i ) {
+            result[ i ] = order[ i ];
+        }
+        return result;
+    }
+
+    /**
+     * Interleaves the lowest 21 bits of the block coordinates along x, y and z (x in the lowest bit)
+     */
+    private static long mortonCode( final long x, final long y, final long z )
+    {
+        long code = 0;
+        for ( int bit = 0; bit < 21; ++bit ) {
+            code |= ( ( x >> bit ) & 1 ) << ( 3 * bit );
+            code |= ( ( y >> bit ) & 1 ) << ( 3 * bit + 1 );
+            code |= ( ( z >> bit ) & 1 ) << ( 3 * bit + 2 );
+        }
+        return code;
+    }
+
+    /**
+     * Size of the header in bytes, i.e. file offset of the first block
+     */
+    long sizeInBytes()
+    {
+        return FIXED_SIZE + 8 * numBlocks();
+    }
+
+    int bytesPerPixel()
+    {
+        return bytesPerPixel( dataType );
+    }
+
+    /**
+     * Reads the header of a KLB file.
+     *
+     * @param file         KLB file
+     * @param blockOffsets whether to read the entire block offset table (otherwise, only its last element is read to
+     *                     determine the compressed size)
+     */
+    static KlbFileHeader read( final Path file, final boolean blockOffsets ) throws IOException
+    {
+        try ( final FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) ) {
+            return read( channel, blockOffsets );
+        }
+    }
+
+    static KlbFileHeader read( final FileChannel channel, final boolean blockOffsets ) throws IOException
+    {
+        final ByteBuffer fixed = ByteBuffer.allocate( FIXED_SIZE ).order( BYTE_ORDER );
+        readFully( channel, fixed, 0 );
+        fixed.flip();
+
+        final KlbFileHeader header = new KlbFileHeader();
+        header.version = fixed.get() & 0xff;
+        for ( int d = 0; d < 5; ++d ) {
+            header.imageSize[ d ] = fixed.getInt() & 0xffffffffL;
+        }
+        for ( int d = 0; d < 5; ++d ) {
+            header.pixelSpacing[ d ] = fixed.getFloat();
+        }
+        header.dataType = fixed.get() & 0xff;
+        header.compressionType = fixed.get() & 0xff;
+        fixed.get( header.metadata );
+        for ( int d = 0; d < 5; ++d ) {
+            header.blockSize[ d ] = fixed.getInt() & 0xffffffffL;
+            if ( header.blockSize[ d ] == 0 ) {
+                throw new IOException( "Invalid KLB header: block size is zero." );
+            }
+        }
+        if ( bytesPerPixel( header.dataType ) == 0 ) {
+            throw new IOException( String.format( "Unknown or unsupported KLB data type %d.", header.dataType ) );
+        }
+
+        final long numBlocks = header.numBlocks();
+        if ( numBlocks < 1 || numBlocks > Integer.MAX_VALUE / 8 ) {
+            throw new IOException( "Invalid KLB header: unexpected number of blocks." );
+        }
+        if ( blockOffsets ) {
+            final ByteBuffer offsets = ByteBuffer.allocate( 8 * ( int ) numBlocks ).order( BYTE_ORDER );
+            readFully( channel, offsets, FIXED_SIZE );
+            offsets.flip();
+            header.blockOffsets = new long[ ( int ) numBlocks ];
+            offsets.asLongBuffer().get( header.blockOffsets );
+            header.compressedSize = header.blockOffsets[ header.blockOffsets.length - 1 ];
+        } else {
+            final ByteBuffer last = ByteBuffer.allocate( 8 ).order( BYTE_ORDER );
+            readFully( channel, last, FIXED_SIZE + 8 * (numBlocks - 1) );
+            header.compressedSize = last.getLong( 0 );
+        }
+        header.appendedTimepoints = header.findAppendedTimepoints( channel ).size();
+        return header;
+    }
+
+    /**
+     * Serializes the header including the block offset table (which has to be set), as written by the native library
+     */
+    ByteBuffer toByteBuffer()
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate( ( int ) sizeInBytes() ).order( BYTE_ORDER );
+        buffer.put( ( byte ) version );
+        for ( int d = 0; d < 5; ++d ) {
+            buffer.putInt( ( int ) imageSize[ d ] );
+        }
+        for ( int d = 0; d < 5; ++d ) {
+            buffer.putFloat( pixelSpacing[ d ] );
+        }
+        buffer.put( ( byte ) dataType );
+        buffer.put( ( byte ) compressionType );
+        buffer.put( metadata );
+        for ( int d = 0; d < 5; ++d ) {
+            buffer.putInt( ( int ) blockSize[ d ] );
+        }
+        for ( final long offset : blockOffsets ) {
+            buffer.putLong( offset );
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads the payload of the extension with the given tag, or returns null if the file does not have it.
+     * Extensions are stored after the last block as: int tag, long payload size in bytes, payload.
+     */
+    ByteBuffer readExtension( final FileChannel channel, final int tag ) throws IOException
+    {
+        final List< long[] > extensions = findExtensions( channel, tag );
+        if ( extensions.isEmpty() ) {
+            return null;
+        }
+        final long size = extensions.get( 0 )[ 1 ];
+        if ( size > Integer.MAX_VALUE ) {
+            throw new IOException( "Invalid KLB header extension." );
+        }
+        final ByteBuffer payload = ByteBuffer.allocate( ( int ) size ).order( BYTE_ORDER );
+        readFully( channel, payload, extensions.get( 0 )[ 0 ] );
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Returns the position and size in bytes of the payload of all complete extensions with the given tag, in the
+     * order they are stored.
+     */
+    List< long[] > findExtensions( final FileChannel channel, final int tag ) throws IOException
+    {
+        final List< long[] > extensions = new ArrayList< long[] >();
+        if ( version < VERSION_EXTENSIONS ) {
+            return extensions;
+        }
+        final ByteBuffer extensionHeader = ByteBuffer.allocate( 4 + 8 ).order( BYTE_ORDER );
+        final long fileSize = channel.size();
+        long position = sizeInBytes() + compressedSize;
+        while ( position + extensionHeader.capacity() <= fileSize ) {
+            extensionHeader.clear();
+            readFully( channel, extensionHeader, position );
+            final long size = extensionHeader.getLong( 4 );
+            position += extensionHeader.capacity();
+            if ( size < 0 || position + size > fileSize ) {
+                break;// interrupted append or update
+            }
+            if ( extensionHeader.getInt( 0 ) == tag ) {
+                extensions.add( new long[]{ position, size } );
+            }
+            position += size;
+        }
+        return extensions;
+    }
+
+    /**
+     * Returns the position and size in bytes of the payload of the appended timepoints that readers of the native
+     * library include, in the order of their timepoints. As there, the first extension that does not hold the next
+     * timepoint or is incomplete (e.g. an interrupted append) ends the series.
+     */
+    List< long[] > findAppendedTimepoints( final FileChannel channel ) throws IOException
+    {
+        final List< long[] > timepoints = new ArrayList< long[] >();
+        if ( blockSize[ 4 ] != 1 || imageSize[ 4 ] == 0 ) {
+            return timepoints;
+        }
+        final long blocksPerTimepoint = numBlocks() / imageSize[ 4 ];
+        final long indexSize = 8 + blocksPerTimepoint * (8 + 1 + 24 + 4);
+        final ByteBuffer index = ByteBuffer.allocate( 8 ).order( BYTE_ORDER );
+        final ByteBuffer lastBlockEnd = ByteBuffer.allocate( 8 ).order( BYTE_ORDER );
+        for ( final long[] extension : findExtensions( channel, EXTENSION_APPENDED_TIMEPOINT ) ) {
+            if ( extension[ 1 ] < indexSize ) {
+                break;
+            }
+            index.clear();
+            readFully( channel, index, extension[ 0 ] );
+            lastBlockEnd.clear();
+            readFully( channel, lastBlockEnd, extension[ 0 ] + 8 + 8 * (blocksPerTimepoint - 1) );
+            if ( (index.getInt( 0 ) & 0xffffffffL) != imageSize[ 4 ] + timepoints.size() || (index.getInt( 4 ) & 0xffffffffL) != blocksPerTimepoint
+                    || lastBlockEnd.getLong( 0 ) < 0 || indexSize + lastBlockEnd.getLong( 0 ) > extension[ 1 ] ) {
+                break;
+            }
+            timepoints.add( extension );
+        }
+        return timepoints;
+    }
+
+    static void readFully( final FileChannel channel, final ByteBuffer dst, long position ) throws IOException
+    {
+        while ( dst.hasRemaining() ) {
+            final int n = channel.read( dst, position );
+            if ( n < 0 ) {
+                throw new EOFException( "Truncated KLB header." );
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * Fills a KLB.Header, as returned by KLB.readHeader
+     */
+    < T extends RealType< T > & NativeType< T > > KLB< T >.Header toHeader( final KLB< T > klb ) throws IOException
+    {
+        final KLB< T >.Header header = klb.new Header();
+        System.arraycopy( fullImageSize(), 0, header.imageSize, 0, 5 );
+        System.arraycopy( blockSize, 0, header.blockSize, 0, 5 );
+        System.arraycopy( pixelSpacing, 0, header.pixelSpacing, 0, 5 );
+        header.dataType = newDataType( dataType );
+        if ( header.dataType == null ) {
+            throw new IOException( "Unknown or unsupported KLB data type." );
+        }
+        if ( compressionType >= KLB.CompressionType.values().length ) {
+            throw new IOException( "Unknown or unsupported compression type." );
+        }
+        header.compressionType = KLB.CompressionType.values()[ compressionType ];
+        header.metadata = metadata.clone();
+        return header;
+    }
+
+    /**
+     * Size in bytes of a pixel of the given data type enum value of the native library, or 0 if unknown.
+     */
+    static int bytesPerPixel( final int dataType )
+    {
+        switch ( dataType ) {
+            case 0:
+            case 4:
+                return 1;
+            case 1:
+            case 5:
+                return 2;
+            case 2:
+            case 6:
+            case 8:
+                return 4;
+            case 3:
+            case 7:
+            case 9:
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Value of the data type enum of the native library for an imglib2 type
+     */
+    static int dataType( final NativeType< ? > dataType ) throws IOException
+    {
+        if ( dataType instanceof UnsignedByteType )
+            return 0;
+        else if ( dataType instanceof UnsignedShortType )
+            return 1;
+        else if ( dataType instanceof UnsignedIntType )
+            return 2;
+        else if ( dataType instanceof UnsignedLongType )
+            return 3;
+        else if ( dataType instanceof ByteType )
+            return 4;
+        else if ( dataType instanceof ShortType )
+            return 5;
+        else if ( dataType instanceof IntType )
+            return 6;
+        else if ( dataType instanceof LongType )
+            return 7;
+        else if ( dataType instanceof FloatType )
+            return 8;
+        else if ( dataType instanceof DoubleType )
+            return 9;
+        else
+            throw new IOException( "Unknown or unsupported data type" );
+    }
+
+    /**
+     * Instantiates the imglib2 type for a value of the data type enum of the native library, or returns null if
+     * unknown.
+     */
+    @SuppressWarnings( "unchecked" )
+    static < T extends RealType< T > & NativeType< T > > T newDataType( final int dataType )
+    {
+        switch ( dataType ) {
+            case 0:
+                return ( T ) new UnsignedByteType();
+            case 1:
+                return ( T ) new UnsignedShortType();
+            case 2:
+                return ( T ) new UnsignedIntType();
+            case 3:
+                return ( T ) new UnsignedLongType();
+            case 4:
+                return ( T ) new ByteType();
+            case 5:
+                return ( T ) new ShortType();
+            case 6:
+                return ( T ) new IntType();
+            case 7:
+                return ( T ) new LongType();
+            case 8:
+                return ( T ) new FloatType();
+            case 9:
+                return ( T ) new DoubleType();
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package org.janelia.simview.klb;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Implementation of {@link KLB#writeFull(RandomAccessibleInterval, String, float[], long[], KLB.CompressionType, byte[], KlbProgress)}.
+ * <p>
+ * Each task pulls the pixels of one KLB block from the source, so lazily computed views are evaluated block by block
+ * and in parallel, and compresses it with {@link KLB#compressBlock(byte[], int)}. The calling thread writes the
+ * compressed blocks in file order (see {@link KLB#setBlockOrder(KLB.BlockOrder)}) and submits the next block whenever
+ * one was written; only a few blocks per thread are in flight, so memory use does not depend on the size of the image.
+ * Block statistics, flags and checksums are stored as by the native writer.
+ */
+final class KlbIntervalWriter
+{
+    /**
+     * Default block size in bytes along xyzct, divided by the bytes per pixel as in
+     * klb_image_header::setOptimalBlockSizeInBytes
+     */
+    private static final long[] DEFAULT_BLOCK_BYTES = { 192, 192, 16, 1, 1 };
+
+    /**
+     * Fills a block with the pixels of the image from min to max (inclusive, in order xyzct), x fastest, in native byte
+     * order
+     */
+    interface BlockSource
+    {
+        void fill( final long[] min, final long[] max, final ByteBuffer pixels ) throws IOException;
+    }
+
+    private KlbIntervalWriter()
+    {
+    }
+
+    static < T extends RealType< T > & NativeType< T > > void write( final KLB< T > klb, final RandomAccessibleInterval< T > img, final String filePath, final float[] pixelSpacing, final long[] blockSize, final KLB.CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
+            throws IOException
+    {
+        final int n = img.numDimensions();
+        if ( n > 5 ) {
+            throw new IOException( String.format( "Cannot write a %d-dimensional image to KLB file %s.", n, filePath ) );
+        }
+        final long[] imageSize = { 1, 1, 1, 1, 1 };
+        for ( int d = 0; d < n; ++d ) {
+            imageSize[ d ] = img.dimension( d );
+        }
+        final int dataType = KlbFileHeader.dataType( Views.flatIterable( img ).firstElement() );
+        write( klb, ( min, max, pixels ) -> {
+            final long[] intervalMin = new long[ n ], intervalMax = new long[ n ];
+            for ( int d = 0; d < n; ++d ) {
+                intervalMin[ d ] = img.min( d ) + min[ d ];
+                intervalMax[ d ] = img.min( d ) + max[ d ];
+            }
+            put( Views.flatIterable( Views.interval( img, intervalMin, intervalMax ) ).cursor(), dataType, pixels );
+        }, imageSize, dataType, filePath, pixelSpacing, blockSize, compressionType, metadata, progress );
+    }
+
+    /**
+     * @param dataType value of the data type enum of the native library
+     */
+    static void write( final KLB< ? > klb, final BlockSource source, final long[] imageSize, final int dataType, final String filePath, final float[] pixelSpacing, final long[] blockSize, final KLB.CompressionType compressionType, final byte[] metadata, final KlbProgress progress )
+            throws IOException
+    {
+        write( klb, source, imageSize, dataType, filePath, pixelSpacing, blockSize, compressionType, metadata, progress, null );
+    }
+
+    /**
+     * @param dataType value of the data type enum of the native library
+     * @param executor runs the block tasks, e.g. to share a pool between several files. If null, a pool of
+     *                 {@link KLB.WriteOptions#getNumThreads()} threads is created for this file
+     */
+    static void write( final KLB< ? > klb, final BlockSource source, final long[] imageSize, final int dataType, final String filePath, final float[] pixelSpacing, final long[] blockSize, final KLB.CompressionType compressionType, final byte[] metadata, final KlbProgress progress, final ExecutorService executor )
+            throws IOException
+    {
+        final KLB.WriteOptions options = klb.getWriteOptions();
+        final boolean morton = options.getBlockOrder() == KLB.BlockOrder.MORTON;
+        final KlbFileHeader header = new KlbFileHeader();
+        header.version = morton ? KlbFileHeader.VERSION_BLOCK_ORDER : options.getConstantBlocks() ? KlbFileHeader.VERSION_BLOCK_FLAGS : KlbFileHeader.VERSION_EXTENSIONS;
+        header.dataType = dataType;
+        header.compressionType = ( compressionType == null ? KLB.CompressionType.BZIP2 : compressionType ).ordinal();
+        final int bytesPerPixel = header.bytesPerPixel();
+        long blockBytes = bytesPerPixel;
+        for ( int d = 0; d < 5; ++d ) {
+            header.imageSize[ d ] = imageSize[ d ];
+            header.pixelSpacing[ d ] = pixelSpacing == null ? 1 : pixelSpacing[ d ];
+            header.blockSize[ d ] = blockSize == null ? Math.max( DEFAULT_BLOCK_BYTES[ d ] / bytesPerPixel, 1 ) : blockSize[ d ];
+            if ( imageSize[ d ] < 1 || imageSize[ d ] > 0xffffffffL || header.blockSize[ d ] < 1 || header.blockSize[ d ] > 0xffffffffL ) {
+                throw new IOException( String.format( "Invalid image size %s or block size %s for KLB file %s.", Arrays.toString( imageSize ), Arrays.toString( blockSize ), filePath ) );
+            }
+            blockBytes *= Math.min( header.blockSize[ d ], imageSize[ d ] );
+        }
+        if ( metadata != null ) {
+            System.arraycopy( metadata, 0, header.metadata, 0, Math.min( metadata.length, KlbFileHeader.METADATA_SIZE ) );
+        }
+        final long numBlocksL = header.numBlocks();
+        if ( numBlocksL > Integer.MAX_VALUE / 8 || blockBytes > Integer.MAX_VALUE ) {
+            throw new IOException( String.format( "Block size %s is too small or too large for an image of size %s.", Arrays.toString( header.blockSize ), Arrays.toString( imageSize ) ) );
+        }
+        final int numBlocks = ( int ) numBlocksL;
+        header.blockOffsets = new long[ numBlocks ];
+        final ByteBuffer stats = ByteBuffer.allocate( KlbExtractor.STATS_SIZE * numBlocks ).order( KlbFileHeader.BYTE_ORDER );
+        final ByteBuffer checksums = ByteBuffer.allocate( 4 * numBlocks ).order( KlbFileHeader.BYTE_ORDER );
+        final byte[] flags = new byte[ numBlocks ];
+
+        final long[] blocksPerDim = header.numBlocksPerDim();
+        final int[] storageOrder = header.storageOrder( options.getBlockOrder() );
+        final int numThreads = Math.max( 1, Math.min( options.getNumThreads(), numBlocks ) );
+        // blocks in flight: at least one per thread, more if they fit in the write buffer
+        final int window = ( int ) Math.max( numThreads, Math.min( 4L * numThreads, options.getWriteBufferSize() / blockBytes ) );
+        final ExecutorService taskExecutor = executor == null ? Executors.newFixedThreadPool( numThreads ) : executor;
+        final ArrayDeque< Future< byte[] > > pending = new ArrayDeque< Future< byte[] > >();
+        if ( progress != null ) {
+            progress.begin();
+        }
+        try ( final FileChannel dst = FileChannel.open( Paths.get( filePath ), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ) ) {
+            dst.position( header.sizeInBytes() );
+            int next = 0;
+            for ( int b = 0; b < numBlocks; ++b ) {
+                for ( ; next < numBlocks && pending.size() < window; ++next ) {
+                    final int block = storageOrder[ next ];
+                    pending.add( taskExecutor.submit( () -> {
+                        final long[] min = new long[ 5 ], max = new long[ 5 ];
+                        long index = block, numBytes = bytesPerPixel;
+                        for ( int d = 0; d < 5; ++d ) {
+                            min[ d ] = ( index % blocksPerDim[ d ] ) * header.blockSize[ d ];
+                            max[ d ] = Math.min( min[ d ] + header.blockSize[ d ], imageSize[ d ] ) - 1;
+                            index /= blocksPerDim[ d ];
+                            numBytes *= max[ d ] - min[ d ] + 1;
+                        }
+                        final byte[] pixels = new byte[ ( int ) numBytes ];
+                        source.fill( min, max, ByteBuffer.wrap( pixels ).order( ByteOrder.nativeOrder() ) );
+                        return compress( klb, pixels, header, stats, flags, checksums, block );
+                    } ) );
+                }
+                if ( progress != null && progress.isCancelled() ) {
+                    throw new InterruptedIOException( "KLB operation was cancelled." );
+                }
+                final byte[] compressed = pending.remove().get();
+                KlbExtractor.writeFully( dst, ByteBuffer.wrap( compressed ) );
+                header.blockOffsets[ storageOrder[ b ] ] = compressed.length;
+                if ( progress != null ) {
+                    progress.update( b + 1, numBlocks );
+                }
+            }
+
+            KlbExtractor.writeExtension( dst, KlbFileHeader.EXTENSION_BLOCK_STATS, stats );
+            if ( header.version >= KlbFileHeader.VERSION_BLOCK_FLAGS ) {
+                KlbExtractor.writeExtension( dst, KlbFileHeader.EXTENSION_BLOCK_FLAGS, ByteBuffer.wrap( flags ) );
+            }
+            KlbExtractor.writeExtension( dst, KlbFileHeader.EXTENSION_BLOCK_CHECKSUMS, checksums );
+            if ( morton ) {
+                final ByteBuffer order = ByteBuffer.allocate( 8 ).order( KlbFileHeader.BYTE_ORDER );
+                order.putInt( KlbFileHeader.BLOCK_ORDER_MORTON ).putInt( 0 );
+                KlbExtractor.writeExtension( dst, KlbFileHeader.EXTENSION_BLOCK_ORDER, order );
+            }
+            // the table holds the end of each block as if they were stored in index order
+            for ( int b = 1; b < numBlocks; ++b ) {
+                header.blockOffsets[ b ] += header.blockOffsets[ b - 1 ];
+            }
+            dst.position( 0 );
+            KlbExtractor.writeFully( dst, header.toByteBuffer() );
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while writing " + filePath );
+        } catch ( final ExecutionException e ) {
+            throw new IOException( String.format( "Failed to write %s.", filePath ), e.getCause() );
+        } finally {
+            if ( executor == null ) {
+                taskExecutor.shutdownNow();
+            } else {
+                for ( final Future< byte[] > task : pending ) {
+                    task.cancel( true );
+                }
+            }
+            if ( progress != null ) {
+                progress.end();
+            }
+        }
+    }
+
+    /**
+     * Compresses a block (or keeps its value only, if it is constant and the header version allows it) and records its
+     * statistics, flags and checksum
+     */
+    private static byte[] compress( final KLB< ? > klb, final byte[] pixels, final KlbFileHeader header, final ByteBuffer stats, final byte[] flags, final ByteBuffer checksums, final int block )
+            throws IOException
+    {
+        KlbExtractor.putStats( pixels, header.dataType, stats, block );
+        final byte[] compressed;
+        if ( header.version >= KlbFileHeader.VERSION_BLOCK_FLAGS && KlbExtractor.isConstant( pixels, header.bytesPerPixel() ) ) {
+            flags[ block ] = KlbFileHeader.BLOCK_FLAG_CONSTANT;
+            compressed = Arrays.copyOf( pixels, header.bytesPerPixel() );
+        } else {
+            compressed = klb.compressBlock( pixels, header.compressionType );
+        }
+        final CRC32 crc = new CRC32();
+        crc.update( compressed );
+        checksums.putInt( 4 * block, ( int ) crc.getValue() );
+        return compressed;
+    }
+
+    /**
+     * Copies the pixels of a flat iterable cursor into a buffer, in the representation of the given data type enum
+     * value of the native library
+     */
+    private static void put( final Cursor< ? extends RealType< ? > > cursor, final int dataType, final ByteBuffer pixels )
+    {
+        if ( dataType == 8 ) {
+            while ( cursor.hasNext() ) {
+                pixels.putFloat( cursor.next().getRealFloat() );
+            }
+            return;
+        }
+        if ( dataType == 9 ) {
+            while ( cursor.hasNext() ) {
+                pixels.putDouble( cursor.next().getRealDouble() );
+            }
+            return;
+        }
+        // integer types, stored with their bit pattern (getRealDouble would lose precision for 64 bit types)
+        switch ( KlbFileHeader.bytesPerPixel( dataType ) ) {
+            case 1:
+                while ( cursor.hasNext() ) {
+                    pixels.put( ( byte ) ( ( IntegerType< ? > ) cursor.next() ).getIntegerLong() );
+                }
+                break;
+            case 2:
+                while ( cursor.hasNext() ) {
+                    pixels.putShort( ( short ) ( ( IntegerType< ? > ) cursor.next() ).getIntegerLong() );
+                }
+                break;
+            case 4:
+                while ( cursor.hasNext() ) {
+                    pixels.putInt( ( int ) ( ( IntegerType< ? > ) cursor.next() ).getIntegerLong() );
+                }
+                break;
+            default:
+                while ( cursor.hasNext() ) {
+                    pixels.putLong( ( ( IntegerType< ? > ) cursor.next() ).getIntegerLong() );
+                }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package org.janelia.simview.klb;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.NativeImg;
+import net.imglib2.img.basictypeaccess.ByteAccess;
+import net.imglib2.img.basictypeaccess.DoubleAccess;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.IntAccess;
+import net.imglib2.img.basictypeaccess.LongAccess;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.list.ListImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.NativeTypeFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Image stored off-heap in direct ByteBuffers (chunks), for {@link KLB#readFullOffHeap(String, KlbProgress)}. The
+ * native library decodes the blocks straight into the chunks, which are then wrapped as the cells of a CellImg
+ * without copying.
+ * <p>
+ * A single direct ByteBuffer cannot exceed 2 GB, so images larger than maxChunkBytes are split along the slowest
+ * dimension that has to be split: each chunk holds whole image rows (x lines) and the chunks follow each other in the
+ * order of the image, so that byte i of the image is in chunk
+ * (i / chunkPeriodBytes) * chunksPerPeriod + (i % chunkPeriodBytes) / chunkSizeBytes.
+ */
+final class KlbOffHeapImg< T extends RealType< T > & NativeType< T > >
+{
+    private final long[] imageSize;
+    private final T type;
+    private final int[] cellSize;
+    private final ByteBuffer[] chunks;
+    private final long chunkSizeBytes, chunkPeriodBytes;
+
+    /**
+     * Allocates the chunks of an image
+     *
+     * @param imageSize     image size in order xyzct
+     * @param type          pixel type
+     * @param maxChunkBytes upper limit of the size of each chunk, at most Integer.MAX_VALUE
+     * @throws IOException if a single image row does not fit in a chunk
+     */
+    KlbOffHeapImg( final long[] imageSize, final T type, final long maxChunkBytes ) throws IOException
+    {
+        this.type = type;
+        final int bytesPerPixel = type.getBitsPerPixel() / 8;
+        int n = 0;
+        for ( final long d : imageSize ) {
+            if ( d > 1 ) {
+                n++;
+            }
+        }
+        this.imageSize = new long[ n ];
+        n = 0;
+        for ( final long d : imageSize ) {
+            if ( d > 1 ) {
+                this.imageSize[ n++ ] = d;
+            }
+        }
+
+        // first dimension m at which the image no longer fits in a chunk: cells hold all of the faster dimensions,
+        // as much of m as fits and a single slice of the slower ones
+        cellSize = new int[ n ];
+        long sliceBytes = bytesPerPixel;
+        int m = 0;
+        while ( m < n && sliceBytes * this.imageSize[ m ] <= maxChunkBytes ) {
+            cellSize[ m ] = ( int ) this.imageSize[ m ];
+            sliceBytes *= this.imageSize[ m++ ];
+        }
+        if ( m == n ) {
+            chunkSizeBytes = chunkPeriodBytes = sliceBytes;
+        } else {
+            cellSize[ m ] = ( int ) ( maxChunkBytes / sliceBytes );
+            for ( int d = m + 1; d < n; ++d ) {
+                cellSize[ d ] = 1;
+            }
+            chunkSizeBytes = cellSize[ m ] * sliceBytes;
+            chunkPeriodBytes = this.imageSize[ m ] * sliceBytes;
+        }
+        if ( chunkSizeBytes == 0 || chunkSizeBytes % ( imageSize[ 0 ] * bytesPerPixel ) != 0 ) {
+            throw new IOException( String.format( "Image rows of %d pixels exceed the maximum chunk size of %d bytes.", imageSize[ 0 ], maxChunkBytes ) );
+        }
+
+        long numChunks = 1;
+        for ( int d = m; d < n; ++d ) {
+            numChunks *= ( this.imageSize[ d ] + cellSize[ d ] - 1 ) / cellSize[ d ];
+        }
+        if ( numChunks > Integer.MAX_VALUE ) {
+            throw new IOException( String.format( "Image of size %s needs too many chunks.", Arrays.toString( imageSize ) ) );
+        }
+        chunks = new ByteBuffer[ ( int ) numChunks ];
+        final int chunksPerPeriod = ( int ) ( ( chunkPeriodBytes + chunkSizeBytes - 1 ) / chunkSizeBytes );
+        for ( int i = 0; i < chunks.length; ++i ) {
+            final long bytes = i % chunksPerPeriod < chunksPerPeriod - 1 ? chunkSizeBytes : chunkPeriodBytes - ( chunksPerPeriod - 1 ) * chunkSizeBytes;
+            chunks[ i ] = ByteBuffer.allocateDirect( ( int ) bytes ).order( ByteOrder.nativeOrder() );
+        }
+    }
+
+    ByteBuffer[] getChunks()
+    {
+        return chunks;
+    }
+
+    long getChunkSizeBytes()
+    {
+        return chunkSizeBytes;
+    }
+
+    long getChunkPeriodBytes()
+    {
+        return chunkPeriodBytes;
+    }
+
+    /**
+     * Wraps the chunks as the cells of a CellImg over the squeezed image dimensions (dimensions of size 1 are
+     * dropped, as for {@link KLB#readFull(String)}). The cells are in the same order as the chunks.
+     */
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    Img< T > getImg()
+    {
+        final CellGrid grid = new CellGrid( imageSize, cellSize );
+        final long[] gridSize = grid.getGridDimensions();
+        final List< Cell< Object > > cells = new ArrayList< Cell< Object > >( chunks.length );
+        final long[] cellMin = new long[ imageSize.length ];
+        final int[] cellDims = new int[ imageSize.length ];
+        for ( int i = 0; i < chunks.length; ++i ) {
+            long index = i;
+            for ( int d = 0; d < imageSize.length; ++d ) {
+                cellMin[ d ] = ( index % gridSize[ d ] ) * cellSize[ d ];
+                cellDims[ d ] = ( int ) Math.min( cellSize[ d ], imageSize[ d ] - cellMin[ d ] );
+                index /= gridSize[ d ];
+            }
+            cells.add( new Cell< Object >( cellDims.clone(), cellMin.clone(), newAccess( chunks[ i ] ) ) );
+        }
+
+        final CellImg img = new CellImg( new CellImgFactory< T >( cellSize ), grid, new ListImg< Cell< Object > >( cells, gridSize ), new Fraction() );
+        img.setLinkedType( ( ( NativeTypeFactory ) type.getNativeTypeFactory() ).createLinkedType( ( NativeImg ) img ) );
+        return img;
+    }
+
+    private Object newAccess( final ByteBuffer chunk )
+    {
+        switch ( type.getBitsPerPixel() ) {
+            case 8:
+                return new BufferByteAccess( chunk );
+            case 16:
+                return new BufferShortAccess( chunk.asShortBuffer() );
+            case 32:
+                return type instanceof FloatType ? new BufferFloatAccess( chunk.asFloatBuffer() ) : new BufferIntAccess( chunk.asIntBuffer() );
+            default:
+                return type instanceof DoubleType ? new BufferDoubleAccess( chunk.asDoubleBuffer() ) : new BufferLongAccess( chunk.asLongBuffer() );
+        }
+    }
+
+    private static final class BufferByteAccess implements ByteAccess
+    {
+        private final ByteBuffer buffer;
+
+        BufferByteAccess( final ByteBuffer buffer )
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public byte getValue( final int index )
+        {
+            return buffer.get( index );
+        }
+
+        @Override
+        public void setValue( final int index, final byte value )
+        {
+            buffer.put( index, value );
+        }
+    }
+
+    private static final class BufferShortAccess implements ShortAccess
+    {
+        private final ShortBuffer buffer;
+
+        BufferShortAccess( final ShortBuffer buffer )
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public short getValue( final int index )
+        {
+            return buffer.get( index );
+        }
+
+        @Override
+        public void setValue( final int index, final short value )
+        {
+            buffer.put( index, value );
+        }
+    }
+
+    private static final class BufferIntAccess implements IntAccess
+    {
+        private final IntBuffer buffer;
+
+        BufferIntAccess( final IntBuffer buffer )
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int getValue( final int index )
+        {
+            return buffer.get( index );
+        }
+
+        @Override
+        public void setValue( final int index, final int value )
+        {
+            buffer.put( index, value );
+        }
+    }
+
+    private static final class BufferLongAccess implements LongAccess
+    {
+        private final LongBuffer buffer;
+
+        BufferLongAccess( final LongBuffer buffer )
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public long getValue( final int index )
+        {
+            return buffer.get( index );
+        }
+
+        @Override
+        public void setValue( final int index, final long value )
+        {
+            buffer.put( index, value );
+        }
+    }
+
+    private static final class BufferFloatAccess implements FloatAccess
+    {
+        private final FloatBuffer buffer;
+
+        BufferFloatAccess( final FloatBuffer buffer )
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public float getValue( final int index )
+        {
+            return buffer.get( index );
+        }
+
+        @Override
+        public void setValue( final int index, final float value )
+        {
+            buffer.put( index, value );
+        }
+    }
+
+    private static final class BufferDoubleAccess implements DoubleAccess
+    {
+        private final DoubleBuffer buffer;
+
+        BufferDoubleAccess( final DoubleBuffer buffer )
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public double getValue( final int index )
+        {
+            return buffer.get( index );
+        }
+
+        @Override
+        public void setValue( final int index, final double value )
+        {
+            buffer.put( index, value );
+        }
+    }
+}
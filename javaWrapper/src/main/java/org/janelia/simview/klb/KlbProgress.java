@@ -0,0 +1,181 @@
+package org.janelia.simview.klb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress report and cancellation token for a single (potentially long-running) KLB read or write.
+ * <p>
+ * The native worker threads update the number of processed blocks after each block and check for a cancellation
+ * request before starting the next one, so a cancelled operation stops promptly and releases its buffers. The
+ * operation then fails with an {@link java.io.InterruptedIOException}. Interrupting the thread that started the
+ * operation has the same effect as calling {@link #cancel()}.
+ * <p>
+ * Operations that are composed of several native calls (e.g. reading into a CellImg) accumulate their progress in
+ * the same instance, hence the total number of blocks may grow while such an operation advances.
+ * <p>
+ * An instance should only be passed to one operation at a time.
+ */
+public class KlbProgress
+{
+    public interface Listener
+    {
+        /**
+         * Called from a background thread whenever the number of processed blocks changed, and always once more from
+         * the thread that runs the operation when it finished (successfully or not), i.e. after each of its native
+         * calls. Calls never overlap, and the KlbProgress is not locked while the listener runs.
+         *
+         * @param blocksDone  number of KLB blocks de-/compressed so far
+         * @param blocksTotal number of KLB blocks the operation(s) started so far have to process
+         */
+        void progress( final long blocksDone, final long blocksTotal );
+    }
+
+    /**
+     * Interval at which the native status is polled to notify the listener and to check for thread interruption
+     */
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private static final ScheduledExecutorService POLLER = Executors.newSingleThreadScheduledExecutor( r -> {
+        final Thread t = new Thread( r, "KLB progress" );
+        t.setDaemon( true );
+        return t;
+    } );
+
+    // Layout of the status block shared with the native library (struct klb_task_status), in native byte order
+    private static final int CANCEL_OFFSET = 0;
+    private static final int BLOCKS_DONE_OFFSET = 8;
+    private static final int BLOCKS_TOTAL_OFFSET = 16;
+    private static final int STATUS_SIZE = 24;
+
+    private final ByteBuffer status = ByteBuffer.allocateDirect( STATUS_SIZE ).order( ByteOrder.nativeOrder() );
+    private final Listener listener;
+    private volatile boolean cancelled = false;
+
+    // progress of previous native calls of a composed operation
+    private long previousBlocksDone = 0, previousBlocksTotal = 0;
+    private long lastReportedDone = -1, lastReportedTotal = -1;// guarded by listenerLock
+    private final Object listenerLock = new Object();
+    private Thread caller;
+    private ScheduledFuture< ? > poll;
+
+    public KlbProgress()
+    {
+        this( null );
+    }
+
+    /**
+     * @param listener notified about progress, see {@link Listener#progress(long, long)}, can be null
+     */
+    public KlbProgress( final Listener listener )
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Request the operation to stop. Workers finish the block they are currently processing and then return.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+        status.putInt( CANCEL_OFFSET, 1 );
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    public synchronized long getBlocksDone()
+    {
+        return previousBlocksDone + status.getLong( BLOCKS_DONE_OFFSET );
+    }
+
+    public synchronized long getBlocksTotal()
+    {
+        return previousBlocksTotal + status.getLong( BLOCKS_TOTAL_OFFSET );
+    }
+
+    /**
+     * Direct buffer holding the status block the native workers update.
+     */
+    ByteBuffer getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * Called by KLB implementations before each native call that reports to this instance.
+     */
+    synchronized void begin()
+    {
+        caller = Thread.currentThread();
+        if ( caller.isInterrupted() ) {
+            cancel();
+        }
+        if ( poll == null ) {
+            poll = POLLER.scheduleWithFixedDelay( this::poll, POLL_INTERVAL_MS, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    /**
+     * Called by KLB implementations after each native call that reported to this instance.
+     */
+    void end()
+    {
+        synchronized ( this ) {
+            if ( poll != null ) {
+                poll.cancel( false );
+                poll = null;
+            }
+            previousBlocksDone += status.getLong( BLOCKS_DONE_OFFSET );
+            previousBlocksTotal += status.getLong( BLOCKS_TOTAL_OFFSET );
+            status.putLong( BLOCKS_DONE_OFFSET, 0 );
+            status.putLong( BLOCKS_TOTAL_OFFSET, 0 );
+            caller = null;
+        }
+        notifyListener( true );
+    }
+
+    /**
+     * Called by operations that are implemented in Java rather than by the native workers, between begin() and end().
+     */
+    void update( final long blocksDone, final long blocksTotal )
+    {
+        status.putLong( BLOCKS_DONE_OFFSET, blocksDone );
+        status.putLong( BLOCKS_TOTAL_OFFSET, blocksTotal );
+    }
+
+    private void poll()
+    {
+        synchronized ( this ) {
+            if ( caller != null && caller.isInterrupted() ) {
+                cancel();
+            }
+        }
+        notifyListener( false );
+    }
+
+    /**
+     * Calls the listener if always is true or the progress changed since the last call. The listener runs outside of
+     * the monitor of this instance (it may call its methods, e.g. cancel), and one call at a time.
+     */
+    private void notifyListener( final boolean always )
+    {
+        if ( listener == null ) {
+            return;
+        }
+        synchronized ( listenerLock ) {
+            final long done = getBlocksDone(), total = getBlocksTotal();
+            if ( always || done != lastReportedDone || total != lastReportedTotal ) {
+                lastReportedDone = done;
+                lastReportedTotal = total;
+                listener.progress( done, total );
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.janelia.simview.klb;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Multiresolution pyramid of a KLB image, as written by {@link KlbPyramidWriter}: level 0 is the original file,
+ * level k is stored in {@link #getLevelFilePath(String, int)}. The downsampling factor of each level is derived from
+ * the pixel spacing in its header relative to level 0.
+ */
+public class KlbPyramid< T extends RealType< T > & NativeType< T > >
+{
+    private final KLB< T > klb;
+    private final List< String > levelPaths = new ArrayList< String >();
+    private final List< KLB< T >.Header > headers = new ArrayList< KLB< T >.Header >();
+
+    /**
+     * Returns the file path of a pyramid level, e.g. img.level1.klb for level 1 of img.klb. Level 0 is the file
+     * itself.
+     */
+    public static String getLevelFilePath( final String filePath, final int level )
+    {
+        if ( level == 0 ) {
+            return filePath;
+        }
+        final String suffix = String.format( ".level%d.klb", level );
+        return filePath.toLowerCase().endsWith( ".klb" ) ? filePath.substring( 0, filePath.length() - 4 ) + suffix : filePath + suffix;
+    }
+
+    /**
+     * Opens the pyramid of a KLB file, i.e. the file itself and all consecutive levels that exist next to it.
+     *
+     * @param klb      KLB implementation used to read headers and data
+     * @param filePath file system path to the KLB file (level 0)
+     * @throws IOException
+     */
+    public KlbPyramid( final KLB< T > klb, final String filePath ) throws IOException
+    {
+        this.klb = klb;
+        for ( int level = 0; level == 0 || new File( getLevelFilePath( filePath, level ) ).exists(); ++level ) {
+            final String levelPath = getLevelFilePath( filePath, level );
+            levelPaths.add( levelPath );
+            headers.add( klb.readHeader( levelPath ) );
+        }
+    }
+
+    public int getNumLevels()
+    {
+        return levelPaths.size();
+    }
+
+    public String getLevelFilePath( final int level )
+    {
+        return levelPaths.get( level );
+    }
+
+    public KLB< T >.Header getHeader( final int level )
+    {
+        return headers.get( level );
+    }
+
+    /**
+     * Downsampling factors of a level relative to level 0, in order xyzct
+     */
+    public long[] getScale( final int level )
+    {
+        final float[] base = headers.get( 0 ).pixelSpacing, spacing = headers.get( level ).pixelSpacing;
+        final long[] scale = new long[ 5 ];
+        for ( int d = 0; d < 5; ++d ) {
+            scale[ d ] = base[ d ] > 0 ? Math.max( 1, Math.round( spacing[ d ] / base[ d ] ) ) : 1;
+        }
+        return scale;
+    }
+
+    /**
+     * Returns the coarsest level whose image size is at least the requested output size in every dimension (level 0
+     * if none is).
+     *
+     * @param outputSize minimum image size, in order xyzct
+     */
+    public int selectLevel( final long[] outputSize )
+    {
+        for ( int level = getNumLevels() - 1; level > 0; --level ) {
+            final long[] size = headers.get( level ).imageSize;
+            boolean sufficient = true;
+            for ( int d = 0; d < outputSize.length; ++d ) {
+                sufficient &= size[ d ] >= Math.min( outputSize[ d ], headers.get( 0 ).imageSize[ d ] );
+            }
+            if ( sufficient ) {
+                return level;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the coarsest level whose pixel spacing does not exceed the requested pixel spacing in any dimension
+     * (level 0 if none does).
+     *
+     * @param maxPixelSpacing coarsest acceptable physical pixel spacing, in order xyzct
+     */
+    public int selectLevel( final float[] maxPixelSpacing )
+    {
+        for ( int level = getNumLevels() - 1; level > 0; --level ) {
+            final float[] spacing = headers.get( level ).pixelSpacing;
+            boolean sufficient = true;
+            for ( int d = 0; d < maxPixelSpacing.length; ++d ) {
+                sufficient &= spacing[ d ] <= maxPixelSpacing[ d ];
+            }
+            if ( sufficient ) {
+                return level;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Read an entire level.
+     */
+    public ImgPlus< T > readFull( final int level ) throws IOException
+    {
+        return klb.readFull( levelPaths.get( level ) );
+    }
+
+    /**
+     * Read a subvolume, given in level 0 coordinates, from the coarsest level that still provides the requested
+     * output size for it.
+     *
+     * @param xyzctMin   lower limit of bounding box subvolume in level 0 coordinates, in order xyzct
+     * @param xyzctMax   upper limit of bounding box subvolume (inclusive) in level 0 coordinates, in order xyzct
+     * @param outputSize minimum size of the returned subvolume, in order xyzct
+     * @return subvolume of the selected level, covering the requested bounding box
+     * @throws IOException
+     */
+    public ImgPlus< T > readROI( final long[] xyzctMin, final long[] xyzctMax, final long[] outputSize )
+            throws IOException
+    {
+        int level = getNumLevels() - 1;
+        for ( ; level > 0; --level ) {
+            final long[] scale = getScale( level );
+            boolean sufficient = true;
+            for ( int d = 0; d < xyzctMin.length; ++d ) {
+                final long roiSize = 1 + xyzctMax[ d ] / scale[ d ] - xyzctMin[ d ] / scale[ d ];
+                sufficient &= roiSize >= Math.min( outputSize[ d ], 1 + xyzctMax[ d ] - xyzctMin[ d ] );
+            }
+            if ( sufficient ) {
+                break;
+            }
+        }
+        return readROI( level, xyzctMin, xyzctMax );
+    }
+
+    /**
+     * Read a subvolume, given in level 0 coordinates, from the given level.
+     *
+     * @param level    pyramid level
+     * @param xyzctMin lower limit of bounding box subvolume in level 0 coordinates, in order xyzct
+     * @param xyzctMax upper limit of bounding box subvolume (inclusive) in level 0 coordinates, in order xyzct
+     * @return subvolume of the level, covering the requested bounding box
+     * @throws IOException
+     */
+    public ImgPlus< T > readROI( final int level, final long[] xyzctMin, final long[] xyzctMax )
+            throws IOException
+    {
+        final long[] scale = getScale( level );
+        final long[] size = headers.get( level ).imageSize;
+        final long[] min = new long[ xyzctMin.length ], max = new long[ xyzctMax.length ];
+        for ( int d = 0; d < min.length; ++d ) {
+            min[ d ] = Math.min( xyzctMin[ d ] / scale[ d ], size[ d ] - 1 );
+            max[ d ] = Math.min( xyzctMax[ d ] / scale[ d ], size[ d ] - 1 );
+        }
+        return klb.readROI( levelPaths.get( level ), min, max );
+    }
+}
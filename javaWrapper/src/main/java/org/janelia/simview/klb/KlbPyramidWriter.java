@@ -0,0 +1,202 @@
+package org.janelia.simview.klb;
+
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Builds a multiresolution pyramid of a KLB image. Each level is downsampled by 2 in x, y and z (dimensions of size 1
+ * are left alone; c and t are never downsampled) and written as a separate KLB file next to the source, named by
+ * {@link KlbPyramid#getLevelFilePath(String, int)}. Levels keep the block size, compression type and metadata of the
+ * source, and their pixel spacing is scaled by the downsampling factor so that readers can recover the level scales.
+ * <p>
+ * Each level is written block by block, in parallel, as by
+ * {@link KLB#writeFull(net.imglib2.RandomAccessibleInterval, String, float[], long[], KLB.CompressionType, byte[], KlbProgress)}:
+ * a block of level k is computed from the region of level k - 1 it covers, which is read from the file written
+ * before (the source for level 1). Since all levels have the same block size, that region is made of at most 2x2x2
+ * whole blocks, so every block is decoded once per level and memory use does not depend on the size of the image.
+ * All levels share one thread pool.
+ */
+public class KlbPyramidWriter< T extends RealType< T > & NativeType< T > >
+{
+    public enum Downsampling
+    {
+        /**
+         * Average of each 2x2x2 neighborhood (rounded for integer types)
+         */
+        MEAN,
+
+        /**
+         * Maximum of each 2x2x2 neighborhood, e.g. to keep sparse bright structures visible at coarse levels
+         */
+        MAX
+    }
+
+    private final KLB< T > klb;
+    private Downsampling downsampling = Downsampling.MEAN;
+
+    public KlbPyramidWriter( final KLB< T > klb )
+    {
+        this.klb = klb;
+    }
+
+    public void setDownsampling( final Downsampling downsampling )
+    {
+        this.downsampling = downsampling;
+    }
+
+    public Downsampling getDownsampling()
+    {
+        return downsampling;
+    }
+
+    /**
+     * Writes all levels until the coarsest one fits into a single KLB block in x, y and z.
+     *
+     * @param filePath file system path to the source KLB file (level 0)
+     * @return file paths of the written levels, starting with level 1
+     * @throws IOException
+     */
+    public List< String > write( final String filePath ) throws IOException
+    {
+        return write( filePath, Integer.MAX_VALUE, null );
+    }
+
+    /**
+     * Writes up to numLevels levels (fewer, if the image cannot be downsampled further).
+     *
+     * @param filePath  file system path to the source KLB file (level 0)
+     * @param numLevels maximum number of levels to write, excluding the source
+     * @param progress  reports progress and allows to cancel, can be null
+     * @return file paths of the written levels, starting with level 1
+     * @throws IOException
+     */
+    public List< String > write( final String filePath, final int numLevels, final KlbProgress progress )
+            throws IOException
+    {
+        final KlbFileHeader source = KlbFileHeader.read( Paths.get( filePath ), false );
+        final KLB< T >.Header header = source.toHeader( klb );
+        long inBlockBytes = source.bytesPerPixel();
+        for ( int d = 0; d < 5; ++d ) {
+            inBlockBytes *= Math.min( source.blockSize[ d ], header.imageSize[ d ] ) * (d < 3 ? 2 : 1);
+        }
+        if ( inBlockBytes > Integer.MAX_VALUE ) {
+            throw new IOException( String.format( "Blocks of %s are too large to build a pyramid.", filePath ) );
+        }
+        // each block task reads its region with a single thread, the tasks run in parallel
+        final KLB< T > reader = klb.with( klb.getReadOptions().withNumThreads( 1 ) );
+
+        final List< String > levelPaths = new ArrayList< String >();
+        long[] size = header.imageSize.clone();// including appended timepoints
+        final float[] pixelSpacing = source.pixelSpacing.clone();
+        String previousPath = filePath;
+        final ExecutorService taskExecutor = Executors.newFixedThreadPool( klb.getWriteOptions().getNumThreads() );
+        try {
+            for ( int level = 1; level <= numLevels && canDownsample( size, source.blockSize ); ++level ) {
+                final long[] inSize = size, levelSize = downsampledSize( size );
+                final int[] factors = factors( size );
+                for ( int d = 0; d < 3; ++d ) {
+                    if ( levelSize[ d ] != size[ d ] ) {
+                        pixelSpacing[ d ] *= 2;
+                    }
+                }
+
+                final String inPath = previousPath, levelPath = KlbPyramid.getLevelFilePath( filePath, level );
+                KlbIntervalWriter.write( klb, ( min, max, pixels ) -> downsample( reader, inPath, inSize, factors, source.dataType, min, max, pixels ),
+                        levelSize, source.dataType, levelPath, pixelSpacing, source.blockSize, header.compressionType, header.metadata, progress, taskExecutor );
+                levelPaths.add( levelPath );
+                previousPath = levelPath;
+                size = levelSize;
+            }
+        } finally {
+            taskExecutor.shutdownNow();
+        }
+        return levelPaths;
+    }
+
+    /**
+     * Computes the pixels of a level from min to max (inclusive, in order xyzct, x fastest) from the region of the
+     * previous level they cover, which is read from inPath.
+     */
+    private void downsample( final KLB< T > reader, final String inPath, final long[] inSize, final int[] factors, final int dataType, final long[] min, final long[] max, final ByteBuffer pixels )
+            throws IOException
+    {
+        final long[] inMin = new long[ 5 ], inMax = new long[ 5 ];
+        final int[] inDims = new int[ 5 ];
+        long numBytes = KlbFileHeader.bytesPerPixel( dataType );
+        for ( int d = 0; d < 5; ++d ) {
+            final int f = d < 3 ? factors[ d ] : 1;
+            inMin[ d ] = min[ d ] * f;
+            inMax[ d ] = Math.min( max[ d ] * f + f - 1, inSize[ d ] - 1 );
+            inDims[ d ] = ( int ) (inMax[ d ] - inMin[ d ] + 1);
+            numBytes *= inDims[ d ];
+        }
+        final byte[] in = new byte[ ( int ) numBytes ];
+        reader.readROIinPlace( inPath, inMin, inMax, in, null );
+
+        final PixelAccess src = PixelAccess.wrap( in, dataType );
+        final PixelAccess dst = PixelAccess.wrap( pixels, dataType );
+        final int inX = inDims[ 0 ], inY = inDims[ 1 ], inZ = inDims[ 2 ];
+        final int fx = factors[ 0 ], fy = factors[ 1 ], fz = factors[ 2 ];
+        final boolean maximum = downsampling == Downsampling.MAX;
+        int o = 0;
+        for ( int v = 0; v < inDims[ 3 ] * inDims[ 4 ]; ++v ) {
+            for ( int z = 0; z <= max[ 2 ] - min[ 2 ]; ++z ) {
+                final int z0 = z * fz, z1 = Math.min( z0 + fz, inZ );
+                for ( int y = 0; y <= max[ 1 ] - min[ 1 ]; ++y ) {
+                    final int y0 = y * fy, y1 = Math.min( y0 + fy, inY );
+                    for ( int x = 0; x <= max[ 0 ] - min[ 0 ]; ++x ) {
+                        final int x0 = x * fx, x1 = Math.min( x0 + fx, inX );
+                        double acc = maximum ? Double.NEGATIVE_INFINITY : 0;
+                        int n = 0;
+                        for ( int zz = z0; zz < z1; ++zz ) {
+                            for ( int yy = y0; yy < y1; ++yy ) {
+                                final int row = ((v * inZ + zz) * inY + yy) * inX;
+                                for ( int xx = x0; xx < x1; ++xx ) {
+                                    final double value = src.get( row + xx );
+                                    acc = maximum ? Math.max( acc, value ) : acc + value;
+                                    n++;
+                                }
+                            }
+                        }
+                        dst.set( o++, maximum ? acc : acc / n );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Downsampling factor along x, y and z: dimensions of size 1 are kept
+     */
+    private static int[] factors( final long[] size )
+    {
+        return new int[]{ size[ 0 ] > 1 ? 2 : 1, size[ 1 ] > 1 ? 2 : 1, size[ 2 ] > 1 ? 2 : 1 };
+    }
+
+    private static boolean canDownsample( final long[] size, final long[] blockSize )
+    {
+        for ( int d = 0; d < 3; ++d ) {
+            if ( size[ d ] > blockSize[ d ] ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long[] downsampledSize( final long[] size )
+    {
+        final long[] levelSize = size.clone();
+        for ( int d = 0; d < 3; ++d ) {
+            levelSize[ d ] = (size[ d ] + 1) / 2;
+        }
+        return levelSize;
+    }
+}
@@ -0,0 +1,565 @@
+package org.janelia.simview.klb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streaming reductions (projections, statistics, histograms) over a KLB image or a subvolume of it, computed in a
+ * single pass without holding the image in memory.
+ * <p>
+ * The subvolume is split into chunks of whole KLB blocks (at most {@link #setChunkSize(long)} bytes each). Worker
+ * threads decompress one chunk at a time and immediately fold it into their own partial results, which are merged at
+ * the end. Peak memory is thus bounded by one chunk per thread plus one set of partial results per thread.
+ * <p>
+ * Usage: add all reductions of interest, then {@link #run()} once.
+ * <pre>
+ * final KlbReducer reducer = new KlbReducer( filePath );
+ * final KlbReducer.Projection mip = reducer.addProjection( KlbReducer.ProjectionType.MAX, 2 );
+ * final KlbReducer.Histogram histogram = reducer.addHistogram( 0, 65536, 256 );
+ * reducer.run();
+ * </pre>
+ */
+public class KlbReducer
+{
+    private static final long DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    public enum ProjectionType
+    {
+        MAX, MIN, SUM, MEAN
+    }
+
+    private final String filePath;
+    private final KlbFileHeader header;
+    private final long[] imageSize;
+    private final long[] xyzctMin = new long[ 5 ], xyzctMax = new long[ 5 ];
+    private final List< Reduction > reductions = new ArrayList< Reduction >();
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private long chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * Reductions over an entire KLB image.
+     *
+     * @param filePath file system path to KLB file
+     * @throws IOException
+     */
+    public KlbReducer( final String filePath ) throws IOException
+    {
+        this.filePath = filePath;
+        header = KlbFileHeader.read( Paths.get( filePath ), false );
+        imageSize = header.fullImageSize();// including appended timepoints, which the native reads return
+        for ( int d = 0; d < 5; ++d ) {
+            xyzctMax[ d ] = imageSize[ d ] - 1;
+        }
+    }
+
+    /**
+     * Reductions over a subvolume of a KLB image.
+     *
+     * @param filePath file system path to KLB file
+     * @param xyzctMin lower limit of bounding box subvolume, in order xyzct
+     * @param xyzctMax upper limit of bounding box subvolume (inclusive), in order xyzct
+     * @throws IOException
+     */
+    public KlbReducer( final String filePath, final long[] xyzctMin, final long[] xyzctMax ) throws IOException
+    {
+        this( filePath );
+        for ( int d = 0; d < 5; ++d ) {
+            if ( xyzctMin[ d ] < 0 || xyzctMin[ d ] > xyzctMax[ d ] || xyzctMax[ d ] >= imageSize[ d ] ) {
+                throw new IOException( String.format( "Invalid bounding box for KLB file %s.", filePath ) );
+            }
+            this.xyzctMin[ d ] = xyzctMin[ d ];
+            this.xyzctMax[ d ] = xyzctMax[ d ];
+        }
+    }
+
+    public void setNumThreads( final int n )
+    {
+        numThreads = n > 0 ? n : Runtime.getRuntime().availableProcessors();
+    }
+
+    public int getNumThreads()
+    {
+        return numThreads;
+    }
+
+    /**
+     * Sets the approximate size in bytes of the chunks that each thread decompresses at a time. Chunks always
+     * contain at least one KLB block.
+     */
+    public void setChunkSize( final long chunkSize )
+    {
+        this.chunkSize = chunkSize;
+    }
+
+    public long getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * Adds a projection along the given axes (0 to 4 for xyzct), e.g. a maximum intensity projection along z.
+     */
+    public Projection addProjection( final ProjectionType type, final int... axes )
+    {
+        final boolean[] projected = new boolean[ 5 ];
+        for ( final int d : axes ) {
+            projected[ d ] = true;
+        }
+        return add( new Projection( type, projected ) );
+    }
+
+    public Statistics addStatistics()
+    {
+        return add( new Statistics() );
+    }
+
+    /**
+     * Adds a histogram of numBins equally wide bins covering [lower, upper). Values equal to upper are counted in the
+     * last bin, values outside of [lower, upper] are not counted.
+     */
+    public Histogram addHistogram( final double lower, final double upper, final int numBins )
+    {
+        if ( numBins < 1 || !(upper > lower) ) {
+            throw new IllegalArgumentException( "Histogram requires at least one bin and upper > lower." );
+        }
+        return add( new Histogram( lower, upper, numBins ) );
+    }
+
+    private < R extends Reduction > R add( final R reduction )
+    {
+        reductions.add( reduction );
+        return reduction;
+    }
+
+    /**
+     * Reads the image (or subvolume) once and computes all reductions that have been added.
+     *
+     * @throws IOException InterruptedIOException if interrupted
+     */
+    public void run() throws IOException
+    {
+        for ( final Reduction reduction : reductions ) {
+            reduction.init( xyzctMin, xyzctMax );
+        }
+
+        // chunks are aligned with the block grid, and grow along x first, then y, etc.
+        final int bytesPerPixel = header.bytesPerPixel();
+        final long[] firstBlock = new long[ 5 ], numBlocks = new long[ 5 ], chunkBlocks = new long[ 5 ], numChunks = new long[ 5 ];
+        for ( int d = 0; d < 5; ++d ) {
+            firstBlock[ d ] = xyzctMin[ d ] / header.blockSize[ d ];
+            numBlocks[ d ] = xyzctMax[ d ] / header.blockSize[ d ] - firstBlock[ d ] + 1;
+            chunkBlocks[ d ] = 1;
+        }
+        if ( chunkBytes( chunkBlocks, bytesPerPixel ) > Integer.MAX_VALUE ) {
+            throw new IOException( String.format( "Blocks of KLB file %s are too large to be held in memory.", filePath ) );
+        }
+        for ( int d = 0; d < 5 && (d == 0 || chunkBlocks[ d - 1 ] == numBlocks[ d - 1 ]); ++d ) {
+            while ( chunkBlocks[ d ] < numBlocks[ d ] ) {
+                chunkBlocks[ d ]++;
+                if ( chunkBytes( chunkBlocks, bytesPerPixel ) > Math.min( chunkSize, Integer.MAX_VALUE ) ) {
+                    chunkBlocks[ d ]--;
+                    break;
+                }
+            }
+        }
+        long totalChunks = 1;
+        for ( int d = 0; d < 5; ++d ) {
+            numChunks[ d ] = (numBlocks[ d ] + chunkBlocks[ d ] - 1) / chunkBlocks[ d ];
+            totalChunks *= numChunks[ d ];
+        }
+
+        final KLB< ? > reader = KLB.newInstance();
+        reader.setNumThreads( 1 );
+        final AtomicLong nextChunk = new AtomicLong();
+        final int n = ( int ) Math.max( 1, Math.min( numThreads, totalChunks ) );
+        final long lastChunk = totalChunks;
+        final List< Callable< List< Reduction > > > tasks = new ArrayList< Callable< List< Reduction > > >();
+        for ( int i = 0; i < n; ++i ) {
+            tasks.add( () -> {
+                final List< Reduction > partials = new ArrayList< Reduction >();
+                for ( final Reduction reduction : reductions ) {
+                    partials.add( reduction.newPartial() );
+                }
+                final long[] min = new long[ 5 ], max = new long[ 5 ], position = new long[ 5 ];
+                byte[] buffer = null;
+                for ( long chunk = nextChunk.getAndIncrement(); chunk < lastChunk; chunk = nextChunk.getAndIncrement() ) {
+                    if ( Thread.currentThread().isInterrupted() ) {
+                        throw new InterruptedIOException();
+                    }
+                    long numPixels = 1, index = chunk;
+                    for ( int d = 0; d < 5; ++d ) {
+                        final long block = firstBlock[ d ] + (index % numChunks[ d ]) * chunkBlocks[ d ];
+                        index /= numChunks[ d ];
+                        min[ d ] = Math.max( xyzctMin[ d ], block * header.blockSize[ d ] );
+                        max[ d ] = Math.min( xyzctMax[ d ], (block + chunkBlocks[ d ]) * header.blockSize[ d ] - 1 );
+                        numPixels *= 1 + max[ d ] - min[ d ];
+                    }
+                    if ( buffer == null || buffer.length < numPixels * bytesPerPixel ) {
+                        buffer = new byte[ ( int ) (numPixels * bytesPerPixel) ];
+                    }
+                    reader.readROIinPlace( filePath, min, max, buffer );
+
+                    final PixelAccess pixels = PixelAccess.wrap( buffer, header.dataType );
+                    final int rowLength = ( int ) (1 + max[ 0 ] - min[ 0 ]);
+                    System.arraycopy( min, 0, position, 0, 5 );
+                    for ( int offset = 0; offset < numPixels; offset += rowLength ) {
+                        for ( final Reduction partial : partials ) {
+                            partial.addRow( pixels, offset, rowLength, position );
+                        }
+                        for ( int d = 1; d < 5 && ++position[ d ] > max[ d ]; ++d ) {
+                            position[ d ] = min[ d ];
+                        }
+                    }
+                }
+                return partials;
+            } );
+        }
+
+        final ExecutorService taskExecutor = Executors.newFixedThreadPool( n );
+        try {
+            for ( final Future< List< Reduction > > result : taskExecutor.invokeAll( tasks ) ) {
+                final List< Reduction > partials = result.get();
+                for ( int i = 0; i < reductions.size(); ++i ) {
+                    reductions.get( i ).merge( partials.get( i ) );
+                }
+            }
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( String.format( "Interrupted while reducing KLB file %s.", filePath ) );
+        } catch ( final ExecutionException e ) {
+            if ( e.getCause() instanceof IOException ) {
+                throw ( IOException ) e.getCause();
+            }
+            throw new IOException( String.format( "Failed to reduce KLB file %s.", filePath ), e.getCause() );
+        } finally {
+            taskExecutor.shutdownNow();
+        }
+
+        for ( final Reduction reduction : reductions ) {
+            reduction.finish();
+        }
+    }
+
+    private long chunkBytes( final long[] chunkBlocks, final int bytesPerPixel )
+    {
+        long n = bytesPerPixel;
+        for ( int d = 0; d < 5; ++d ) {
+            n *= Math.min( chunkBlocks[ d ] * header.blockSize[ d ], 1 + xyzctMax[ d ] - xyzctMin[ d ] );
+        }
+        return n;
+    }
+
+
+    /***********************************************************
+     * Reductions
+     ***********************************************************/
+
+    /**
+     * A reduction is computed as one partial result per thread, which are merged when all chunks have been folded in.
+     */
+    public static abstract class Reduction
+    {
+        /**
+         * Called with the bounding box before reading starts.
+         */
+        abstract void init( final long[] xyzctMin, final long[] xyzctMax );
+
+        /**
+         * Returns an empty partial result of the same reduction
+         */
+        abstract Reduction newPartial();
+
+        /**
+         * Folds length consecutive pixels (along x) into this partial result.
+         *
+         * @param position xyzct coordinate of the first pixel
+         */
+        abstract void addRow( final PixelAccess pixels, final int offset, final int length, final long[] position );
+
+        abstract void merge( final Reduction partial );
+
+        void finish()
+        {
+        }
+    }
+
+    /**
+     * Projection of the bounding box along one or more axes. Projected axes have size 1 in the result.
+     */
+    public static class Projection extends Reduction
+    {
+        private final ProjectionType type;
+        private final boolean[] projected;
+        private final long[] min = new long[ 5 ], size = new long[ 5 ], strides = new long[ 5 ];
+        private long count;
+        private double[] data;
+
+        private Projection( final ProjectionType type, final boolean[] projected )
+        {
+            this.type = type;
+            this.projected = projected;
+        }
+
+        @Override
+        void init( final long[] xyzctMin, final long[] xyzctMax )
+        {
+            long n = 1;
+            count = 1;
+            for ( int d = 0; d < 5; ++d ) {
+                min[ d ] = xyzctMin[ d ];
+                size[ d ] = projected[ d ] ? 1 : 1 + xyzctMax[ d ] - xyzctMin[ d ];
+                count *= projected[ d ] ? 1 + xyzctMax[ d ] - xyzctMin[ d ] : 1;
+                strides[ d ] = projected[ d ] ? 0 : n;
+                n *= size[ d ];
+            }
+            if ( n > Integer.MAX_VALUE ) {
+                throw new IllegalArgumentException( "Projection is too large to be held in memory." );
+            }
+            data = new double[ ( int ) n ];
+            if ( type == ProjectionType.MAX ) {
+                Arrays.fill( data, Double.NEGATIVE_INFINITY );
+            } else if ( type == ProjectionType.MIN ) {
+                Arrays.fill( data, Double.POSITIVE_INFINITY );
+            }
+        }
+
+        @Override
+        Reduction newPartial()
+        {
+            final Projection partial = new Projection( type, projected );
+            System.arraycopy( min, 0, partial.min, 0, 5 );
+            System.arraycopy( size, 0, partial.size, 0, 5 );
+            System.arraycopy( strides, 0, partial.strides, 0, 5 );
+            partial.data = new double[ data.length ];
+            System.arraycopy( data, 0, partial.data, 0, data.length );
+            return partial;
+        }
+
+        @Override
+        void addRow( final PixelAccess pixels, final int offset, final int length, final long[] position )
+        {
+            int o = 0;
+            for ( int d = 0; d < 5; ++d ) {
+                o += (position[ d ] - min[ d ]) * strides[ d ];
+            }
+            final int step = ( int ) strides[ 0 ];
+            for ( int i = offset; i < offset + length; ++i, o += step ) {
+                final double value = pixels.get( i );
+                switch ( type ) {
+                    case MAX:
+                        data[ o ] = Math.max( data[ o ], value );
+                        break;
+                    case MIN:
+                        data[ o ] = Math.min( data[ o ], value );
+                        break;
+                    default:
+                        data[ o ] += value;
+                }
+            }
+        }
+
+        @Override
+        void merge( final Reduction partial )
+        {
+            final double[] other = (( Projection ) partial).data;
+            for ( int i = 0; i < data.length; ++i ) {
+                switch ( type ) {
+                    case MAX:
+                        data[ i ] = Math.max( data[ i ], other[ i ] );
+                        break;
+                    case MIN:
+                        data[ i ] = Math.min( data[ i ], other[ i ] );
+                        break;
+                    default:
+                        data[ i ] += other[ i ];
+                }
+            }
+        }
+
+        @Override
+        void finish()
+        {
+            if ( type == ProjectionType.MEAN ) {
+                for ( int i = 0; i < data.length; ++i ) {
+                    data[ i ] /= count;
+                }
+            }
+        }
+
+        /**
+         * Size of the projection, in order xyzct (1 along projected axes)
+         */
+        public long[] getSize()
+        {
+            return size.clone();
+        }
+
+        /**
+         * Projected values, x fastest
+         */
+        public double[] getData()
+        {
+            return data;
+        }
+    }
+
+    /**
+     * Pixel count, minimum, maximum, sum, mean and standard deviation
+     */
+    public static class Statistics extends Reduction
+    {
+        private long count;
+        private double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, sum, sumOfSquares;
+
+        private Statistics()
+        {
+        }
+
+        @Override
+        void init( final long[] xyzctMin, final long[] xyzctMax )
+        {
+        }
+
+        @Override
+        Reduction newPartial()
+        {
+            return new Statistics();
+        }
+
+        @Override
+        void addRow( final PixelAccess pixels, final int offset, final int length, final long[] position )
+        {
+            for ( int i = offset; i < offset + length; ++i ) {
+                final double value = pixels.get( i );
+                min = Math.min( min, value );
+                max = Math.max( max, value );
+                sum += value;
+                sumOfSquares += value * value;
+            }
+            count += length;
+        }
+
+        @Override
+        void merge( final Reduction partial )
+        {
+            final Statistics other = ( Statistics ) partial;
+            count += other.count;
+            min = Math.min( min, other.min );
+            max = Math.max( max, other.max );
+            sum += other.sum;
+            sumOfSquares += other.sumOfSquares;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public double getMin()
+        {
+            return min;
+        }
+
+        public double getMax()
+        {
+            return max;
+        }
+
+        public double getSum()
+        {
+            return sum;
+        }
+
+        public double getMean()
+        {
+            return sum / count;
+        }
+
+        public double getStandardDeviation()
+        {
+            final double mean = getMean();
+            return Math.sqrt( Math.max( 0, sumOfSquares / count - mean * mean ) );
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format( "count %d, min %s, max %s, mean %s, std %s", count, min, max, getMean(), getStandardDeviation() );
+        }
+    }
+
+    public static class Histogram extends Reduction
+    {
+        private final double lower, upper;
+        private final long[] counts;
+
+        private Histogram( final double lower, final double upper, final int numBins )
+        {
+            this.lower = lower;
+            this.upper = upper;
+            counts = new long[ numBins ];
+        }
+
+        @Override
+        void init( final long[] xyzctMin, final long[] xyzctMax )
+        {
+        }
+
+        @Override
+        Reduction newPartial()
+        {
+            return new Histogram( lower, upper, counts.length );
+        }
+
+        @Override
+        void addRow( final PixelAccess pixels, final int offset, final int length, final long[] position )
+        {
+            final double scale = counts.length / (upper - lower);
+            for ( int i = offset; i < offset + length; ++i ) {
+                final double value = pixels.get( i );
+                if ( value >= lower && value <= upper ) {
+                    counts[ Math.min( counts.length - 1, ( int ) ((value - lower) * scale) ) ]++;
+                }
+            }
+        }
+
+        @Override
+        void merge( final Reduction partial )
+        {
+            final long[] other = (( Histogram ) partial).counts;
+            for ( int i = 0; i < counts.length; ++i ) {
+                counts[ i ] += other[ i ];
+            }
+        }
+
+        public double getLower()
+        {
+            return lower;
+        }
+
+        public double getUpper()
+        {
+            return upper;
+        }
+
+        public double getBinWidth()
+        {
+            return (upper - lower) / counts.length;
+        }
+
+        public long[] getCounts()
+        {
+            return counts;
+        }
+    }
+}
@@ -27,6 +27,11 @@ public class KlbScifio extends AbstractFormat
     protected static final AxisType[] AXIS_TYPES = { Axes.X, Axes.Y, Axes.Z, Axes.CHANNEL, Axes.TIME };
     private static final String[] UNITS = { "um", "um", "um", "au", "s" };
 
+    /**
+     * Shared by all parsers, readers and writers, which may run on different threads: KLB instances are thread-safe
+     */
+    private static final KLB KLB_INSTANCE = KLB.newInstance();
+
     @Override
     protected String[] makeSuffixArray()
     {
@@ -52,7 +57,7 @@ public class KlbScifio extends AbstractFormat
     public static class Parser extends AbstractParser< Metadata >
     {
 
-        private final KLB klb = KLB.newInstance();
+        private final KLB klb = KLB_INSTANCE;
 
         @Override
         protected void typedParse( final RandomAccessInputStream source, final Metadata meta, final SCIFIOConfig config )
@@ -120,7 +125,7 @@ public class KlbScifio extends AbstractFormat
     public static class Reader extends ByteArrayReader< Metadata >
     {
 
-        private final KLB klb = KLB.newInstance();
+        private final KLB klb = KLB_INSTANCE;
         private final long[]
                 min = new long[ 5 ],
                 max = new long[ 5 ];
@@ -186,7 +191,7 @@ public class KlbScifio extends AbstractFormat
     public static class Writer< T extends RealType< ? > & NativeType< ? > > extends AbstractWriter< Metadata >
     {
 
-        private final KLB klb = KLB.newInstance();
+        private final KLB klb = KLB_INSTANCE;
         private final long[] dimensions = new long[ 5 ];
         private final float[] sampling = new float[ 5 ];
 
@@ -0,0 +1,63 @@
+package org.janelia.simview.klb;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * KLB file that is read from memory or from a channel instead of a file system path, e.g. from a block cache, an
+ * object store client or an entry of a zip container. See {@link KLB#readHeader(KlbSource)},
+ * {@link KLB#readFullInPlace(KlbSource, byte[], KlbProgress)} and
+ * {@link KLB#readROIinPlace(KlbSource, long[], long[], byte[], KlbProgress)}.
+ * <p>
+ * Files in memory are decompressed without copying them. Channels are read with positional reads from all decoding
+ * threads at once: a {@link FileChannel} serves them concurrently, other channels one at a time (each read sets the
+ * position of the channel, so the channel should not be used elsewhere while it is read). Channels are not closed.
+ */
+public final class KlbSource
+{
+    final ByteBuffer direct;
+    final byte[] array;
+    final SeekableByteChannel channel;
+
+    private KlbSource( final ByteBuffer direct, final byte[] array, final SeekableByteChannel channel )
+    {
+        this.direct = direct;
+        this.array = array;
+        this.channel = channel;
+    }
+
+    /**
+     * Whole KLB file in a byte array. The array is read, not copied.
+     */
+    public static KlbSource wrap( final byte[] klb )
+    {
+        return new KlbSource( null, klb, null );
+    }
+
+    /**
+     * KLB file in the bytes of a buffer from its position to its limit. Direct buffers and heap buffers that span
+     * their whole backing array are read, not copied; others are copied into a direct buffer.
+     */
+    public static KlbSource wrap( final ByteBuffer klb )
+    {
+        if ( klb.isDirect() ) {
+            return new KlbSource( klb.slice(), null, null );
+        }
+        if ( klb.hasArray() && klb.arrayOffset() + klb.position() == 0 && klb.remaining() == klb.array().length ) {
+            return new KlbSource( null, klb.array(), null );
+        }
+        final ByteBuffer copy = ByteBuffer.allocateDirect( klb.remaining() );
+        copy.put( klb.duplicate() );
+        copy.flip();
+        return new KlbSource( copy, null, null );
+    }
+
+    /**
+     * KLB file that starts at position 0 of a channel.
+     */
+    public static KlbSource wrap( final SeekableByteChannel channel )
+    {
+        return new KlbSource( null, null, channel );
+    }
+}
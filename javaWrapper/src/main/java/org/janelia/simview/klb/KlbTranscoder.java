@@ -0,0 +1,240 @@
+package org.janelia.simview.klb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Re-encodes KLB files with another compression type and / or block size, e.g. to migrate an archive from BZIP2 to
+ * ZLIB. Each file is decoded and re-encoded block by block by the native library (see
+ * {@link KLB#transcode(String, String, long[], KLB.CompressionType, KlbProgress)}), which streams the image in slabs of
+ * blocks, so memory use does not depend on the image size. Image size, data type, pixel spacing and metadata are kept.
+ * <p>
+ * Directories are processed recursively. The thread budget ({@link #setNumThreads(int)}) is split between the files
+ * that are transcoded at the same time ({@link #setNumConcurrentFiles(int)}), which keeps all threads busy on
+ * directories of many small files.
+ * <p>
+ * Command line usage:
+ * <pre>
+ * KlbTranscoder [-c NONE|BZIP2|ZLIB] [-b x,y,z,c,t] [-t threads] [-j files] source destination
+ * </pre>
+ * source and destination are either two files or two directories. They may be the same, in which case the files are
+ * replaced once they have been transcoded completely.
+ */
+public class KlbTranscoder
+{
+    private KLB.CompressionType compressionType = null;
+    private long[] blockSize = null;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private int numConcurrentFiles = 1;
+
+    /**
+     * Compression type of the output files, null (default) to keep the compression type of each source
+     */
+    public void setCompressionType( final KLB.CompressionType compressionType )
+    {
+        this.compressionType = compressionType;
+    }
+
+    public KLB.CompressionType getCompressionType()
+    {
+        return compressionType;
+    }
+
+    /**
+     * Block size of the output files, in order xyzct, null (default) to keep the block size of each source
+     */
+    public void setBlockSize( final long[] blockSize )
+    {
+        this.blockSize = blockSize == null ? null : blockSize.clone();
+    }
+
+    public long[] getBlockSize()
+    {
+        return blockSize == null ? null : blockSize.clone();
+    }
+
+    /**
+     * Total number of threads used for de-/compression, default is all available processors
+     */
+    public void setNumThreads( final int numThreads )
+    {
+        this.numThreads = Math.max( 1, numThreads );
+    }
+
+    public int getNumThreads()
+    {
+        return numThreads;
+    }
+
+    /**
+     * Number of files of a directory that are transcoded at the same time, default is 1. Each file gets an equal
+     * share of the thread budget.
+     */
+    public void setNumConcurrentFiles( final int numConcurrentFiles )
+    {
+        this.numConcurrentFiles = Math.max( 1, numConcurrentFiles );
+    }
+
+    public int getNumConcurrentFiles()
+    {
+        return numConcurrentFiles;
+    }
+
+    public void transcode( final String srcPath, final String dstPath ) throws IOException
+    {
+        transcode( srcPath, dstPath, numThreads, null );
+    }
+
+    /**
+     * Transcodes a single file.
+     *
+     * @param srcPath  file system path to the source KLB file
+     * @param dstPath  file system path to the output KLB file, may be equal to srcPath
+     * @param progress reports progress and allows to cancel, can be null
+     * @throws IOException
+     */
+    public void transcode( final String srcPath, final String dstPath, final KlbProgress progress ) throws IOException
+    {
+        transcode( srcPath, dstPath, numThreads, progress );
+    }
+
+    /**
+     * Transcodes all KLB files below srcDir to the same relative paths below dstDir (created as needed). dstDir may
+     * be equal to srcDir.
+     *
+     * @return relative paths of the transcoded files
+     * @throws IOException
+     */
+    public List< String > transcodeDirectory( final String srcDir, final String dstDir ) throws IOException
+    {
+        final Path srcRoot = Paths.get( srcDir ), dstRoot = Paths.get( dstDir );
+        final List< String > files = new ArrayList< String >();
+        Files.walkFileTree( srcRoot, new SimpleFileVisitor< Path >()
+        {
+            @Override
+            public FileVisitResult visitFile( final Path file, final BasicFileAttributes attrs )
+            {
+                if ( attrs.isRegularFile() && file.getFileName().toString().toLowerCase().endsWith( ".klb" ) ) {
+                    files.add( srcRoot.relativize( file ).toString() );
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+        Collections.sort( files );
+        if ( files.isEmpty() ) {
+            return files;
+        }
+
+        final int numWorkers = Math.min( numConcurrentFiles, files.size() );
+        final int threadsPerFile = Math.max( 1, numThreads / numWorkers );
+        final List< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+        for ( final String file : files ) {
+            tasks.add( () -> {
+                transcode( srcRoot.resolve( file ).toString(), dstRoot.resolve( file ).toString(), threadsPerFile, null );
+                return null;
+            } );
+        }
+
+        final ExecutorService taskExecutor = Executors.newFixedThreadPool( numWorkers );
+        try {
+            for ( final Future< Void > result : taskExecutor.invokeAll( tasks ) ) {
+                result.get();
+            }
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while transcoding " + srcDir );
+        } catch ( final ExecutionException e ) {
+            throw new IOException( String.format( "Failed to transcode %s.", srcDir ), e.getCause() );
+        } finally {
+            taskExecutor.shutdownNow();
+        }
+        return files;
+    }
+
+    private void transcode( final String srcPath, final String dstPath, final int threads, final KlbProgress progress )
+            throws IOException
+    {
+        KLB.CompressionType type = compressionType;
+        if ( type == null ) {
+            final int sourceType = KlbFileHeader.read( Paths.get( srcPath ), false ).compressionType;
+            if ( sourceType < 0 || sourceType >= KLB.CompressionType.values().length ) {
+                throw new IOException( String.format( "Unknown or unsupported compression type of file %s.", srcPath ) );
+            }
+            type = KLB.CompressionType.values()[ sourceType ];
+        }
+
+        final KLB klb = KLB.newInstance();
+        klb.setNumThreads( threads );
+        final Path dst = Paths.get( dstPath ).toAbsolutePath();
+        if ( dst.getParent() != null ) {
+            Files.createDirectories( dst.getParent() );
+        }
+        if ( !Files.exists( dst ) || !Files.isSameFile( Paths.get( srcPath ), dst ) ) {
+            klb.transcode( srcPath, dstPath, blockSize, type, progress );
+            return;
+        }
+
+        // in place: the source is only replaced once the output is complete
+        final Path tmp = dst.resolveSibling( dst.getFileName() + ".transcoding" );
+        try {
+            klb.transcode( srcPath, tmp.toString(), blockSize, type, progress );
+            Files.move( tmp, dst, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        } finally {
+            Files.deleteIfExists( tmp );
+        }
+    }
+
+    public static void main( final String[] args ) throws IOException
+    {
+        final KlbTranscoder transcoder = new KlbTranscoder();
+        final List< String > paths = new ArrayList< String >();
+        try {
+            for ( int i = 0; i < args.length; ++i ) {
+                if ( args[ i ].equals( "-c" ) ) {
+                    transcoder.setCompressionType( KLB.CompressionType.valueOf( args[ ++i ].toUpperCase() ) );
+                } else if ( args[ i ].equals( "-b" ) ) {
+                    final String[] values = args[ ++i ].split( "," );
+                    final long[] blockSize = new long[ 5 ];
+                    for ( int d = 0; d < 5; ++d ) {
+                        blockSize[ d ] = d < values.length ? Long.parseLong( values[ d ].trim() ) : 1;
+                    }
+                    transcoder.setBlockSize( blockSize );
+                } else if ( args[ i ].equals( "-t" ) ) {
+                    transcoder.setNumThreads( Integer.parseInt( args[ ++i ] ) );
+                } else if ( args[ i ].equals( "-j" ) ) {
+                    transcoder.setNumConcurrentFiles( Integer.parseInt( args[ ++i ] ) );
+                } else {
+                    paths.add( args[ i ] );
+                }
+            }
+        } catch ( final IllegalArgumentException | ArrayIndexOutOfBoundsException e ) {
+            paths.clear();
+        }
+        if ( paths.size() != 2 ) {
+            System.err.println( "Usage: KlbTranscoder [-c NONE|BZIP2|ZLIB] [-b x,y,z,c,t] [-t threads] [-j files] source destination" );
+            System.exit( 1 );
+        }
+
+        if ( Files.isDirectory( Paths.get( paths.get( 0 ) ) ) ) {
+            final List< String > files = transcoder.transcodeDirectory( paths.get( 0 ), paths.get( 1 ) );
+            System.out.println( String.format( "Transcoded %d files.", files.size() ) );
+        } else {
+            transcoder.transcode( paths.get( 0 ), paths.get( 1 ) );
+        }
+    }
+}
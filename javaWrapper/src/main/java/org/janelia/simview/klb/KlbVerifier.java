@@ -0,0 +1,274 @@
+package org.janelia.simview.klb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks KLB files against the CRC-32 of each compressed block that the native library stores when writing (see
+ * {@link KLB#verify(String, KlbProgress)}), e.g. to verify an archive copy. Nothing is decompressed, so verification is
+ * bound by disk bandwidth.
+ * <p>
+ * Directories are processed recursively. The thread budget ({@link #setNumThreads(int)}) is split between the files
+ * that are verified at the same time ({@link #setNumConcurrentFiles(int)}). Each file is read almost sequentially, so
+ * on spinning disks one file at a time (the default) is usually fastest.
+ * <p>
+ * Command line usage:
+ * <pre>
+ * KlbVerifier [-t threads] [-j files] path...
+ * </pre>
+ * Prints the files that are corrupt, unreadable or have no checksums, and exits with status 1 if any file is corrupt
+ * or unreadable.
+ */
+public class KlbVerifier
+{
+    /**
+     * Outcome of the verification of a single file
+     */
+    public static final class Result
+    {
+        private final String path;
+        private final long[] corruptBlocks;
+        private final IOException error;
+
+        private Result( final String path, final long[] corruptBlocks, final IOException error )
+        {
+            this.path = path;
+            this.corruptBlocks = corruptBlocks;
+            this.error = error;
+        }
+
+        /**
+         * Path of the file, relative to the directory for {@link #verifyDirectory(String)}
+         */
+        public String getPath()
+        {
+            return path;
+        }
+
+        /**
+         * Indices of the blocks whose checksum does not match, in ascending order, or null if the file could not be
+         * checked (no checksums or unreadable)
+         */
+        public long[] getCorruptBlocks()
+        {
+            return corruptBlocks == null ? null : corruptBlocks.clone();
+        }
+
+        /**
+         * Reason why the file could not be read, or null
+         */
+        public IOException getError()
+        {
+            return error;
+        }
+
+        public boolean hasChecksums()
+        {
+            return corruptBlocks != null;
+        }
+
+        public boolean isIntact()
+        {
+            return corruptBlocks != null && corruptBlocks.length == 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            if ( error != null ) {
+                return String.format( "%s: UNREADABLE (%s)", path, error.getMessage() );
+            } else if ( corruptBlocks == null ) {
+                return String.format( "%s: NO CHECKSUMS", path );
+            } else if ( corruptBlocks.length == 0 ) {
+                return String.format( "%s: OK", path );
+            }
+            return String.format( "%s: CORRUPT blocks %s", path, Arrays.toString( corruptBlocks ) );
+        }
+    }
+
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private int numConcurrentFiles = 1;
+
+    /**
+     * Total number of threads used to read and check blocks, default is all available processors
+     */
+    public void setNumThreads( final int numThreads )
+    {
+        this.numThreads = Math.max( 1, numThreads );
+    }
+
+    public int getNumThreads()
+    {
+        return numThreads;
+    }
+
+    /**
+     * Number of files of a directory that are verified at the same time, default is 1. Each file gets an equal share
+     * of the thread budget.
+     */
+    public void setNumConcurrentFiles( final int numConcurrentFiles )
+    {
+        this.numConcurrentFiles = Math.max( 1, numConcurrentFiles );
+    }
+
+    public int getNumConcurrentFiles()
+    {
+        return numConcurrentFiles;
+    }
+
+    public Result verify( final String filePath ) throws IOException
+    {
+        return verify( filePath, null );
+    }
+
+    /**
+     * Verifies a single file.
+     *
+     * @param filePath file system path to KLB file
+     * @param progress reports progress and allows to cancel, can be null
+     * @return the outcome; a file that cannot be read is reported as an exception rather than as a result
+     * @throws IOException
+     */
+    public Result verify( final String filePath, final KlbProgress progress ) throws IOException
+    {
+        return new Result( filePath, verify( filePath, numThreads, progress ), null );
+    }
+
+    /**
+     * Verifies all KLB files below dir. Files that cannot be read are reported in the results rather than aborting
+     * the verification.
+     *
+     * @return one result per file, sorted by relative path
+     * @throws IOException
+     */
+    public List< Result > verifyDirectory( final String dir ) throws IOException
+    {
+        final Path root = Paths.get( dir );
+        final List< String > files = new ArrayList< String >();
+        Files.walkFileTree( root, new SimpleFileVisitor< Path >()
+        {
+            @Override
+            public FileVisitResult visitFile( final Path file, final BasicFileAttributes attrs )
+            {
+                if ( attrs.isRegularFile() && file.getFileName().toString().toLowerCase().endsWith( ".klb" ) ) {
+                    files.add( root.relativize( file ).toString() );
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+        Collections.sort( files );
+        final List< Result > results = new ArrayList< Result >();
+        if ( files.isEmpty() ) {
+            return results;
+        }
+
+        final int numWorkers = Math.min( numConcurrentFiles, files.size() );
+        final int threadsPerFile = Math.max( 1, numThreads / numWorkers );
+        final List< Callable< Result > > tasks = new ArrayList< Callable< Result > >();
+        for ( final String file : files ) {
+            tasks.add( () -> {
+                try {
+                    return new Result( file, verify( root.resolve( file ).toString(), threadsPerFile, null ), null );
+                } catch ( final InterruptedIOException e ) {
+                    throw e;
+                } catch ( final IOException e ) {
+                    return new Result( file, null, e );
+                }
+            } );
+        }
+
+        final ExecutorService taskExecutor = Executors.newFixedThreadPool( numWorkers );
+        try {
+            for ( final Future< Result > result : taskExecutor.invokeAll( tasks ) ) {
+                results.add( result.get() );
+            }
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while verifying " + dir );
+        } catch ( final ExecutionException e ) {
+            throw new IOException( String.format( "Failed to verify %s.", dir ), e.getCause() );
+        } finally {
+            taskExecutor.shutdownNow();
+        }
+        return results;
+    }
+
+    private long[] verify( final String filePath, final int threads, final KlbProgress progress ) throws IOException
+    {
+        final KLB klb = KLB.newInstance();
+        klb.setNumThreads( threads );
+        return klb.verify( filePath, progress );
+    }
+
+    public static void main( final String[] args ) throws IOException
+    {
+        final KlbVerifier verifier = new KlbVerifier();
+        final List< String > paths = new ArrayList< String >();
+        try {
+            for ( int i = 0; i < args.length; ++i ) {
+                if ( args[ i ].equals( "-t" ) ) {
+                    verifier.setNumThreads( Integer.parseInt( args[ ++i ] ) );
+                } else if ( args[ i ].equals( "-j" ) ) {
+                    verifier.setNumConcurrentFiles( Integer.parseInt( args[ ++i ] ) );
+                } else {
+                    paths.add( args[ i ] );
+                }
+            }
+        } catch ( final IllegalArgumentException | ArrayIndexOutOfBoundsException e ) {
+            paths.clear();
+        }
+        if ( paths.isEmpty() ) {
+            System.err.println( "Usage: KlbVerifier [-t threads] [-j files] path..." );
+            System.exit( 1 );
+        }
+
+        final List< Result > results = new ArrayList< Result >();
+        for ( final String path : paths ) {
+            if ( Files.isDirectory( Paths.get( path ) ) ) {
+                for ( final Result result : verifier.verifyDirectory( path ) ) {
+                    results.add( new Result( Paths.get( path, result.path ).toString(), result.corruptBlocks, result.error ) );
+                }
+            } else {
+                try {
+                    results.add( verifier.verify( path ) );
+                } catch ( final InterruptedIOException e ) {
+                    throw e;
+                } catch ( final IOException e ) {
+                    results.add( new Result( path, null, e ) );
+                }
+            }
+        }
+
+        int numFailed = 0, numUnchecked = 0;
+        for ( final Result result : results ) {
+            if ( result.isIntact() ) {
+                continue;
+            }
+            System.out.println( result );
+            if ( result.hasChecksums() || result.error != null ) {
+                numFailed++;
+            } else {
+                numUnchecked++;
+            }
+        }
+        System.out.println( String.format( "Verified %d files: %d corrupt or unreadable, %d without checksums.", results.size(), numFailed, numUnchecked ) );
+        if ( numFailed > 0 ) {
+            System.exit( 1 );
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package org.janelia.simview.klb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Typed access to raw pixel data as returned by the byte[] / Buffer variants of KLB.readFullInPlace and
+ * KLB.readROIinPlace (native byte order), for any of the data types of the native library. Values are exchanged as
+ * double; setters round and saturate for integer types.
+ */
+abstract class PixelAccess
+{
+    protected final ByteBuffer buffer;
+
+    private PixelAccess( final ByteBuffer buffer )
+    {
+        this.buffer = buffer;
+    }
+
+    /**
+     * @param index pixel (not byte) index
+     */
+    abstract double get( final int index );
+
+    abstract void set( final int index, final double value );
+
+    /**
+     * Wraps a byte array holding pixels of the given data type enum value of the native library.
+     */
+    static PixelAccess wrap( final byte[] bytes, final int dataType )
+    {
+        return wrap( ByteBuffer.wrap( bytes ), dataType );
+    }
+
+    static PixelAccess wrap( ByteBuffer buffer, final int dataType )
+    {
+        buffer = buffer.duplicate().order( ByteOrder.nativeOrder() );
+        switch ( dataType ) {
+            case 0: // uint8
+                return new PixelAccess( buffer )
+                {
+                    @Override
+                    double get( final int index )
+                    {
+                        return this.buffer.get( index ) & 0xff;
+                    }
+
+                    @Override
+                    void set( final int index, final double value )
+                    {
+                        this.buffer.put( index, ( byte ) clamp( value, 0, 0xff ) );
+                    }
+                };
+            case 1: // uint16
+                return new PixelAccess( buffer )
+                {
+                    @Override
+                    double get( final int index )
+                    {
+                        return this.buffer.getShort( 2 * index ) & 0xffff;
+                    }
+
+                    @Override
+                    void set( final int index, final double value )
+                    {
+                        this.buffer.putShort( 2 * index, ( short ) clamp( value, 0, 0xffff ) );
+                    }
+                };
+            case 2: // uint32
+                return new PixelAccess( buffer )
+                {
+                    @Override
+                    double get( final int index )
+                    {
+                        return this.buffer.getInt( 4 * index ) & 0xffffffffL;
+                    }
+
+                    @Override
+                    void set( final int index, final double value )
+                    {
+                        this.buffer.putInt( 4 * index, ( int ) clamp( value, 0, 0xffffffffL ) );
+                    }
+                };
+            case 3: // uint64
+                return new PixelAccess( buffer )
+                {
+                    @Override
+                    double get( final int index )
+                    {
+                        final long v = this.buffer.getLong( 8 * index );
+                        return v >= 0 ? v : (v >>> 1) * 2.0 + (v & 1);
+                    }
+
+                    @Override
+                    void set( final int index, final double value )
+                    {
+                        final double v = Math.max( 0, Math.rint( value ) );
+                        this.buffer.putLong( 8 * index, v < Long.MAX_VALUE ? ( long ) v : ( long ) (v / 2) << 1 );
+                    }
+                };
+            case 4: // int8
+                return new PixelAccess( buffer )
+                {
+                    @Override
+                    double get( final int index )
+                    {
+                        return this.buffer.get( index );
+                    }
+
+                    @Override
+                    void set( final int index, final double value )
+                    {
+                        this.buffer.put( index, ( byte ) clamp( value, Byte.MIN_VALUE, Byte.MAX_VALUE ) );
+                    }
+                };
+            case 5: // int16
+                return new PixelAccess( buffer )
+                {
+                    @Override
+                    double get( final int index )
+                    {
+                        return this.buffer.getShort( 2 * index );
+                    }
+
+                    @Override
+                    void set( final int index, final double value )
+                    {
+                        this.buffer.putShort( 2 * index, ( short ) clamp( value, Short.MIN_VALUE, Short.MAX_VALUE ) );
+                    }
+                };
+            case 6: // int32
+                return new PixelAccess( buffer )
+                {
+                    @Override
+                    double get( final int index )
+                    {
+                        return this.buffer.getInt( 4 * index );
+                    }
+
+                    @Override
+                    void set( final int index, final double value )
+                    {
+                        this.buffer.putInt( 4 * index, ( int ) clamp( value, Integer.MIN_VALUE, Integer.MAX_VALUE ) );
+                    }
+                };
+            case 7: // int64
+                return new PixelAccess( buffer )
+                {
+                    @Override
+                    double get( final int index )
+                    {
+                        return this.buffer.getLong( 8 * index );
+                    }
+
+                    @Override
+                    void set( final int index, final double value )
+                    {
+                        this.buffer.putLong( 8 * index, Math.round( value ) );
+                    }
+                };
+            case 8: // float32
+                return new PixelAccess( buffer )
+                {
+                    @Override
+                    double get( final int index )
+                    {
+                        return this.buffer.getFloat( 4 * index );
+                    }
+
+                    @Override
+                    void set( final int index, final double value )
+                    {
+                        this.buffer.putFloat( 4 * index, ( float ) value );
+                    }
+                };
+            case 9: // float64
+                return new PixelAccess( buffer )
+                {
+                    @Override
+                    double get( final int index )
+                    {
+                        return this.buffer.getDouble( 8 * index );
+                    }
+
+                    @Override
+                    void set( final int index, final double value )
+                    {
+                        this.buffer.putDouble( 8 * index, value );
+                    }
+                };
+            default:
+                throw new IllegalArgumentException( "Unknown or unsupported KLB data type " + dataType );
+        }
+    }
+
+    private static long clamp( final double value, final long min, final long max )
+    {
+        return Math.max( min, Math.min( max, Math.round( value ) ) );
+    }
+}
@@ -1,9 +1,50 @@
 package org.janelia.simview.util;
 
 import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
 
+/**
+ * Loads native libraries that are bundled as resources.
+ * <p>
+ * Libraries are extracted once into a cache directory and reused by all later JVMs: each library goes into a
+ * subdirectory named after the SHA-256 of its content, so different versions never collide and an existing copy is
+ * never deleted or overwritten while another JVM may be loading it. A library is written to a temporary file next to
+ * its final location and atomically renamed, so concurrent JVMs either see the complete file or none.
+ * <p>
+ * Since the default cache directory is in the shared temporary directory, the directories of the cache are created
+ * owner-only (where the file system has POSIX permissions) and the cache is not used if one of them belongs to another
+ * user or can be written by other users. A cached library is only reused if its content hash matches.
+ * <p>
+ * System properties:
+ * <ul>
+ * <li>{@value #PATH_PROPERTY}: file or directory to load the libraries from instead of extracting them</li>
+ * <li>{@value #PREFER_SYSTEM_PROPERTY}: if true, try System.loadLibrary (java.library.path) first</li>
+ * <li>{@value #CACHE_PROPERTY}: cache directory, default is klb-native-[user name] in java.io.tmpdir</li>
+ * </ul>
+ */
 public class NativeLibraryLoader {
 
+    public static final String PATH_PROPERTY = "klb.native.path";
+    public static final String PREFER_SYSTEM_PROPERTY = "klb.native.preferSystem";
+    public static final String CACHE_PROPERTY = "klb.native.cache";
+
+    /**
+     * Layout version of the cache directory, part of its path
+     */
+    private static final String CACHE_VERSION = "v1";
+
     private String libFileName;
 
     /**
@@ -30,8 +71,9 @@ public class NativeLibraryLoader {
     }
 
     /**
-     * Unpacks the requested native library to a temporary folder.
-     * The folder is platform dependent. On Windows, it is generally %AppData%\Local\Temp.
+     * Unpacks the requested native library to the cache directory, unless an identical copy is there already.
+     * If the cache directory cannot be written or is not private, the library is unpacked to a temporary file of this
+     * JVM instead.
      *
      * @param libraryName name of a native library, e.g. 'klb' for 'klb.dll' on Windows and 'libklb.so' on Linux
      * @return path to unpacked library
@@ -43,40 +85,162 @@ public class NativeLibraryLoader {
         if (inStream == null)
             throw new IOException(String.format("[KLB] Native library %s not found as resource at %s", libraryName, resource));
 
-        File dst, tmp;
-        OutputStream outStream = null;
+        final byte[] content;
         try {
-            tmp = File.createTempFile("tmp-", "_" + libFileName);
-            dst = new File(tmp.getParentFile() + File.separator + libFileName);
-            tmp.delete();
-            if (dst.exists()) {
-                if (!dst.delete())
-                    return dst.getAbsolutePath();
-            }
-            dst.createNewFile();
-            dst.deleteOnExit();
-            outStream = new FileOutputStream(dst);
+            final ByteArrayOutputStream outStream = new ByteArrayOutputStream();
             copy(inStream, outStream);
+            content = outStream.toByteArray();
         } finally {
             inStream.close();
-            if (outStream != null)
-                outStream.close();
+        }
+
+        final String hash = sha256(content);
+        final File root = getCacheDirectory();
+        final File dir = new File(new File(root, CACHE_VERSION), hash);
+        if (!makePrivateDirectory(root) || !makePrivateDirectory(dir.getParentFile()) || !makePrivateDirectory(dir))
+            return unpackToTempFile(content);
+        final File dst = new File(dir, libFileName);
+        if (isCopy(dst, hash, content.length))
+            return dst.getAbsolutePath();
+
+        final File tmp;
+        try {
+            tmp = File.createTempFile("tmp-", "_" + libFileName, dir);
+        } catch (IOException e) {
+            return unpackToTempFile(content);
+        }
+        try {
+            write(content, tmp);
+            try {
+                Files.move(tmp.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), dst.toPath());
+            }
+        } catch (IOException e) {
+            // another JVM was faster (e.g. Windows does not replace a library that is in use)
+            if (!isCopy(dst, hash, content.length))
+                throw e;
+        } finally {
+            tmp.delete();
         }
         return dst.getAbsolutePath();
     }
 
     /**
-     * Unpacks and loads the requested native library.
+     * Loads the requested native library: from the path given by {@value #PATH_PROPERTY} if set, from
+     * java.library.path if {@value #PREFER_SYSTEM_PROPERTY} is true and it is found there, otherwise from the
+     * resources of the jar (see {@link #unpackFromResources(String)}).
      *
      * @param libraryName
+     * @return path of the loaded library, or the library name if it was loaded from java.library.path
      * @throws java.io.IOException
      */
     public String unpackAndLoadFromResources(final String libraryName) throws IOException {
+        final String override = System.getProperty(PATH_PROPERTY);
+        if (override != null && !override.isEmpty()) {
+            getResourcePath(libraryName);
+            File file = new File(override);
+            if (file.isDirectory())
+                file = new File(file, libFileName);
+            System.load(file.getAbsolutePath());
+            return file.getAbsolutePath();
+        }
+        if (Boolean.getBoolean(PREFER_SYSTEM_PROPERTY)) {
+            try {
+                System.loadLibrary(libraryName);
+                return libraryName;
+            } catch (UnsatisfiedLinkError e) {
+                // fall back to the bundled library
+            }
+        }
         final String filePath = unpackFromResources(libraryName);
         System.load(filePath);
         return filePath;
     }
 
+    /**
+     * @return root of the cache, the libraries go to [root]/{@value #CACHE_VERSION}/[hash]
+     */
+    private static File getCacheDirectory() {
+        final String cache = System.getProperty(CACHE_PROPERTY);
+        if (cache != null && !cache.isEmpty())
+            return new File(cache);
+        final String user = System.getProperty("user.name", "").replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(System.getProperty("java.io.tmpdir"), "klb-native-" + user);
+    }
+
+    /**
+     * Creates the directory (owner-only) if it does not exist yet.
+     *
+     * @return false if the directory cannot be created, belongs to another user or can be written by other users
+     */
+    private static boolean makePrivateDirectory(final File directory) {
+        final Path path = directory.toPath().toAbsolutePath();
+        try {
+            if (!Files.isDirectory(path)) {
+                if (Files.getFileAttributeView(path.getParent(), PosixFileAttributeView.class) != null)
+                    Files.createDirectory(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                else
+                    Files.createDirectory(path);
+            }
+        } catch (FileAlreadyExistsException e) {
+            // another JVM was faster, checked below
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+        try {
+            final PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+            if (view == null)
+                return Files.isDirectory(path); // e.g. Windows, where the temporary directory belongs to the user
+            final PosixFileAttributes attributes = view.readAttributes();
+            final UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+            final Set<PosixFilePermission> permissions = attributes.permissions();
+            return attributes.isDirectory() && attributes.owner().equals(user)
+                    && !permissions.contains(PosixFilePermission.GROUP_WRITE) && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if file exists and has the given length and content hash
+     */
+    private static boolean isCopy(final File file, final String hash, final long length) {
+        try {
+            return file.isFile() && file.length() == length && hash.equals(sha256(Files.readAllBytes(file.toPath())));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private String unpackToTempFile(final byte[] content) throws IOException {
+        final File dst = File.createTempFile("tmp-", "_" + libFileName);
+        dst.deleteOnExit();
+        write(content, dst);
+        return dst.getAbsolutePath();
+    }
+
+    private static String sha256(final byte[] content) throws IOException {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            final StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 16; ++i)
+                hex.append(String.format("%02x", digest[i]));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("[KLB] SHA-256 is not available", e);
+        }
+    }
+
+    private static void write(final byte[] content, final File file) throws IOException {
+        final OutputStream outStream = new FileOutputStream(file);
+        try {
+            outStream.write(content);
+        } finally {
+            outStream.close();
+        }
+    }
+
     private void copy(final InputStream in, final OutputStream out) throws IOException {
         final byte[] buffer = new byte[32 * 1024];
         int bytesRead = 0;
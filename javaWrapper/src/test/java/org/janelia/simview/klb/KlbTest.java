@@ -2,15 +2,34 @@ package org.janelia.simview.klb;
 
 import net.imagej.ImgPlus;
 import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.cell.CellImg;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.Views;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.*;
 
@@ -66,6 +85,35 @@ public class KlbTest
         assertEquals( 352, Math.round( mean ) );
     }
 
+    @Test
+    public void readFullPermuted()
+    {
+        final short[] xyz = new short[ 101 * 151 * 29 ];
+        ImgPlus img = null;
+        try {
+            klb.readFullInPlace( testReadFilePath, xyz );
+            img = klb.readFull( testReadFilePath, new int[]{ 2, 0, 1, 3, 4 }, null );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertNotNull( img );
+        assertTrue( img.getImg() instanceof ArrayImg );
+        final long[] dims = new long[ 3 ];
+        img.dimensions( dims );
+        assertArrayEquals( new long[]{ 29, 101, 151 }, dims );
+
+        final RandomAccess< ? extends RealType< ? > > ra = img.randomAccess();
+        for ( int z = 0; z < 29; z += 7 ) {
+            for ( int y = 0; y < 151; y += 5 ) {
+                for ( int x = 0; x < 101; ++x ) {
+                    ra.setPosition( new long[]{ z, x, y } );
+                    assertEquals( xyz[ x + 101 * ( y + 151 * z ) ] & 0xffff, ( int ) ra.get().getRealDouble() );
+                }
+            }
+        }
+    }
+
     @Test
     public void readCellImgFull()
     {
@@ -96,6 +144,68 @@ public class KlbTest
         assertEquals( 1025, Math.round( mean ) );
     }
 
+    @Test
+    public void readOffHeapFull()
+            throws IOException
+    {
+        final ImgPlus img = klb.readFullOffHeap( testReadFilePath );
+        assertTrue( img.getImg() instanceof CellImg );
+        assertEquals( 3, img.numDimensions() );
+
+        final long[] dims = new long[ 3 ];
+        img.dimensions( dims );
+        assertArrayEquals( new long[]{ 101, 151, 29 }, dims );
+
+        double mean = 0;
+        final long n = dims[ 0 ] * dims[ 1 ] * dims[ 2 ];
+        final Cursor< ? extends RealType< ? > > cur = img.cursor();
+        while ( cur.hasNext() ) {
+            mean += cur.next().getRealDouble() / n;
+        }
+        assertEquals( 352, Math.round( mean ) );
+
+        // chunks smaller than a plane, the last chunk of each plane is shorter
+        final KLB.Header header = klb.readHeader( testReadFilePath );
+        final KlbOffHeapImg offHeap = new KlbOffHeapImg( header.imageSize, header.dataType, 10000 );
+        assertTrue( offHeap.getChunks().length > dims[ 2 ] );
+        klb.readFullInPlace( testReadFilePath, offHeap.getChunks(), offHeap.getChunkSizeBytes(), offHeap.getChunkPeriodBytes(), null );
+        final byte[] expected = new byte[ ( int ) n * 2 ];
+        klb.readFullInPlace( testReadFilePath, expected );
+        final byte[] actual = new byte[ expected.length ];
+        int offset = 0;
+        for ( final ByteBuffer chunk : offHeap.getChunks() ) {
+            final int length = chunk.capacity();
+            chunk.duplicate().get( actual, offset, length );
+            offset += length;
+        }
+        assertEquals( expected.length, offset );
+        assertArrayEquals( expected, actual );
+    }
+
+    @Test
+    public void readStrategies()
+            throws IOException
+    {
+        final long[] min = { 15, 15, 9, 0, 0 }, max = { 99, 99, 11, 0, 0 };
+        final short[] expectedFull = new short[ 101 * 151 * 29 ], expectedROI = new short[ 85 * 85 * 3 ];
+        klb.setReadStrategy( KLB.ReadStrategy.PER_BLOCK );
+        klb.readFullInPlace( testReadFilePath, expectedFull );
+        klb.readROIinPlace( testReadFilePath, min, max, expectedROI );
+
+        try {
+            for ( final KLB.ReadStrategy strategy : KLB.ReadStrategy.values() ) {
+                klb.setReadStrategy( strategy );
+                final short[] full = new short[ expectedFull.length ], roi = new short[ expectedROI.length ];
+                klb.readFullInPlace( testReadFilePath, full );
+                klb.readROIinPlace( testReadFilePath, min, max, roi );
+                assertArrayEquals( strategy.toString(), expectedFull, full );
+                assertArrayEquals( strategy.toString(), expectedROI, roi );
+            }
+        } finally {
+            klb.setReadStrategy( KLB.ReadStrategy.AUTO );
+        }
+    }
+
     @Test
     public void readArrayImgFullInPlace()
     {
@@ -244,6 +354,704 @@ public class KlbTest
         assertEquals( 7, Math.round( (( RealType ) img.firstElement()).getRealDouble() ) );
     }
 
+    @Test
+    public void readSampledROIinPlace()
+    {
+        final long[] min = { 15, 15, 9, 0, 0 }, max = { 99, 99, 11, 0, 0 };
+        final long[] step = { 4, 3, 2, 1, 1 }, bin = { 2, 3, 1, 1, 1 };
+        final long[] size = new long[ 5 ], sampledSize = KLB.getSampledSize( min, max, step );
+        KlbFileHeader header = null;
+        byte[] full = null, sampled = null;
+        try {
+            header = KlbFileHeader.read( new File( testReadFilePath ).toPath(), false );
+            for ( int d = 0; d < 5; ++d ) {
+                size[ d ] = 1 + max[ d ] - min[ d ];
+            }
+            full = new byte[ ( int ) (size[ 0 ] * size[ 1 ] * size[ 2 ]) * header.bytesPerPixel() ];
+            sampled = new byte[ ( int ) (sampledSize[ 0 ] * sampledSize[ 1 ] * sampledSize[ 2 ]) * header.bytesPerPixel() ];
+            klb.readROIinPlace( testReadFilePath, min, max, full );
+            klb.readROIinPlace( testReadFilePath, min, max, step, bin, sampled, null );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertNotNull( sampled );
+        assertArrayEquals( new long[]{ 22, 29, 2, 1, 1 }, sampledSize );
+        final PixelAccess in = PixelAccess.wrap( full, header.dataType ), out = PixelAccess.wrap( sampled, header.dataType );
+        int i = 0;
+        for ( int z = 0; z < sampledSize[ 2 ]; ++z ) {
+            for ( int y = 0; y < sampledSize[ 1 ]; ++y ) {
+                for ( int x = 0; x < sampledSize[ 0 ]; ++x ) {
+                    double sum = 0;
+                    int n = 0;
+                    for ( long yy = y * step[ 1 ]; yy < Math.min( size[ 1 ], y * step[ 1 ] + bin[ 1 ] ); ++yy ) {
+                        for ( long xx = x * step[ 0 ]; xx < Math.min( size[ 0 ], x * step[ 0 ] + bin[ 0 ] ); ++xx ) {
+                            sum += in.get( ( int ) ((z * step[ 2 ] * size[ 1 ] + yy) * size[ 0 ] + xx) );
+                            n++;
+                        }
+                    }
+                    assertEquals( Math.round( sum / n ), out.get( i++ ), 0 );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void readROIintoMosaic()
+    {
+        // two 40 x 30 x 5 tiles of the image side by side in x, at offset (2, 1, 0) of a 90 x 35 x 5 mosaic
+        final long[] min1 = { 0, 0, 10, 0, 0 }, max1 = { 39, 29, 14, 0, 0 };
+        final long[] min2 = { 50, 100, 10, 0, 0 }, max2 = { 89, 129, 14, 0, 0 };
+        final long[] strides = { 1, 90, 90 * 35, 0, 0 };
+        final short[] tile1 = new short[ 40 * 30 * 5 ], tile2 = new short[ tile1.length ], mosaic = new short[ 90 * 35 * 5 ];
+        boolean exceeds = false;
+        try {
+            klb.readROIinPlace( testReadFilePath, min1, max1, tile1 );
+            klb.readROIinPlace( testReadFilePath, min2, max2, tile2 );
+            Arrays.fill( mosaic, ( short ) -1 );
+            klb.readROIinPlace( testReadFilePath, min1, max1, mosaic, 2 + 90, strides, null );
+            klb.readROIinPlace( testReadFilePath, min2, max2, mosaic, 2 + 40 + 90, strides, null );
+            try {
+                klb.readROIinPlace( testReadFilePath, min1, max1, mosaic, 90 * 10, strides, null );
+            } catch ( IOException e ) {
+                exceeds = true;
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertTrue( exceeds );
+        int outside = 0;
+        for ( int z = 0; z < 5; ++z ) {
+            for ( int y = 0; y < 35; ++y ) {
+                for ( int x = 0; x < 90; ++x ) {
+                    final short v = mosaic[ x + 90 * ( y + 35 * z ) ];
+                    if ( x < 2 || x >= 82 || y < 1 || y >= 31 ) {
+                        outside += v == -1 ? 0 : 1;
+                    } else if ( x < 42 ) {
+                        assertEquals( tile1[ x - 2 + 40 * ( y - 1 + 30 * z ) ], v );
+                    } else {
+                        assertEquals( tile2[ x - 42 + 40 * ( y - 1 + 30 * z ) ], v );
+                    }
+                }
+            }
+        }
+        assertEquals( 0, outside );
+    }
+
+    @Test
+    public void readConverted()
+    {
+        final long[] min = { 10, 20, 5, 0, 0 }, max = { 59, 49, 9, 0, 0 };
+        final short[] stored = new short[ 50 * 30 * 5 ];
+        final float[] converted = new float[ stored.length ];
+        final double[] convertedDouble = new double[ stored.length ];
+        try {
+            klb.readROIinPlace( testReadFilePath, min, max, stored );
+            klb.readROIinPlace( testReadFilePath, min, max, converted, 0.5, -100, null );
+            klb.readROIinPlace( testReadFilePath, min, max, convertedDouble, 2, 1, null );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        for ( int i = 0; i < stored.length; ++i ) {
+            final int v = stored[ i ] & 0xffff;
+            assertEquals( v * 0.5f - 100, converted[ i ], 1e-3 );
+            assertEquals( v * 2.0 + 1, convertedDouble[ i ], 1e-9 );
+        }
+    }
+
+    @Test
+    public void reduce()
+    {
+        final long[] min = { 15, 15, 9, 0, 0 }, max = { 99, 99, 11, 0, 0 };
+        KlbReducer.Statistics statistics = null;
+        KlbReducer.Projection mip = null;
+        try {
+            final KlbReducer reducer = new KlbReducer( testReadFilePath, min, max );
+            statistics = reducer.addStatistics();
+            mip = reducer.addProjection( KlbReducer.ProjectionType.MAX, 2 );
+            reducer.run();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertNotNull( statistics );
+        assertEquals( 85 * 85 * 3, statistics.getCount() );
+        assertEquals( 568, Math.round( statistics.getMean() ) );
+        assertArrayEquals( new long[]{ 85, 85, 1, 1, 1 }, mip.getSize() );
+        double projectedMax = Double.NEGATIVE_INFINITY;
+        for ( final double v : mip.getData() ) {
+            projectedMax = Math.max( projectedMax, v );
+        }
+        assertEquals( statistics.getMax(), projectedMax, 0 );
+    }
+
+    @Test
+    public void blockStatsAndThresholdedRead()
+    {
+        // 64 x 64 image in 16 x 16 blocks, only the block at (16, 16) is not background
+        final short[] img = new short[ 64 * 64 ];
+        for ( int y = 16; y < 32; ++y ) {
+            for ( int x = 16; x < 32; ++x ) {
+                img[ y * 64 + x ] = ( short ) (x + y);
+            }
+        }
+        img[ 0 ] = 7;
+        KlbBlockStats stats = null;
+        final short[] out = new short[ img.length ];
+        try {
+            klb.writeFull( img, testWriteFilePath, new long[]{ 64, 64, 1, 1, 1 }, new UnsignedShortType(), null, new long[]{ 16, 16, 1, 1, 1 }, KLB.CompressionType.BZIP2, null );
+            stats = KlbBlockStats.read( testWriteFilePath );
+            klb.readROIinPlace( testWriteFilePath, new long[ 5 ], new long[]{ 63, 63, 0, 0, 0 }, 10, out, null );
+            new File( testWriteFilePath ).delete();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertNotNull( stats );
+        assertEquals( 16, stats.getNumBlocks() );
+        assertArrayEquals( new int[]{ 5 }, stats.blocksWhere( ( min, max, nonZeroCount ) -> max > 10 ) );
+        assertEquals( 32, stats.getMin( 5 ), 0 );
+        assertEquals( 62, stats.getMax( 5 ), 0 );
+        assertEquals( 1, stats.getNonZeroCount( 0 ) );
+        for ( int i = 0; i < img.length; ++i ) {
+            assertEquals( img[ i ] < 10 ? 0 : img[ i ], out[ i ] );
+        }
+    }
+
+    @Test
+    public void constantBlocks()
+    {
+        // 64 x 64 image in 16 x 16 blocks: background, a constant block of 258 (bytes differ) and a ramp
+        final short[] img = new short[ 64 * 64 ];
+        for ( int y = 0; y < 16; ++y ) {
+            for ( int x = 0; x < 16; ++x ) {
+                img[ (y + 16) * 64 + x + 16 ] = 258;
+                img[ (y + 48) * 64 + x + 32 ] = ( short ) (x * y);
+            }
+        }
+        final short[] full = new short[ img.length ], compatible = new short[ img.length ];
+        final short[] roi = new short[ 20 * 20 ];
+        long fileSize = 0;
+        byte version = 0, compatibleVersion = 0;
+        try {
+            // opt-in, older readers fail on constant blocks
+            final KLB constant = klb.with( klb.getWriteOptions().withConstantBlocks( true ) );
+            constant.writeFull( img, testWriteFilePath, new long[]{ 64, 64, 1, 1, 1 }, new UnsignedShortType(), null, new long[]{ 16, 16, 1, 1, 1 }, KLB.CompressionType.BZIP2, null );
+            fileSize = new File( testWriteFilePath ).length();
+            version = Files.readAllBytes( Paths.get( testWriteFilePath ) )[ 0 ];
+            klb.readFullInPlace( testWriteFilePath, full );
+            klb.readROIinPlace( testWriteFilePath, new long[]{ 10, 10, 0, 0, 0 }, new long[]{ 29, 29, 0, 0, 0 }, roi );
+
+            klb.writeFull( img, testWriteFilePath, new long[]{ 64, 64, 1, 1, 1 }, new UnsignedShortType(), null, new long[]{ 16, 16, 1, 1, 1 }, KLB.CompressionType.BZIP2, null );
+            compatibleVersion = Files.readAllBytes( Paths.get( testWriteFilePath ) )[ 0 ];
+            klb.readFullInPlace( testWriteFilePath, compatible );
+            new File( testWriteFilePath ).delete();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertEquals( 4, version );
+        assertEquals( 3, compatibleVersion );
+        assertArrayEquals( img, full );
+        assertArrayEquals( img, compatible );
+        for ( int y = 0; y < 20; ++y ) {
+            for ( int x = 0; x < 20; ++x ) {
+                assertEquals( img[ (y + 10) * 64 + x + 10 ], roi[ y * 20 + x ] );
+            }
+        }
+        // header, one ramp block and 2 bytes for each of the 15 constant blocks, statistics and flags
+        assertTrue( fileSize < 319 + 16 * 8 + 1024 );
+    }
+
+    @Test
+    public void transcode()
+    {
+        final KlbTranscoder transcoder = new KlbTranscoder();
+        transcoder.setCompressionType( KLB.CompressionType.ZLIB );
+        transcoder.setBlockSize( new long[]{ 50, 40, 2, 1, 1 } );
+        short[] original = null, transcoded = null;
+        KLB.Header header = null;
+        try {
+            original = new short[ 101 * 151 * 29 ];
+            klb.readFullInPlace( testReadFilePath, original );
+            transcoder.transcode( testReadFilePath, testWriteFilePath );
+            header = klb.readHeader( testWriteFilePath );
+            transcoded = new short[ original.length ];
+            klb.readFullInPlace( testWriteFilePath, transcoded );
+            new File( testWriteFilePath ).delete();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertNotNull( header );
+        assertEquals( KLB.CompressionType.ZLIB, header.compressionType );
+        assertArrayEquals( new long[]{ 50, 40, 2, 1, 1 }, header.blockSize );
+        assertArrayEquals( original, transcoded );
+    }
+
+    @Test
+    public void extract()
+    {
+        final long[] min = { 0, 0, 0, 0, 0 }, max = { 60, 100, 20, 0, 0 };
+        final short[] roi = new short[ 61 * 101 * 21 ], extracted = new short[ roi.length ];
+        KLB.Header header = null;
+        try {
+            klb.readROIinPlace( testReadFilePath, min, max, roi );
+            klb.extract( testReadFilePath, min, max, testWriteFilePath );
+            header = klb.readHeader( testWriteFilePath );
+            klb.readFullInPlace( testWriteFilePath, extracted );
+            new File( testWriteFilePath ).delete();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertNotNull( header );
+        assertArrayEquals( new long[]{ 61, 101, 21, 1, 1 }, header.imageSize );
+        assertArrayEquals( roi, extracted );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void pyramid()
+    {
+        // odd sizes: the last pixel along x, y and z is averaged alone
+        final long[] size = { 37, 23, 9, 1, 1 }, blockSize = { 8, 8, 2, 1, 1 };
+        final short[] img = new short[ 37 * 23 * 9 ];
+        for ( int i = 0; i < img.length; ++i ) {
+            img[ i ] = ( short ) ((i % 37) * 7 + (i / 37 % 23) * 13 + (i / (37 * 23)) * 31);
+        }
+        final long[] size1 = { 19, 12, 5, 1, 1 }, size2 = { 10, 6, 3, 1, 1 };
+        final short[] level1 = downsampleMean( img, size, size1 ), level2 = downsampleMean( level1, size1, size2 );
+        final short[] written1 = new short[ level1.length ], written2 = new short[ level2.length ];
+        List< String > levelPaths = null;
+        KlbPyramid pyramid = null;
+        ImgPlus roi = null, roiAuto = null;
+        try {
+            klb.writeFull( img, testWriteFilePath, size, new UnsignedShortType(), new float[]{ 0.5f, 0.5f, 2, 1, 1 }, blockSize, KLB.CompressionType.BZIP2, null );
+            levelPaths = new KlbPyramidWriter( klb ).write( testWriteFilePath );
+            klb.readFullInPlace( levelPaths.get( 0 ), written1 );
+            klb.readFullInPlace( levelPaths.get( 1 ), written2 );
+            pyramid = new KlbPyramid( klb, testWriteFilePath );
+            roi = pyramid.readROI( 2, new long[]{ 8, 4, 4, 0, 0 }, new long[]{ 20, 15, 8, 0, 0 } );
+            roiAuto = pyramid.readROI( new long[]{ 8, 4, 4, 0, 0 }, new long[]{ 20, 15, 8, 0, 0 }, new long[]{ 6, 6, 2, 1, 1 } );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+        if ( levelPaths != null ) {
+            for ( final String levelPath : levelPaths ) {
+                new File( levelPath ).delete();
+            }
+        }
+        new File( testWriteFilePath ).delete();
+
+        // 37 x 23 x 9 -> 19 x 12 x 5 -> 10 x 6 x 3 -> 5 x 3 x 2, which fits in a block
+        assertNotNull( pyramid );
+        assertEquals( 3, levelPaths.size() );
+        assertEquals( 4, pyramid.getNumLevels() );
+        assertArrayEquals( level1, written1 );
+        assertArrayEquals( level2, written2 );
+        assertArrayEquals( new long[]{ 4, 4, 4, 1, 1 }, pyramid.getScale( 2 ) );
+        assertArrayEquals( new long[]{ 5, 3, 2, 1, 1 }, pyramid.getHeader( 3 ).imageSize );
+
+        assertEquals( 2, pyramid.selectLevel( new long[]{ 10, 6, 3, 1, 1 } ) );
+        assertEquals( 1, pyramid.selectLevel( new long[]{ 11, 6, 3, 1, 1 } ) );
+        assertEquals( 0, pyramid.selectLevel( new long[]{ 37, 23, 9, 1, 1 } ) );
+        assertEquals( 2, pyramid.selectLevel( new float[]{ 2, 2, 8, 1, 1 } ) );
+        assertEquals( 0, pyramid.selectLevel( new float[]{ 0.5f, 0.5f, 2, 1, 1 } ) );
+
+        // level 0 pixels 8..20, 4..15, 4..8 are level 2 pixels 2..5, 1..3, 1..2
+        assertEquals( 3, roi.numDimensions() );
+        assertEquals( 4, roi.dimension( 0 ) );
+        assertEquals( 3, roi.dimension( 1 ) );
+        assertEquals( 2, roi.dimension( 2 ) );
+        final Cursor< ? extends RealType< ? > > cursor = Views.flatIterable( roi ).cursor();
+        for ( int z = 1; z <= 2; ++z ) {
+            for ( int y = 1; y <= 3; ++y ) {
+                for ( int x = 2; x <= 5; ++x ) {
+                    assertEquals( level2[ (z * 6 + y) * 10 + x ], ( int ) cursor.next().getRealDouble() );
+                }
+            }
+        }
+        // the coarsest level that still has 6 x 6 x 2 pixels for the subvolume is level 1 (7 x 6 x 3 pixels)
+        assertEquals( 7, roiAuto.dimension( 0 ) );
+        assertEquals( 6, roiAuto.dimension( 1 ) );
+        assertEquals( 3, roiAuto.dimension( 2 ) );
+    }
+
+    @Test
+    public void appendTimepoint()
+    {
+        final long[] imageSize = { 101, 151, 29, 1, 1 };
+        final short[] first = new short[ 101 * 151 * 29 ], second = new short[ first.length ], both = new short[ 2 * first.length ];
+        KLB.Header header = null;
+        try {
+            klb.readFullInPlace( testReadFilePath, first );
+            for ( int i = 0; i < first.length; ++i ) {
+                second[ i ] = ( short ) (first[ i ] / 2);
+            }
+            klb.writeFull( first, testWriteFilePath, imageSize, new UnsignedShortType(), null, new long[]{ 64, 64, 8, 1, 1 }, KLB.CompressionType.BZIP2, null );
+            klb.appendTimepoint( testWriteFilePath, second, null );
+            header = klb.readHeader( testWriteFilePath );
+            klb.readFullInPlace( testWriteFilePath, both );
+            new File( testWriteFilePath ).delete();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertNotNull( header );
+        assertEquals( 2, header.imageSize[ 4 ] );
+        assertArrayEquals( first, Arrays.copyOf( both, first.length ) );
+        assertArrayEquals( second, Arrays.copyOfRange( both, first.length, both.length ) );
+    }
+
+    @Test
+    public void appendedTimepointsInCatalogAndReducer()
+    {
+        final long[] imageSize = { 40, 30, 6, 1, 1 };
+        final short[] first = new short[ 40 * 30 * 6 ], second = new short[ first.length ];
+        for ( int i = 0; i < first.length; ++i ) {
+            first[ i ] = ( short ) (i % 1000);
+            second[ i ] = ( short ) (2000 + i % 7);
+        }
+        KLB.Header header = null, entryHeader = null;
+        KlbCatalog.Entry entry = null, indexed = null;
+        KlbReducer.Statistics all = null, appended = null;
+        KlbBlockStats stats = null;
+        try {
+            final Path root = Files.createTempDirectory( "klb" );
+            final String filePath = root.resolve( "series.klb" ).toString();
+            final Path index = root.resolve( KlbCatalog.DEFAULT_INDEX_NAME );
+            klb.writeFull( first, filePath, imageSize, new UnsignedShortType(), null, new long[]{ 16, 16, 4, 1, 1 }, KLB.CompressionType.BZIP2, null );
+            klb.appendTimepoint( filePath, second, null );
+            header = klb.readHeader( filePath );
+
+            entry = KlbCatalog.open( root, index, true ).get( "series.klb" );
+            entryHeader = entry.toHeader( klb );
+            // served from the index
+            indexed = KlbCatalog.open( root, index, true ).get( "series.klb" );
+
+            KlbReducer reducer = new KlbReducer( filePath );
+            all = reducer.addStatistics();
+            reducer.run();
+            reducer = new KlbReducer( filePath, new long[]{ 0, 0, 0, 0, 1 }, new long[]{ 39, 29, 5, 0, 1 } );
+            appended = reducer.addStatistics();
+            reducer.run();
+
+            stats = KlbBlockStats.read( filePath );
+
+            Files.delete( index );
+            Files.delete( Paths.get( filePath ) );
+            Files.delete( root );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertNotNull( header );
+        assertEquals( 2, header.imageSize[ 4 ] );
+        assertNotNull( entry );
+        assertArrayEquals( header.imageSize, entry.getImageSize() );
+        assertArrayEquals( header.imageSize, entryHeader.imageSize );
+        assertArrayEquals( header.imageSize, indexed.getImageSize() );
+
+        assertNotNull( appended );
+        assertEquals( 2 * first.length, all.getCount() );
+        assertEquals( 2006, all.getMax(), 0 );
+        assertEquals( first.length, appended.getCount() );
+        assertEquals( 2000, appended.getMin(), 0 );
+        assertEquals( 2006, appended.getMax(), 0 );
+
+        // 3 x 2 x 2 blocks per timepoint
+        assertNotNull( stats );
+        assertEquals( 24, stats.getNumBlocks() );
+        assertArrayEquals( new long[]{ 0, 0, 0, 0, 1 }, stats.getBlockMin( 12 ) );
+        assertEquals( 2000, stats.getMin( 12 ), 0 );
+        assertEquals( 2006, stats.getMax( 23 ), 0 );
+    }
+
+    @Test
+    @SuppressWarnings( "unchecked" )
+    public void writeInterval()
+    {
+        final long[] min = { 10, 20, 5, 0, 0 }, max = { 69, 59, 9, 0, 0 };
+        final short[] expected = new short[ 60 * 40 * 5 ], written = new short[ expected.length ];
+        try {
+            final ImgPlus img = klb.readFull( testReadFilePath );
+            final IntervalView view = Views.interval( img.getImg(), new long[]{ 10, 20, 5 }, new long[]{ 69, 59, 9 } );
+            klb.setNumThreads( 3 );
+            klb.writeFull( view, testWriteFilePath, null, new long[]{ 16, 16, 2, 1, 1 }, KLB.CompressionType.ZLIB, null, null );
+            klb.readROIinPlace( testReadFilePath, min, max, expected );
+            klb.readFullInPlace( testWriteFilePath, written );
+            assertArrayEquals( new long[ 0 ], klb.verify( testWriteFilePath ) );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+        assertArrayEquals( expected, written );
+        new File( testWriteFilePath ).delete();
+    }
+
+    @Test
+    public void writeROI()
+    {
+        final long[] imageSize = { 101, 151, 29, 1, 1 };
+        final long[] min = { 50, 40, 5, 0, 0 }, max = { 89, 99, 12, 0, 0 };
+        final short[] expected = new short[ 101 * 151 * 29 ], roi = new short[ 40 * 60 * 8 ], image = new short[ expected.length ];
+        try {
+            klb.readFullInPlace( testReadFilePath, expected );
+            klb.writeFull( expected, testWriteFilePath, imageSize, new UnsignedShortType(), null, new long[]{ 64, 64, 8, 1, 1 }, KLB.CompressionType.BZIP2, null );
+            int i = 0;
+            for ( int z = 5; z <= 12; ++z ) {
+                for ( int y = 40; y <= 99; ++y ) {
+                    for ( int x = 50; x <= 89; ++x ) {
+                        roi[ i ] = ( short ) i;
+                        expected[ (z * 151 + y) * 101 + x ] = roi[ i++ ];
+                    }
+                }
+            }
+            klb.writeROI( testWriteFilePath, min, max, roi, null );
+            klb.readFullInPlace( testWriteFilePath, image );
+            new File( testWriteFilePath ).delete();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertArrayEquals( expected, image );
+    }
+
+    @Test
+    public void mortonBlockOrder()
+    {
+        final long[] imageSize = { 101, 151, 29, 1, 1 }, blockSize = { 16, 16, 4, 1, 1 };
+        final long[] min = { 20, 30, 6, 0, 0 }, max = { 60, 90, 17, 0, 0 };
+        final short[] expected = new short[ 101 * 151 * 29 ], image = new short[ expected.length ];
+        final short[] expectedRoi = new short[ 41 * 61 * 12 ], roi = new short[ expectedRoi.length ];
+        byte[] file = null, stream = null;
+        long[] corrupt = null;
+        try {
+            final KLB morton = klb.with( klb.getWriteOptions().withBlockOrder( KLB.BlockOrder.MORTON ) );
+            assertEquals( KLB.BlockOrder.MORTON, morton.getBlockOrder() );
+            klb.readFullInPlace( testReadFilePath, expected );
+            klb.readROIinPlace( testReadFilePath, min, max, expectedRoi );
+            morton.writeFull( expected, testWriteFilePath, imageSize, new UnsignedShortType(), null, blockSize, KLB.CompressionType.BZIP2, null );
+            klb.readFullInPlace( testWriteFilePath, image );
+            klb.readROIinPlace( testWriteFilePath, min, max, roi );
+            corrupt = klb.verify( testWriteFilePath );
+            file = Files.readAllBytes( Paths.get( testWriteFilePath ) );
+
+            // not seekable: the offsets of the first pass have to match
+            final ByteBuffer buffer = ByteBuffer.allocate( 2 * expected.length ).order( ByteOrder.nativeOrder() );
+            buffer.asShortBuffer().put( expected );
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            morton.writeFull( buffer.array(), out, imageSize, new UnsignedShortType(), null, blockSize, KLB.CompressionType.BZIP2, null, null );
+            stream = out.toByteArray();
+            new File( testWriteFilePath ).delete();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertNotNull( file );
+        assertEquals( 5, file[ 0 ] );
+        assertArrayEquals( expected, image );
+        assertArrayEquals( expectedRoi, roi );
+        assertArrayEquals( new long[ 0 ], corrupt );
+        assertArrayEquals( file, stream );
+    }
+
+    @Test
+    public void writeToChannel()
+    {
+        final long[] imageSize = { 101, 151, 29, 1, 1 }, blockSize = { 64, 64, 8, 1, 1 };
+        final short[] img = new short[ 101 * 151 * 29 ];
+        byte[] file = null, stream = null, channel = null;
+        try {
+            klb.readFullInPlace( testReadFilePath, img );
+            final ByteBuffer buffer = ByteBuffer.allocate( 2 * img.length ).order( ByteOrder.nativeOrder() );
+            buffer.asShortBuffer().put( img );
+            klb.writeFull( buffer.array(), testWriteFilePath, imageSize, new UnsignedShortType(), null, blockSize, KLB.CompressionType.BZIP2, null );
+            file = Files.readAllBytes( Paths.get( testWriteFilePath ) );
+
+            // not seekable: compressed twice, written block by block
+            klb.setWriteBufferSize( 0 );
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            klb.writeFull( buffer.array(), out, imageSize, new UnsignedShortType(), null, blockSize, KLB.CompressionType.BZIP2, null, null );
+            stream = out.toByteArray();
+            klb.setWriteBufferSize( 500L * 1024 * 1024 );
+
+            // seekable: offsets are written back, relative to the position of the channel
+            try ( final FileChannel fileChannel = FileChannel.open( Paths.get( testWriteFilePath ), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ) ) {
+                fileChannel.write( ByteBuffer.wrap( new byte[ 10 ] ) );
+                klb.writeFull( buffer.array(), fileChannel, imageSize, new UnsignedShortType(), null, blockSize, KLB.CompressionType.BZIP2, null );
+            }
+            channel = Files.readAllBytes( Paths.get( testWriteFilePath ) );
+            new File( testWriteFilePath ).delete();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertNotNull( channel );
+        assertArrayEquals( file, stream );
+        assertArrayEquals( file, Arrays.copyOfRange( channel, 10, channel.length ) );
+    }
+
+    @Test
+    public void readFromSource()
+    {
+        final long[] min = { 10, 20, 3, 0, 0 }, max = { 70, 100, 20, 0, 0 };
+        final byte[] img = new byte[ 2 * 101 * 151 * 29 ], roi = new byte[ 2 * 61 * 81 * 18 ];
+        byte[] fromArray = null, fromBuffer = null, fromChannel = null, roiFromChannel = null;
+        KLB.Header header = null;
+        try {
+            klb.readFullInPlace( testReadFilePath, img );
+            klb.readROIinPlace( testReadFilePath, min, max, roi );
+
+            final byte[] file = Files.readAllBytes( Paths.get( testReadFilePath ) );
+            fromArray = new byte[ img.length ];
+            klb.readFullInPlace( KlbSource.wrap( file ), fromArray );
+
+            final ByteBuffer direct = ByteBuffer.allocateDirect( file.length );
+            direct.put( file ).flip();
+            header = klb.readHeader( KlbSource.wrap( direct ) );
+            fromBuffer = new byte[ img.length ];
+            klb.readFullInPlace( KlbSource.wrap( direct ), fromBuffer );
+
+            try ( final FileChannel channel = FileChannel.open( Paths.get( testReadFilePath ) ) ) {
+                fromChannel = new byte[ img.length ];
+                klb.readFullInPlace( KlbSource.wrap( channel ), fromChannel );
+                roiFromChannel = new byte[ roi.length ];
+                klb.readROIinPlace( KlbSource.wrap( channel ), min, max, roiFromChannel );
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertNotNull( header );
+        assertArrayEquals( new long[] { 101, 151, 29, 1, 1 }, header.imageSize );
+        assertArrayEquals( img, fromArray );
+        assertArrayEquals( img, fromBuffer );
+        assertArrayEquals( img, fromChannel );
+        assertArrayEquals( roi, roiFromChannel );
+    }
+
+    @Test
+    public void verify()
+    {
+        final short[] img = new short[ 101 * 151 * 29 ];
+        long[] intact = null, corrupt = null;
+        try {
+            klb.readFullInPlace( testReadFilePath, img );
+            klb.writeFull( img, testWriteFilePath, new long[]{ 101, 151, 29, 1, 1 }, new UnsignedShortType(), null, new long[]{ 64, 64, 8, 1, 1 }, KLB.CompressionType.BZIP2, null );
+            intact = klb.verify( testWriteFilePath );
+            try ( final RandomAccessFile file = new RandomAccessFile( testWriteFilePath, "rw" ) ) {
+                final long position = file.length() / 2;
+                file.seek( position );
+                final int value = file.read();
+                file.seek( position );
+                file.write( value ^ 1 );
+            }
+            corrupt = klb.verify( testWriteFilePath );
+            new File( testWriteFilePath ).delete();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertNotNull( intact );
+        assertEquals( 0, intact.length );
+        assertNotNull( corrupt );
+        assertEquals( 1, corrupt.length );
+    }
+
+    @Test
+    public void sharedInstance()
+            throws Exception
+    {
+        final KLB.ReadOptions options = klb.getReadOptions();
+        final KLB single = klb.with( options.withNumThreads( 1 ).withReadStrategy( KLB.ReadStrategy.PRELOAD ) );
+        assertEquals( 1, single.getNumThreads() );
+        assertEquals( KLB.ReadStrategy.PRELOAD, single.getReadStrategy() );
+        assertSame( options, klb.getReadOptions() );
+        assertSame( klb.getWriteOptions(), single.getWriteOptions() );
+
+        // the same instance used from several threads at once, with and without options of their own
+        final short[] expected = new short[ 101 * 151 * 29 ];
+        klb.readFullInPlace( testReadFilePath, expected );
+        final ExecutorService executor = Executors.newFixedThreadPool( 8 );
+        try {
+            final List< Future< Boolean > > results = new ArrayList< Future< Boolean > >();
+            for ( int i = 0; i < 32; ++i ) {
+                final int z = i % 29, numThreads = i % 4;
+                results.add( executor.submit( () -> {
+                    final short[] plane = new short[ 101 * 151 ];
+                    final KLB reader = numThreads == 0 ? klb : klb.with( options.withNumThreads( numThreads ) );
+                    reader.readROIinPlace( testReadFilePath, new long[]{ 0, 0, z, 0, 0 }, new long[]{ 100, 150, z, 0, 0 }, plane );
+                    return Arrays.equals( plane, Arrays.copyOfRange( expected, plane.length * z, plane.length * (z + 1) ) );
+                } ) );
+            }
+            for ( final Future< Boolean > result : results ) {
+                assertTrue( result.get() );
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void readWithProgress()
+    {
+        final KlbProgress progress = new KlbProgress();
+        ImgPlus img = null;
+        try {
+            img = klb.readFull( testReadFilePath, progress );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertNotNull( img );
+        assertTrue( progress.getBlocksTotal() > 0 );
+        assertEquals( progress.getBlocksTotal(), progress.getBlocksDone() );
+    }
+
+    @Test
+    public void cancelRead()
+    {
+        final KlbProgress progress = new KlbProgress();
+        progress.cancel();
+        try {
+            klb.readFull( testReadFilePath, progress );
+            fail( "Cancelled read did not throw." );
+        } catch ( InterruptedIOException e ) {
+            assertTrue( progress.isCancelled() );
+        } catch ( IOException e ) {
+            fail( e.getMessage() );
+        }
+        assertEquals( 0, progress.getBlocksDone() );
+    }
+
+    @Test
+    public void catalog()
+    {
+        KlbCatalog.Entry entry = null;
+        KLB.Header header = null;
+        try {
+            final Path index = Files.createTempFile( "klb", ".klbcatalog" );
+            Files.delete( index );
+            KlbCatalog.open( new File( testReadFilePath ).getParentFile().toPath(), index, false );
+            // second open is served from the index
+            entry = KlbCatalog.open( new File( testReadFilePath ).getParentFile().toPath(), index, false ).get( "img.klb" );
+            header = klb.readHeader( testReadFilePath );
+            Files.delete( index );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+
+        assertNotNull( entry );
+        assertNotNull( header );
+        assertArrayEquals( header.imageSize, entry.getImageSize() );
+        assertArrayEquals( header.blockSize, entry.getBlockSize() );
+        assertEquals( header.compressionType, entry.getCompressionType() );
+        assertEquals( new File( testReadFilePath ).length(), entry.getFileSize() );
+    }
+
     @Test
     public void write()
     {
@@ -299,4 +1107,32 @@ public class KlbTest
             new File( testWriteFilePath ).delete();
         }
     }
+
+    /**
+     * 2x2x2 mean of an unsigned 16 bit image of size xyz11, rounded, as computed by KlbPyramidWriter
+     */
+    private static short[] downsampleMean( final short[] in, final long[] inSize, final long[] outSize )
+    {
+        final int inX = ( int ) inSize[ 0 ], inY = ( int ) inSize[ 1 ], inZ = ( int ) inSize[ 2 ];
+        final int outX = ( int ) outSize[ 0 ], outY = ( int ) outSize[ 1 ], outZ = ( int ) outSize[ 2 ];
+        final short[] out = new short[ outX * outY * outZ ];
+        for ( int z = 0; z < outZ; ++z ) {
+            for ( int y = 0; y < outY; ++y ) {
+                for ( int x = 0; x < outX; ++x ) {
+                    double sum = 0;
+                    int n = 0;
+                    for ( int zz = 2 * z; zz < Math.min( 2 * z + 2, inZ ); ++zz ) {
+                        for ( int yy = 2 * y; yy < Math.min( 2 * y + 2, inY ); ++yy ) {
+                            for ( int xx = 2 * x; xx < Math.min( 2 * x + 2, inX ); ++xx ) {
+                                sum += in[ (zz * inY + yy) * inX + xx ] & 0xffff;
+                                n++;
+                            }
+                        }
+                    }
+                    out[ (z * outY + y) * outX + x ] = ( short ) Math.round( sum / n );
+                }
+            }
+        }
+        return out;
+    }
 }
@@ -6,7 +6,19 @@ typedef double float64_t;
 
 #define KLB_DATA_DIMS (5) //our images at the most have 5 dimensions: x,y,z, c, t
 #define KLB_METADATA_SIZE (256) //number of bytes in metadata
-#define KLB_DEFAULT_HEADER_VERSION (2) //def
+#define KLB_DEFAULT_HEADER_VERSION (3) //def. Files that older readers can read (they ignore the extensions); constant blocks need KLB_HEADER_VERSION_BLOCK_FLAGS, which has to be requested explicitly
+#define KLB_HEADER_VERSION_EXTENSIONS (3) //files with this header version (or higher) can store extensions after the last block (see klb_image_header::writeExtensions). The header itself is unchanged, so older readers still read the image
+#define KLB_EXTENSION_BLOCK_STATS (0x41545342) //extension tag ("BSTA" in little endian) for klb_block_stats
+#define KLB_HEADER_VERSION_BLOCK_FLAGS (4) //files with this header version (or higher) can contain blocks that are not encoded with the compression type of the header, marked in the KLB_EXTENSION_BLOCK_FLAGS extension. Older readers fail on those blocks, so the writers only store constant blocks this way if the header version was set to (at least) this value
+#define KLB_EXTENSION_BLOCK_FLAGS (0x474C4642) //extension tag ("BFLG" in little endian) for one std::uint8_t of KLB_BLOCK_FLAG_* per block
+#define KLB_BLOCK_FLAG_CONSTANT (1) //all voxels of the block have the same value, which is stored uncompressed as the only content of the block (bytesPerPixel bytes)
+#define KLB_EXTENSION_BLOCK_CHECKSUMS (0x43524342) //extension tag ("BCRC" in little endian) for one std::uint32_t CRC-32 (as computed by zlib's crc32) of the compressed bytes of each block, so files can be verified without decompressing them (see klb_imageIO::verifyChecksums)
+#define KLB_EXTENSION_APPENDED_TIMEPOINT (0x50504154) //extension tag ("TAPP" in little endian) for one timepoint appended after the file was written (see klb_imageIO::appendTimepoint). Payload: uint32 t, uint32 number of blocks per timepoint Nt, Nt x uint64 block end offsets (relative to the first block of the timepoint), Nt x uint8 KLB_BLOCK_FLAG_*, Nt x klb_block_stats, Nt x uint32 CRC-32 of the compressed blocks, blocks. Requires blockSize[4] == 1. Readers that do not know it see the timepoints of the header only
+#define KLB_EXTENSION_UPDATED_BLOCKS (0x44505542) //extension tag ("BUPD" in little endian) for blocks rewritten after the file was written (see klb_imageIO::writeImageROI). Payload: uint32 number of blocks n, uint32 0, n x uint64 block index, n x uint64 block end offsets (relative to the first block), n x uint8 KLB_BLOCK_FLAG_*, n x klb_block_stats, n x uint32 CRC-32 of the compressed blocks, blocks. They replace the blocks of the same index in the header or in earlier extensions. Readers that do not know it see the image as it was before the update
+#define KLB_HEADER_VERSION_BLOCK_ORDER (5) //files with this header version (or higher) can store their blocks in another order than their index, given by the KLB_EXTENSION_BLOCK_ORDER extension. The block offset table still holds the end of each block as if they were stored in index order (so the size of each block is known) and the position of each block follows from the order. Older readers fail on those files
+#define KLB_EXTENSION_BLOCK_ORDER (0x44524F42) //extension tag ("BORD" in little endian) for the order of the blocks in the file. Payload: uint32 KLB_BLOCK_ORDER, uint32 0. Files without it store their blocks in index order
+#define KLB_ERROR_CANCELLED (10) //error code returned by read / write functions when the caller cancelled the operation through klb_task_status
+#define KLB_ERROR_NO_CHECKSUMS (11) //error code returned by klb_imageIO::verifyChecksums for files without KLB_EXTENSION_BLOCK_CHECKSUMS (e.g. written by an older version)
 
 // Following mylib conventions here are the data types
 enum KLB_DATA_TYPE
@@ -87,4 +99,20 @@ enum KLB_COMPRESSION_TYPE
 	BLOSC_ZSTD_BITSHUFFLE_L9 = 0xFF010509
 };
 
+//How klb_imageIO::readImage / readImageFull get the compressed blocks from the file (see klb_imageIO::readStrategy)
+enum KLB_READ_STRATEGY
+{
+	KLB_READ_AUTO = 0,//chosen for each read from the number of bytes to read and the free memory
+	KLB_READ_PER_BLOCK = 1,//each thread reads runs of adjacent blocks with positional reads as it gets to them
+	KLB_READ_PRELOAD = 2,//all blocks to read are read into memory with a single read before decompressing them
+	KLB_READ_MMAP = 3//the file is memory mapped and blocks are decompressed straight from the mapping
+};
+
+//Order in which the blocks are stored in the file (see klb_image_header::blockOrder)
+enum KLB_BLOCK_ORDER
+{
+	KLB_BLOCK_ORDER_LINEAR = 0,//index order: x fastest, then y, z, c and t
+	KLB_BLOCK_ORDER_MORTON = 1//Z-order (Morton order) of the block coordinates along x, y and z within each (c, t) volume, so blocks that are close in space are close in the file. The volumes follow each other in index order
+};
+
 #endif
\ No newline at end of file
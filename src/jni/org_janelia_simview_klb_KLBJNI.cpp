@@ -1,9 +1,322 @@
 #include "org_janelia_simview_klb_KLBJNI.h"
 #include <string>
+#include <limits>
+#include <algorithm>
+#include <cstring>
 #include "common.h"
 #include "klb_imageIO.h"
 #include "klb_Cwrapper.h"
 
+// returns the progress / cancellation block of a KlbProgress (a direct ByteBuffer laid out as klb_task_status), or NULL if no progress was requested
+inline klb_task_status* getTaskStatus(JNIEnv* env, jobject status)
+{
+	if (status == NULL)
+		return NULL;
+	return (klb_task_status*)env->GetDirectBufferAddress(status);
+}
+
+// copies the metadata of a write call (up to KLB_METADATA_SIZE bytes, zero padded) into buffer and returns it, or returns NULL if no metadata was given
+inline char* getMetadata(JNIEnv* env, jbyteArray metadata, char buffer[KLB_METADATA_SIZE])
+{
+	if (metadata == NULL)
+		return NULL;
+	memset(buffer, 0, KLB_METADATA_SIZE);
+	env->GetByteArrayRegion(metadata, 0, std::min((jsize)KLB_METADATA_SIZE, env->GetArrayLength(metadata)), (jbyte*)buffer);
+	return buffer;
+}
+
+// detaches a native thread attached by getThreadEnv from the JVM when the thread ends
+struct klb_thread_detacher
+{
+	JavaVM* vm = NULL;
+	~klb_thread_detacher(){ if (vm != NULL) vm->DetachCurrentThread(); };
+};
+
+// returns the JNIEnv of the current thread, attaching it to the JVM if it is one of the native worker threads (NULL if that fails)
+inline JNIEnv* getThreadEnv(JavaVM* vm)
+{
+	static thread_local klb_thread_detacher detacher;
+	JNIEnv* env;
+	if (vm->GetEnv((void**)&env, JNI_VERSION_1_6) == JNI_OK)
+		return env;
+	if (vm->AttachCurrentThread((void**)&env, NULL) != JNI_OK)
+		return NULL;
+	detacher.vm = vm;
+	return env;
+}
+
+// input of a read call from a KLBJNI.ChannelSource, which is called from all the reading threads
+class klb_channel_source : public klb_input_source
+{
+public:
+	klb_channel_source(JNIEnv* env, jobject channel_)
+	{
+		env->GetJavaVM(&vm);
+		channel = env->NewGlobalRef(channel_);
+		jclass cls = env->GetObjectClass(channel_);//FindClass would not find the class from a native thread
+		readId = env->GetMethodID(cls, "read", "(Ljava/nio/ByteBuffer;J)I");
+		sizeBytes = env->CallLongMethod(channel_, env->GetMethodID(cls, "size", "()J"));
+		env->DeleteLocalRef(cls);
+	};
+	~klb_channel_source()
+	{
+		JNIEnv* env = getThreadEnv(vm);
+		if (env != NULL)
+			env->DeleteGlobalRef(channel);
+	};
+
+	std::uint64_t readAt(char* buffer, std::uint64_t numBytes, std::uint64_t position)
+	{
+		JNIEnv* env = getThreadEnv(vm);
+		if (env == NULL)
+			return 0;
+		const std::uint64_t maxChunkBytes = std::uint64_t(1) << 30;
+		std::uint64_t done = 0;
+		while (done < numBytes)
+		{
+			const std::uint64_t n = std::min(maxChunkBytes, numBytes - done);
+			jobject bytes = env->NewDirectByteBuffer((void*)(buffer + done), (jlong)n);
+			if (bytes == NULL)
+			{
+				env->ExceptionClear();
+				break;
+			}
+			jint gcount = env->CallIntMethod(channel, readId, bytes, (jlong)(position + done));
+			env->DeleteLocalRef(bytes);//worker threads do not return to Java, so local references are never released otherwise
+			if (env->ExceptionCheck())
+			{
+				env->ExceptionClear();
+				gcount = -1;
+			}
+			if (gcount <= 0)
+				break;
+			done += gcount;
+			if ((std::uint64_t)gcount < n)
+				break;//end of the channel
+		}
+		return done;
+	};
+	std::uint64_t size(){ return sizeBytes; };
+
+private:
+	JavaVM* vm;
+	jobject channel;
+	jmethodID readId;
+	std::uint64_t sizeBytes;
+};
+
+// the KLB file of a read call, in a direct buffer, a byte[] or a KLBJNI.ChannelSource (only one of them is not NULL)
+class klb_jni_source
+{
+public:
+	klb_jni_source(JNIEnv* env_, jobject direct, jbyteArray array_, jobject channel) : env(env_), array(array_), bytes(NULL), source(NULL)
+	{
+		if (direct != NULL)
+			source = new klb_memory_source((const char*)env->GetDirectBufferAddress(direct), (std::uint64_t)env->GetDirectBufferCapacity(direct));
+		else if (array != NULL)
+		{
+			bytes = env->GetByteArrayElements(array, 0);
+			source = new klb_memory_source((const char*)bytes, (std::uint64_t)env->GetArrayLength(array));
+		}
+		else
+			source = new klb_channel_source(env, channel);
+	};
+	~klb_jni_source()
+	{
+		delete source;
+		if (bytes != NULL)
+			env->ReleaseByteArrayElements(array, bytes, JNI_ABORT);
+	};
+
+	klb_input_source* get(){ return source; };
+
+private:
+	JNIEnv* env;
+	jbyteArray array;
+	jbyte* bytes;
+	klb_input_source* source;
+};
+
+// variant of readKLBstackInPlace that reports progress to and can be cancelled through taskStatus. If source is not NULL, it is read instead of filename
+inline int readKLBstackInPlaceWithStatus(const char* filename, void* im, KLB_DATA_TYPE *dataType, int numThreads, int readStrategy, klb_task_status* taskStatus, klb_input_source* source = NULL)
+{
+	std::string filenameOut(filename);
+
+	klb_imageIO imgFull(filenameOut);
+	imgFull.taskStatus = taskStatus;
+	imgFull.readStrategy = (KLB_READ_STRATEGY)readStrategy;
+	imgFull.source = source;
+
+	int err = imgFull.readHeader();
+	if (err > 0)
+		return err;
+
+	*dataType = imgFull.header.dataType;
+
+	return imgFull.readImageFull((char*)im, numThreads);
+}
+
+// variant of writeKLBstack that reports progress to and can be cancelled through taskStatus
+inline int writeKLBstackWithStatus(const void* im, const char* filename, uint32_t xyzct[KLB_DATA_DIMS], KLB_DATA_TYPE dataType, int numThreads, std::uint64_t writeBufferBytes, KLB_BLOCK_ORDER blockOrder, bool constantBlocks, float32_t pixelSize[KLB_DATA_DIMS], uint32_t blockSize[KLB_DATA_DIMS], KLB_COMPRESSION_TYPE compressionType, char metadata[KLB_METADATA_SIZE], klb_task_status* taskStatus)
+{
+	std::string filenameOut(filename);
+	klb_imageIO imgIO(filenameOut);
+	imgIO.taskStatus = taskStatus;
+	imgIO.writeBufferBytes = writeBufferBytes;
+
+	imgIO.header.setHeader(xyzct, dataType, pixelSize, blockSize, compressionType, metadata, constantBlocks ? KLB_HEADER_VERSION_BLOCK_FLAGS : KLB_DEFAULT_HEADER_VERSION);
+	imgIO.header.blockOrder = blockOrder;
+
+	return imgIO.writeImage((char*)(im), numThreads);
+}
+
+// output of writeImage to a KLBJNI.ChannelSink, which is called from the writer thread
+class klb_channel_sink : public klb_output_sink
+{
+public:
+	klb_channel_sink(JNIEnv* env, jobject sink_)
+	{
+		env->GetJavaVM(&vm);
+		sink = env->NewGlobalRef(sink_);
+		jclass cls = env->GetObjectClass(sink_);//FindClass would not find the class from a native thread
+		writeId = env->GetMethodID(cls, "write", "(Ljava/nio/ByteBuffer;)I");
+		writeAtId = env->GetMethodID(cls, "writeAt", "(Ljava/nio/ByteBuffer;J)I");
+		seekable = (env->CallBooleanMethod(sink_, env->GetMethodID(cls, "isSeekable", "()Z")) == JNI_TRUE);
+		env->DeleteLocalRef(cls);
+	};
+	~klb_channel_sink()
+	{
+		JNIEnv* env = getThreadEnv(vm);
+		if (env != NULL)
+			env->DeleteGlobalRef(sink);
+	};
+
+	int write(const char* buffer, std::uint64_t numBytes){ return call(buffer, numBytes, -1); };
+	bool isSeekable() const{ return seekable; };
+	int writeAt(const char* buffer, std::uint64_t numBytes, std::uint64_t position){ return call(buffer, numBytes, (jlong)position); };
+
+private:
+	//passes the bytes to the Java side in chunks that fit in a ByteBuffer. A negative position appends them
+	int call(const char* buffer, std::uint64_t numBytes, jlong position)
+	{
+		JNIEnv* env = getThreadEnv(vm);
+		if (env == NULL)
+			return 5;
+		const std::uint64_t maxChunkBytes = std::uint64_t(1) << 30;
+		for (std::uint64_t offset = 0; offset < numBytes; offset += maxChunkBytes)
+		{
+			jobject bytes = env->NewDirectByteBuffer((void*)(buffer + offset), (jlong)std::min(maxChunkBytes, numBytes - offset));
+			if (bytes == NULL)
+			{
+				env->ExceptionClear();
+				return 5;
+			}
+			jint err = (position < 0 ? env->CallIntMethod(sink, writeId, bytes) : env->CallIntMethod(sink, writeAtId, bytes, position + (jlong)offset));
+			env->DeleteLocalRef(bytes);//this thread does not return to Java, so local references are never released otherwise
+			if (env->ExceptionCheck())
+			{
+				env->ExceptionClear();
+				err = 5;
+			}
+			if (err != 0)
+				return err;
+		}
+		return 0;
+	};
+
+	JavaVM* vm;
+	jobject sink;
+	jmethodID writeId, writeAtId;
+	bool seekable;
+};
+
+// variant of writeKLBstackWithStatus that writes to a KLBJNI.ChannelSink instead of a file
+inline int writeKLBstackToChannelWithStatus(const void* im, JNIEnv* env, jobject channelSink, uint32_t xyzct[KLB_DATA_DIMS], KLB_DATA_TYPE dataType, int numThreads, std::uint64_t writeBufferBytes, KLB_BLOCK_ORDER blockOrder, bool constantBlocks, float32_t pixelSize[KLB_DATA_DIMS], uint32_t blockSize[KLB_DATA_DIMS], KLB_COMPRESSION_TYPE compressionType, char metadata[KLB_METADATA_SIZE], klb_task_status* taskStatus)
+{
+	klb_imageIO imgIO;
+	imgIO.taskStatus = taskStatus;
+	imgIO.writeBufferBytes = writeBufferBytes;
+
+	imgIO.header.setHeader(xyzct, dataType, pixelSize, blockSize, compressionType, metadata, constantBlocks ? KLB_HEADER_VERSION_BLOCK_FLAGS : KLB_DEFAULT_HEADER_VERSION);
+	imgIO.header.blockOrder = blockOrder;
+
+	klb_channel_sink sink(env, channelSink);
+	return imgIO.writeImage((const char*)(im), &sink, numThreads);
+}
+
+// re-encodes filenameIn into filenameOut with a different compression type and / or block size (NULL keeps the block size of the input); the rest of the header is kept
+inline int transcodeKLBWithStatus(const char* filenameIn, const char* filenameOut, uint32_t blockSize[KLB_DATA_DIMS], KLB_COMPRESSION_TYPE compressionType, int numThreads, std::uint64_t writeBufferBytes, bool constantBlocks, klb_task_status* taskStatus)
+{
+	klb_imageIO imgIn((std::string(filenameIn)));
+	int err = imgIn.readHeader();
+	if (err > 0)
+		return err;
+
+	klb_imageIO imgOut((std::string(filenameOut)));
+	imgOut.taskStatus = taskStatus;
+	imgOut.writeBufferBytes = writeBufferBytes;
+	imgOut.header.setHeader(imgIn.header.xyzct, imgIn.header.dataType, imgIn.header.pixelSize, blockSize == NULL ? imgIn.header.blockSize : blockSize, compressionType, imgIn.header.metadata, constantBlocks ? KLB_HEADER_VERSION_BLOCK_FLAGS : KLB_DEFAULT_HEADER_VERSION);
+
+	return imgOut.transcodeImage(imgIn, numThreads);
+}
+
+// appends one timepoint to filename, checking first that im (numBytes bytes) holds a whole timepoint of the file
+inline int appendKLBtimepointWithStatus(const void* im, std::uint64_t numBytes, const char* filename, int numThreads, klb_task_status* taskStatus)
+{
+	klb_imageIO img((std::string(filename)));
+	img.taskStatus = taskStatus;
+
+	int err = img.readHeader();
+	if (err > 0)
+		return err;
+	if (img.header.xyzct[4] == 0 || numBytes < img.header.getImageSizeBytes() / img.header.xyzct[4])
+		return 3;
+
+	return img.appendTimepoint((const char*)im, numThreads);
+}
+
+// replaces the ROI xyzctMin..xyzctMax of filename with im (numBytes bytes), checking first that im holds the whole ROI
+inline int writeKLBroiWithStatus(const void* im, std::uint64_t numBytes, const char* filename, jlong xyzctMin[KLB_DATA_DIMS], jlong xyzctMax[KLB_DATA_DIMS], int numThreads, klb_task_status* taskStatus)
+{
+	klb_imageIO img((std::string(filename)));
+	img.taskStatus = taskStatus;
+
+	int err = img.readHeader();
+	if (err > 0)
+		return err;
+
+	klb_ROI roi;
+	for (int d = 0; d < KLB_DATA_DIMS; d++)
+	{
+		if (xyzctMin[d] < 0 || xyzctMin[d] > xyzctMax[d] || xyzctMax[d] >= img.header.xyzct[d])
+			return 3;
+		roi.xyzctLB[d] = (uint32_t)xyzctMin[d];
+		roi.xyzctUB[d] = (uint32_t)xyzctMax[d];
+	}
+	if (numBytes < roi.getSizePixels() * img.header.getBytesPerPixel())
+		return 3;
+
+	return img.writeImageROI((const char*)im, &roi, numThreads);
+}
+
+// checks the block checksums of filename and sets corrupt[i] to 1 for each block i that does not match, checking first that corrupt holds one byte per block (numBlocks)
+inline int verifyKLBWithStatus(const char* filename, jbyte* corrupt, std::uint64_t numBlocks, int numThreads, klb_task_status* taskStatus)
+{
+	klb_imageIO img((std::string(filename)));
+	img.taskStatus = taskStatus;
+
+	std::vector<std::uint64_t> corruptBlocks;
+	int err = img.verifyChecksums(&corruptBlocks, numThreads);
+	if (err > 0)
+		return err;
+	if (img.header.getNumBlocks() != numBlocks)
+		return 3;
+
+	for (size_t ii = 0; ii < corruptBlocks.size(); ii++)
+		corrupt[corruptBlocks[ii]] = 1;
+	return 0;
+}
+
 JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadHeader
 (JNIEnv* env, jobject obj, jstring filePath, jlongArray imageSize, jlongArray blockSize, jfloatArray pixelSpacing, jintArray dataAndCompressionType, jbyteArray metadata)
 {
@@ -34,15 +347,70 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadHeader
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2I_3B
-(JNIEnv* env, jobject obj, jstring filePath, jint numThreads, jbyteArray buffer)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadHeaderFromSource
+(JNIEnv* env, jobject obj, jobject direct, jbyteArray array, jobject channel, jlongArray imageSize, jlongArray blockSize, jfloatArray pixelSpacing, jintArray dataAndCompressionType, jbyteArray metadata)
+{
+	klb_jni_source source(env, direct, array, channel);
+	klb_imageIO img;
+	img.source = source.get();
+	const int errid = img.readHeader();
+
+	jlong cImageSize[5], cBlockSize[5];
+	for (int i = 0; i < 5; ++i) {
+		cImageSize[i] = img.header.xyzct[i];
+		cBlockSize[i] = img.header.blockSize[i];
+	}
+	const jint cDataAndCompressionType[2] = { (jint)img.header.dataType, (jint)img.header.compressionType };
+	env->SetLongArrayRegion(imageSize, 0, 5, cImageSize);
+	env->SetLongArrayRegion(blockSize, 0, 5, cBlockSize);
+	env->SetFloatArrayRegion(pixelSpacing, 0, 5, img.header.pixelSize);
+	env->SetIntArrayRegion(dataAndCompressionType, 0, 2, cDataAndCompressionType);
+	env->SetByteArrayRegion(metadata, 0, std::min((jsize)KLB_METADATA_SIZE, env->GetArrayLength(metadata)), (const jbyte*)img.header.metadata);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFullFromSource__Ljava_nio_Buffer_2_3BLorg_janelia_simview_klb_KLBJNI_00024ChannelSource_2II_3BLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jobject direct, jbyteArray array, jobject channel, jint numThreads, jint readStrategy, jbyteArray buffer, jobject status)
+{
+	klb_jni_source source(env, direct, array, channel);
+	jboolean isCopy;
+	jbyte* cBuffer = env->GetByteArrayElements(buffer, &isCopy);
+
+	int datatype; // placeholder, overwritten by function call below
+	const int errid = readKLBstackInPlaceWithStatus("", cBuffer, (KLB_DATA_TYPE*)&datatype, numThreads, readStrategy, getTaskStatus(env, status), source.get());
+
+	if (isCopy == JNI_TRUE) {
+		env->ReleaseByteArrayElements(buffer, cBuffer, 0);
+	}
+	else {
+		env->ReleaseByteArrayElements(buffer, cBuffer, JNI_ABORT);
+	}
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFullFromSource__Ljava_nio_Buffer_2_3BLorg_janelia_simview_klb_KLBJNI_00024ChannelSource_2IILjava_nio_Buffer_2Ljava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jobject direct, jbyteArray array, jobject channel, jint numThreads, jint readStrategy, jobject buffer, jobject status)
+{
+	klb_jni_source source(env, direct, array, channel);
+	void* cBuffer = env->GetDirectBufferAddress(buffer);
+
+	int datatype; // placeholder, overwritten by function call below
+	const int errid = readKLBstackInPlaceWithStatus("", cBuffer, (KLB_DATA_TYPE*)&datatype, numThreads, readStrategy, getTaskStatus(env, status), source.get());
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2II_3BLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jint numThreads, jint readStrategy, jbyteArray buffer, jobject status)
 {
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	jboolean isCopy;
 	jbyte* cBuffer = env->GetByteArrayElements(buffer, &isCopy);
 
 	int datatype; // placeholder, overwritten by function call below
-	const int errid = readKLBstackInPlace(cFilePath, cBuffer, (KLB_DATA_TYPE*)&datatype, numThreads);
+	const int errid = readKLBstackInPlaceWithStatus(cFilePath, cBuffer, (KLB_DATA_TYPE*)&datatype, numThreads, readStrategy, getTaskStatus(env, status));
 
 	env->ReleaseStringUTFChars(filePath, cFilePath);
 	if (isCopy == JNI_TRUE) {
@@ -55,15 +423,15 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_la
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2I_3S
-(JNIEnv* env, jobject obj, jstring filePath, jint numThreads, jshortArray buffer)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2II_3SLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jint numThreads, jint readStrategy, jshortArray buffer, jobject status)
 {
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	jboolean isCopy;
 	jshort* cBuffer = env->GetShortArrayElements(buffer, &isCopy);
 
 	int datatype; // placeholder, overwritten by function call below
-	const int errid = readKLBstackInPlace(cFilePath, cBuffer, (KLB_DATA_TYPE*)&datatype, numThreads);
+	const int errid = readKLBstackInPlaceWithStatus(cFilePath, cBuffer, (KLB_DATA_TYPE*)&datatype, numThreads, readStrategy, getTaskStatus(env, status));
 
 	env->ReleaseStringUTFChars(filePath, cFilePath);
 	if (isCopy == JNI_TRUE) {
@@ -76,15 +444,15 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_la
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2I_3I
-(JNIEnv* env, jobject obj, jstring filePath, jint numThreads, jintArray buffer)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2II_3ILjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jint numThreads, jint readStrategy, jintArray buffer, jobject status)
 {
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	jboolean isCopy;
 	jint* cBuffer = env->GetIntArrayElements(buffer, &isCopy);
 
 	int datatype; // placeholder, overwritten by function call below
-	const int errid = readKLBstackInPlace(cFilePath, cBuffer, (KLB_DATA_TYPE*)&datatype, numThreads);
+	const int errid = readKLBstackInPlaceWithStatus(cFilePath, cBuffer, (KLB_DATA_TYPE*)&datatype, numThreads, readStrategy, getTaskStatus(env, status));
 
 	env->ReleaseStringUTFChars(filePath, cFilePath);
 	if (isCopy == JNI_TRUE) {
@@ -97,15 +465,15 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_la
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2I_3J
-(JNIEnv* env, jobject obj, jstring filePath, jint numThreads, jlongArray buffer)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2II_3JLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jint numThreads, jint readStrategy, jlongArray buffer, jobject status)
 {
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	jboolean isCopy;
 	jlong* cBuffer = env->GetLongArrayElements(buffer, &isCopy);
 
 	int datatype; // placeholder, overwritten by function call below
-	const int errid = readKLBstackInPlace(cFilePath, cBuffer, (KLB_DATA_TYPE*)&datatype, numThreads);
+	const int errid = readKLBstackInPlaceWithStatus(cFilePath, cBuffer, (KLB_DATA_TYPE*)&datatype, numThreads, readStrategy, getTaskStatus(env, status));
 
 	env->ReleaseStringUTFChars(filePath, cFilePath);
 	if (isCopy == JNI_TRUE) {
@@ -118,15 +486,15 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_la
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2I_3F
-(JNIEnv* env, jobject obj, jstring filePath, jint numThreads, jfloatArray buffer)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2II_3FLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jint numThreads, jint readStrategy, jfloatArray buffer, jobject status)
 {
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	jboolean isCopy;
 	jfloat* cBuffer = env->GetFloatArrayElements(buffer, &isCopy);
 
 	int datatype; // placeholder, overwritten by function call below
-	const int errid = readKLBstackInPlace(cFilePath, cBuffer, (KLB_DATA_TYPE*)&datatype, numThreads);
+	const int errid = readKLBstackInPlaceWithStatus(cFilePath, cBuffer, (KLB_DATA_TYPE*)&datatype, numThreads, readStrategy, getTaskStatus(env, status));
 
 	env->ReleaseStringUTFChars(filePath, cFilePath);
 	if (isCopy == JNI_TRUE) {
@@ -139,15 +507,15 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_la
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2I_3D
-(JNIEnv* env, jobject obj, jstring filePath, jint numThreads, jdoubleArray buffer)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2II_3DLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jint numThreads, jint readStrategy, jdoubleArray buffer, jobject status)
 {
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	jboolean isCopy;
 	jdouble* cBuffer = env->GetDoubleArrayElements(buffer, &isCopy);
 
 	int datatype; // placeholder, overwritten by function call below
-	const int errid = readKLBstackInPlace(cFilePath, cBuffer, (KLB_DATA_TYPE*)&datatype, numThreads);
+	const int errid = readKLBstackInPlaceWithStatus(cFilePath, cBuffer, (KLB_DATA_TYPE*)&datatype, numThreads, readStrategy, getTaskStatus(env, status));
 
 	env->ReleaseStringUTFChars(filePath, cFilePath);
 	if (isCopy == JNI_TRUE) {
@@ -160,39 +528,146 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_la
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2ILjava_nio_Buffer_2
-(JNIEnv* env, jobject obj, jstring filePath, jint numThreads, jobject buffer)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2IILjava_nio_Buffer_2Ljava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jint numThreads, jint readStrategy, jobject buffer, jobject status)
 {
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	void* cBuffer = env->GetDirectBufferAddress(buffer);
 
 	int datatype; // placeholder, overwritten by function call below
-	const int errid = readKLBstackInPlace(cFilePath, cBuffer, (KLB_DATA_TYPE*)&datatype, numThreads);
+	const int errid = readKLBstackInPlaceWithStatus(cFilePath, cBuffer, (KLB_DATA_TYPE*)&datatype, numThreads, readStrategy, getTaskStatus(env, status));
 
 	env->ReleaseStringUTFChars(filePath, cFilePath);
 
 	return (jint)errid;
 }
 
-// variant of readKLBroiInPlace that converts the LB and UB arguments from jlong to uint32_t
-inline int readKLBroiInPlaceConvertJlong(const char* filename, void* im, jlong xyzctLB[KLB_DATA_DIMS], jlong xyzctUB[KLB_DATA_DIMS], int numThreads)
+// reads filename into chunks (numChunks buffers, see klb_imageIO::readImageFull), checking first that the chunks cover the whole image (chunkCapacity holds the size of each chunk in bytes)
+inline int readKLBstackChunksWithStatus(const char* filename, char** chunks, const jlong* chunkCapacity, std::uint64_t numChunks, std::uint64_t chunkSizeBytes, std::uint64_t chunkPeriodBytes, int numThreads, int readStrategy, klb_task_status* taskStatus)
+{
+	klb_imageIO imgFull((std::string(filename)));
+	imgFull.taskStatus = taskStatus;
+	imgFull.readStrategy = (KLB_READ_STRATEGY)readStrategy;
+
+	int err = imgFull.readHeader();
+	if (err > 0)
+		return err;
+
+	if (chunkSizeBytes == 0 || chunkPeriodBytes < chunkSizeBytes)
+		return 3;
+	const std::uint64_t imageBytes = imgFull.header.getImageSizeBytes();
+	const std::uint64_t chunksPerPeriod = (chunkPeriodBytes + chunkSizeBytes - 1) / chunkSizeBytes;
+	const std::uint64_t lastChunkBytes = chunkPeriodBytes - (chunksPerPeriod - 1) * chunkSizeBytes;//last chunk of each period may be shorter
+	if (imageBytes % chunkPeriodBytes != 0 || numChunks != (imageBytes / chunkPeriodBytes) * chunksPerPeriod)
+		return 3;
+	for (std::uint64_t ii = 0; ii < numChunks; ii++)
+	{
+		if (chunks[ii] == NULL || chunkCapacity[ii] < 0 || (std::uint64_t)chunkCapacity[ii] < (ii % chunksPerPeriod == chunksPerPeriod - 1 ? lastChunkBytes : chunkSizeBytes))
+			return 3;
+	}
+
+	return imgFull.readImageFull(chunks, chunkSizeBytes, chunkPeriodBytes, numThreads);
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFullChunks
+(JNIEnv* env, jobject obj, jstring filePath, jint numThreads, jint readStrategy, jobjectArray chunks, jlong chunkSizeBytes, jlong chunkPeriodBytes, jobject status)
+{
+	const jsize numChunks = env->GetArrayLength(chunks);
+	std::vector<char*> cChunks(numChunks);
+	std::vector<jlong> chunkCapacity(numChunks);
+	for (jsize ii = 0; ii < numChunks; ii++)
+	{
+		jobject chunk = env->GetObjectArrayElement(chunks, ii);
+		cChunks[ii] = chunk == NULL ? NULL : (char*)env->GetDirectBufferAddress(chunk);
+		chunkCapacity[ii] = chunk == NULL ? -1 : env->GetDirectBufferCapacity(chunk);
+		env->DeleteLocalRef(chunk);
+	}
+
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	const int errid = numChunks == 0 || chunkSizeBytes <= 0 || chunkPeriodBytes <= 0 ? 3 : readKLBstackChunksWithStatus(cFilePath, cChunks.data(), chunkCapacity.data(), numChunks, chunkSizeBytes, chunkPeriodBytes, numThreads, readStrategy, getTaskStatus(env, status));
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+
+	return (jint)errid;
+}
+
+// size in bytes of a direct ByteBuffer, ShortBuffer, IntBuffer, ... (JNI only reports the number of elements)
+inline std::uint64_t getDirectBufferBytes(JNIEnv* env, jobject buffer)
+{
+	const char* classes[] = { "java/nio/ShortBuffer", "java/nio/CharBuffer", "java/nio/IntBuffer", "java/nio/FloatBuffer", "java/nio/LongBuffer", "java/nio/DoubleBuffer" };
+	const std::uint64_t elementBytes[] = { 2, 2, 4, 4, 8, 8 };
+	std::uint64_t bytes = (std::uint64_t)env->GetDirectBufferCapacity(buffer);
+	for (int ii = 0; ii < 6; ii++)
+	{
+		jclass cls = env->FindClass(classes[ii]);
+		const bool isInstance = (env->IsInstanceOf(buffer, cls) == JNI_TRUE);
+		env->DeleteLocalRef(cls);
+		if (isInstance)
+			return bytes * elementBytes[ii];
+	}
+	return bytes;
+}
+
+// variant of readKLBroiInPlace that converts the LB, UB, step and bin arguments from jlong to uint32_t (step and bin can be NULL, i.e. 1) and reads voxels below threshold as 0
+// the ROI is packed into im (of outBytes bytes), or scattered into it starting at voxel outOffset if outStrides is not NULL, see klb_imageIO::readImage
+// if outDataType is not negative, voxels are converted to that KLB_DATA_TYPE as value * scale + offset while the blocks are decoded
+inline int readKLBroiSampledInPlaceConvertJlong(const char* filename, void* im, std::uint64_t outBytes, jlong outOffset, jlong* outStrides, int outDataType, double scale, double offset, jlong xyzctLB[KLB_DATA_DIMS], jlong xyzctUB[KLB_DATA_DIMS], jlong xyzctStep[KLB_DATA_DIMS], jlong xyzctBin[KLB_DATA_DIMS], double threshold, int numThreads, int readStrategy, klb_task_status* taskStatus, klb_input_source* source = NULL)
 {
 	std::string filenameOut(filename);
 
 	klb_imageIO img(filenameOut);
+	img.taskStatus = taskStatus;
+	img.readThreshold = threshold;
+	img.readStrategy = (KLB_READ_STRATEGY)readStrategy;
+	img.source = source;
+	img.readDataType = outDataType;
+	img.readScale = scale;
+	img.readOffset = offset;
 
 	klb_ROI roi;
 	for (int d = 0; d < KLB_DATA_DIMS; d++)
 	{
 		roi.xyzctLB[d] = (uint32_t)xyzctLB[d];
 		roi.xyzctUB[d] = (uint32_t)xyzctUB[d];
+		if (xyzctStep != NULL)
+			roi.xyzctStep[d] = (uint32_t)xyzctStep[d];
+		if (xyzctBin != NULL)
+			roi.xyzctBin[d] = (uint32_t)xyzctBin[d];
+	}
+
+	//the last voxel of the ROI has to be within the buffer (a packed ROI has the strides of its own size)
+	const int err = img.readHeader();
+	if (err > 0)
+		return err;
+	std::uint64_t strides[KLB_DATA_DIMS];
+	bool valid = (outStrides == NULL ? outOffset == 0 : outOffset >= 0);
+	std::uint64_t lastVoxel = (std::uint64_t)outOffset;
+	for (int d = 0; d < KLB_DATA_DIMS; d++)
+	{
+		valid = valid && (outStrides == NULL || outStrides[d] >= 0) && roi.xyzctStep[d] > 0 && roi.xyzctUB[d] >= roi.xyzctLB[d];
+		if (valid == false)
+			break;
+		strides[d] = (outStrides != NULL ? (std::uint64_t)outStrides[d] : d == 0 ? 1 : strides[d - 1] * roi.getSizeOutputPixels(d - 1));
+		lastVoxel += (roi.getSizeOutputPixels(d) - 1) * strides[d];
+	}
+	const std::uint64_t bytesPerPixel = img.getReadBytesPerPixel();
+	if (valid == false || (lastVoxel + 1) * bytesPerPixel > outBytes)
+	{
+		std::cout << "ERROR: readKLBroiSampledInPlace: ROI exceeds the output buffer" << std::endl;
+		return 3;
 	}
+	if (outStrides == NULL)
+		return img.readImage((char*)im, &roi, numThreads);
+	return img.readImage((char*)im + outOffset * bytesPerPixel, &roi, strides, numThreads);
+}
 
-	return img.readImage((char*)im, &roi, numThreads);
+// variant of readKLBroiInPlace that converts the LB and UB arguments from jlong to uint32_t
+inline int readKLBroiInPlaceConvertJlong(const char* filename, void* im, std::uint64_t outBytes, jlong xyzctLB[KLB_DATA_DIMS], jlong xyzctUB[KLB_DATA_DIMS], int numThreads, int readStrategy, klb_task_status* taskStatus, klb_input_source* source = NULL)
+{
+	return readKLBroiSampledInPlaceConvertJlong(filename, im, outBytes, 0, NULL, -1, 1.0, 0.0, xyzctLB, xyzctUB, NULL, NULL, -std::numeric_limits<double>::infinity(), numThreads, readStrategy, taskStatus, source);
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JI_3B
-(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jint numThreads, jbyteArray buffer)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JII_3BLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jint numThreads, jint readStrategy, jbyteArray buffer, jobject status)
 {
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
@@ -200,7 +675,7 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lan
 	jboolean isCopy;
 	jbyte* cBuffer = env->GetByteArrayElements(buffer, &isCopy);
 
-	const int errid = readKLBroiInPlaceConvertJlong(cFilePath, cBuffer, cXyzctMin, cXyzctMax, numThreads);
+	const int errid = readKLBroiInPlaceConvertJlong(cFilePath, cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(*cBuffer), cXyzctMin, cXyzctMax, numThreads, readStrategy, getTaskStatus(env, status));
 
 	env->ReleaseStringUTFChars(filePath, cFilePath);
 	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
@@ -214,8 +689,8 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lan
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JI_3S
-(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jint numThreads, jshortArray buffer)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JII_3SLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jint numThreads, jint readStrategy, jshortArray buffer, jobject status)
 {
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
@@ -223,7 +698,7 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lan
 	jboolean isCopy;
 	jshort* cBuffer = env->GetShortArrayElements(buffer, &isCopy);
 
-	const int errid = readKLBroiInPlaceConvertJlong(cFilePath, cBuffer, cXyzctMin, cXyzctMax, numThreads);
+	const int errid = readKLBroiInPlaceConvertJlong(cFilePath, cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(*cBuffer), cXyzctMin, cXyzctMax, numThreads, readStrategy, getTaskStatus(env, status));
 
 	env->ReleaseStringUTFChars(filePath, cFilePath);
 	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
@@ -237,8 +712,8 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lan
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JI_3I
-(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jint numThreads, jintArray buffer)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JII_3ILjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jint numThreads, jint readStrategy, jintArray buffer, jobject status)
 {
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
@@ -246,7 +721,7 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lan
 	jboolean isCopy;
 	jint* cBuffer = env->GetIntArrayElements(buffer, &isCopy);
 
-	const int errid = readKLBroiInPlaceConvertJlong(cFilePath, cBuffer, cXyzctMin, cXyzctMax, numThreads);
+	const int errid = readKLBroiInPlaceConvertJlong(cFilePath, cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(*cBuffer), cXyzctMin, cXyzctMax, numThreads, readStrategy, getTaskStatus(env, status));
 
 	env->ReleaseStringUTFChars(filePath, cFilePath);
 	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
@@ -261,8 +736,8 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lan
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JI_3J
-(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jint numThreads, jlongArray buffer)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JII_3JLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jint numThreads, jint readStrategy, jlongArray buffer, jobject status)
 {
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
@@ -270,7 +745,7 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lan
 	jboolean isCopy;
 	jlong* cBuffer = env->GetLongArrayElements(buffer, &isCopy);
 
-	const int errid = readKLBroiInPlaceConvertJlong(cFilePath, cBuffer, cXyzctMin, cXyzctMax, numThreads);
+	const int errid = readKLBroiInPlaceConvertJlong(cFilePath, cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(*cBuffer), cXyzctMin, cXyzctMax, numThreads, readStrategy, getTaskStatus(env, status));
 
 	env->ReleaseStringUTFChars(filePath, cFilePath);
 	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
@@ -285,8 +760,8 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lan
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JI_3F
-(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jint numThreads, jfloatArray buffer)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JII_3FLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jint numThreads, jint readStrategy, jfloatArray buffer, jobject status)
 {
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
@@ -294,7 +769,7 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lan
 	jboolean isCopy;
 	jfloat* cBuffer = env->GetFloatArrayElements(buffer, &isCopy);
 
-	const int errid = readKLBroiInPlaceConvertJlong(cFilePath, cBuffer, cXyzctMin, cXyzctMax, numThreads);
+	const int errid = readKLBroiInPlaceConvertJlong(cFilePath, cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(*cBuffer), cXyzctMin, cXyzctMax, numThreads, readStrategy, getTaskStatus(env, status));
 
 	env->ReleaseStringUTFChars(filePath, cFilePath);
 	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
@@ -309,8 +784,8 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lan
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JI_3D
-(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jint numThreads, jdoubleArray buffer)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JII_3DLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jint numThreads, jint readStrategy, jdoubleArray buffer, jobject status)
 {
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
@@ -318,7 +793,7 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lan
 	jboolean isCopy;
 	jdouble* cBuffer = env->GetDoubleArrayElements(buffer, &isCopy);
 
-	const int errid = readKLBroiInPlaceConvertJlong(cFilePath, cBuffer, cXyzctMin, cXyzctMax, numThreads);
+	const int errid = readKLBroiInPlaceConvertJlong(cFilePath, cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(*cBuffer), cXyzctMin, cXyzctMax, numThreads, readStrategy, getTaskStatus(env, status));
 
 	env->ReleaseStringUTFChars(filePath, cFilePath);
 	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
@@ -333,15 +808,15 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lan
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JILjava_nio_Buffer_2
-(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jint numThreads, jobject buffer)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JIILjava_nio_Buffer_2Ljava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jint numThreads, jint readStrategy, jobject buffer, jobject status)
 {
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
 	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
 	void* cBuffer = env->GetDirectBufferAddress(buffer);
 
-	const int errid = readKLBroiInPlaceConvertJlong(cFilePath, cBuffer, cXyzctMin, cXyzctMax, numThreads);
+	const int errid = readKLBroiInPlaceConvertJlong(cFilePath, cBuffer, getDirectBufferBytes(env, buffer), cXyzctMin, cXyzctMax, numThreads, readStrategy, getTaskStatus(env, status));
 
 	env->ReleaseStringUTFChars(filePath, cFilePath);
 	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
@@ -350,152 +825,398 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lan
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3BLjava_lang_String_2_3JII_3F_3JI_3B
-(JNIEnv* env, jobject obj, jbyteArray buffer, jstring filePath, jlongArray imageSize, jint dataType, jint numThreads, jfloatArray pixelSpacing, jlongArray blockSize, jint compressionType, jbyteArray metadata)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROIFromSource__Ljava_nio_Buffer_2_3BLorg_janelia_simview_klb_KLBJNI_00024ChannelSource_2_3J_3JII_3BLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jobject direct, jbyteArray array, jobject channel, jlongArray xyzctMin, jlongArray xyzctMax, jint numThreads, jint readStrategy, jbyteArray buffer, jobject status)
 {
-	jbyte* cBuffer = env->GetByteArrayElements(buffer, 0);
-	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
-	jlong* cImageSize = env->GetLongArrayElements(imageSize, 0);
-	jfloat* cPixelSpacing = pixelSpacing == NULL ? NULL : env->GetFloatArrayElements(pixelSpacing, 0);
+	klb_jni_source source(env, direct, array, channel);
+	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
+	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
+	jboolean isCopy;
+	jbyte* cBuffer = env->GetByteArrayElements(buffer, &isCopy);
 
-	uint32_t* blksize = NULL;
-	if (blockSize != NULL) {
-		jlong* cBlockSize = env->GetLongArrayElements(blockSize, 0);
-		uint32_t tmp[5];
-		for (int d = 0; d < 5; ++d)
-			tmp[d] = (uint32_t)cImageSize[d];
-		blksize = tmp;
-		env->ReleaseLongArrayElements(blockSize, cBlockSize, JNI_ABORT);
+	const int errid = readKLBroiInPlaceConvertJlong("", cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(*cBuffer), cXyzctMin, cXyzctMax, numThreads, readStrategy, getTaskStatus(env, status), source.get());
+
+	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMax, cXyzctMax, JNI_ABORT);
+	if (isCopy == JNI_TRUE) {
+		env->ReleaseByteArrayElements(buffer, cBuffer, 0);
+	} else {
+		env->ReleaseByteArrayElements(buffer, cBuffer, JNI_ABORT);
 	}
 
-	uint32_t imgsize[5];
-	for (int d = 0; d < 5; ++d)
-		imgsize[d] = (uint32_t)cImageSize[d];
+	return (jint)errid;
+}
 
-    const int errid = writeKLBstack(cBuffer, cFilePath, imgsize, (KLB_DATA_TYPE)dataType, numThreads, cPixelSpacing, blksize, (KLB_COMPRESSION_TYPE)compressionType, NULL);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROIFromSource__Ljava_nio_Buffer_2_3BLorg_janelia_simview_klb_KLBJNI_00024ChannelSource_2_3J_3JIILjava_nio_Buffer_2Ljava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jobject direct, jbyteArray array, jobject channel, jlongArray xyzctMin, jlongArray xyzctMax, jint numThreads, jint readStrategy, jobject buffer, jobject status)
+{
+	klb_jni_source source(env, direct, array, channel);
+	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
+	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
+	void* cBuffer = env->GetDirectBufferAddress(buffer);
 
-	env->ReleaseByteArrayElements(buffer, cBuffer, JNI_ABORT);
-	env->ReleaseStringUTFChars(filePath, cFilePath);
-	env->ReleaseLongArrayElements(imageSize, cImageSize, JNI_ABORT);
-	if (cPixelSpacing != NULL)
-		env->ReleaseFloatArrayElements(pixelSpacing, cPixelSpacing, JNI_ABORT);
+	const int errid = readKLBroiInPlaceConvertJlong("", cBuffer, getDirectBufferBytes(env, buffer), cXyzctMin, cXyzctMax, numThreads, readStrategy, getTaskStatus(env, status), source.get());
+
+	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMax, cXyzctMax, JNI_ABORT);
 
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3SLjava_lang_String_2_3JII_3F_3JI_3B
-(JNIEnv* env, jobject obj, jshortArray buffer, jstring filePath, jlongArray imageSize, jint dataType, jint numThreads, jfloatArray pixelSpacing, jlongArray blockSize, jint compressionType, jbyteArray metadata)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROISampled__Ljava_lang_String_2_3J_3J_3J_3JDII_3BJ_3JIDDLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jlongArray xyzctStep, jlongArray xyzctBin, jdouble threshold, jint numThreads, jint readStrategy, jbyteArray buffer, jlong outOffset, jlongArray outStrides, jint outDataType, jdouble scale, jdouble offset, jobject status)
 {
-	jshort* cBuffer = env->GetShortArrayElements(buffer, 0);
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
-	jlong* cImageSize = env->GetLongArrayElements(imageSize, 0);
-	jfloat* cPixelSpacing = pixelSpacing == NULL ? NULL : env->GetFloatArrayElements(pixelSpacing, 0);
-
-	uint32_t* blksize = NULL;
-	if (blockSize != NULL) {
-		jlong* cBlockSize = env->GetLongArrayElements(blockSize, 0);
-		uint32_t tmp[5];
-		for (int d = 0; d < 5; ++d)
-			tmp[d] = (uint32_t)cImageSize[d];
-		blksize = tmp;
-		env->ReleaseLongArrayElements(blockSize, cBlockSize, JNI_ABORT);
-	}
-
-	uint32_t imgsize[5];
-	for (int d = 0; d < 5; ++d)
-		imgsize[d] = (uint32_t)cImageSize[d];
+	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
+	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
+	jlong* cXyzctStep = env->GetLongArrayElements(xyzctStep, 0);
+	jlong* cXyzctBin = env->GetLongArrayElements(xyzctBin, 0);
+	jlong* cOutStrides = (outStrides == NULL) ? NULL : env->GetLongArrayElements(outStrides, 0);
+	jboolean isCopy;
+	jbyte* cBuffer = env->GetByteArrayElements(buffer, &isCopy);
 
-	const int errid = writeKLBstack(cBuffer, cFilePath, imgsize, (KLB_DATA_TYPE)dataType, numThreads, cPixelSpacing, blksize, (KLB_COMPRESSION_TYPE)compressionType, NULL);
+	const int errid = readKLBroiSampledInPlaceConvertJlong(cFilePath, cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(*cBuffer), outOffset, cOutStrides, outDataType, scale, offset, cXyzctMin, cXyzctMax, cXyzctStep, cXyzctBin, threshold, numThreads, readStrategy, getTaskStatus(env, status));
 
-	env->ReleaseShortArrayElements(buffer, cBuffer, JNI_ABORT);
 	env->ReleaseStringUTFChars(filePath, cFilePath);
-	env->ReleaseLongArrayElements(imageSize, cImageSize, JNI_ABORT);
-	if (cPixelSpacing != NULL)
-		env->ReleaseFloatArrayElements(pixelSpacing, cPixelSpacing, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMax, cXyzctMax, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctStep, cXyzctStep, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctBin, cXyzctBin, JNI_ABORT);
+	if (cOutStrides != NULL)
+		env->ReleaseLongArrayElements(outStrides, cOutStrides, JNI_ABORT);
+	if (isCopy == JNI_TRUE) {
+		env->ReleaseByteArrayElements(buffer, cBuffer, 0);
+	} else {
+		env->ReleaseByteArrayElements(buffer, cBuffer, JNI_ABORT);
+	}
 
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3ILjava_lang_String_2_3JII_3F_3JI_3B
-(JNIEnv* env, jobject obj, jintArray buffer, jstring filePath, jlongArray imageSize, jint dataType, jint numThreads, jfloatArray pixelSpacing, jlongArray blockSize, jint compressionType, jbyteArray metadata)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROISampled__Ljava_lang_String_2_3J_3J_3J_3JDII_3SJ_3JIDDLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jlongArray xyzctStep, jlongArray xyzctBin, jdouble threshold, jint numThreads, jint readStrategy, jshortArray buffer, jlong outOffset, jlongArray outStrides, jint outDataType, jdouble scale, jdouble offset, jobject status)
 {
-	jint* cBuffer = env->GetIntArrayElements(buffer, 0);
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
-	jlong* cImageSize = env->GetLongArrayElements(imageSize, 0);
-	jfloat* cPixelSpacing = pixelSpacing == NULL ? NULL : env->GetFloatArrayElements(pixelSpacing, 0);
-
-	uint32_t* blksize = NULL;
-	if (blockSize != NULL) {
-		jlong* cBlockSize = env->GetLongArrayElements(blockSize, 0);
-		uint32_t tmp[5];
-		for (int d = 0; d < 5; ++d)
-			tmp[d] = (uint32_t)cImageSize[d];
-		blksize = tmp;
-		env->ReleaseLongArrayElements(blockSize, cBlockSize, JNI_ABORT);
-	}
-
-	uint32_t imgsize[5];
-	for (int d = 0; d < 5; ++d)
-		imgsize[d] = (uint32_t)cImageSize[d];
+	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
+	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
+	jlong* cXyzctStep = env->GetLongArrayElements(xyzctStep, 0);
+	jlong* cXyzctBin = env->GetLongArrayElements(xyzctBin, 0);
+	jlong* cOutStrides = (outStrides == NULL) ? NULL : env->GetLongArrayElements(outStrides, 0);
+	jboolean isCopy;
+	jshort* cBuffer = env->GetShortArrayElements(buffer, &isCopy);
 
-	const int errid = writeKLBstack(cBuffer, cFilePath, imgsize, (KLB_DATA_TYPE)dataType, numThreads, cPixelSpacing, blksize, (KLB_COMPRESSION_TYPE)compressionType, NULL);
+	const int errid = readKLBroiSampledInPlaceConvertJlong(cFilePath, cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(*cBuffer), outOffset, cOutStrides, outDataType, scale, offset, cXyzctMin, cXyzctMax, cXyzctStep, cXyzctBin, threshold, numThreads, readStrategy, getTaskStatus(env, status));
 
-	env->ReleaseIntArrayElements(buffer, cBuffer, JNI_ABORT);
 	env->ReleaseStringUTFChars(filePath, cFilePath);
-	env->ReleaseLongArrayElements(imageSize, cImageSize, JNI_ABORT);
-	if (cPixelSpacing != NULL)
-		env->ReleaseFloatArrayElements(pixelSpacing, cPixelSpacing, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMax, cXyzctMax, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctStep, cXyzctStep, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctBin, cXyzctBin, JNI_ABORT);
+	if (cOutStrides != NULL)
+		env->ReleaseLongArrayElements(outStrides, cOutStrides, JNI_ABORT);
+	if (isCopy == JNI_TRUE) {
+		env->ReleaseShortArrayElements(buffer, cBuffer, 0);
+	} else {
+		env->ReleaseShortArrayElements(buffer, cBuffer, JNI_ABORT);
+	}
 
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3JLjava_lang_String_2_3JII_3F_3JI_3B
-(JNIEnv* env, jobject obj, jlongArray buffer, jstring filePath, jlongArray imageSize, jint dataType, jint numThreads, jfloatArray pixelSpacing, jlongArray blockSize, jint compressionType, jbyteArray metadata)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROISampled__Ljava_lang_String_2_3J_3J_3J_3JDII_3IJ_3JIDDLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jlongArray xyzctStep, jlongArray xyzctBin, jdouble threshold, jint numThreads, jint readStrategy, jintArray buffer, jlong outOffset, jlongArray outStrides, jint outDataType, jdouble scale, jdouble offset, jobject status)
 {
-	jlong* cBuffer = env->GetLongArrayElements(buffer, 0);
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
-	jlong* cImageSize = env->GetLongArrayElements(imageSize, 0);
-	jfloat* cPixelSpacing = pixelSpacing == NULL ? NULL : env->GetFloatArrayElements(pixelSpacing, 0);
-
-	uint32_t* blksize = NULL;
-	if (blockSize != NULL) {
-		jlong* cBlockSize = env->GetLongArrayElements(blockSize, 0);
-		uint32_t tmp[5];
-		for (int d = 0; d < 5; ++d)
-			tmp[d] = (uint32_t)cImageSize[d];
-		blksize = tmp;
-		env->ReleaseLongArrayElements(blockSize, cBlockSize, JNI_ABORT);
-	}
-
-	uint32_t imgsize[5];
-	for (int d = 0; d < 5; ++d)
-		imgsize[d] = (uint32_t)cImageSize[d];
+	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
+	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
+	jlong* cXyzctStep = env->GetLongArrayElements(xyzctStep, 0);
+	jlong* cXyzctBin = env->GetLongArrayElements(xyzctBin, 0);
+	jlong* cOutStrides = (outStrides == NULL) ? NULL : env->GetLongArrayElements(outStrides, 0);
+	jboolean isCopy;
+	jint* cBuffer = env->GetIntArrayElements(buffer, &isCopy);
 
-	const int errid = writeKLBstack(cBuffer, cFilePath, imgsize, (KLB_DATA_TYPE)dataType, numThreads, cPixelSpacing, blksize, (KLB_COMPRESSION_TYPE)compressionType, NULL);
+	const int errid = readKLBroiSampledInPlaceConvertJlong(cFilePath, cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(*cBuffer), outOffset, cOutStrides, outDataType, scale, offset, cXyzctMin, cXyzctMax, cXyzctStep, cXyzctBin, threshold, numThreads, readStrategy, getTaskStatus(env, status));
 
-	env->ReleaseLongArrayElements(buffer, cBuffer, JNI_ABORT);
 	env->ReleaseStringUTFChars(filePath, cFilePath);
-	env->ReleaseLongArrayElements(imageSize, cImageSize, JNI_ABORT);
-	if (cPixelSpacing != NULL)
-		env->ReleaseFloatArrayElements(pixelSpacing, cPixelSpacing, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMax, cXyzctMax, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctStep, cXyzctStep, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctBin, cXyzctBin, JNI_ABORT);
+	if (cOutStrides != NULL)
+		env->ReleaseLongArrayElements(outStrides, cOutStrides, JNI_ABORT);
+	if (isCopy == JNI_TRUE) {
+		env->ReleaseIntArrayElements(buffer, cBuffer, 0);
+	} else {
+		env->ReleaseIntArrayElements(buffer, cBuffer, JNI_ABORT);
+	}
 
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3FLjava_lang_String_2_3JII_3F_3JI_3B
-(JNIEnv* env, jobject obj, jfloatArray buffer, jstring filePath, jlongArray imageSize, jint dataType, jint numThreads, jfloatArray pixelSpacing, jlongArray blockSize, jint compressionType, jbyteArray metadata)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROISampled__Ljava_lang_String_2_3J_3J_3J_3JDII_3JJ_3JIDDLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jlongArray xyzctStep, jlongArray xyzctBin, jdouble threshold, jint numThreads, jint readStrategy, jlongArray buffer, jlong outOffset, jlongArray outStrides, jint outDataType, jdouble scale, jdouble offset, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
+	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
+	jlong* cXyzctStep = env->GetLongArrayElements(xyzctStep, 0);
+	jlong* cXyzctBin = env->GetLongArrayElements(xyzctBin, 0);
+	jlong* cOutStrides = (outStrides == NULL) ? NULL : env->GetLongArrayElements(outStrides, 0);
+	jboolean isCopy;
+	jlong* cBuffer = env->GetLongArrayElements(buffer, &isCopy);
+
+	const int errid = readKLBroiSampledInPlaceConvertJlong(cFilePath, cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(*cBuffer), outOffset, cOutStrides, outDataType, scale, offset, cXyzctMin, cXyzctMax, cXyzctStep, cXyzctBin, threshold, numThreads, readStrategy, getTaskStatus(env, status));
+
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMax, cXyzctMax, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctStep, cXyzctStep, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctBin, cXyzctBin, JNI_ABORT);
+	if (cOutStrides != NULL)
+		env->ReleaseLongArrayElements(outStrides, cOutStrides, JNI_ABORT);
+	if (isCopy == JNI_TRUE) {
+		env->ReleaseLongArrayElements(buffer, cBuffer, 0);
+	} else {
+		env->ReleaseLongArrayElements(buffer, cBuffer, JNI_ABORT);
+	}
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROISampled__Ljava_lang_String_2_3J_3J_3J_3JDII_3FJ_3JIDDLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jlongArray xyzctStep, jlongArray xyzctBin, jdouble threshold, jint numThreads, jint readStrategy, jfloatArray buffer, jlong outOffset, jlongArray outStrides, jint outDataType, jdouble scale, jdouble offset, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
+	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
+	jlong* cXyzctStep = env->GetLongArrayElements(xyzctStep, 0);
+	jlong* cXyzctBin = env->GetLongArrayElements(xyzctBin, 0);
+	jlong* cOutStrides = (outStrides == NULL) ? NULL : env->GetLongArrayElements(outStrides, 0);
+	jboolean isCopy;
+	jfloat* cBuffer = env->GetFloatArrayElements(buffer, &isCopy);
+
+	const int errid = readKLBroiSampledInPlaceConvertJlong(cFilePath, cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(*cBuffer), outOffset, cOutStrides, outDataType, scale, offset, cXyzctMin, cXyzctMax, cXyzctStep, cXyzctBin, threshold, numThreads, readStrategy, getTaskStatus(env, status));
+
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMax, cXyzctMax, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctStep, cXyzctStep, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctBin, cXyzctBin, JNI_ABORT);
+	if (cOutStrides != NULL)
+		env->ReleaseLongArrayElements(outStrides, cOutStrides, JNI_ABORT);
+	if (isCopy == JNI_TRUE) {
+		env->ReleaseFloatArrayElements(buffer, cBuffer, 0);
+	} else {
+		env->ReleaseFloatArrayElements(buffer, cBuffer, JNI_ABORT);
+	}
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROISampled__Ljava_lang_String_2_3J_3J_3J_3JDII_3DJ_3JIDDLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jlongArray xyzctStep, jlongArray xyzctBin, jdouble threshold, jint numThreads, jint readStrategy, jdoubleArray buffer, jlong outOffset, jlongArray outStrides, jint outDataType, jdouble scale, jdouble offset, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
+	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
+	jlong* cXyzctStep = env->GetLongArrayElements(xyzctStep, 0);
+	jlong* cXyzctBin = env->GetLongArrayElements(xyzctBin, 0);
+	jlong* cOutStrides = (outStrides == NULL) ? NULL : env->GetLongArrayElements(outStrides, 0);
+	jboolean isCopy;
+	jdouble* cBuffer = env->GetDoubleArrayElements(buffer, &isCopy);
+
+	const int errid = readKLBroiSampledInPlaceConvertJlong(cFilePath, cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(*cBuffer), outOffset, cOutStrides, outDataType, scale, offset, cXyzctMin, cXyzctMax, cXyzctStep, cXyzctBin, threshold, numThreads, readStrategy, getTaskStatus(env, status));
+
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMax, cXyzctMax, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctStep, cXyzctStep, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctBin, cXyzctBin, JNI_ABORT);
+	if (cOutStrides != NULL)
+		env->ReleaseLongArrayElements(outStrides, cOutStrides, JNI_ABORT);
+	if (isCopy == JNI_TRUE) {
+		env->ReleaseDoubleArrayElements(buffer, cBuffer, 0);
+	} else {
+		env->ReleaseDoubleArrayElements(buffer, cBuffer, JNI_ABORT);
+	}
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROISampled__Ljava_lang_String_2_3J_3J_3J_3JDIILjava_nio_Buffer_2J_3JIDDLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jlongArray xyzctStep, jlongArray xyzctBin, jdouble threshold, jint numThreads, jint readStrategy, jobject buffer, jlong outOffset, jlongArray outStrides, jint outDataType, jdouble scale, jdouble offset, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
+	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
+	jlong* cXyzctStep = env->GetLongArrayElements(xyzctStep, 0);
+	jlong* cXyzctBin = env->GetLongArrayElements(xyzctBin, 0);
+	jlong* cOutStrides = (outStrides == NULL) ? NULL : env->GetLongArrayElements(outStrides, 0);
+	void* cBuffer = env->GetDirectBufferAddress(buffer);
+
+	const int errid = readKLBroiSampledInPlaceConvertJlong(cFilePath, cBuffer, getDirectBufferBytes(env, buffer), outOffset, cOutStrides, outDataType, scale, offset, cXyzctMin, cXyzctMax, cXyzctStep, cXyzctBin, threshold, numThreads, readStrategy, getTaskStatus(env, status));
+
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMax, cXyzctMax, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctStep, cXyzctStep, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctBin, cXyzctBin, JNI_ABORT);
+	if (cOutStrides != NULL)
+		env->ReleaseLongArrayElements(outStrides, cOutStrides, JNI_ABORT);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3BLjava_lang_String_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jbyteArray buffer, jstring filePath, jlongArray imageSize, jint dataType, jint numThreads, jlong writeBufferBytes, jint blockOrder, jboolean constantBlocks, jfloatArray pixelSpacing, jlongArray blockSize, jint compressionType, jbyteArray metadata, jobject status)
+{
+	jbyte* cBuffer = env->GetByteArrayElements(buffer, 0);
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jlong* cImageSize = env->GetLongArrayElements(imageSize, 0);
+	jfloat* cPixelSpacing = pixelSpacing == NULL ? NULL : env->GetFloatArrayElements(pixelSpacing, 0);
+
+	uint32_t tmp[5];
+	uint32_t* blksize = NULL;
+	if (blockSize != NULL) {
+		jlong* cBlockSize = env->GetLongArrayElements(blockSize, 0);
+		for (int d = 0; d < 5; ++d)
+			tmp[d] = (uint32_t)cBlockSize[d];
+		blksize = tmp;
+		env->ReleaseLongArrayElements(blockSize, cBlockSize, JNI_ABORT);
+	}
+
+	uint32_t imgsize[5];
+	for (int d = 0; d < 5; ++d)
+		imgsize[d] = (uint32_t)cImageSize[d];
+
+	char cMetadata[KLB_METADATA_SIZE];
+	const int errid = writeKLBstackWithStatus(cBuffer, cFilePath, imgsize, (KLB_DATA_TYPE)dataType, numThreads, writeBufferBytes, (KLB_BLOCK_ORDER)blockOrder, constantBlocks == JNI_TRUE, cPixelSpacing, blksize, (KLB_COMPRESSION_TYPE)compressionType, getMetadata(env, metadata, cMetadata), getTaskStatus(env, status));
+
+	env->ReleaseByteArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+	env->ReleaseLongArrayElements(imageSize, cImageSize, JNI_ABORT);
+	if (cPixelSpacing != NULL)
+		env->ReleaseFloatArrayElements(pixelSpacing, cPixelSpacing, JNI_ABORT);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3SLjava_lang_String_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jshortArray buffer, jstring filePath, jlongArray imageSize, jint dataType, jint numThreads, jlong writeBufferBytes, jint blockOrder, jboolean constantBlocks, jfloatArray pixelSpacing, jlongArray blockSize, jint compressionType, jbyteArray metadata, jobject status)
+{
+	jshort* cBuffer = env->GetShortArrayElements(buffer, 0);
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jlong* cImageSize = env->GetLongArrayElements(imageSize, 0);
+	jfloat* cPixelSpacing = pixelSpacing == NULL ? NULL : env->GetFloatArrayElements(pixelSpacing, 0);
+
+	uint32_t tmp[5];
+	uint32_t* blksize = NULL;
+	if (blockSize != NULL) {
+		jlong* cBlockSize = env->GetLongArrayElements(blockSize, 0);
+		for (int d = 0; d < 5; ++d)
+			tmp[d] = (uint32_t)cBlockSize[d];
+		blksize = tmp;
+		env->ReleaseLongArrayElements(blockSize, cBlockSize, JNI_ABORT);
+	}
+
+	uint32_t imgsize[5];
+	for (int d = 0; d < 5; ++d)
+		imgsize[d] = (uint32_t)cImageSize[d];
+
+	char cMetadata[KLB_METADATA_SIZE];
+	const int errid = writeKLBstackWithStatus(cBuffer, cFilePath, imgsize, (KLB_DATA_TYPE)dataType, numThreads, writeBufferBytes, (KLB_BLOCK_ORDER)blockOrder, constantBlocks == JNI_TRUE, cPixelSpacing, blksize, (KLB_COMPRESSION_TYPE)compressionType, getMetadata(env, metadata, cMetadata), getTaskStatus(env, status));
+
+	env->ReleaseShortArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+	env->ReleaseLongArrayElements(imageSize, cImageSize, JNI_ABORT);
+	if (cPixelSpacing != NULL)
+		env->ReleaseFloatArrayElements(pixelSpacing, cPixelSpacing, JNI_ABORT);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3ILjava_lang_String_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jintArray buffer, jstring filePath, jlongArray imageSize, jint dataType, jint numThreads, jlong writeBufferBytes, jint blockOrder, jboolean constantBlocks, jfloatArray pixelSpacing, jlongArray blockSize, jint compressionType, jbyteArray metadata, jobject status)
+{
+	jint* cBuffer = env->GetIntArrayElements(buffer, 0);
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jlong* cImageSize = env->GetLongArrayElements(imageSize, 0);
+	jfloat* cPixelSpacing = pixelSpacing == NULL ? NULL : env->GetFloatArrayElements(pixelSpacing, 0);
+
+	uint32_t tmp[5];
+	uint32_t* blksize = NULL;
+	if (blockSize != NULL) {
+		jlong* cBlockSize = env->GetLongArrayElements(blockSize, 0);
+		for (int d = 0; d < 5; ++d)
+			tmp[d] = (uint32_t)cBlockSize[d];
+		blksize = tmp;
+		env->ReleaseLongArrayElements(blockSize, cBlockSize, JNI_ABORT);
+	}
+
+	uint32_t imgsize[5];
+	for (int d = 0; d < 5; ++d)
+		imgsize[d] = (uint32_t)cImageSize[d];
+
+	char cMetadata[KLB_METADATA_SIZE];
+	const int errid = writeKLBstackWithStatus(cBuffer, cFilePath, imgsize, (KLB_DATA_TYPE)dataType, numThreads, writeBufferBytes, (KLB_BLOCK_ORDER)blockOrder, constantBlocks == JNI_TRUE, cPixelSpacing, blksize, (KLB_COMPRESSION_TYPE)compressionType, getMetadata(env, metadata, cMetadata), getTaskStatus(env, status));
+
+	env->ReleaseIntArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+	env->ReleaseLongArrayElements(imageSize, cImageSize, JNI_ABORT);
+	if (cPixelSpacing != NULL)
+		env->ReleaseFloatArrayElements(pixelSpacing, cPixelSpacing, JNI_ABORT);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3JLjava_lang_String_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jlongArray buffer, jstring filePath, jlongArray imageSize, jint dataType, jint numThreads, jlong writeBufferBytes, jint blockOrder, jboolean constantBlocks, jfloatArray pixelSpacing, jlongArray blockSize, jint compressionType, jbyteArray metadata, jobject status)
+{
+	jlong* cBuffer = env->GetLongArrayElements(buffer, 0);
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jlong* cImageSize = env->GetLongArrayElements(imageSize, 0);
+	jfloat* cPixelSpacing = pixelSpacing == NULL ? NULL : env->GetFloatArrayElements(pixelSpacing, 0);
+
+	uint32_t tmp[5];
+	uint32_t* blksize = NULL;
+	if (blockSize != NULL) {
+		jlong* cBlockSize = env->GetLongArrayElements(blockSize, 0);
+		for (int d = 0; d < 5; ++d)
+			tmp[d] = (uint32_t)cBlockSize[d];
+		blksize = tmp;
+		env->ReleaseLongArrayElements(blockSize, cBlockSize, JNI_ABORT);
+	}
+
+	uint32_t imgsize[5];
+	for (int d = 0; d < 5; ++d)
+		imgsize[d] = (uint32_t)cImageSize[d];
+
+	char cMetadata[KLB_METADATA_SIZE];
+	const int errid = writeKLBstackWithStatus(cBuffer, cFilePath, imgsize, (KLB_DATA_TYPE)dataType, numThreads, writeBufferBytes, (KLB_BLOCK_ORDER)blockOrder, constantBlocks == JNI_TRUE, cPixelSpacing, blksize, (KLB_COMPRESSION_TYPE)compressionType, getMetadata(env, metadata, cMetadata), getTaskStatus(env, status));
+
+	env->ReleaseLongArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+	env->ReleaseLongArrayElements(imageSize, cImageSize, JNI_ABORT);
+	if (cPixelSpacing != NULL)
+		env->ReleaseFloatArrayElements(pixelSpacing, cPixelSpacing, JNI_ABORT);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3FLjava_lang_String_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jfloatArray buffer, jstring filePath, jlongArray imageSize, jint dataType, jint numThreads, jlong writeBufferBytes, jint blockOrder, jboolean constantBlocks, jfloatArray pixelSpacing, jlongArray blockSize, jint compressionType, jbyteArray metadata, jobject status)
 {
 	jfloat* cBuffer = env->GetFloatArrayElements(buffer, 0);
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	jlong* cImageSize = env->GetLongArrayElements(imageSize, 0);
 	jfloat* cPixelSpacing = pixelSpacing == NULL ? NULL : env->GetFloatArrayElements(pixelSpacing, 0);
 
+	uint32_t tmp[5];
 	uint32_t* blksize = NULL;
 	if (blockSize != NULL) {
 		jlong* cBlockSize = env->GetLongArrayElements(blockSize, 0);
-		uint32_t tmp[5];
 		for (int d = 0; d < 5; ++d)
-			tmp[d] = (uint32_t)cImageSize[d];
+			tmp[d] = (uint32_t)cBlockSize[d];
 		blksize = tmp;
 		env->ReleaseLongArrayElements(blockSize, cBlockSize, JNI_ABORT);
 	}
@@ -504,7 +1225,8 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3FLjav
 	for (int d = 0; d < 5; ++d)
 		imgsize[d] = (uint32_t)cImageSize[d];
 
-	const int errid = writeKLBstack(cBuffer, cFilePath, imgsize, (KLB_DATA_TYPE)dataType, numThreads, cPixelSpacing, blksize, (KLB_COMPRESSION_TYPE)compressionType, NULL);
+	char cMetadata[KLB_METADATA_SIZE];
+	const int errid = writeKLBstackWithStatus(cBuffer, cFilePath, imgsize, (KLB_DATA_TYPE)dataType, numThreads, writeBufferBytes, (KLB_BLOCK_ORDER)blockOrder, constantBlocks == JNI_TRUE, cPixelSpacing, blksize, (KLB_COMPRESSION_TYPE)compressionType, getMetadata(env, metadata, cMetadata), getTaskStatus(env, status));
 
 	env->ReleaseFloatArrayElements(buffer, cBuffer, JNI_ABORT);
 	env->ReleaseStringUTFChars(filePath, cFilePath);
@@ -515,20 +1237,20 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3FLjav
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3DLjava_lang_String_2_3JII_3F_3JI_3B
-(JNIEnv* env, jobject obj, jdoubleArray buffer, jstring filePath, jlongArray imageSize, jint dataType, jint numThreads, jfloatArray pixelSpacing, jlongArray blockSize, jint compressionType, jbyteArray metadata)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3DLjava_lang_String_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jdoubleArray buffer, jstring filePath, jlongArray imageSize, jint dataType, jint numThreads, jlong writeBufferBytes, jint blockOrder, jboolean constantBlocks, jfloatArray pixelSpacing, jlongArray blockSize, jint compressionType, jbyteArray metadata, jobject status)
 {
 	jdouble* cBuffer = env->GetDoubleArrayElements(buffer, 0);
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	jlong* cImageSize = env->GetLongArrayElements(imageSize, 0);
 	jfloat* cPixelSpacing = pixelSpacing == NULL ? NULL : env->GetFloatArrayElements(pixelSpacing, 0);
 
+	uint32_t tmp[5];
 	uint32_t* blksize = NULL;
 	if (blockSize != NULL) {
 		jlong* cBlockSize = env->GetLongArrayElements(blockSize, 0);
-		uint32_t tmp[5];
 		for (int d = 0; d < 5; ++d)
-			tmp[d] = (uint32_t)cImageSize[d];
+			tmp[d] = (uint32_t)cBlockSize[d];
 		blksize = tmp;
 		env->ReleaseLongArrayElements(blockSize, cBlockSize, JNI_ABORT);
 	}
@@ -537,7 +1259,8 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3DLjav
 	for (int d = 0; d < 5; ++d)
 		imgsize[d] = (uint32_t)cImageSize[d];
 
-	const int errid = writeKLBstack(cBuffer, cFilePath, imgsize, (KLB_DATA_TYPE)dataType, numThreads, cPixelSpacing, blksize, (KLB_COMPRESSION_TYPE)compressionType, NULL);
+	char cMetadata[KLB_METADATA_SIZE];
+	const int errid = writeKLBstackWithStatus(cBuffer, cFilePath, imgsize, (KLB_DATA_TYPE)dataType, numThreads, writeBufferBytes, (KLB_BLOCK_ORDER)blockOrder, constantBlocks == JNI_TRUE, cPixelSpacing, blksize, (KLB_COMPRESSION_TYPE)compressionType, getMetadata(env, metadata, cMetadata), getTaskStatus(env, status));
 
 	env->ReleaseDoubleArrayElements(buffer, cBuffer, JNI_ABORT);
 	env->ReleaseStringUTFChars(filePath, cFilePath);
@@ -548,20 +1271,20 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3DLjav
 	return (jint)errid;
 }
 
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull__Ljava_nio_Buffer_2Ljava_lang_String_2_3JII_3F_3JI_3B
-(JNIEnv* env, jobject obj, jobject buffer, jstring filePath, jlongArray imageSize, jint dataType, jint numThreads, jfloatArray pixelSpacing, jlongArray blockSize, jint compressionType, jbyteArray metadata)
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull__Ljava_nio_Buffer_2Ljava_lang_String_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jobject buffer, jstring filePath, jlongArray imageSize, jint dataType, jint numThreads, jlong writeBufferBytes, jint blockOrder, jboolean constantBlocks, jfloatArray pixelSpacing, jlongArray blockSize, jint compressionType, jbyteArray metadata, jobject status)
 {
 	void* cBuffer = env->GetDirectBufferAddress(buffer);
 	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
 	jlong* cImageSize = env->GetLongArrayElements(imageSize, 0);
 	jfloat* cPixelSpacing = pixelSpacing == NULL ? NULL : env->GetFloatArrayElements(pixelSpacing, 0);
 
+	uint32_t tmp[5];
 	uint32_t* blksize = NULL;
 	if (blockSize != NULL) {
 		jlong* cBlockSize = env->GetLongArrayElements(blockSize, 0);
-		uint32_t tmp[5];
 		for (int d = 0; d < 5; ++d)
-			tmp[d] = (uint32_t)cImageSize[d];
+			tmp[d] = (uint32_t)cBlockSize[d];
 		blksize = tmp;
 		env->ReleaseLongArrayElements(blockSize, cBlockSize, JNI_ABORT);
 	}
@@ -570,7 +1293,8 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull__Ljava_n
 	for (int d = 0; d < 5; ++d)
 		imgsize[d] = (uint32_t)cImageSize[d];
 
-	const int errid = writeKLBstack(cBuffer, cFilePath, imgsize, (KLB_DATA_TYPE)dataType, numThreads, cPixelSpacing, blksize, (KLB_COMPRESSION_TYPE)compressionType, NULL);
+	char cMetadata[KLB_METADATA_SIZE];
+	const int errid = writeKLBstackWithStatus(cBuffer, cFilePath, imgsize, (KLB_DATA_TYPE)dataType, numThreads, writeBufferBytes, (KLB_BLOCK_ORDER)blockOrder, constantBlocks == JNI_TRUE, cPixelSpacing, blksize, (KLB_COMPRESSION_TYPE)compressionType, getMetadata(env, metadata, cMetadata), getTaskStatus(env, status));
 
 	env->ReleaseStringUTFChars(filePath, cFilePath);
 	env->ReleaseLongArrayElements(imageSize, cImageSize, JNI_ABORT);
@@ -579,3 +1303,345 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull__Ljava_n
 
 	return (jint)errid;
 }
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFullToChannel___3BLorg_janelia_simview_klb_KLBJNI_00024ChannelSink_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jbyteArray buffer, jobject sink, jlongArray imageSize, jint dataType, jint numThreads, jlong writeBufferBytes, jint blockOrder, jboolean constantBlocks, jfloatArray pixelSpacing, jlongArray blockSize, jint compressionType, jbyteArray metadata, jobject status)
+{
+	jbyte* cBuffer = env->GetByteArrayElements(buffer, 0);
+	jlong* cImageSize = env->GetLongArrayElements(imageSize, 0);
+	jfloat* cPixelSpacing = pixelSpacing == NULL ? NULL : env->GetFloatArrayElements(pixelSpacing, 0);
+
+	uint32_t tmp[5];
+	uint32_t* blksize = NULL;
+	if (blockSize != NULL) {
+		jlong* cBlockSize = env->GetLongArrayElements(blockSize, 0);
+		for (int d = 0; d < 5; ++d)
+			tmp[d] = (uint32_t)cBlockSize[d];
+		blksize = tmp;
+		env->ReleaseLongArrayElements(blockSize, cBlockSize, JNI_ABORT);
+	}
+
+	uint32_t imgsize[5];
+	for (int d = 0; d < 5; ++d)
+		imgsize[d] = (uint32_t)cImageSize[d];
+
+	char cMetadata[KLB_METADATA_SIZE];
+	const int errid = writeKLBstackToChannelWithStatus(cBuffer, env, sink, imgsize, (KLB_DATA_TYPE)dataType, numThreads, writeBufferBytes, (KLB_BLOCK_ORDER)blockOrder, constantBlocks == JNI_TRUE, cPixelSpacing, blksize, (KLB_COMPRESSION_TYPE)compressionType, getMetadata(env, metadata, cMetadata), getTaskStatus(env, status));
+
+	env->ReleaseByteArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseLongArrayElements(imageSize, cImageSize, JNI_ABORT);
+	if (cPixelSpacing != NULL)
+		env->ReleaseFloatArrayElements(pixelSpacing, cPixelSpacing, JNI_ABORT);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFullToChannel__Ljava_nio_Buffer_2Lorg_janelia_simview_klb_KLBJNI_00024ChannelSink_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jobject buffer, jobject sink, jlongArray imageSize, jint dataType, jint numThreads, jlong writeBufferBytes, jint blockOrder, jboolean constantBlocks, jfloatArray pixelSpacing, jlongArray blockSize, jint compressionType, jbyteArray metadata, jobject status)
+{
+	void* cBuffer = env->GetDirectBufferAddress(buffer);
+	jlong* cImageSize = env->GetLongArrayElements(imageSize, 0);
+	jfloat* cPixelSpacing = pixelSpacing == NULL ? NULL : env->GetFloatArrayElements(pixelSpacing, 0);
+
+	uint32_t tmp[5];
+	uint32_t* blksize = NULL;
+	if (blockSize != NULL) {
+		jlong* cBlockSize = env->GetLongArrayElements(blockSize, 0);
+		for (int d = 0; d < 5; ++d)
+			tmp[d] = (uint32_t)cBlockSize[d];
+		blksize = tmp;
+		env->ReleaseLongArrayElements(blockSize, cBlockSize, JNI_ABORT);
+	}
+
+	uint32_t imgsize[5];
+	for (int d = 0; d < 5; ++d)
+		imgsize[d] = (uint32_t)cImageSize[d];
+
+	char cMetadata[KLB_METADATA_SIZE];
+	const int errid = writeKLBstackToChannelWithStatus(cBuffer, env, sink, imgsize, (KLB_DATA_TYPE)dataType, numThreads, writeBufferBytes, (KLB_BLOCK_ORDER)blockOrder, constantBlocks == JNI_TRUE, cPixelSpacing, blksize, (KLB_COMPRESSION_TYPE)compressionType, getMetadata(env, metadata, cMetadata), getTaskStatus(env, status));
+
+	env->ReleaseLongArrayElements(imageSize, cImageSize, JNI_ABORT);
+	if (cPixelSpacing != NULL)
+		env->ReleaseFloatArrayElements(pixelSpacing, cPixelSpacing, JNI_ABORT);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteROI__Ljava_lang_String_2_3J_3J_3BILjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jbyteArray buffer, jint numThreads, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
+	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
+	jbyte* cBuffer = env->GetByteArrayElements(buffer, 0);
+
+	const int errid = writeKLBroiWithStatus(cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(jbyte), cFilePath, cXyzctMin, cXyzctMax, numThreads, getTaskStatus(env, status));
+
+	env->ReleaseByteArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMax, cXyzctMax, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteROI__Ljava_lang_String_2_3J_3J_3SILjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jshortArray buffer, jint numThreads, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
+	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
+	jshort* cBuffer = env->GetShortArrayElements(buffer, 0);
+
+	const int errid = writeKLBroiWithStatus(cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(jshort), cFilePath, cXyzctMin, cXyzctMax, numThreads, getTaskStatus(env, status));
+
+	env->ReleaseShortArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMax, cXyzctMax, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteROI__Ljava_lang_String_2_3J_3J_3IILjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jintArray buffer, jint numThreads, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
+	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
+	jint* cBuffer = env->GetIntArrayElements(buffer, 0);
+
+	const int errid = writeKLBroiWithStatus(cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(jint), cFilePath, cXyzctMin, cXyzctMax, numThreads, getTaskStatus(env, status));
+
+	env->ReleaseIntArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMax, cXyzctMax, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteROI__Ljava_lang_String_2_3J_3J_3JILjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jlongArray buffer, jint numThreads, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
+	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
+	jlong* cBuffer = env->GetLongArrayElements(buffer, 0);
+
+	const int errid = writeKLBroiWithStatus(cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(jlong), cFilePath, cXyzctMin, cXyzctMax, numThreads, getTaskStatus(env, status));
+
+	env->ReleaseLongArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMax, cXyzctMax, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteROI__Ljava_lang_String_2_3J_3J_3FILjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jfloatArray buffer, jint numThreads, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
+	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
+	jfloat* cBuffer = env->GetFloatArrayElements(buffer, 0);
+
+	const int errid = writeKLBroiWithStatus(cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(jfloat), cFilePath, cXyzctMin, cXyzctMax, numThreads, getTaskStatus(env, status));
+
+	env->ReleaseFloatArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMax, cXyzctMax, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteROI__Ljava_lang_String_2_3J_3J_3DILjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jdoubleArray buffer, jint numThreads, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
+	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
+	jdouble* cBuffer = env->GetDoubleArrayElements(buffer, 0);
+
+	const int errid = writeKLBroiWithStatus(cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(jdouble), cFilePath, cXyzctMin, cXyzctMax, numThreads, getTaskStatus(env, status));
+
+	env->ReleaseDoubleArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMax, cXyzctMax, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteROI__Ljava_lang_String_2_3J_3JLjava_nio_Buffer_2JILjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray xyzctMin, jlongArray xyzctMax, jobject buffer, jlong numBytes, jint numThreads, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jlong* cXyzctMin = env->GetLongArrayElements(xyzctMin, 0);
+	jlong* cXyzctMax = env->GetLongArrayElements(xyzctMax, 0);
+	void* cBuffer = env->GetDirectBufferAddress(buffer);
+
+	const int errid = writeKLBroiWithStatus(cBuffer, (std::uint64_t)numBytes, cFilePath, cXyzctMin, cXyzctMax, numThreads, getTaskStatus(env, status));
+
+	env->ReleaseLongArrayElements(xyzctMin, cXyzctMin, JNI_ABORT);
+	env->ReleaseLongArrayElements(xyzctMax, cXyzctMax, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniTranscode
+(JNIEnv* env, jobject obj, jstring srcPath, jstring dstPath, jlongArray blockSize, jint compressionType, jint numThreads, jlong writeBufferBytes, jboolean constantBlocks, jobject status)
+{
+	const char* cSrcPath = env->GetStringUTFChars(srcPath, 0);
+	const char* cDstPath = env->GetStringUTFChars(dstPath, 0);
+
+	uint32_t tmp[5];
+	uint32_t* blksize = NULL;
+	if (blockSize != NULL) {
+		jlong* cBlockSize = env->GetLongArrayElements(blockSize, 0);
+		for (int d = 0; d < 5; ++d)
+			tmp[d] = (uint32_t)cBlockSize[d];
+		blksize = tmp;
+		env->ReleaseLongArrayElements(blockSize, cBlockSize, JNI_ABORT);
+	}
+
+	const int errid = transcodeKLBWithStatus(cSrcPath, cDstPath, blksize, (KLB_COMPRESSION_TYPE)compressionType, numThreads, writeBufferBytes, constantBlocks == JNI_TRUE, getTaskStatus(env, status));
+
+	env->ReleaseStringUTFChars(srcPath, cSrcPath);
+	env->ReleaseStringUTFChars(dstPath, cDstPath);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniAppendTimepoint__Ljava_lang_String_2_3BILjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jbyteArray buffer, jint numThreads, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jbyte* cBuffer = env->GetByteArrayElements(buffer, 0);
+
+	const int errid = appendKLBtimepointWithStatus(cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(jbyte), cFilePath, numThreads, getTaskStatus(env, status));
+
+	env->ReleaseByteArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniAppendTimepoint__Ljava_lang_String_2_3SILjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jshortArray buffer, jint numThreads, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jshort* cBuffer = env->GetShortArrayElements(buffer, 0);
+
+	const int errid = appendKLBtimepointWithStatus(cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(jshort), cFilePath, numThreads, getTaskStatus(env, status));
+
+	env->ReleaseShortArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniAppendTimepoint__Ljava_lang_String_2_3IILjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jintArray buffer, jint numThreads, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jint* cBuffer = env->GetIntArrayElements(buffer, 0);
+
+	const int errid = appendKLBtimepointWithStatus(cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(jint), cFilePath, numThreads, getTaskStatus(env, status));
+
+	env->ReleaseIntArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniAppendTimepoint__Ljava_lang_String_2_3JILjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jlongArray buffer, jint numThreads, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jlong* cBuffer = env->GetLongArrayElements(buffer, 0);
+
+	const int errid = appendKLBtimepointWithStatus(cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(jlong), cFilePath, numThreads, getTaskStatus(env, status));
+
+	env->ReleaseLongArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniAppendTimepoint__Ljava_lang_String_2_3FILjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jfloatArray buffer, jint numThreads, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jfloat* cBuffer = env->GetFloatArrayElements(buffer, 0);
+
+	const int errid = appendKLBtimepointWithStatus(cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(jfloat), cFilePath, numThreads, getTaskStatus(env, status));
+
+	env->ReleaseFloatArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniAppendTimepoint__Ljava_lang_String_2_3DILjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jdoubleArray buffer, jint numThreads, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jdouble* cBuffer = env->GetDoubleArrayElements(buffer, 0);
+
+	const int errid = appendKLBtimepointWithStatus(cBuffer, (std::uint64_t)env->GetArrayLength(buffer) * sizeof(jdouble), cFilePath, numThreads, getTaskStatus(env, status));
+
+	env->ReleaseDoubleArrayElements(buffer, cBuffer, JNI_ABORT);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniAppendTimepoint__Ljava_lang_String_2Ljava_nio_Buffer_2JILjava_nio_ByteBuffer_2
+(JNIEnv* env, jobject obj, jstring filePath, jobject buffer, jlong numBytes, jint numThreads, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	void* cBuffer = env->GetDirectBufferAddress(buffer);
+
+	const int errid = appendKLBtimepointWithStatus(cBuffer, (std::uint64_t)numBytes, cFilePath, numThreads, getTaskStatus(env, status));
+
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniVerify
+(JNIEnv* env, jobject obj, jstring filePath, jbyteArray corruptBlocks, jint numThreads, jobject status)
+{
+	const char* cFilePath = env->GetStringUTFChars(filePath, 0);
+	jbyte* cCorruptBlocks = env->GetByteArrayElements(corruptBlocks, 0);
+
+	const int errid = verifyKLBWithStatus(cFilePath, cCorruptBlocks, (std::uint64_t)env->GetArrayLength(corruptBlocks), numThreads, getTaskStatus(env, status));
+
+	env->ReleaseByteArrayElements(corruptBlocks, cCorruptBlocks, 0);
+	env->ReleaseStringUTFChars(filePath, cFilePath);
+
+	return (jint)errid;
+}
+
+JNIEXPORT jbyteArray JNICALL Java_org_janelia_simview_klb_KLBJNI_jniCompressBlock
+(JNIEnv* env, jobject obj, jbyteArray block, jint compressionType)
+{
+	const jsize numBytes = env->GetArrayLength(block);
+	std::vector<char> bufferOut(klb_imageIO::getMaxCompressedSizeInBytes(numBytes));
+	unsigned int sizeCompressed = bufferOut.size();
+
+	jbyte* cBlock = env->GetByteArrayElements(block, 0);
+	const int errid = klb_imageIO::compressBlock((KLB_COMPRESSION_TYPE)compressionType, (const char*)cBlock, numBytes, bufferOut.data(), &sizeCompressed);
+	env->ReleaseByteArrayElements(block, cBlock, JNI_ABORT);
+	if (errid != 0)
+		return NULL;
+
+	jbyteArray compressed = env->NewByteArray(sizeCompressed);
+	if (compressed != NULL)
+		env->SetByteArrayRegion(compressed, 0, sizeCompressed, (const jbyte*)bufferOut.data());
+	return compressed;
+}
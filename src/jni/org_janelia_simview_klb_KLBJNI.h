@@ -7,6 +7,12 @@
 #ifdef __cplusplus
 extern "C" {
 #endif
+#undef org_janelia_simview_klb_KLBJNI_MAX_OFF_HEAP_CHUNK_BYTES
+#define org_janelia_simview_klb_KLBJNI_MAX_OFF_HEAP_CHUNK_BYTES 1073741824LL
+#undef org_janelia_simview_klb_KLBJNI_KLB_ERROR_CANCELLED
+#define org_janelia_simview_klb_KLBJNI_KLB_ERROR_CANCELLED 10L
+#undef org_janelia_simview_klb_KLBJNI_KLB_ERROR_NO_CHECKSUMS
+#define org_janelia_simview_klb_KLBJNI_KLB_ERROR_NO_CHECKSUMS 11L
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniReadHeader
@@ -18,170 +24,426 @@ JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadHeader
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniReadFull
- * Signature: (Ljava/lang/String;I[B)I
+ * Signature: (Ljava/lang/String;II[BLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2I_3B
-  (JNIEnv *, jobject, jstring, jint, jbyteArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2II_3BLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jint, jint, jbyteArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniReadFull
- * Signature: (Ljava/lang/String;I[S)I
+ * Signature: (Ljava/lang/String;II[SLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2I_3S
-  (JNIEnv *, jobject, jstring, jint, jshortArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2II_3SLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jint, jint, jshortArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniReadFull
- * Signature: (Ljava/lang/String;I[I)I
+ * Signature: (Ljava/lang/String;II[ILjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2I_3I
-  (JNIEnv *, jobject, jstring, jint, jintArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2II_3ILjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jint, jint, jintArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniReadFull
- * Signature: (Ljava/lang/String;I[J)I
+ * Signature: (Ljava/lang/String;II[JLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2I_3J
-  (JNIEnv *, jobject, jstring, jint, jlongArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2II_3JLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jint, jint, jlongArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniReadFull
- * Signature: (Ljava/lang/String;I[F)I
+ * Signature: (Ljava/lang/String;II[FLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2I_3F
-  (JNIEnv *, jobject, jstring, jint, jfloatArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2II_3FLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jint, jint, jfloatArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniReadFull
- * Signature: (Ljava/lang/String;I[D)I
+ * Signature: (Ljava/lang/String;II[DLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2I_3D
-  (JNIEnv *, jobject, jstring, jint, jdoubleArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2II_3DLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jint, jint, jdoubleArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniReadFull
- * Signature: (Ljava/lang/String;ILjava/nio/Buffer;)I
+ * Signature: (Ljava/lang/String;IILjava/nio/Buffer;Ljava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2ILjava_nio_Buffer_2
-  (JNIEnv *, jobject, jstring, jint, jobject);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFull__Ljava_lang_String_2IILjava_nio_Buffer_2Ljava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jint, jint, jobject, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniReadHeaderFromSource
+ * Signature: (Ljava/nio/Buffer;[BLorg/janelia/simview/klb/KLBJNI/ChannelSource;[J[J[F[I[B)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadHeaderFromSource
+  (JNIEnv *, jobject, jobject, jbyteArray, jobject, jlongArray, jlongArray, jfloatArray, jintArray, jbyteArray);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniReadFullFromSource
+ * Signature: (Ljava/nio/Buffer;[BLorg/janelia/simview/klb/KLBJNI/ChannelSource;II[BLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFullFromSource__Ljava_nio_Buffer_2_3BLorg_janelia_simview_klb_KLBJNI_00024ChannelSource_2II_3BLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jobject, jbyteArray, jobject, jint, jint, jbyteArray, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniReadFullFromSource
+ * Signature: (Ljava/nio/Buffer;[BLorg/janelia/simview/klb/KLBJNI/ChannelSource;IILjava/nio/Buffer;Ljava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFullFromSource__Ljava_nio_Buffer_2_3BLorg_janelia_simview_klb_KLBJNI_00024ChannelSource_2IILjava_nio_Buffer_2Ljava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jobject, jbyteArray, jobject, jint, jint, jobject, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniReadFullChunks
+ * Signature: (Ljava/lang/String;II[Ljava/nio/ByteBuffer;JJLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadFullChunks
+  (JNIEnv *, jobject, jstring, jint, jint, jobjectArray, jlong, jlong, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniReadROI
- * Signature: (Ljava/lang/String;[J[JI[B)I
+ * Signature: (Ljava/lang/String;[J[JII[BLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JI_3B
-  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jint, jbyteArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JII_3BLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jint, jint, jbyteArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniReadROI
- * Signature: (Ljava/lang/String;[J[JI[S)I
+ * Signature: (Ljava/lang/String;[J[JII[SLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JI_3S
-  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jint, jshortArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JII_3SLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jint, jint, jshortArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniReadROI
- * Signature: (Ljava/lang/String;[J[JI[I)I
+ * Signature: (Ljava/lang/String;[J[JII[ILjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JI_3I
-  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jint, jintArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JII_3ILjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jint, jint, jintArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniReadROI
- * Signature: (Ljava/lang/String;[J[JI[J)I
+ * Signature: (Ljava/lang/String;[J[JII[JLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JI_3J
-  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jint, jlongArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JII_3JLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jint, jint, jlongArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniReadROI
- * Signature: (Ljava/lang/String;[J[JI[F)I
+ * Signature: (Ljava/lang/String;[J[JII[FLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JI_3F
-  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jint, jfloatArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JII_3FLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jint, jint, jfloatArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniReadROI
- * Signature: (Ljava/lang/String;[J[JI[D)I
+ * Signature: (Ljava/lang/String;[J[JII[DLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JI_3D
-  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jint, jdoubleArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JII_3DLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jint, jint, jdoubleArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniReadROI
- * Signature: (Ljava/lang/String;[J[JILjava/nio/Buffer;)I
+ * Signature: (Ljava/lang/String;[J[JIILjava/nio/Buffer;Ljava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JIILjava_nio_Buffer_2Ljava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jint, jint, jobject, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniReadROIFromSource
+ * Signature: (Ljava/nio/Buffer;[BLorg/janelia/simview/klb/KLBJNI/ChannelSource;[J[JII[BLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROIFromSource__Ljava_nio_Buffer_2_3BLorg_janelia_simview_klb_KLBJNI_00024ChannelSource_2_3J_3JII_3BLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jobject, jbyteArray, jobject, jlongArray, jlongArray, jint, jint, jbyteArray, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniReadROIFromSource
+ * Signature: (Ljava/nio/Buffer;[BLorg/janelia/simview/klb/KLBJNI/ChannelSource;[J[JIILjava/nio/Buffer;Ljava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROIFromSource__Ljava_nio_Buffer_2_3BLorg_janelia_simview_klb_KLBJNI_00024ChannelSource_2_3J_3JIILjava_nio_Buffer_2Ljava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jobject, jbyteArray, jobject, jlongArray, jlongArray, jint, jint, jobject, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniReadROISampled
+ * Signature: (Ljava/lang/String;[J[J[J[JDII[BJ[JIDDLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROISampled__Ljava_lang_String_2_3J_3J_3J_3JDII_3BJ_3JIDDLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jlongArray, jlongArray, jdouble, jint, jint, jbyteArray, jlong, jlongArray, jint, jdouble, jdouble, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniReadROISampled
+ * Signature: (Ljava/lang/String;[J[J[J[JDII[SJ[JIDDLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROI__Ljava_lang_String_2_3J_3JILjava_nio_Buffer_2
-  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jint, jobject);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROISampled__Ljava_lang_String_2_3J_3J_3J_3JDII_3SJ_3JIDDLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jlongArray, jlongArray, jdouble, jint, jint, jshortArray, jlong, jlongArray, jint, jdouble, jdouble, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniReadROISampled
+ * Signature: (Ljava/lang/String;[J[J[J[JDII[IJ[JIDDLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROISampled__Ljava_lang_String_2_3J_3J_3J_3JDII_3IJ_3JIDDLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jlongArray, jlongArray, jdouble, jint, jint, jintArray, jlong, jlongArray, jint, jdouble, jdouble, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniReadROISampled
+ * Signature: (Ljava/lang/String;[J[J[J[JDII[JJ[JIDDLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROISampled__Ljava_lang_String_2_3J_3J_3J_3JDII_3JJ_3JIDDLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jlongArray, jlongArray, jdouble, jint, jint, jlongArray, jlong, jlongArray, jint, jdouble, jdouble, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniReadROISampled
+ * Signature: (Ljava/lang/String;[J[J[J[JDII[FJ[JIDDLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROISampled__Ljava_lang_String_2_3J_3J_3J_3JDII_3FJ_3JIDDLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jlongArray, jlongArray, jdouble, jint, jint, jfloatArray, jlong, jlongArray, jint, jdouble, jdouble, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniReadROISampled
+ * Signature: (Ljava/lang/String;[J[J[J[JDII[DJ[JIDDLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROISampled__Ljava_lang_String_2_3J_3J_3J_3JDII_3DJ_3JIDDLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jlongArray, jlongArray, jdouble, jint, jint, jdoubleArray, jlong, jlongArray, jint, jdouble, jdouble, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniReadROISampled
+ * Signature: (Ljava/lang/String;[J[J[J[JDIILjava/nio/Buffer;J[JIDDLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniReadROISampled__Ljava_lang_String_2_3J_3J_3J_3JDIILjava_nio_Buffer_2J_3JIDDLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jlongArray, jlongArray, jdouble, jint, jint, jobject, jlong, jlongArray, jint, jdouble, jdouble, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniWriteFull
- * Signature: ([BLjava/lang/String;[JII[F[JI[B)I
+ * Signature: ([BLjava/lang/String;[JIIJIZ[F[JI[BLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3BLjava_lang_String_2_3JII_3F_3JI_3B
-  (JNIEnv *, jobject, jbyteArray, jstring, jlongArray, jint, jint, jfloatArray, jlongArray, jint, jbyteArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3BLjava_lang_String_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jbyteArray, jstring, jlongArray, jint, jint, jlong, jint, jboolean, jfloatArray, jlongArray, jint, jbyteArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniWriteFull
- * Signature: ([SLjava/lang/String;[JII[F[JI[B)I
+ * Signature: ([SLjava/lang/String;[JIIJIZ[F[JI[BLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3SLjava_lang_String_2_3JII_3F_3JI_3B
-  (JNIEnv *, jobject, jshortArray, jstring, jlongArray, jint, jint, jfloatArray, jlongArray, jint, jbyteArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3SLjava_lang_String_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jshortArray, jstring, jlongArray, jint, jint, jlong, jint, jboolean, jfloatArray, jlongArray, jint, jbyteArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniWriteFull
- * Signature: ([ILjava/lang/String;[JII[F[JI[B)I
+ * Signature: ([ILjava/lang/String;[JIIJIZ[F[JI[BLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3ILjava_lang_String_2_3JII_3F_3JI_3B
-  (JNIEnv *, jobject, jintArray, jstring, jlongArray, jint, jint, jfloatArray, jlongArray, jint, jbyteArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3ILjava_lang_String_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jintArray, jstring, jlongArray, jint, jint, jlong, jint, jboolean, jfloatArray, jlongArray, jint, jbyteArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniWriteFull
- * Signature: ([JLjava/lang/String;[JII[F[JI[B)I
+ * Signature: ([JLjava/lang/String;[JIIJIZ[F[JI[BLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3JLjava_lang_String_2_3JII_3F_3JI_3B
-  (JNIEnv *, jobject, jlongArray, jstring, jlongArray, jint, jint, jfloatArray, jlongArray, jint, jbyteArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3JLjava_lang_String_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jlongArray, jstring, jlongArray, jint, jint, jlong, jint, jboolean, jfloatArray, jlongArray, jint, jbyteArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniWriteFull
- * Signature: ([FLjava/lang/String;[JII[F[JI[B)I
+ * Signature: ([FLjava/lang/String;[JIIJIZ[F[JI[BLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3FLjava_lang_String_2_3JII_3F_3JI_3B
-  (JNIEnv *, jobject, jfloatArray, jstring, jlongArray, jint, jint, jfloatArray, jlongArray, jint, jbyteArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3FLjava_lang_String_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jfloatArray, jstring, jlongArray, jint, jint, jlong, jint, jboolean, jfloatArray, jlongArray, jint, jbyteArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniWriteFull
- * Signature: ([DLjava/lang/String;[JII[F[JI[B)I
+ * Signature: ([DLjava/lang/String;[JIIJIZ[F[JI[BLjava/nio/ByteBuffer;)I
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3DLjava_lang_String_2_3JII_3F_3JI_3B
-  (JNIEnv *, jobject, jdoubleArray, jstring, jlongArray, jint, jint, jfloatArray, jlongArray, jint, jbyteArray);
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull___3DLjava_lang_String_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jdoubleArray, jstring, jlongArray, jint, jint, jlong, jint, jboolean, jfloatArray, jlongArray, jint, jbyteArray, jobject);
 
 /*
  * Class:     org_janelia_simview_klb_KLBJNI
  * Method:    jniWriteFull
- * Signature: (Ljava/nio/Buffer;Ljava/lang/String;[JII[F[JI[B)I
+ * Signature: (Ljava/nio/Buffer;Ljava/lang/String;[JIIJIZ[F[JI[BLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull__Ljava_nio_Buffer_2Ljava_lang_String_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jobject, jstring, jlongArray, jint, jint, jlong, jint, jboolean, jfloatArray, jlongArray, jint, jbyteArray, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniWriteFullToChannel
+ * Signature: ([BLorg/janelia/simview/klb/KLBJNI/ChannelSink;[JIIJIZ[F[JI[BLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFullToChannel___3BLorg_janelia_simview_klb_KLBJNI_00024ChannelSink_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jbyteArray, jobject, jlongArray, jint, jint, jlong, jint, jboolean, jfloatArray, jlongArray, jint, jbyteArray, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniWriteFullToChannel
+ * Signature: (Ljava/nio/Buffer;Lorg/janelia/simview/klb/KLBJNI/ChannelSink;[JIIJIZ[F[JI[BLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFullToChannel__Ljava_nio_Buffer_2Lorg_janelia_simview_klb_KLBJNI_00024ChannelSink_2_3JIIJIZ_3F_3JI_3BLjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jobject, jobject, jlongArray, jint, jint, jlong, jint, jboolean, jfloatArray, jlongArray, jint, jbyteArray, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniWriteROI
+ * Signature: (Ljava/lang/String;[J[J[BILjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteROI__Ljava_lang_String_2_3J_3J_3BILjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jbyteArray, jint, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniWriteROI
+ * Signature: (Ljava/lang/String;[J[J[SILjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteROI__Ljava_lang_String_2_3J_3J_3SILjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jshortArray, jint, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniWriteROI
+ * Signature: (Ljava/lang/String;[J[J[IILjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteROI__Ljava_lang_String_2_3J_3J_3IILjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jintArray, jint, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniWriteROI
+ * Signature: (Ljava/lang/String;[J[J[JILjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteROI__Ljava_lang_String_2_3J_3J_3JILjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jlongArray, jint, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniWriteROI
+ * Signature: (Ljava/lang/String;[J[J[FILjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteROI__Ljava_lang_String_2_3J_3J_3FILjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jfloatArray, jint, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniWriteROI
+ * Signature: (Ljava/lang/String;[J[J[DILjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteROI__Ljava_lang_String_2_3J_3J_3DILjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jdoubleArray, jint, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniWriteROI
+ * Signature: (Ljava/lang/String;[J[JLjava/nio/Buffer;JILjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteROI__Ljava_lang_String_2_3J_3JLjava_nio_Buffer_2JILjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jlongArray, jobject, jlong, jint, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniAppendTimepoint
+ * Signature: (Ljava/lang/String;[BILjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniAppendTimepoint__Ljava_lang_String_2_3BILjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jbyteArray, jint, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniAppendTimepoint
+ * Signature: (Ljava/lang/String;[SILjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniAppendTimepoint__Ljava_lang_String_2_3SILjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jshortArray, jint, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniAppendTimepoint
+ * Signature: (Ljava/lang/String;[IILjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniAppendTimepoint__Ljava_lang_String_2_3IILjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jintArray, jint, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniAppendTimepoint
+ * Signature: (Ljava/lang/String;[JILjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniAppendTimepoint__Ljava_lang_String_2_3JILjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jlongArray, jint, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniAppendTimepoint
+ * Signature: (Ljava/lang/String;[FILjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniAppendTimepoint__Ljava_lang_String_2_3FILjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jfloatArray, jint, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniAppendTimepoint
+ * Signature: (Ljava/lang/String;[DILjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniAppendTimepoint__Ljava_lang_String_2_3DILjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jdoubleArray, jint, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniAppendTimepoint
+ * Signature: (Ljava/lang/String;Ljava/nio/Buffer;JILjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniAppendTimepoint__Ljava_lang_String_2Ljava_nio_Buffer_2JILjava_nio_ByteBuffer_2
+  (JNIEnv *, jobject, jstring, jobject, jlong, jint, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniTranscode
+ * Signature: (Ljava/lang/String;Ljava/lang/String;[JIIJZLjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniTranscode
+  (JNIEnv *, jobject, jstring, jstring, jlongArray, jint, jint, jlong, jboolean, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniVerify
+ * Signature: (Ljava/lang/String;[BILjava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniVerify
+  (JNIEnv *, jobject, jstring, jbyteArray, jint, jobject);
+
+/*
+ * Class:     org_janelia_simview_klb_KLBJNI
+ * Method:    jniCompressBlock
+ * Signature: ([BI)[B
  */
-JNIEXPORT jint JNICALL Java_org_janelia_simview_klb_KLBJNI_jniWriteFull__Ljava_nio_Buffer_2Ljava_lang_String_2_3JII_3F_3JI_3B
-  (JNIEnv *, jobject, jobject, jstring, jlongArray, jint, jint, jfloatArray, jlongArray, jint, jbyteArray);
+JNIEXPORT jbyteArray JNICALL Java_org_janelia_simview_klb_KLBJNI_jniCompressBlock
+  (JNIEnv *, jobject, jbyteArray, jint);
 
 #ifdef __cplusplus
 }
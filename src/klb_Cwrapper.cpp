@@ -188,4 +188,44 @@ int readKLBroiInPlace(const char* filename, void* im, uint32_t xyzctLB[KLB_DATA_
 	}
 
 	return img.readImage((char*)im, &roi, numThreads);
-}
\ No newline at end of file
+}
+
+//===========================================================================================
+int appendKLBtimepoint(const void* im, const char* filename, int numThreads)
+{
+	std::string filenameOut(filename);
+
+	klb_imageIO img(filenameOut);
+
+	return img.appendTimepoint((const char*)im, numThreads);
+}
+
+//===========================================================================================
+int writeKLBroi(const void* im, const char* filename, uint32_t xyzctLB[KLB_DATA_DIMS], uint32_t xyzctUB[KLB_DATA_DIMS], int numThreads)
+{
+	std::string filenameOut(filename);
+
+	klb_imageIO img(filenameOut);
+
+	klb_ROI roi;
+	for (int d = 0; d < KLB_DATA_DIMS; d++)
+	{
+		roi.xyzctLB[d] = xyzctLB[d];
+		roi.xyzctUB[d] = xyzctUB[d];
+	}
+
+	return img.writeImageROI((const char*)im, &roi, numThreads);
+}
+
+//===========================================================================================
+int verifyKLB(const char* filename, int numThreads, uint64_t* numCorruptBlocks)
+{
+	std::string filenameOut(filename);
+
+	klb_imageIO img(filenameOut);
+
+	std::vector<std::uint64_t> corruptBlocks;
+	const int err = img.verifyChecksums(&corruptBlocks, numThreads);
+	*numCorruptBlocks = corruptBlocks.size();
+	return err;
+}
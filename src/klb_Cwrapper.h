@@ -63,6 +63,23 @@ extern "C" {  // only need to export C interface if
 
 	DECLSPECIFIER int readKLBroiInPlace(const char* filename, void* im, uint32_t xyzctLB[KLB_DATA_DIMS], uint32_t xyzctUB[KLB_DATA_DIMS], int numThreads);
 
+	/*
+	\brief appends one timepoint (all channels, same size and data type as the file) to an existing file without rewriting it, e.g. while acquiring a time series. Only the new blocks are compressed. 
+	The file needs a block size of 1 along t (see klb_imageIO::appendTimepoint)
+	*/
+	DECLSPECIFIER int appendKLBtimepoint(const void* im, const char* filename, int numThreads);
+
+	/*
+	\brief replaces the voxels between xyzctLB and xyzctUB (inclusive) of an existing file with im, decompressing and compressing only the blocks that intersect that region (see klb_imageIO::writeImageROI)
+	*/
+	DECLSPECIFIER int writeKLBroi(const void* im, const char* filename, uint32_t xyzctLB[KLB_DATA_DIMS], uint32_t xyzctUB[KLB_DATA_DIMS], int numThreads);
+
+	/*
+	\brief checks the stored checksum of every block of a file without decompressing it (see klb_imageIO::verifyChecksums). numCorruptBlocks is set to the number of blocks that do not match. 
+	Returns KLB_ERROR_NO_CHECKSUMS if the file was written without checksums
+	*/
+	DECLSPECIFIER int verifyKLB(const char* filename, int numThreads, uint64_t* numCorruptBlocks);
+
 
 #ifdef __cplusplus
 } 
@@ -18,6 +18,16 @@
 
 using namespace std;
 
+klb_ROI::klb_ROI()
+{
+	for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+	{
+		xyzctStep[ii] = 1;
+		xyzctBin[ii] = 1;
+	}
+}
+
+//===============================================
 void klb_ROI::defineSlice(int val, int dim, const std::uint32_t xyzct[KLB_DATA_DIMS])
 {
 	defineFullImage(xyzct);
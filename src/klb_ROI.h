@@ -27,6 +27,10 @@ class klb_ROI
 public:
 	std::uint32_t xyzctLB[KLB_DATA_DIMS];//lower bound (upper left corner) of the box (including this limit)
 	std::uint32_t xyzctUB[KLB_DATA_DIMS];//upper bound (bottom right corner) of the box (including this limit)
+	std::uint32_t xyzctStep[KLB_DATA_DIMS];//only every step-th voxel (starting at xyzctLB) is read along each dimension. Default is 1 (all voxels)
+	std::uint32_t xyzctBin[KLB_DATA_DIMS];//each voxel read is the average of bin consecutive voxels (starting at the sampled one) along each dimension, 1 <= bin <= step. Default is 1 (no binning)
+
+	klb_ROI();
 
 
 	void defineSlice(int val, int dim, const std::uint32_t xyzct[KLB_DATA_DIMS]);//generates a slice along dimension dim
@@ -40,6 +44,30 @@ public:
 			size *= (xyzctUB[ii] - xyzctLB[ii] + 1);
 		return size;
 	};
+
+	//size of the read image when only every step-th voxel is sampled (equal to getSizePixels if step is 1)
+	std::uint32_t getSizeOutputPixels(int dim) const { return (getSizePixels(dim) + xyzctStep[dim] - 1) / xyzctStep[dim]; };
+	std::uint64_t getSizeOutputPixels() const
+	{
+		std::uint64_t size = getSizeOutputPixels(0);
+		for (int ii = 1; ii < KLB_DATA_DIMS; ii++)
+			size *= getSizeOutputPixels(ii);
+		return size;
+	};
+	bool isSampled() const
+	{
+		for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+			if (xyzctStep[ii] != 1 || xyzctBin[ii] != 1)
+				return true;
+		return false;
+	};
+	bool isBinned() const
+	{
+		for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+			if (xyzctBin[ii] != 1)
+				return true;
+		return false;
+	};
 	
 protected:
 
@@ -28,6 +28,7 @@ klb_circular_dequeue::klb_circular_dequeue(int blockSizeBytes_, int numBlocks_)
 	readIdx = 0;
 	writeIdx = 0;
 	numTaken = ATOMIC_VAR_INIT( 0 );
+	aborted = false;
 }
 
 
@@ -38,6 +39,7 @@ klb_circular_dequeue& klb_circular_dequeue::operator=(const klb_circular_dequeue
 		readIdx = p.readIdx;
 		writeIdx = p.writeIdx;
 		numTaken = p.numTaken;
+		aborted = p.aborted;
 		memcpy(dataBuffer, p.dataBuffer, blockSizeBytes * numBlocks);
 	}
 	return *this;
@@ -50,6 +52,7 @@ klb_circular_dequeue::klb_circular_dequeue(const klb_circular_dequeue& p) : bloc
 	readIdx = p.readIdx;
 	writeIdx = p.writeIdx;
 	numTaken = p.numTaken;
+	aborted = p.aborted;
 
 	dataBuffer = new char[blockSizeBytes * numBlocks];
 	memcpy(dataBuffer, p.dataBuffer, blockSizeBytes * numBlocks);	
@@ -97,7 +100,10 @@ char* klb_circular_dequeue::getWriteBlock()
 		
 	std::unique_lock<std::mutex> locker(g_lockWrite);//acquires the lock 
 	
-	g_writeWait.wait(locker, [&](){return (numTaken < numBlocks); });//releases the lock until notify. If condition is not satisfied, it waits again
+	g_writeWait.wait(locker, [&](){return (numTaken < numBlocks || aborted); });//releases the lock until notify. If condition is not satisfied, it waits again
+
+	if (aborted)
+		return NULL;
 		
 	char* ptr = &(dataBuffer[writeIdx * blockSizeBytes]);	
 	locker.unlock();	
@@ -116,4 +122,14 @@ void klb_circular_dequeue::pushWriteBlock()
 		writeIdx = 0;
 	}
 	numTaken++; 
+}
+
+//=================================================================
+void klb_circular_dequeue::abort()
+{
+	std::unique_lock<std::mutex> locker(g_lockWrite);//acquires the lock
+
+	aborted = true;
+	locker.unlock();
+	g_writeWait.notify_all();
 }
\ No newline at end of file
@@ -38,8 +38,9 @@ public:
 	//main functions
 	char* getReadBlock();//once you read the block it DOES NOT allow you to overwrite it. you have to call popReadBlock. Returns NULL if nothing is available
 	void popReadBlock();//releases the oldest read block if there is any to release
-	char* getWriteBlock();//return NULL if it cannot write because queue is full
+	char* getWriteBlock();//waits until there is a free spot in the queue. Returns NULL if the queue has been aborted
 	void pushWriteBlock();//indicates block is ready to be written
+	void abort();//wakes up any producer waiting in getWriteBlock (which then returns NULL). Used when the consumer stops before draining the queue
 
 protected:
 
@@ -49,6 +50,7 @@ private:
 	const int numBlocks;//number of blocks that can be stored
 	int readIdx, writeIdx;//index within the dequeue to read / write next element
 	int numTaken;//count number of elements taken so we avoid spill over
+	bool aborted;//set by abort(). No more blocks can be written once the consumer is gone
 };
 
 
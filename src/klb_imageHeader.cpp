@@ -27,11 +27,41 @@ klb_image_header& klb_image_header::operator=(const klb_image_header& p)
 	{
 
 		memcpy(optimalBlockSizeInBytes, p.optimalBlockSizeInBytes, sizeof(uint32_t)* KLB_DATA_DIMS);
+		extensionsEnd = p.extensionsEnd;
+		blockOrder = p.blockOrder;
 		setHeader(p.xyzct, p.dataType, p.pixelSize, p.blockSize, p.compressionType, p.metadata, p.headerVersion);
 		
 		
 		resizeBlockOffset(p.Nb);
 		memcpy(blockOffset, p.blockOffset, sizeof(uint64_t)* Nb);	
+
+		releaseBlockStats();
+		if (p.blockStats != NULL)
+		{
+			allocateBlockStats();
+			memcpy(blockStats, p.blockStats, sizeof(klb_block_stats)* Nb);
+		}
+
+		releaseBlockFlags();
+		if (p.blockFlags != NULL)
+		{
+			allocateBlockFlags();
+			memcpy(blockFlags, p.blockFlags, sizeof(std::uint8_t)* Nb);
+		}
+
+		releaseBlockChecksums();
+		if (p.blockChecksums != NULL)
+		{
+			allocateBlockChecksums();
+			memcpy(blockChecksums, p.blockChecksums, sizeof(std::uint32_t)* Nb);
+		}
+
+		releaseBlockFilePos();
+		if (p.blockFilePos != NULL)
+		{
+			blockFilePos = new std::uint64_t[Nb];
+			memcpy(blockFilePos, p.blockFilePos, sizeof(std::uint64_t)* Nb);
+		}
 	}
 	return *this;
 }
@@ -47,9 +77,39 @@ klb_image_header::klb_image_header(const klb_image_header& p)
 	setHeader(p.xyzct, p.dataType, p.pixelSize, p.blockSize, p.compressionType, p.metadata, p.headerVersion);
 
 	Nb = p.Nb;
+	extensionsEnd = p.extensionsEnd;
+	blockOrder = p.blockOrder;
 	blockOffset = new std::uint64_t[Nb];
 	memcpy(blockOffset, p.blockOffset, sizeof(uint64_t)* Nb);
 
+	blockStats = NULL;
+	if (p.blockStats != NULL)
+	{
+		allocateBlockStats();
+		memcpy(blockStats, p.blockStats, sizeof(klb_block_stats)* Nb);
+	}
+
+	blockFlags = NULL;
+	if (p.blockFlags != NULL)
+	{
+		allocateBlockFlags();
+		memcpy(blockFlags, p.blockFlags, sizeof(std::uint8_t)* Nb);
+	}
+
+	blockChecksums = NULL;
+	if (p.blockChecksums != NULL)
+	{
+		allocateBlockChecksums();
+		memcpy(blockChecksums, p.blockChecksums, sizeof(std::uint32_t)* Nb);
+	}
+
+	blockFilePos = NULL;
+	if (p.blockFilePos != NULL)
+	{
+		blockFilePos = new std::uint64_t[Nb];
+		memcpy(blockFilePos, p.blockFilePos, sizeof(std::uint64_t)* Nb);
+	}
+
 }
 
 klb_image_header::klb_image_header()
@@ -57,7 +117,13 @@ klb_image_header::klb_image_header()
 	uint32_t xyzct_[KLB_DATA_DIMS] = {0,0,0,0,0};
 
 	Nb = 0;
+	extensionsEnd = 0;
 	blockOffset = NULL;
+	blockStats = NULL;
+	blockFlags = NULL;
+	blockChecksums = NULL;
+	blockFilePos = NULL;
+	blockOrder = KLB_BLOCK_ORDER_LINEAR;
 
 	setHeader(xyzct_, KLB_DATA_TYPE::UINT16_TYPE);// default values
 
@@ -71,6 +137,10 @@ klb_image_header::~klb_image_header()
 		delete[] blockOffset;
 		blockOffset = NULL;
 	}
+	releaseBlockStats();
+	releaseBlockFlags();
+	releaseBlockChecksums();
+	releaseBlockFilePos();
 }
 
 //==========================================
@@ -163,14 +233,28 @@ void klb_image_header::writeHeader(std::ostream &fid)
 //==============================================================
 void klb_image_header::writeHeader(FILE* fid)
 {
-	fwrite((char*)(&headerVersion), 1, sizeof(uint8_t), fid);
-	fwrite((char*)xyzct,1, sizeof(uint32_t)* KLB_DATA_DIMS, fid);
-	fwrite((char*)pixelSize, 1, sizeof(float32_t)* KLB_DATA_DIMS, fid);
-	fwrite((char*)(&dataType), 1, sizeof(uint8_t), fid);
-	fwrite((char*)(&compressionType), 1, sizeof(uint8_t), fid);
-	fwrite(metadata, 1, sizeof(char) * KLB_METADATA_SIZE, fid);
-	fwrite((char*)blockSize, 1, sizeof(uint32_t)* KLB_DATA_DIMS, fid);
-	fwrite((char*)blockOffset, 1, sizeof(uint64_t)* Nb, fid);//this is the only variable size element
+	std::vector<char> buffer;
+	writeHeader(buffer);
+	fwrite(buffer.data(), 1, buffer.size(), fid);
+};
+
+//==============================================================
+//appends bytes to buffer
+inline void appendBytes(std::vector<char>& buffer, const void* p, size_t numBytes)
+{
+	buffer.insert(buffer.end(), (const char*)p, (const char*)p + numBytes);
+}
+
+void klb_image_header::writeHeader(std::vector<char>& buffer)
+{
+	appendBytes(buffer, &headerVersion, sizeof(uint8_t));
+	appendBytes(buffer, xyzct, sizeof(uint32_t)* KLB_DATA_DIMS);
+	appendBytes(buffer, pixelSize, sizeof(float32_t)* KLB_DATA_DIMS);
+	appendBytes(buffer, &dataType, sizeof(uint8_t));
+	appendBytes(buffer, &compressionType, sizeof(uint8_t));
+	appendBytes(buffer, metadata, sizeof(char) * KLB_METADATA_SIZE);
+	appendBytes(buffer, blockSize, sizeof(uint32_t)* KLB_DATA_DIMS);
+	appendBytes(buffer, blockOffset, sizeof(uint64_t)* Nb);//this is the only variable size element
 };
 
 //=======================================================
@@ -186,6 +270,8 @@ void klb_image_header::readHeader(std::istream &fid)
 
 	
 	//resize if necessary
+	releaseBlockFilePos();//appended timepoints are added by readExtensions
+	blockOrder = KLB_BLOCK_ORDER_LINEAR;//and so is the block order
 	resizeBlockOffset(calculateNumBlocks());
 	
 	fid.read((char*)blockOffset, sizeof(uint64_t)* Nb);//this is the only variable size element
@@ -201,9 +287,386 @@ void klb_image_header::resizeBlockOffset(size_t Nb_)
 			delete[] blockOffset;
 		Nb = Nb_;
 		blockOffset = new std::uint64_t[Nb];
+		releaseBlockStats();//they refer to the old blocks
+		releaseBlockFlags();
+		releaseBlockChecksums();
+		releaseBlockFilePos();
+	}
+}
+
+//======================================================
+void klb_image_header::allocateBlockStats()
+{
+	releaseBlockStats();
+	blockStats = new klb_block_stats[Nb];
+}
+
+//======================================================
+void klb_image_header::releaseBlockStats()
+{
+	if (blockStats != NULL)
+	{
+		delete[] blockStats;
+		blockStats = NULL;
+	}
+}
+
+//======================================================
+void klb_image_header::allocateBlockFlags()
+{
+	releaseBlockFlags();
+	blockFlags = new std::uint8_t[Nb];
+	memset(blockFlags, 0, sizeof(std::uint8_t)* Nb);
+}
+
+//======================================================
+void klb_image_header::releaseBlockFlags()
+{
+	if (blockFlags != NULL)
+	{
+		delete[] blockFlags;
+		blockFlags = NULL;
+	}
+}
+
+//======================================================
+void klb_image_header::allocateBlockChecksums()
+{
+	releaseBlockChecksums();
+	blockChecksums = new std::uint32_t[Nb];
+	memset(blockChecksums, 0, sizeof(std::uint32_t)* Nb);
+}
+
+//======================================================
+void klb_image_header::releaseBlockChecksums()
+{
+	if (blockChecksums != NULL)
+	{
+		delete[] blockChecksums;
+		blockChecksums = NULL;
+	}
+}
+
+//======================================================
+void klb_image_header::releaseBlockFilePos()
+{
+	if (blockFilePos != NULL)
+	{
+		delete[] blockFilePos;
+		blockFilePos = NULL;
 	}
 }
 
+//======================================================
+//Extensions are stored one after the other after the last block as: uint32 tag, uint64 size in bytes of the payload, payload.
+//Readers skip tags they do not know, and files with header version < KLB_HEADER_VERSION_EXTENSIONS have no extensions
+void klb_image_header::writeExtensions(FILE* fid)
+{
+	std::vector<char> buffer;
+	writeExtensions(buffer);
+	fwrite(buffer.data(), 1, buffer.size(), fid);
+}
+
+void klb_image_header::writeExtensions(std::vector<char>& buffer)
+{
+	if (headerVersion < KLB_HEADER_VERSION_EXTENSIONS)
+		return;
+
+	if (blockStats != NULL)
+	{
+		const std::uint32_t tag = KLB_EXTENSION_BLOCK_STATS;
+		const std::uint64_t size = Nb * sizeof(klb_block_stats);
+		appendBytes(buffer, &tag, sizeof(std::uint32_t));
+		appendBytes(buffer, &size, sizeof(std::uint64_t));
+		appendBytes(buffer, blockStats, size);
+	}
+
+	if (blockFlags != NULL && headerVersion >= KLB_HEADER_VERSION_BLOCK_FLAGS)
+	{
+		const std::uint32_t tag = KLB_EXTENSION_BLOCK_FLAGS;
+		const std::uint64_t size = Nb * sizeof(std::uint8_t);
+		appendBytes(buffer, &tag, sizeof(std::uint32_t));
+		appendBytes(buffer, &size, sizeof(std::uint64_t));
+		appendBytes(buffer, blockFlags, size);
+	}
+
+	if (blockChecksums != NULL)
+	{
+		const std::uint32_t tag = KLB_EXTENSION_BLOCK_CHECKSUMS;
+		const std::uint64_t size = Nb * sizeof(std::uint32_t);
+		appendBytes(buffer, &tag, sizeof(std::uint32_t));
+		appendBytes(buffer, &size, sizeof(std::uint64_t));
+		appendBytes(buffer, blockChecksums, size);
+	}
+
+	if (blockOrder != KLB_BLOCK_ORDER_LINEAR && headerVersion >= KLB_HEADER_VERSION_BLOCK_ORDER)
+	{
+		const std::uint32_t tag = KLB_EXTENSION_BLOCK_ORDER;
+		const std::uint64_t size = 2 * sizeof(std::uint32_t);
+		const std::uint32_t payload[2] = { (std::uint32_t)blockOrder, 0 };
+		appendBytes(buffer, &tag, sizeof(std::uint32_t));
+		appendBytes(buffer, &size, sizeof(std::uint64_t));
+		appendBytes(buffer, payload, size);
+	}
+}
+
+//=======================================================
+int klb_image_header::readExtensions(const char *filename)
+{
+	if (blockFilePos != NULL)
+		return 0;//already loaded together with the appended timepoints and updated blocks
+	releaseBlockStats();
+	releaseBlockFlags();
+	releaseBlockChecksums();
+	if (headerVersion < KLB_HEADER_VERSION_EXTENSIONS || Nb == 0)
+		return 0;
+
+	ifstream fid(filename, ios::binary | ios::in);
+	if (fid.is_open() == false)
+	{
+		cout << "ERROR: klb_image_header::readExtensions : file " << filename << " could not be opened" << endl;
+		return 2;
+	}
+
+	readExtensions(fid);
+	return 0;
+}
+
+//=======================================================
+void klb_image_header::readExtensions(std::istream &fid)
+{
+	if (blockFilePos != NULL)
+		return;//already loaded together with the appended timepoints and updated blocks
+	releaseBlockStats();
+	releaseBlockFlags();
+	releaseBlockChecksums();
+	blockOrder = KLB_BLOCK_ORDER_LINEAR;
+	if (headerVersion < KLB_HEADER_VERSION_EXTENSIONS || Nb == 0)
+		return;
+
+	fid.clear();
+	fid.seekg(0, ios::end);
+	const std::uint64_t fileSize = fid.tellg();
+	extensionsEnd = getCompressedFileSizeInBytes();
+	fid.seekg(extensionsEnd, ios::beg);
+
+	//appended timepoints and updated blocks: collected first, since they can only be added once the extensions of the header blocks are loaded
+	const size_t NbT = (blockSize[4] == 1 && xyzct[4] > 0 ? Nb / xyzct[4] : 0);//blocks per timepoint
+	std::vector<std::uint64_t> appendedPos, appendedSize;
+	std::vector<std::uint8_t> appendedFlags;
+	std::vector<klb_block_stats> appendedStats;
+	std::vector<std::uint32_t> appendedChecksums;
+	std::vector<std::uint64_t> updatedBlock, updatedPos, updatedSize;//in the order they were written, so later updates of a block replace earlier ones
+	std::vector<std::uint8_t> updatedFlags;
+	std::vector<klb_block_stats> updatedStats;
+	std::vector<std::uint32_t> updatedChecksums;
+
+	std::uint32_t tag;
+	std::uint64_t size;
+	while (fid.read((char*)(&tag), sizeof(std::uint32_t)) && fid.read((char*)(&size), sizeof(std::uint64_t)))
+	{
+		if (tag == KLB_EXTENSION_APPENDED_TIMEPOINT && NbT > 0)
+		{
+			const std::uint64_t payloadPos = fid.tellg();
+			const std::uint64_t indexSize = 2 * sizeof(std::uint32_t) + NbT * (sizeof(std::uint64_t) + sizeof(std::uint8_t) + sizeof(klb_block_stats) + sizeof(std::uint32_t));
+			std::uint32_t t, numBlocks;
+			if (payloadPos + size > fileSize || size < indexSize)
+				break;//incomplete append (e.g. interrupted): ignore it. The next append overwrites it
+			fid.read((char*)(&t), sizeof(std::uint32_t));
+			fid.read((char*)(&numBlocks), sizeof(std::uint32_t));
+			if (t != xyzct[4] + appendedPos.size() / NbT || numBlocks != NbT)
+			{
+				cout << "ERROR: klb_image_header::readExtensions : appended timepoint " << t << " does not match the image" << endl;
+				break;
+			}
+
+			std::vector<std::uint64_t> blockEnd(NbT);
+			const size_t first = appendedPos.size();
+			appendedFlags.resize(first + NbT);
+			appendedStats.resize(first + NbT);
+			appendedChecksums.resize(first + NbT);
+			fid.read((char*)(&(blockEnd[0])), NbT * sizeof(std::uint64_t));
+			fid.read((char*)(&(appendedFlags[first])), NbT * sizeof(std::uint8_t));
+			fid.read((char*)(&(appendedStats[first])), NbT * sizeof(klb_block_stats));
+			if (!fid.read((char*)(&(appendedChecksums[first])), NbT * sizeof(std::uint32_t)) || indexSize + blockEnd[NbT - 1] > size)
+			{
+				appendedFlags.resize(first);
+				appendedStats.resize(first);
+				appendedChecksums.resize(first);
+				break;
+			}
+			for (size_t ii = 0; ii < NbT; ii++)
+			{
+				const std::uint64_t blockStart = (ii == 0 ? 0 : blockEnd[ii - 1]);
+				appendedPos.push_back(payloadPos + indexSize + blockStart);
+				appendedSize.push_back(blockEnd[ii] - blockStart);
+			}
+			fid.seekg(payloadPos + size, ios::beg);
+		}
+		else if (tag == KLB_EXTENSION_UPDATED_BLOCKS)
+		{
+			const std::uint64_t payloadPos = fid.tellg();
+			std::uint32_t numBlocks = 0, reserved;
+			if (payloadPos + size > fileSize || size < 2 * sizeof(std::uint32_t))
+				break;//incomplete update (e.g. interrupted): ignore it. The next write overwrites it
+			fid.read((char*)(&numBlocks), sizeof(std::uint32_t));
+			fid.read((char*)(&reserved), sizeof(std::uint32_t));
+			const std::uint64_t indexSize = 2 * sizeof(std::uint32_t) + (std::uint64_t)numBlocks * (2 * sizeof(std::uint64_t) + sizeof(std::uint8_t) + sizeof(klb_block_stats) + sizeof(std::uint32_t));
+			if (numBlocks == 0 || size < indexSize)
+				break;
+
+			std::vector<std::uint64_t> blockIdx(numBlocks), blockEnd(numBlocks);
+			const size_t first = updatedBlock.size();
+			updatedFlags.resize(first + numBlocks);
+			updatedStats.resize(first + numBlocks);
+			updatedChecksums.resize(first + numBlocks);
+			fid.read((char*)(&(blockIdx[0])), numBlocks * sizeof(std::uint64_t));
+			fid.read((char*)(&(blockEnd[0])), numBlocks * sizeof(std::uint64_t));
+			fid.read((char*)(&(updatedFlags[first])), numBlocks * sizeof(std::uint8_t));
+			fid.read((char*)(&(updatedStats[first])), numBlocks * sizeof(klb_block_stats));
+			if (!fid.read((char*)(&(updatedChecksums[first])), numBlocks * sizeof(std::uint32_t)) || indexSize + blockEnd[numBlocks - 1] > size)
+			{
+				updatedFlags.resize(first);
+				updatedStats.resize(first);
+				updatedChecksums.resize(first);
+				break;
+			}
+			for (size_t ii = 0; ii < numBlocks; ii++)
+			{
+				const std::uint64_t blockStart = (ii == 0 ? 0 : blockEnd[ii - 1]);
+				updatedBlock.push_back(blockIdx[ii]);
+				updatedPos.push_back(payloadPos + indexSize + blockStart);
+				updatedSize.push_back(blockEnd[ii] - blockStart);
+			}
+			fid.seekg(payloadPos + size, ios::beg);
+		}
+		else if (tag == KLB_EXTENSION_BLOCK_STATS && size == Nb * sizeof(klb_block_stats))
+		{
+			allocateBlockStats();
+			if (!fid.read((char*)blockStats, size))
+			{
+				cout << "ERROR: klb_image_header::readExtensions : block statistics are truncated" << endl;
+				releaseBlockStats();
+			}
+		}
+		else if (tag == KLB_EXTENSION_BLOCK_FLAGS && size == Nb * sizeof(std::uint8_t))
+		{
+			allocateBlockFlags();
+			if (!fid.read((char*)blockFlags, size))
+			{
+				cout << "ERROR: klb_image_header::readExtensions : block flags are truncated" << endl;
+				releaseBlockFlags();
+			}
+		}
+		else if (tag == KLB_EXTENSION_BLOCK_CHECKSUMS && size == Nb * sizeof(std::uint32_t))
+		{
+			allocateBlockChecksums();
+			if (!fid.read((char*)blockChecksums, size))
+			{
+				cout << "ERROR: klb_image_header::readExtensions : block checksums are truncated" << endl;
+				releaseBlockChecksums();
+			}
+		}
+		else if (tag == KLB_EXTENSION_BLOCK_ORDER && size == 2 * sizeof(std::uint32_t) && headerVersion >= KLB_HEADER_VERSION_BLOCK_ORDER)
+		{
+			std::uint32_t payload[2];
+			if (!fid.read((char*)payload, size))
+				cout << "ERROR: klb_image_header::readExtensions : block order is truncated" << endl;
+			else if (payload[0] == KLB_BLOCK_ORDER_MORTON)
+				blockOrder = KLB_BLOCK_ORDER_MORTON;
+			else
+				cout << "ERROR: klb_image_header::readExtensions : unknown block order " << payload[0] << endl;
+		}
+		else{
+			fid.seekg(size, ios::cur);//unknown extension
+		}
+
+		if (extensionsEnd + sizeof(std::uint32_t) + sizeof(std::uint64_t) + size > fileSize)
+			break;//truncated
+		extensionsEnd += sizeof(std::uint32_t) + sizeof(std::uint64_t) + size;
+	}
+
+	if (blockOrder != KLB_BLOCK_ORDER_LINEAR)
+	{
+		//blocks are contiguous in storage order: each one starts where the previous one in that order ends
+		std::vector<std::uint64_t> order;
+		getBlockStorageOrder(order);
+		blockFilePos = new std::uint64_t[Nb];
+		std::uint64_t pos = getSizeInBytes();
+		for (size_t ii = 0; ii < order.size(); ii++)
+		{
+			blockFilePos[order[ii]] = pos;
+			pos += getBlockCompressedSizeBytes(order[ii]);
+		}
+	}
+
+	if (appendedPos.empty() && updatedBlock.empty())
+		return;
+
+	//grow the image by the appended timepoints and point updated blocks to their latest version
+	const size_t NbHeader = Nb;
+	const size_t NbTotal = NbHeader + appendedPos.size();
+	std::vector<std::uint64_t> sizeTotal(NbTotal);
+	std::uint64_t* blockOffsetTotal = new std::uint64_t[NbTotal];
+	std::uint64_t* blockFilePosTotal = new std::uint64_t[NbTotal];
+	std::uint8_t* blockFlagsTotal = new std::uint8_t[NbTotal];
+	klb_block_stats* blockStatsTotal = (blockStats != NULL ? new klb_block_stats[NbTotal] : NULL);
+	std::uint32_t* blockChecksumsTotal = (blockChecksums != NULL ? new std::uint32_t[NbTotal] : NULL);//files written before checksums existed have none for any block
+	for (size_t ii = 0; ii < NbHeader; ii++)
+	{
+		sizeTotal[ii] = getBlockCompressedSizeBytes(ii);
+		blockFilePosTotal[ii] = getBlockFilePosition(ii);
+		blockFlagsTotal[ii] = (blockFlags != NULL ? blockFlags[ii] : 0);
+		if (blockStatsTotal != NULL)
+			blockStatsTotal[ii] = blockStats[ii];
+		if (blockChecksumsTotal != NULL)
+			blockChecksumsTotal[ii] = blockChecksums[ii];
+	}
+	for (size_t ii = NbHeader; ii < NbTotal; ii++)
+	{
+		sizeTotal[ii] = appendedSize[ii - NbHeader];
+		blockFilePosTotal[ii] = appendedPos[ii - NbHeader];
+		blockFlagsTotal[ii] = appendedFlags[ii - NbHeader];
+		if (blockStatsTotal != NULL)
+			blockStatsTotal[ii] = appendedStats[ii - NbHeader];
+		if (blockChecksumsTotal != NULL)
+			blockChecksumsTotal[ii] = appendedChecksums[ii - NbHeader];
+	}
+	for (size_t ii = 0; ii < updatedBlock.size(); ii++)
+	{
+		const std::uint64_t idx = updatedBlock[ii];
+		if (idx >= NbTotal)
+			continue;
+		sizeTotal[idx] = updatedSize[ii];
+		blockFilePosTotal[idx] = updatedPos[ii];
+		blockFlagsTotal[idx] = updatedFlags[ii];
+		if (blockStatsTotal != NULL)
+			blockStatsTotal[idx] = updatedStats[ii];
+		if (blockChecksumsTotal != NULL)
+			blockChecksumsTotal[idx] = updatedChecksums[ii];
+	}
+	std::uint64_t offset = 0;
+	for (size_t ii = 0; ii < NbTotal; ii++)
+	{
+		offset += sizeTotal[ii];
+		blockOffsetTotal[ii] = offset;
+	}
+
+	delete[] blockOffset;
+	releaseBlockStats();
+	releaseBlockFlags();
+	releaseBlockChecksums();
+	releaseBlockFilePos();
+	blockOffset = blockOffsetTotal;
+	blockFilePos = blockFilePosTotal;
+	blockFlags = blockFlagsTotal;
+	blockStats = blockStatsTotal;
+	blockChecksums = blockChecksumsTotal;
+	Nb = NbTotal;
+	if (NbT > 0)
+		xyzct[4] += appendedPos.size() / NbT;
+}
+
 //=======================================================
 int klb_image_header::readHeader(const char *filename)
 {
@@ -215,6 +678,8 @@ int klb_image_header::readHeader(const char *filename)
 	}
 
 	readHeader(fid);
+	if (headerVersion >= KLB_HEADER_VERSION_EXTENSIONS)
+		readExtensions(fid);//blocks cannot be decoded without their flags, and appended timepoints are part of the image
 	fid.close();
 	return 0;
 };
@@ -248,12 +713,59 @@ std::uint64_t klb_image_header::getBlockOffset(size_t blockIdx) const
 	}
 }
 
+//======================================================
+std::uint64_t klb_image_header::getBlockFilePosition(size_t blockIdx) const
+{
+	if (blockFilePos != NULL)
+		return (blockIdx < Nb ? blockFilePos[blockIdx] : numeric_limits<std::uint64_t>::max());
+	else
+		return getSizeInBytes() + getBlockOffset(blockIdx);
+}
+
 //======================================================
 std::uint64_t klb_image_header::getCompressedFileSizeInBytes() const
 {
 	return getSizeInBytes() + blockOffset[Nb-1];
 }
 
+//======================================================
+//interleaves the lowest 21 bits of the block coordinates along x, y and z (x in the lowest bit)
+static std::uint64_t mortonCode(std::uint64_t x, std::uint64_t y, std::uint64_t z)
+{
+	std::uint64_t code = 0;
+	for (int bit = 0; bit < 21; bit++)
+	{
+		code |= ((x >> bit) & 1) << (3 * bit);
+		code |= ((y >> bit) & 1) << (3 * bit + 1);
+		code |= ((z >> bit) & 1) << (3 * bit + 2);
+	}
+	return code;
+}
+
+void klb_image_header::getBlockStorageOrder(std::vector<std::uint64_t>& order) const
+{
+	const size_t numBlocks = calculateNumBlocks();
+	order.resize(numBlocks);
+	for (size_t ii = 0; ii < numBlocks; ii++)
+		order[ii] = ii;
+	if (blockOrder != KLB_BLOCK_ORDER_MORTON)
+		return;
+
+	std::uint64_t dimsBlock[KLB_DATA_DIMS];//number of blocks on each dimension
+	for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+		dimsBlock[ii] = (std::uint64_t)ceil((float)(xyzct[ii]) / (float)(blockSize[ii]));
+	const std::uint64_t blocksPerVolume = dimsBlock[0] * dimsBlock[1] * dimsBlock[2];
+
+	//sort key: (c, t) volume, then Z-order within the volume. Ties (grids over 2^21 blocks along a dimension) keep index order
+	std::vector<std::pair<std::uint64_t, std::uint64_t> > key(numBlocks);
+	for (size_t ii = 0; ii < numBlocks; ii++)
+	{
+		const std::uint64_t xyz = ii % blocksPerVolume;
+		key[ii] = std::make_pair(ii / blocksPerVolume, mortonCode(xyz % dimsBlock[0], (xyz / dimsBlock[0]) % dimsBlock[1], xyz / (dimsBlock[0] * dimsBlock[1])));
+	}
+	std::sort(order.begin(), order.end(), [&key](std::uint64_t a, std::uint64_t b){ return key[a] < key[b] || (key[a] == key[b] && a < b); });
+}
+
 void klb_image_header::setDefaultBlockSize()
 {
 	std::uint32_t bytesPerPixel = getBytesPerPixel();	
@@ -26,6 +26,14 @@
 
 
 
+//statistics of the voxels of one block, stored in header versions >= KLB_HEADER_VERSION_EXTENSIONS so readers can skip blocks (e.g. background) without decompressing them. Values are converted to double for all data types
+struct klb_block_stats
+{
+	float64_t		minVal;
+	float64_t		maxVal;
+	std::uint64_t	numNonZero;
+};
+
 #if defined(COMPILE_SHARED_LIBRARY) && defined(_MSC_VER)
 class __declspec(dllexport) klb_image_header
 #else
@@ -45,6 +53,13 @@ public:
 	std::uint64_t*		blockOffset; //offset (in bytes) within the file for each block, so we can retrieve blocks individually. Nb = prod_i ceil(xyzct[i]/blockSize[i]). I use a pointer (instead of vector) to facilitate dllexport to shared library
 
 	size_t Nb;//length of blockOffset array
+	std::uint64_t extensionsEnd;//end (in bytes) of the last complete extension of the file, where the next timepoint is appended. Set by readExtensions
+
+	std::uint8_t*		blockFlags;//per-block KLB_BLOCK_FLAG_* (Nb elements) or NULL. Set while writing if headerVersion >= KLB_HEADER_VERSION_BLOCK_FLAGS and loaded by readHeader(filename), since blocks cannot be decoded without them
+	std::uint32_t*		blockChecksums;//per-block CRC-32 of the compressed bytes (Nb elements) or NULL. Computed while writing if headerVersion >= KLB_HEADER_VERSION_EXTENSIONS and loaded by readExtensions
+	klb_block_stats*	blockStats;//per-block statistics (Nb elements) or NULL. Computed while writing if headerVersion >= KLB_HEADER_VERSION_EXTENSIONS. When reading, they are loaded by readExtensions (they are stored after the last block)
+	std::uint64_t*		blockFilePos;//absolute position in the file of each block (Nb elements) or NULL. Only set by readExtensions for files with appended timepoints (KLB_EXTENSION_APPENDED_TIMEPOINT) or updated blocks (KLB_EXTENSION_UPDATED_BLOCKS), whose blocks are not contiguous. xyzct[4], Nb, blockOffset, blockStats, blockFlags and blockChecksums then include the appended timepoints (blockOffset as if all blocks were contiguous, so getBlockCompressedSizeBytes still works)
+	KLB_BLOCK_ORDER		blockOrder;//order of the blocks in the file, KLB_BLOCK_ORDER_LINEAR by default. Set by readExtensions from KLB_EXTENSION_BLOCK_ORDER, which then fills blockFilePos. klb_imageIO::writeImage stores the blocks in this order (and raises headerVersion to KLB_HEADER_VERSION_BLOCK_ORDER if needed)
 
 	//constructors 
 	klb_image_header(const klb_image_header& p);
@@ -56,8 +71,13 @@ public:
 	//main functionality
 	void writeHeader(std::ostream &fid);
 	void writeHeader(FILE* fid);
+	void writeHeader(std::vector<char>& buffer);//appends the header to buffer
 	void readHeader(std::istream &fid);
 	int readHeader(const char *filename);
+	void writeExtensions(FILE* fid);//writes all extensions (e.g. block statistics) at the current position, which has to be the end of the last block
+	void writeExtensions(std::vector<char>& buffer);//appends all extensions to buffer
+	int readExtensions(const char *filename);//loads blockStats, blockFlags and blockChecksums from the extensions of the file (the header has to be read already) and adds appended timepoints and updated blocks. They stay NULL if the file has none
+	void readExtensions(std::istream &fid);//same as above, fid has to be positioned anywhere in the file
 
 	//set/get functions
 	size_t getNumBlocks() const{ return Nb; };
@@ -71,9 +91,19 @@ public:
 	std::uint64_t getImageSizePixels() const;
 	size_t getBlockCompressedSizeBytes(size_t blockId) const;
 	std::uint64_t getBlockOffset(size_t blockIdx) const;//offset in compressed file without counting header (so you have to add getSizeInBytes() for total offset
+	std::uint64_t getBlockFilePosition(size_t blockIdx) const;//absolute offset of the block in the file (including the header and appended timepoints)
 	std::uint64_t getCompressedFileSizeInBytes() const;
 	void setDefaultBlockSize();//sets default block size based on our analysis for our own images
 	void resizeBlockOffset(size_t Nb_);
+	void allocateBlockStats();
+	void releaseBlockStats();
+	void allocateBlockFlags();//all blocks are initialized as regular (flag 0)
+	void releaseBlockFlags();
+	void allocateBlockChecksums();
+	void releaseBlockChecksums();
+	void releaseBlockFilePos();
+	void getBlockStorageOrder(std::vector<std::uint64_t>& order) const;//indexes of the blocks of the header (not of appended timepoints) in the order they are stored in the file according to blockOrder
+	bool isBlockConstant(size_t blockIdx) const{ return blockFlags != NULL && (blockFlags[blockIdx] & KLB_BLOCK_FLAG_CONSTANT) != 0; };
 	void setOptimalBlockSizeInBytes(){ optimalBlockSizeInBytes[0] = 192; optimalBlockSizeInBytes[1] = 192; optimalBlockSizeInBytes[2] = 16; optimalBlockSizeInBytes[3] = 1; optimalBlockSizeInBytes[4] = 1; };
 	
 
@@ -23,6 +23,9 @@
 #include <chrono>
 #include <stdlib.h>     /* div, div_t */
 #include <cstring>
+#include <limits>
+#include <cmath>
+#include <cerrno>
 #include "klb_imageIO.h"
 #include "bzlib.h"
 #include "zlib.h"
@@ -31,6 +34,12 @@
 #if defined(_WIN32) || defined(_WIN64)
 //in windows long int is 32 bit, so fseek cannot read large files
 	#define fseek _fseeki64
+	#include <windows.h>
+#else
+	#include <fcntl.h>
+	#include <unistd.h>
+	#include <sys/mman.h>
+	#include <sys/stat.h>
 #endif
 
 //#define DEBUG_PRINT_THREADS
@@ -48,13 +57,536 @@ inline T iDivUp(const T a, const T b){
 	return (a % b != 0) ? (a / b + 1) : (a / b);
 }
 
+//number of mutexes used to serialize the accumulation of binned reads (output rows are mapped onto them)
+#define KLB_BIN_LOCKS (64)
+
+//maximum number of bytes of consecutive blocks that verifyChecksums reads at once, so the file is read in large sequential chunks
+#define KLB_VERIFY_RUN_BYTES (16 * 1048576)
+
+//default upper limit of a single read of adjacent blocks (readRunBytes) and of the gap between two blocks that is read and discarded to merge them into one read (readGapBytes)
+#define KLB_READ_RUN_BYTES (8 * 1048576)
+#define KLB_READ_GAP_BYTES (65536)
+
+//runs are made small enough that each thread gets at least this many of them, so the decompression stays balanced between threads
+#define KLB_READ_RUNS_PER_THREAD (4)
+
+//default upper limit of the buffer in which blockWriter collects compressed blocks (writeBufferBytes)
+#define KLB_WRITE_BUFFER_BYTES (500 * 1048576)
+
+//=======================================================
+//output of writeImage to a file. Seeking back to the block offsets is what makes single pass writes possible
+class klb_file_sink : public klb_output_sink
+{
+public:
+	klb_file_sink(FILE* fid_) : fid(fid_){};
+	~klb_file_sink(){ close(); };
+
+	int write(const char* buffer, std::uint64_t numBytes){ return (fwrite(buffer, 1, numBytes, fid) == numBytes ? 0 : 5); };
+	bool isSeekable() const{ return true; };
+	int writeAt(const char* buffer, std::uint64_t numBytes, std::uint64_t position)
+	{
+		if (fseek(fid, position, SEEK_SET) != 0)
+			return 5;
+		return write(buffer, numBytes);
+	};
+
+	//flushes and closes the file (returns 5 if that fails, e.g. because the disk is full)
+	int close()
+	{
+		if (fid == NULL)
+			return 0;
+		const int err = fclose(fid);
+		fid = NULL;
+		return (err == 0 ? 0 : 5);
+	};
+
+private:
+	FILE* fid;
+};
+
+//output of the first pass of writeImage for sinks that are not seekable, which only measures the compressed blocks
+class klb_discard_sink : public klb_output_sink
+{
+public:
+	int write(const char* /*buffer*/, std::uint64_t /*numBytes*/){ return 0; };
+	bool isSeekable() const{ return false; };
+};
+
+//=======================================================
+//std::istream over a klb_input_source, so the header can be parsed as from a file
+class klb_source_streambuf : public std::streambuf
+{
+public:
+	klb_source_streambuf(klb_input_source* source_) : source(source_), pos(0), buffer(65536)
+	{
+		setg(buffer.data(), buffer.data(), buffer.data());
+	};
+
+protected:
+	int_type underflow()
+	{
+		const std::uint64_t gcount = source->readAt(buffer.data(), buffer.size(), pos);
+		if (gcount == 0)
+			return traits_type::eof();
+		setg(buffer.data(), buffer.data(), buffer.data() + gcount);
+		pos += gcount;
+		return traits_type::to_int_type(buffer[0]);
+	};
+
+	pos_type seekoff(off_type off, std::ios_base::seekdir dir, std::ios_base::openmode which)
+	{
+		const std::uint64_t current = pos - (egptr() - gptr());
+		if (dir == std::ios_base::cur)
+			off += current;
+		else if (dir == std::ios_base::end)
+			off += source->size();
+		return seekpos(off, which);
+	};
+
+	pos_type seekpos(pos_type p, std::ios_base::openmode /*which*/)
+	{
+		if (p < 0)
+			return pos_type(off_type(-1));
+		pos = p;
+		setg(buffer.data(), buffer.data(), buffer.data());
+		return p;
+	};
+
+private:
+	klb_input_source* source;
+	std::uint64_t pos;//position of the end of the buffered bytes
+	std::vector<char> buffer;
+};
+
+//=======================================================
+//blocks to read, sorted by their position in the file and split into runs of adjacent blocks. Each run is fetched with a single positional read (pread) from a descriptor shared
+//by all threads, which does not move a file pointer and therefore needs no locking, unless all blocks have been preloaded or mapped (data != NULL). Reads from a klb_input_source
+//go through its readAt instead, and an in-memory source is used as if it had been mapped
+struct klb_block_reads
+{
+#if defined(_WIN32) || defined(_WIN64)
+	HANDLE fd;
+	HANDLE mapping;
+#else
+	int fd;
+#endif
+	std::vector<std::uint64_t> blockOrder;//blocks in the order of their position in the file (largest first if they are in memory, see openBlockReads)
+	std::vector<size_t> runs;//run r holds blockOrder[runs[r]] ... blockOrder[runs[r + 1] - 1]
+	std::atomic<uint64_t> runId;//next run to hand out to a thread
+	std::uint64_t prefetch;//when run r is fetched, the kernel is asked to prefetch run r + prefetch (0 disables it)
+
+	const char* data;//bytes of the file from position dataStart, preloaded or mapped (NULL if runs are read one by one)
+	std::uint64_t dataStart, dataBytes;
+	std::vector<char> preloaded;
+	void* mapped;//start of the mapping (aligned to pages, so it can start before data)
+	std::uint64_t mappedBytes;
+	klb_input_source* source;//read instead of the file if not NULL
+
+	klb_block_reads()
+	{
+#if defined(_WIN32) || defined(_WIN64)
+		fd = INVALID_HANDLE_VALUE;
+		mapping = NULL;
+#else
+		fd = -1;
+#endif
+		prefetch = 0;
+		atomic_store(&runId, (uint64_t)0);
+		data = NULL;
+		dataStart = dataBytes = 0;
+		mapped = NULL;
+		mappedBytes = 0;
+		source = NULL;
+	}
+
+	~klb_block_reads(){ unmapFile(); closeFile(); }
+
+	bool openFile(const std::string& filename, klb_input_source* source_)
+	{
+		source = source_;
+		if (source != NULL)
+			return true;
+#if defined(_WIN32) || defined(_WIN64)
+		fd = CreateFileA(filename.c_str(), GENERIC_READ, FILE_SHARE_READ | FILE_SHARE_WRITE, NULL, OPEN_EXISTING, FILE_ATTRIBUTE_NORMAL, NULL);
+		return fd != INVALID_HANDLE_VALUE;
+#else
+		fd = ::open(filename.c_str(), O_RDONLY);
+		return fd >= 0;
+#endif
+	}
+
+	void closeFile()
+	{
+#if defined(_WIN32) || defined(_WIN64)
+		if (fd != INVALID_HANDLE_VALUE)
+			CloseHandle(fd);
+		fd = INVALID_HANDLE_VALUE;
+#else
+		if (fd >= 0)
+			::close(fd);
+		fd = -1;
+#endif
+	}
+
+	//reads numBytes at offset into buffer and returns the number of bytes read (less than numBytes only at the end of the file or on error)
+	std::uint64_t readAt(char* buffer, std::uint64_t numBytes, std::uint64_t offset) const
+	{
+		if (source != NULL)
+			return source->readAt(buffer, numBytes, offset);
+		std::uint64_t done = 0;
+		while (done < numBytes)
+		{
+			const std::uint64_t n = std::min(numBytes - done, (std::uint64_t)1073741824);//single calls are limited to 32 bit sizes
+#if defined(_WIN32) || defined(_WIN64)
+			OVERLAPPED ov;
+			memset(&ov, 0, sizeof(ov));
+			ov.Offset = (DWORD)((offset + done) & 0xFFFFFFFF);
+			ov.OffsetHigh = (DWORD)((offset + done) >> 32);
+			DWORD gcount = 0;
+			if (!ReadFile(fd, buffer + done, (DWORD)n, &gcount, &ov) || gcount == 0)
+				break;
+#else
+			const ssize_t gcount = pread(fd, buffer + done, n, (off_t)(offset + done));
+			if (gcount < 0 && errno == EINTR)
+				continue;
+			if (gcount <= 0)
+				break;
+#endif
+			done += gcount;
+		}
+		return done;
+	}
+
+	//hint that numBytes at offset will be read soon, so the kernel can start fetching them (only where posix_fadvise is available)
+	void willNeed(std::uint64_t offset, std::uint64_t numBytes) const
+	{
+#if defined(POSIX_FADV_WILLNEED)
+		if (source == NULL)
+			posix_fadvise(fd, (off_t)offset, (off_t)numBytes, POSIX_FADV_WILLNEED);
+#endif
+	}
+
+	//size of the open file in bytes (0 if it cannot be determined)
+	std::uint64_t fileSize() const
+	{
+		if (source != NULL)
+			return source->size();
+#if defined(_WIN32) || defined(_WIN64)
+		LARGE_INTEGER size;
+		if (!GetFileSizeEx(fd, &size))
+			return 0;
+		return (std::uint64_t)size.QuadPart;
+#else
+		struct stat st;
+		if (fstat(fd, &st) != 0)
+			return 0;
+		return (std::uint64_t)st.st_size;
+#endif
+	}
+
+	//reads numBytes at offset into memory with a single read. Returns false if the memory cannot be allocated
+	bool preload(std::uint64_t offset, std::uint64_t numBytes)
+	{
+		try
+		{
+			preloaded.resize(numBytes);
+		}
+		catch (const std::bad_alloc&)
+		{
+			return false;
+		}
+		dataStart = offset;
+		dataBytes = readAt(preloaded.data(), numBytes, offset);
+		data = preloaded.data();
+		return true;
+	}
+
+	//maps numBytes at offset (or up to the end of the file, if it is shorter). Returns false if the file cannot be mapped
+	bool mapFile(std::uint64_t offset, std::uint64_t numBytes)
+	{
+		const std::uint64_t size = fileSize();
+		if (offset >= size)
+			return false;
+		numBytes = std::min(numBytes, size - offset);//pages beyond the end of the file cannot be accessed
+		if (source != NULL)
+		{
+			if (source->data() == NULL)
+				return false;
+			dataStart = offset;
+			dataBytes = numBytes;
+			data = source->data() + offset;
+			return true;
+		}
+#if defined(_WIN32) || defined(_WIN64)
+		SYSTEM_INFO info;
+		GetSystemInfo(&info);
+		const std::uint64_t alignedOffset = offset - offset % info.dwAllocationGranularity;
+		if (numBytes + offset - alignedOffset > std::numeric_limits<SIZE_T>::max())
+			return false;
+		mapping = CreateFileMappingA(fd, NULL, PAGE_READONLY, 0, 0, NULL);
+		if (mapping == NULL)
+			return false;
+		mapped = MapViewOfFile(mapping, FILE_MAP_READ, (DWORD)(alignedOffset >> 32), (DWORD)(alignedOffset & 0xFFFFFFFF), (SIZE_T)(numBytes + offset - alignedOffset));
+		if (mapped == NULL)
+		{
+			CloseHandle(mapping);
+			mapping = NULL;
+			return false;
+		}
+#else
+		const std::uint64_t pageSize = sysconf(_SC_PAGESIZE);
+		const std::uint64_t alignedOffset = offset - offset % pageSize;
+		if (numBytes + offset - alignedOffset > std::numeric_limits<size_t>::max())
+			return false;
+		void* p = mmap(NULL, (size_t)(numBytes + offset - alignedOffset), PROT_READ, MAP_SHARED, fd, (off_t)alignedOffset);
+		if (p == MAP_FAILED)
+			return false;
+		mapped = p;
+#endif
+		mappedBytes = numBytes + offset - alignedOffset;
+		dataStart = offset;
+		dataBytes = numBytes;
+		data = (const char*)mapped + (offset - alignedOffset);
+		return true;
+	}
+
+	void unmapFile()
+	{
+		if (mapped == NULL)
+			return;
+#if defined(_WIN32) || defined(_WIN64)
+		UnmapViewOfFile(mapped);
+		CloseHandle(mapping);
+		mapping = NULL;
+#else
+		munmap(mapped, (size_t)mappedBytes);
+#endif
+		mapped = NULL;
+		data = NULL;
+	}
+};
+
+//physical memory that is currently free in bytes (0 if it cannot be determined)
+static std::uint64_t availableMemoryBytes()
+{
+#if defined(_WIN32) || defined(_WIN64)
+	MEMORYSTATUSEX status;
+	status.dwLength = sizeof(status);
+	if (!GlobalMemoryStatusEx(&status))
+		return 0;
+	return status.ullAvailPhys;
+#elif defined(_SC_AVPHYS_PAGES)
+	const long pages = sysconf(_SC_AVPHYS_PAGES), pageSize = sysconf(_SC_PAGESIZE);
+	if (pages <= 0 || pageSize <= 0)
+		return 0;
+	return (std::uint64_t)pages * (std::uint64_t)pageSize;
+#else
+	return 0;
+#endif
+}
+
+//reads one voxel of the given data type as double
+inline double pixelToDouble(const char* p, KLB_DATA_TYPE dataType)
+{
+	switch (dataType)
+	{
+	case UINT8_TYPE: return *((const std::uint8_t*)p);
+	case UINT16_TYPE: return *((const std::uint16_t*)p);
+	case UINT32_TYPE: return *((const std::uint32_t*)p);
+	case UINT64_TYPE: return (double)(*((const std::uint64_t*)p));
+	case INT8_TYPE: return *((const std::int8_t*)p);
+	case INT16_TYPE: return *((const std::int16_t*)p);
+	case INT32_TYPE: return *((const std::int32_t*)p);
+	case INT64_TYPE: return (double)(*((const std::int64_t*)p));
+	case FLOAT32_TYPE: return *((const float32_t*)p);
+	case FLOAT64_TYPE: return *((const float64_t*)p);
+	default: return 0;
+	}
+}
+
+//rounds (for integer types) and saturates to the range of T
+template<class T>
+inline T saturateCast(double v)
+{
+	if (std::numeric_limits<T>::is_integer)
+		v = floor(v + 0.5);
+	if (v <= (double)std::numeric_limits<T>::lowest())
+		return std::numeric_limits<T>::lowest();
+	if (v >= (double)std::numeric_limits<T>::max())
+		return std::numeric_limits<T>::max();
+	return (T)v;
+}
+
+//writes one voxel of the given data type from a double
+inline void doubleToPixel(double v, char* p, KLB_DATA_TYPE dataType)
+{
+	switch (dataType)
+	{
+	case UINT8_TYPE: *((std::uint8_t*)p) = saturateCast<std::uint8_t>(v); break;
+	case UINT16_TYPE: *((std::uint16_t*)p) = saturateCast<std::uint16_t>(v); break;
+	case UINT32_TYPE: *((std::uint32_t*)p) = saturateCast<std::uint32_t>(v); break;
+	case UINT64_TYPE: *((std::uint64_t*)p) = saturateCast<std::uint64_t>(v); break;
+	case INT8_TYPE: *((std::int8_t*)p) = saturateCast<std::int8_t>(v); break;
+	case INT16_TYPE: *((std::int16_t*)p) = saturateCast<std::int16_t>(v); break;
+	case INT32_TYPE: *((std::int32_t*)p) = saturateCast<std::int32_t>(v); break;
+	case INT64_TYPE: *((std::int64_t*)p) = saturateCast<std::int64_t>(v); break;
+	case FLOAT32_TYPE: *((float32_t*)p) = (float32_t)v; break;
+	case FLOAT64_TYPE: *((float64_t*)p) = v; break;
+	default: break;
+	}
+}
+
+//converts numPixels consecutive voxels of type Tin to voxels of type Tout that are outStrideBytes apart, as value * scale + offset
+template<class Tin, class Tout>
+inline void convertPixelsT(const char* bufferIn, char* bufferOut, std::uint64_t numPixels, std::uint64_t outStrideBytes, double scale, double offset)
+{
+	const Tin* p = (const Tin*)bufferIn;
+	for (std::uint64_t ii = 0; ii < numPixels; ii++, bufferOut += outStrideBytes)
+		*((Tout*)bufferOut) = saturateCast<Tout>(p[ii] * scale + offset);
+}
+
+template<class Tin>
+inline void convertPixels(const char* bufferIn, char* bufferOut, std::uint64_t numPixels, std::uint64_t outStrideBytes, KLB_DATA_TYPE outType, double scale, double offset)
+{
+	switch (outType)
+	{
+	case UINT8_TYPE: convertPixelsT<Tin, std::uint8_t>(bufferIn, bufferOut, numPixels, outStrideBytes, scale, offset); break;
+	case UINT16_TYPE: convertPixelsT<Tin, std::uint16_t>(bufferIn, bufferOut, numPixels, outStrideBytes, scale, offset); break;
+	case UINT32_TYPE: convertPixelsT<Tin, std::uint32_t>(bufferIn, bufferOut, numPixels, outStrideBytes, scale, offset); break;
+	case UINT64_TYPE: convertPixelsT<Tin, std::uint64_t>(bufferIn, bufferOut, numPixels, outStrideBytes, scale, offset); break;
+	case INT8_TYPE: convertPixelsT<Tin, std::int8_t>(bufferIn, bufferOut, numPixels, outStrideBytes, scale, offset); break;
+	case INT16_TYPE: convertPixelsT<Tin, std::int16_t>(bufferIn, bufferOut, numPixels, outStrideBytes, scale, offset); break;
+	case INT32_TYPE: convertPixelsT<Tin, std::int32_t>(bufferIn, bufferOut, numPixels, outStrideBytes, scale, offset); break;
+	case INT64_TYPE: convertPixelsT<Tin, std::int64_t>(bufferIn, bufferOut, numPixels, outStrideBytes, scale, offset); break;
+	case FLOAT32_TYPE: convertPixelsT<Tin, float32_t>(bufferIn, bufferOut, numPixels, outStrideBytes, scale, offset); break;
+	case FLOAT64_TYPE: convertPixelsT<Tin, float64_t>(bufferIn, bufferOut, numPixels, outStrideBytes, scale, offset); break;
+	default: break;
+	}
+}
+
+//min, max and number of non-zero voxels of a buffer of numPixels voxels of type T
+template<class T>
+inline void blockStatsT(const char* buffer, size_t numPixels, klb_block_stats* stats)
+{
+	const T* p = (const T*)buffer;
+	T minVal = p[0], maxVal = p[0];
+	std::uint64_t numNonZero = 0;
+	for (size_t ii = 0; ii < numPixels; ii++)
+	{
+		minVal = std::min(minVal, p[ii]);
+		maxVal = std::max(maxVal, p[ii]);
+		numNonZero += (p[ii] != 0);
+	}
+	stats->minVal = (double)minVal;
+	stats->maxVal = (double)maxVal;
+	stats->numNonZero = numNonZero;
+}
+
+inline void blockStats(const char* buffer, size_t numPixels, KLB_DATA_TYPE dataType, klb_block_stats* stats)
+{
+	switch (dataType)
+	{
+	case UINT8_TYPE: blockStatsT<std::uint8_t>(buffer, numPixels, stats); break;
+	case UINT16_TYPE: blockStatsT<std::uint16_t>(buffer, numPixels, stats); break;
+	case UINT32_TYPE: blockStatsT<std::uint32_t>(buffer, numPixels, stats); break;
+	case UINT64_TYPE: blockStatsT<std::uint64_t>(buffer, numPixels, stats); break;
+	case INT8_TYPE: blockStatsT<std::int8_t>(buffer, numPixels, stats); break;
+	case INT16_TYPE: blockStatsT<std::int16_t>(buffer, numPixels, stats); break;
+	case INT32_TYPE: blockStatsT<std::int32_t>(buffer, numPixels, stats); break;
+	case INT64_TYPE: blockStatsT<std::int64_t>(buffer, numPixels, stats); break;
+	case FLOAT32_TYPE: blockStatsT<float32_t>(buffer, numPixels, stats); break;
+	case FLOAT64_TYPE: blockStatsT<float64_t>(buffer, numPixels, stats); break;
+	default: break;
+	}
+}
+
+//sets all voxels below threshold to 0
+inline void applyThreshold(char* buffer, size_t numPixels, size_t bytesPerPixel, KLB_DATA_TYPE dataType, double threshold)
+{
+	for (size_t ii = 0; ii < numPixels; ii++, buffer += bytesPerPixel)
+	{
+		if (pixelToDouble(buffer, dataType) < threshold)
+			memset(buffer, 0, bytesPerPixel);
+	}
+}
+
+//true if all voxels of the buffer have the same bit pattern as the first one
+inline bool isConstantBlock(const char* buffer, size_t numBytes, size_t bytesPerPixel)
+{
+	return numBytes <= bytesPerPixel || memcmp(buffer, buffer + bytesPerPixel, numBytes - bytesPerPixel) == 0;
+}
+
+//fills numBytes of buffer with copies of the voxel value (bytesPerPixel bytes)
+inline void fillConstantBlock(char* buffer, size_t numBytes, const char* value, size_t bytesPerPixel)
+{
+	bool isByte = true;//e.g. background 0 or 0xFF...F
+	for (size_t ii = 1; ii < bytesPerPixel; ii++)
+		isByte &= (value[ii] == value[0]);
+	if (isByte)
+	{
+		memset(buffer, value[0], numBytes);
+		return;
+	}
+
+	//double the filled part in each step
+	memcpy(buffer, value, bytesPerPixel);
+	for (size_t filled = bytesPerPixel; filled < numBytes; filled *= 2)
+		memcpy(buffer + filled, buffer, std::min(filled, numBytes - filled));
+}
+
+//sets the voxels of a (sampled) ROI in a strided output buffer to value, see readImage
+inline void fillStrided(char* buffer, const klb_ROI* ROI, const std::uint64_t strides[KLB_DATA_DIMS], const char* value, size_t bytesPerPixel)
+{
+	for (std::uint64_t t = 0; t < ROI->getSizeOutputPixels(4); t++)
+		for (std::uint64_t c = 0; c < ROI->getSizeOutputPixels(3); c++)
+			for (std::uint64_t z = 0; z < ROI->getSizeOutputPixels(2); z++)
+				for (std::uint64_t y = 0; y < ROI->getSizeOutputPixels(1); y++)
+				{
+					char* row = buffer + (y * strides[1] + z * strides[2] + c * strides[3] + t * strides[4]) * bytesPerPixel;
+					for (std::uint64_t x = 0; x < ROI->getSizeOutputPixels(0); x++)
+						memcpy(row + x * strides[0] * bytesPerPixel, value, bytesPerPixel);
+				}
+}
+
+//======================================================
+//appends numBytes bytes to a buffer (e.g. the index of an extension)
+inline void appendBytes(std::vector<char>& buffer, const void* p, size_t numBytes)
+{
+	buffer.insert(buffer.end(), (const char*)p, (const char*)p + numBytes);
+}
+
+//CRC-32 of a compressed block, as stored in KLB_EXTENSION_BLOCK_CHECKSUMS
+inline std::uint32_t blockChecksum(const char* buffer, size_t numBytes)
+{
+	return (std::uint32_t)crc32(0L, (const Bytef*)buffer, (uInt)numBytes);
+}
+
+//appends the end offsets (relative to the first block), flags, statistics and checksums of blocks, as stored in KLB_EXTENSION_APPENDED_TIMEPOINT and KLB_EXTENSION_UPDATED_BLOCKS
+inline void appendBlockIndex(std::vector<char>& buffer, const std::vector<std::vector<char> >& blocks, const std::vector<std::uint8_t>& flags, const std::vector<klb_block_stats>& stats)
+{
+	std::uint64_t offset = 0;
+	for (size_t ii = 0; ii < blocks.size(); ii++)
+	{
+		offset += blocks[ii].size();
+		appendBytes(buffer, &offset, sizeof(std::uint64_t));
+	}
+	appendBytes(buffer, &(flags[0]), flags.size() * sizeof(std::uint8_t));
+	appendBytes(buffer, &(stats[0]), stats.size() * sizeof(klb_block_stats));
+	for (size_t ii = 0; ii < blocks.size(); ii++)
+	{
+		const std::uint32_t checksum = blockChecksum(blocks[ii].data(), blocks[ii].size());
+		appendBytes(buffer, &checksum, sizeof(std::uint32_t));
+	}
+}
+
 //========================================================
 //======================================================
-void klb_imageIO::blockCompressor(const char* buffer, int* g_blockSize, std::atomic<uint64_t> *blockId, int* g_blockThreadId, klb_circular_dequeue* cq, int threadId, int* errFlag)
+void klb_imageIO::blockCompressor(const char* buffer, int* g_blockSize, std::atomic<uint64_t> *blockId, int* g_blockThreadId, klb_circular_dequeue* cq, int threadId, int* errFlag, const klb_ROI* bufferROI, std::uint64_t blockIdEnd, const std::uint64_t* storageOrder)
 {
 	*errFlag = 0;
 	int BWTblockSize = 9;//maximum compression
 	std::uint64_t blockId_t;
+	std::uint64_t blockPos_t;//position of the block in the file
 	int gcount;//read bytes
 	unsigned int sizeCompressed;//size of block in bytes after compression
 	
@@ -76,7 +608,7 @@ void klb_imageIO::blockCompressor(const char* buffer, int* g_blockSize, std::ato
 		fLength *= header.xyzct[ii];
 		dimsBlock[ii] = ceil((float)(header.xyzct[ii]) / (float)(header.blockSize[ii]));
 		if (ii > 0)
-			xyzctCum[ii] = xyzctCum[ii - 1] * header.xyzct[ii - 1];
+			xyzctCum[ii] = xyzctCum[ii - 1] * (bufferROI == NULL ? header.xyzct[ii - 1] : bufferROI->getSizePixels(ii - 1));
 	}
 	char* bufferIn = new char[blockSizeBytes];
 	
@@ -84,16 +616,20 @@ void klb_imageIO::blockCompressor(const char* buffer, int* g_blockSize, std::ato
 	
 	
 
-	std::uint64_t numBlocks = header.getNumBlocks();
+	std::uint64_t numBlocks = std::min(blockIdEnd, (std::uint64_t)header.getNumBlocks());
 
 
 	//main loop to keep processing blocks while they are available
 	while (1)
 	{
-		blockId_t = atomic_fetch_add(blockId, (uint64_t) 1);
+		blockPos_t = atomic_fetch_add(blockId, (uint64_t) 1);
 
 		//check if we can access data or we cannot read longer
-		if (blockId_t >= numBlocks)
+		if (blockPos_t >= numBlocks)
+			break;
+		blockId_t = (storageOrder == NULL ? blockPos_t : storageOrder[blockPos_t]);
+
+		if (isCancelled())
 			break;
 
 
@@ -126,7 +662,7 @@ void klb_imageIO::blockCompressor(const char* buffer, int* g_blockSize, std::ato
 		offsetBuffer = 0;
 		for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
 		{
-			offsetBuffer += coordBlock[ii] * xyzctCum[ii];
+			offsetBuffer += (coordBlock[ii] - (bufferROI == NULL ? 0 : bufferROI->xyzctLB[ii])) * xyzctCum[ii];
 		}		
 
 		//copy block into local buffer bufferIn		
@@ -159,6 +695,13 @@ void klb_imageIO::blockCompressor(const char* buffer, int* g_blockSize, std::ato
 
 		//-------------------end of read block-----------------------------------
 
+		if (header.blockStats != NULL)
+			blockStats(bufferIn, gcount / bytesPerPixel, header.dataType, &(header.blockStats[blockId_t]));//each block is owned by a single thread
+
+		const bool constantBlock = (header.blockFlags != NULL && isConstantBlock(bufferIn, gcount, bytesPerPixel));
+		if (header.blockFlags != NULL)
+			header.blockFlags[blockId_t] = (constantBlock ? KLB_BLOCK_FLAG_CONSTANT : 0);//each block is owned by a single thread
+
 
 #ifdef DEBUG_PRINT_THREADS
 		printf("Thread %d compressor block check point 1 for block %d out of %d total blocks\n", (int)(std::this_thread::get_id().hash()), (int)blockId_t, (int)numBlocks);
@@ -167,6 +710,8 @@ void klb_imageIO::blockCompressor(const char* buffer, int* g_blockSize, std::ato
 
 		//decide address where we write the compressed block output						
 		char* bufferOutPtr = cq->getWriteBlock(); //this operation is thread safe	
+		if (bufferOutPtr == NULL)//the writer has stopped (operation cancelled)
+			break;
 
 
 
@@ -179,7 +724,13 @@ void klb_imageIO::blockCompressor(const char* buffer, int* g_blockSize, std::ato
 		auto t1 = Clock::now();
 #endif
 		//apply compression to block
-		switch (header.compressionType)
+		if (constantBlock)
+		{
+			//the block is stored as its only voxel value: no need to run the codec (e.g. background)
+			sizeCompressed = bytesPerPixel;
+			memcpy(bufferOutPtr, bufferIn, bytesPerPixel);
+		}
+		else switch (header.compressionType)
 		{
 		case KLB_COMPRESSION_TYPE::NONE://no compression
 			sizeCompressed = gcount;
@@ -243,6 +794,9 @@ void klb_imageIO::blockCompressor(const char* buffer, int* g_blockSize, std::ato
 		atomic_fetch_add(&g_countCompression, auxChrono);
 #endif
 
+		if (header.blockChecksums != NULL)
+			header.blockChecksums[blockId_t] = blockChecksum(bufferOutPtr, sizeCompressed);//each block is owned by a single thread
+
 		cq->pushWriteBlock();//notify content is ready in the queue
 
 #ifdef DEBUG_PRINT_THREADS
@@ -252,8 +806,8 @@ void klb_imageIO::blockCompressor(const char* buffer, int* g_blockSize, std::ato
 
 		//signal blockWriter that this block can be writen
 		std::unique_lock<std::mutex> locker(g_lockqueue);//adquires the lock		
-		g_blockSize[blockId_t] = sizeCompressed;//I don't really need the lock to modify this. I only need to singal the condition variable
-		g_blockThreadId[blockId_t] = threadId;
+		g_blockSize[blockPos_t] = sizeCompressed;//I don't really need the lock to modify this. I only need to singal the condition variable
+		g_blockThreadId[blockPos_t] = threadId;
 		locker.unlock();
 
 		g_queuecheck.notify_all();
@@ -320,6 +874,9 @@ void klb_imageIO::blockCompressorStackSlices(const char** buffer, int* g_blockSi
 		if (blockId_t >= numBlocks)
 			break;
 
+		if (isCancelled())
+			break;
+
 
 #ifdef DEBUG_PRINT_THREADS
 		printf("Thread %d reading block %d out of %d total blocks\n", (int)(std::this_thread::get_id().hash()), (int)blockId_t, (int)numBlocks);
@@ -385,6 +942,13 @@ void klb_imageIO::blockCompressorStackSlices(const char** buffer, int* g_blockSi
 
 		//-------------------end of read block-----------------------------------
 
+		if (header.blockStats != NULL)
+			blockStats(bufferIn, gcount / bytesPerPixel, header.dataType, &(header.blockStats[blockId_t]));//each block is owned by a single thread
+
+		const bool constantBlock = (header.blockFlags != NULL && isConstantBlock(bufferIn, gcount, bytesPerPixel));
+		if (header.blockFlags != NULL)
+			header.blockFlags[blockId_t] = (constantBlock ? KLB_BLOCK_FLAG_CONSTANT : 0);//each block is owned by a single thread
+
 
 #ifdef DEBUG_PRINT_THREADS
 		printf("Thread %d uncompressor block check point 1 for block %d out of %d total blocks\n", (int)(std::this_thread::get_id().hash()), (int)blockId_t, (int)numBlocks);
@@ -393,6 +957,8 @@ void klb_imageIO::blockCompressorStackSlices(const char** buffer, int* g_blockSi
 
 		//decide address where we write the compressed block output						
 		char* bufferOutPtr = cq->getWriteBlock(); //this operation is thread safe	
+		if (bufferOutPtr == NULL)//the writer has stopped (operation cancelled)
+			break;
 
 
 
@@ -405,7 +971,13 @@ void klb_imageIO::blockCompressorStackSlices(const char** buffer, int* g_blockSi
 		auto t1 = Clock::now();
 #endif
 		//apply compression to block
-		switch (header.compressionType)
+		if (constantBlock)
+		{
+			//the block is stored as its only voxel value: no need to run the codec (e.g. background)
+			sizeCompressed = bytesPerPixel;
+			memcpy(bufferOutPtr, bufferIn, bytesPerPixel);
+		}
+		else switch (header.compressionType)
 		{
 		case KLB_COMPRESSION_TYPE::NONE://no compression
 			sizeCompressed = gcount;
@@ -469,6 +1041,9 @@ void klb_imageIO::blockCompressorStackSlices(const char** buffer, int* g_blockSi
 		atomic_fetch_add(&g_countCompression, auxChrono);
 #endif
 
+		if (header.blockChecksums != NULL)
+			header.blockChecksums[blockId_t] = blockChecksum(bufferOutPtr, sizeCompressed);//each block is owned by a single thread
+
 		cq->pushWriteBlock();//notify content is ready in the queue
 
 #ifdef DEBUG_PRINT_THREADS
@@ -496,18 +1071,50 @@ void klb_imageIO::blockCompressorStackSlices(const char** buffer, int* g_blockSi
 
 }
 //======================================================
-void klb_imageIO::blockUncompressor(char* bufferOut, std::atomic<uint64_t> *blockId, const klb_ROI* ROI, int *errFlag)
+size_t klb_imageIO::getReadBytesPerPixel() const
 {
-	*errFlag = 0;
-	//open file to read elements
-	FILE* fid = fopen(filename.c_str(), "rb"); 
-	if ( fid == NULL )
+	if (readDataType < 0)
+		return header.getBytesPerPixel();
+	klb_image_header outHeader;
+	outHeader.dataType = (KLB_DATA_TYPE)readDataType;
+	return outHeader.getBytesPerPixel();
+}
+
+//======================================================
+void klb_imageIO::copyPixels(const char* bufferIn, char* bufferOut, std::uint64_t numPixels, std::uint64_t outStrideBytes) const
+{
+	const size_t bytesPerPixel = header.getBytesPerPixel();
+	if (readDataType < 0)
 	{
-		cout << "ERROR: blockUncompressor: thread opening file " << filename << endl;
-		*errFlag = 3;
+		if (outStrideBytes == bytesPerPixel)
+			memcpy(bufferOut, bufferIn, numPixels * bytesPerPixel);
+		else for (std::uint64_t ii = 0; ii < numPixels; ii++)
+			memcpy(bufferOut + ii * outStrideBytes, bufferIn + ii * bytesPerPixel, bytesPerPixel);
 		return;
 	}
 
+	const KLB_DATA_TYPE outType = (KLB_DATA_TYPE)readDataType;
+	switch (header.dataType)
+	{
+	case UINT8_TYPE: convertPixels<std::uint8_t>(bufferIn, bufferOut, numPixels, outStrideBytes, outType, readScale, readOffset); break;
+	case UINT16_TYPE: convertPixels<std::uint16_t>(bufferIn, bufferOut, numPixels, outStrideBytes, outType, readScale, readOffset); break;
+	case UINT32_TYPE: convertPixels<std::uint32_t>(bufferIn, bufferOut, numPixels, outStrideBytes, outType, readScale, readOffset); break;
+	case UINT64_TYPE: convertPixels<std::uint64_t>(bufferIn, bufferOut, numPixels, outStrideBytes, outType, readScale, readOffset); break;
+	case INT8_TYPE: convertPixels<std::int8_t>(bufferIn, bufferOut, numPixels, outStrideBytes, outType, readScale, readOffset); break;
+	case INT16_TYPE: convertPixels<std::int16_t>(bufferIn, bufferOut, numPixels, outStrideBytes, outType, readScale, readOffset); break;
+	case INT32_TYPE: convertPixels<std::int32_t>(bufferIn, bufferOut, numPixels, outStrideBytes, outType, readScale, readOffset); break;
+	case INT64_TYPE: convertPixels<std::int64_t>(bufferIn, bufferOut, numPixels, outStrideBytes, outType, readScale, readOffset); break;
+	case FLOAT32_TYPE: convertPixels<float32_t>(bufferIn, bufferOut, numPixels, outStrideBytes, outType, readScale, readOffset); break;
+	case FLOAT64_TYPE: convertPixels<float64_t>(bufferIn, bufferOut, numPixels, outStrideBytes, outType, readScale, readOffset); break;
+	default: break;
+	}
+}
+
+//======================================================
+void klb_imageIO::blockUncompressor(char* bufferOut, const std::uint64_t* outStrides, klb_block_reads* reads, const klb_ROI* ROI, double* binSums, std::mutex* binLocks, int *errFlag)
+{
+	*errFlag = 0;
+
 	//define variables
 	std::uint64_t blockId_t;//to know which block we are processing
 	unsigned int sizeCompressed, gcount;
@@ -522,31 +1129,44 @@ void klb_imageIO::blockUncompressor(char* bufferOut, std::atomic<uint64_t> *bloc
 	uint64_t offsetBuffer;//starting offset for each buffer within ROI
 	uint32_t offsetBufferBlock;////starting offset for each buffer within decompressed block
 	uint32_t blockSizeAux[KLB_DATA_DIMS];//for border cases where the blocksize might be different
-	uint64_t xyzctCum[KLB_DATA_DIMS];//to calculate offsets for each dimension in THE ROI
-	uint64_t offsetHeaderBytes = header.getSizeInBytes();
+	uint64_t xyzctCum[KLB_DATA_DIMS];//to calculate offsets for each dimension in THE ROI (in bytes of the output buffer)
 
-	xyzctCum[0] = bytesPerPixel;
 	for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
 	{
 		blockSizeBytes *= header.blockSize[ii];
 		fLength *= header.xyzct[ii];
 		dimsBlock[ii] = ceil((float)(header.xyzct[ii]) / (float)(header.blockSize[ii]));
-		if (ii > 0)
-			xyzctCum[ii] = xyzctCum[ii - 1] * ROI->getSizePixels(ii-1);
+		xyzctCum[ii] = outStrides[ii] * getReadBytesPerPixel();
 	}
 
+#ifdef DEBUG_PRINT_THREADS
 	std::uint64_t numBlocks = header.getNumBlocks();
+#endif
 	char* bufferIn = new char[blockSizeBytes];//temporary storage for decompressed block
-	char* bufferFile = new char[maximumBlockSizeCompressedInBytes()];//temporary storage for compressed block from file
+	const char* bufferFile;//compressed block within runData
+	std::vector<char> bufferRun;//run of adjacent compressed blocks read from file (unless they are preloaded or mapped)
+	const char* runData = NULL;//current run, which starts at file position runStart and of which runBytes are available
+	std::uint64_t runStart = 0, runBytes = 0;
+	size_t runBlock = 0, runEnd = 0;//next and end block of the current run (in reads->blockOrder)
 
 	//main loop to keep processing blocks while they are available
 	while (1)
 	{
-		//get the blockId resource
-		blockId_t = atomic_fetch_add(blockId, (uint64_t)1);
+		//get the next block of the current run or, once that is done, the next run, which is fetched from the file with a single read
+		if (runBlock == runEnd)
+		{
+			const std::uint64_t r = atomic_fetch_add(&(reads->runId), (uint64_t)1);
+			if (r + 1 >= reads->runs.size())
+				break;
+			if (isCancelled())
+				break;
+			runBytes = fetchBlockRun(reads, r, &bufferRun, &runStart, &runData);
+			runBlock = reads->runs[r];
+			runEnd = reads->runs[r + 1];
+		}
+		blockId_t = reads->blockOrder[runBlock++];
 
-		//check if we have more blocks
-		if (blockId_t >= numBlocks)
+		if (isCancelled())
 			break;
 
 		//calculate coordinate (in block space)
@@ -559,21 +1179,7 @@ void klb_imageIO::blockUncompressor(char* bufferOut, std::atomic<uint64_t> *bloc
 			coordBlock[ii] *= header.blockSize[ii];//parsing coordinates to image space (not block anymore)
 		}
 
-		//check if ROI and bloock coordinates intersect
-		bool intersect = true;
-		for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
-		{
-			//for each coordinate, we have to check: RectA.X1 < RectB.X2 && RectA.X2 > RectB.X1, where X1 is minimum nad X2 is maximum coordinate
-			//from http://stackoverflow.com/questions/306316/determine-if-two-rectangles-overlap-each-other
-			if ( !( (coordBlock[ii] <= ROI->xyzctUB[ii]) && (coordBlock[ii] + header.blockSize[ii] - 1 >= ROI->xyzctLB[ii] ) ))
-			{
-				intersect = false;
-				break;
-			}
-		}
-
-		if (intersect == false)
-			continue;//process another block
+		//only blocks intersecting the ROI (and not skipped by the threshold) are planned, see readImage
 
 #ifdef DEBUG_PRINT_THREADS
 		printf("Thread %d reading block %d out of %d total blocks\n", (int)(std::this_thread::get_id().hash()), (int)blockId_t, (int)numBlocks);
@@ -583,14 +1189,25 @@ void klb_imageIO::blockUncompressor(char* bufferOut, std::atomic<uint64_t> *bloc
 		
 		//uncompress block into temp bufferIn
 		sizeCompressed = header.getBlockCompressedSizeBytes(blockId_t);
-		offset = header.getBlockOffset(blockId_t);
-
-		
-		fseek(fid, offsetHeaderBytes + offset, SEEK_SET);
-		fread(bufferFile, 1, sizeCompressed, fid);//read compressed block
+		offset = header.getBlockFilePosition(blockId_t);
+		if (offset + sizeCompressed > runStart + runBytes)//truncated file
+		{
+			cout << "ERROR: blockUncompressor: reading blocks from file " << filename << endl;
+			*errFlag = 2;
+			break;
+		}
+		bufferFile = runData + (offset - runStart);
 
 		//apply decompression to block
-		switch (header.compressionType)
+		if (header.isBlockConstant(blockId_t))
+		{
+			//the block only stores its voxel value: fill instead of running the codec
+			gcount = bytesPerPixel;
+			for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+				gcount *= std::min(header.blockSize[ii], (uint32_t)(header.xyzct[ii] - coordBlock[ii]));
+			fillConstantBlock(bufferIn, gcount, bufferFile, bytesPerPixel);
+		}
+		else switch (header.compressionType)
 		{
 		case KLB_COMPRESSION_TYPE::NONE://no compression
 			gcount = sizeCompressed;
@@ -599,7 +1216,7 @@ void klb_imageIO::blockUncompressor(char* bufferOut, std::atomic<uint64_t> *bloc
 		case KLB_COMPRESSION_TYPE::BZIP2://bzip2
 		{
 				   gcount = blockSizeBytes;
-				   int ret = BZ2_bzBuffToBuffDecompress(bufferIn, &gcount, bufferFile, sizeCompressed, 0, 0);				   
+				   int ret = BZ2_bzBuffToBuffDecompress(bufferIn, &gcount, (char*)bufferFile, sizeCompressed, 0, 0);				   
 				   if (ret != BZ_OK)
 				   {
 					   std::cout << "ERROR: workerfunc: uncompressing data at block " << blockId_t << std::endl;
@@ -645,6 +1262,22 @@ void klb_imageIO::blockUncompressor(char* bufferOut, std::atomic<uint64_t> *bloc
 
 
 
+		if (readThreshold > -std::numeric_limits<double>::infinity())
+		{
+			std::uint64_t numPixels = 1;
+			for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+				numPixels *= std::min(header.blockSize[ii], (uint32_t)(header.xyzct[ii] - coordBlock[ii]));
+			applyThreshold(bufferIn, numPixels, bytesPerPixel, header.dataType, readThreshold);
+		}
+
+		if (ROI->isSampled())
+		{
+			//strided / binned read: only the sampled voxels of the block end up in the (smaller) output buffer
+			copyBlockSampled(bufferIn, coordBlock, ROI, bufferOut, outStrides, binSums, binLocks);
+			blockDone();
+			continue;
+		}
+
 		//-------------------parse bufferIn to bufferOut image buffer-----------------------------------
 		//------------------intersection of two ROI (blopck and image ROI) is another ROI, so we just need to calculate the intersection and its offsets
 
@@ -688,14 +1321,12 @@ void klb_imageIO::blockUncompressor(char* bufferOut, std::atomic<uint64_t> *bloc
 
 		//copy block into local buffer bufferIn
 		int auxDim = 1;
-		const size_t bufferCopySize = bytesPerPixel * blockSizeAux[0];
 		const size_t bufferInOffset = blockSizeAuxCum[1];
 		char* bufferInAux = &(bufferIn[offsetBufferBlock]);
 		while (auxDim < KLB_DATA_DIMS)
 		{
-			//copy fastest moving coordinate all at once for efficiency
-			//memcpy(&(bufferOut[offsetBuffer]), &(bufferIn[offsetBufferBlock]), bufferCopySize);
-			memcpy(&(bufferOut[offsetBuffer]), bufferInAux, bufferCopySize);
+			//copy fastest moving coordinate all at once for efficiency (converting the voxels on the way if readDataType is set)
+			copyPixels(bufferInAux, &(bufferOut[offsetBuffer]), blockSizeAux[0], xyzctCum[0]);
 			bufferInAux += bufferInOffset;
 
 			//increment counter			
@@ -723,6 +1354,8 @@ void klb_imageIO::blockUncompressor(char* bufferOut, std::atomic<uint64_t> *bloc
 
 		
 
+		blockDone();
+
 #ifdef DEBUG_PRINT_THREADS
 		printf("Thread %d finished decompressing block %d into %d bytes\n", (int)(std::this_thread::get_id().hash()), (int)blockId_t, (int)gcount);
 		fflush(stdout); // Will now print everything in the stdout buffer
@@ -731,209 +1364,105 @@ void klb_imageIO::blockUncompressor(char* bufferOut, std::atomic<uint64_t> *bloc
 
 
 	//release memory
-	fclose(fid);
 	delete[] bufferIn;
-	delete[] bufferFile;
 
 }
 
 //======================================================
-void klb_imageIO::blockUncompressorInMem(char* bufferOut, std::atomic<uint64_t>	*blockId, char* bufferImgFull, int *errFlag)
+void klb_imageIO::copyBlockSampled(const char* bufferIn, const std::uint64_t coordBlock[KLB_DATA_DIMS], const klb_ROI* ROI, char* bufferOut, const std::uint64_t* outStrides, double* binSums, std::mutex* binLocks)
 {
-	*errFlag = 0;
-	
-
-	//define variables
-	std::uint64_t blockId_t;//to know which block we are processing
-	unsigned int sizeCompressed, gcount;
-	std::uint64_t offset;//size of block in bytes after compression
-
-
 	const size_t bytesPerPixel = header.getBytesPerPixel();
-	uint32_t blockSizeBytes = bytesPerPixel;	
-	uint64_t dimsBlock[KLB_DATA_DIMS];//number of blocks on each dimension
-	uint64_t coordBlock[KLB_DATA_DIMS];//coordinates (in block space). blockId_t = coordBblock[0] + dimsBblock[0] * coordBlock[1] + dimsBblock[0] * dimsBblock[1] * coordBlock[2] + ...
-	uint64_t offsetBuffer;//starting offset for each buffer within ROI
-	uint32_t blockSizeAux[KLB_DATA_DIMS];//for border cases where the blocksize might be different
-	uint64_t xyzctCum[KLB_DATA_DIMS];//to calculate offsets for each dimension in THE ROI
-	uint64_t offsetHeaderBytes = header.getSizeInBytes();
+	const size_t outBytesPerPixel = getReadBytesPerPixel();
+	const bool binned = ROI->isBinned();
 
-	xyzctCum[0] = bytesPerPixel;
+	//voxels of the block (in image coordinates) that intersect the ROI: [lo, hi]
+	std::uint64_t lo[KLB_DATA_DIMS], hi[KLB_DATA_DIMS];
+	std::uint64_t blockCum[KLB_DATA_DIMS], outCum[KLB_DATA_DIMS];//strides (in voxels) of the block and of the packed output (binSums). The output buffer itself uses outStrides
 	for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
 	{
-		blockSizeBytes *= header.blockSize[ii];
-		dimsBlock[ii] = ceil((float)(header.xyzct[ii]) / (float)(header.blockSize[ii]));
-		if (ii > 0)
-			xyzctCum[ii] = xyzctCum[ii - 1] * header.xyzct[ii - 1];
+		const std::uint64_t blockSizeAux = std::min(header.blockSize[ii], (uint32_t)(header.xyzct[ii] - coordBlock[ii]));
+		lo[ii] = std::max(coordBlock[ii], (std::uint64_t)ROI->xyzctLB[ii]);
+		hi[ii] = std::min(coordBlock[ii] + blockSizeAux - 1, (std::uint64_t)ROI->xyzctUB[ii]);
+		blockCum[ii] = (ii == 0) ? 1 : blockCum[ii - 1] * std::min(header.blockSize[ii - 1], (uint32_t)(header.xyzct[ii - 1] - coordBlock[ii - 1]));
+		outCum[ii] = (ii == 0) ? 1 : outCum[ii - 1] * ROI->getSizeOutputPixels(ii - 1);
 	}
 
-	std::uint64_t numBlocks = header.getNumBlocks();
-	char* bufferIn = new char[blockSizeBytes];//temporary storage for decompressed block
-	char* bufferPtr;//pointer to preloaded compressed file in memory
+	//a voxel at image coordinate x is used iff its offset within its step is smaller than the bin size; it is then written to output index (x - LB) / step
+	auto isUsed = [ROI](int dim, std::uint64_t x){ return ((x - ROI->xyzctLB[dim]) % ROI->xyzctStep[dim]) < ROI->xyzctBin[dim]; };
+	auto outIdx = [ROI](int dim, std::uint64_t x){ return (x - ROI->xyzctLB[dim]) / ROI->xyzctStep[dim]; };
 
-	//main loop to keep processing blocks while they are available
-	while (1)
-	{
-		//get the blockId resource		
-		blockId_t = atomic_fetch_add(blockId, (uint64_t) 1);
-
-		//check if we have more blocks
-		if (blockId_t >= numBlocks)
-			break;
-
-		//calculate coordinate (in block space)
-		std::uint64_t blockIdx_aux = blockId_t;
-		for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
-		{
-			coordBlock[ii] = blockIdx_aux % dimsBlock[ii];
-			blockIdx_aux -= coordBlock[ii];
-			blockIdx_aux /= dimsBlock[ii];
-			coordBlock[ii] *= header.blockSize[ii];//parsing coordinates to image space (not block anymore)
-		}		
-
-#ifdef DEBUG_PRINT_THREADS
-		printf("Thread %d reading block %d out of %d total blocks\n", (int)(std::this_thread::get_id().hash()), (int)blockId_t, (int)numBlocks);
-		fflush(stdout); // Will now print everything in the stdout buffer
-#endif
-
-
-		//uncompress block into temp bufferIn
-		sizeCompressed = header.getBlockCompressedSizeBytes(blockId_t);
-		offset = header.getBlockOffset(blockId_t);
-
-		bufferPtr = &(bufferImgFull[offsetHeaderBytes + offset]);		
-
-		//apply decompression to block
-		switch (header.compressionType)
-		{
-		case KLB_COMPRESSION_TYPE::NONE://no compression
-			gcount = sizeCompressed;
-			memcpy(bufferIn, bufferPtr, gcount);
-			break;
-		case KLB_COMPRESSION_TYPE::BZIP2://bzip2
-		{
-				   gcount = blockSizeBytes;
-				   int ret = BZ2_bzBuffToBuffDecompress(bufferIn, &gcount, bufferPtr, sizeCompressed, 0, 0);
-				   if (ret != BZ_OK)
-				   {
-					   std::cout << "ERROR: workerfunc: decompressing data at block " << blockId_t << std::endl;
-					   *errFlag = 2;
-					   gcount = 0;
-				   }
-				   break;
-		}
-		case KLB_COMPRESSION_TYPE::ZLIB:
-		{
-										   z_stream strm;
-										   strm.zalloc = Z_NULL;
-										   strm.zfree = Z_NULL;
-										   strm.opaque = Z_NULL;
-										   strm.avail_in = 0;
-										   strm.next_in = Z_NULL;
-										   *errFlag = inflateInit(&strm);
-
-
-										   strm.avail_out = blockSizeBytes;
-										   strm.next_out = (Bytef*)bufferIn;
-										   strm.avail_in = sizeCompressed;
-										   strm.next_in = (Bytef*)bufferPtr;
-										   strm.data_type = Z_BINARY;//data type
-
-										   int ret = inflate(&strm, Z_FINISH);
-										   //gcount = sizeCompressed - strm.avail_out;
-										   if (ret != Z_STREAM_END && ret != Z_OK)
-										   {
-											   std::cout << "ERROR: workerfunc: uncompressing data at block " << blockId_t << " with zlib. Error code " << ret << std::endl;
-											   *errFlag = 3;
-											   gcount = 0;
-										   }
-										   //release strm
-										   (void)deflateEnd(&strm);
-										   break;
-		}
-		default:
-			std::cout << "ERROR: workerfunc: decompression type not implemented" << std::endl;
-			*errFlag = 5;
-			sizeCompressed = 0;
-		}
-
-
-
-		//-------------------parse bufferIn to bufferOut image buffer-----------------------------------		
-
-		//calculate block size in case we had border block				
-		blockSizeAux[0] = std::min(header.blockSize[0], (uint32_t)(header.xyzct[0] - coordBlock[0]));
-		for (int ii = 1; ii < KLB_DATA_DIMS; ii++)
-		{
-			blockSizeAux[ii] = std::min(header.blockSize[ii], (uint32_t)(header.xyzct[ii] - coordBlock[ii]));
-		}
-		
-				
-
-		//calculate starting offset in the buffer in image space
-		offsetBuffer = 0;
-		for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
-		{
-			offsetBuffer += coordBlock[ii] * xyzctCum[ii];//xyzct already has bytesPerPixel
-		}
+	//first sampled x (only used without binning)
+	const std::uint64_t x0 = ROI->xyzctLB[0] + iDivUp<std::uint64_t>(lo[0] - ROI->xyzctLB[0], ROI->xyzctStep[0]) * ROI->xyzctStep[0];
 
-		//copy block into local buffer bufferIn
-		int auxDim = 1;
-		uint32_t bcount[KLB_DATA_DIMS];
-		memset(bcount, 0, sizeof(uint32_t)* KLB_DATA_DIMS);
-		const size_t bufferCopySize = bytesPerPixel * blockSizeAux[0];
-		char* bufferInPtr = bufferIn;
-		while (auxDim < KLB_DATA_DIMS)
+	for (std::uint64_t t = lo[4]; t <= hi[4]; t++)
+	{
+		if (!isUsed(4, t)) continue;
+		for (std::uint64_t c = lo[3]; c <= hi[3]; c++)
 		{
-			
-			//copy fastest moving coordinate all at once for efficiency
-			memcpy(&(bufferOut[offsetBuffer]), bufferInPtr, bufferCopySize);
-			bufferInPtr += bufferCopySize;
-
-			//increment counter			
-			bcount[1]++;
-			offsetBuffer += xyzctCum[1];//update offset for output buffer. xyzct already has bytesPerPixel		
-			auxDim = 1;
-			while (bcount[auxDim] == blockSizeAux[auxDim])
+			if (!isUsed(3, c)) continue;
+			for (std::uint64_t z = lo[2]; z <= hi[2]; z++)
 			{
-				offsetBuffer -= blockSizeAux[auxDim] * xyzctCum[auxDim];//update buffer				
-				bcount[auxDim] = 0;
-				auxDim++;
-				if (auxDim == KLB_DATA_DIMS)
-					break;
-				bcount[auxDim]++;
-				offsetBuffer += xyzctCum[auxDim]; //update buffer.xyzct already has bytesPerPixel
+				if (!isUsed(2, z)) continue;
+				for (std::uint64_t y = lo[1]; y <= hi[1]; y++)
+				{
+					if (!isUsed(1, y)) continue;
+					const char* rowIn = bufferIn + bytesPerPixel * ((y - coordBlock[1]) * blockCum[1] + (z - coordBlock[2]) * blockCum[2] + (c - coordBlock[3]) * blockCum[3] + (t - coordBlock[4]) * blockCum[4]);
+					const std::uint64_t rowOut = outIdx(1, y) * outCum[1] + outIdx(2, z) * outCum[2] + outIdx(3, c) * outCum[3] + outIdx(4, t) * outCum[4];
+					if (binned == false)
+					{
+						const std::uint64_t rowBuffer = outIdx(1, y) * outStrides[1] + outIdx(2, z) * outStrides[2] + outIdx(3, c) * outStrides[3] + outIdx(4, t) * outStrides[4];
+						for (std::uint64_t x = x0; x <= hi[0]; x += ROI->xyzctStep[0])
+							copyPixels(rowIn + (x - coordBlock[0]) * bytesPerPixel, &(bufferOut[(rowBuffer + outIdx(0, x) * outStrides[0]) * outBytesPerPixel]), 1, outBytesPerPixel);
+					}
+					else{
+						//bins can straddle block borders, so other threads may add to the same output row
+						std::lock_guard<std::mutex> lock(binLocks[rowOut % KLB_BIN_LOCKS]);
+						for (std::uint64_t x = lo[0]; x <= hi[0]; x++)
+						{
+							if (isUsed(0, x))
+								binSums[rowOut + outIdx(0, x)] += pixelToDouble(rowIn + (x - coordBlock[0]) * bytesPerPixel, header.dataType);
+						}
+					}
+				}
 			}
 		}
-		//-------------------end of parse bufferIn to bufferOut image buffer-----------------------------------
-
-
-
-#ifdef DEBUG_PRINT_THREADS
-		printf("Thread %d finished decompressing block %d into %d bytes\n", (int)(std::this_thread::get_id().hash()), (int)blockId_t, (int)gcount);
-		fflush(stdout); // Will now print everything in the stdout buffer
-#endif
 	}
+}
 
+//======================================================
+void klb_imageIO::averageBins(const klb_ROI* ROI, const double* binSums, char* bufferOut, const std::uint64_t* outStrides)
+{
+	const size_t bytesPerPixel = getReadBytesPerPixel();
+	const KLB_DATA_TYPE outType = (readDataType < 0) ? header.dataType : (KLB_DATA_TYPE)readDataType;
+	const double scale = (readDataType < 0) ? 1.0 : readScale, offset = (readDataType < 0) ? 0.0 : readOffset;
 
-	//release memory
-	delete[] bufferIn;
+	//number of voxels in each bin along each dimension (bins at the upper border of the ROI can be cropped)
+	std::vector<std::uint32_t> binCount[KLB_DATA_DIMS];
+	for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+	{
+		binCount[ii].resize(ROI->getSizeOutputPixels(ii));
+		for (size_t jj = 0; jj < binCount[ii].size(); jj++)
+			binCount[ii][jj] = std::min(ROI->xyzctBin[ii], (std::uint32_t)(ROI->xyzctUB[ii] - ROI->xyzctLB[ii] - jj * ROI->xyzctStep[ii] + 1));
+	}
 
+	std::uint64_t idx = 0;
+	for (size_t t = 0; t < binCount[4].size(); t++)
+		for (size_t c = 0; c < binCount[3].size(); c++)
+			for (size_t z = 0; z < binCount[2].size(); z++)
+				for (size_t y = 0; y < binCount[1].size(); y++)
+				{
+					const double n = (double)binCount[1][y] * binCount[2][z] * binCount[3][c] * binCount[4][t];
+					const std::uint64_t rowBuffer = y * outStrides[1] + z * outStrides[2] + c * outStrides[3] + t * outStrides[4];
+					for (size_t x = 0; x < binCount[0].size(); x++, idx++)
+						doubleToPixel(binSums[idx] / (n * binCount[0][x]) * scale + offset, &(bufferOut[(rowBuffer + x * outStrides[0]) * bytesPerPixel]), outType);
+				}
 }
 
 //======================================================
-void klb_imageIO::blockUncompressorImageFull(char* bufferOut, std::atomic<uint64_t>	*blockId, int *errFlag)
+void klb_imageIO::blockUncompressorImageFull(char** bufferOut, std::uint64_t chunkSizeBytes, std::uint64_t chunkPeriodBytes, klb_block_reads* reads, int *errFlag)
 {
 	*errFlag = 0;
-
-	//open file to read elements	
-	FILE* fid = fopen(filename.c_str(), "rb");
-	if ( fid == NULL )
-	{
-		cout << "ERROR: blockUncompressor: thread opening file " << filename << endl;
-		*errFlag = 3;
-		return;
-	}
+	const std::uint64_t chunksPerPeriod = iDivUp(chunkPeriodBytes, chunkSizeBytes);//chunks are filled one after the other in each period of the image
 
 	//define variables
 	std::uint64_t blockId_t;//to know which block we are processing
@@ -948,7 +1477,6 @@ void klb_imageIO::blockUncompressorImageFull(char* bufferOut, std::atomic<uint64
 	uint64_t offsetBuffer;//starting offset for each buffer within ROI
 	uint32_t blockSizeAux[KLB_DATA_DIMS];//for border cases where the blocksize might be different
 	uint64_t xyzctCum[KLB_DATA_DIMS];//to calculate offsets for each dimension in THE ROI
-	uint64_t offsetHeaderBytes = header.getSizeInBytes();
 
 	xyzctCum[0] = bytesPerPixel;
 	for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
@@ -959,18 +1487,34 @@ void klb_imageIO::blockUncompressorImageFull(char* bufferOut, std::atomic<uint64
 			xyzctCum[ii] = xyzctCum[ii - 1] * header.xyzct[ii - 1];
 	}
 
+#ifdef DEBUG_PRINT_THREADS
 	std::uint64_t numBlocks = header.getNumBlocks();
+#endif
 	char* bufferIn = new char[blockSizeBytes];//temporary storage for decompressed block
-	char* bufferFile = new char[maximumBlockSizeCompressedInBytes()];//temporary storage for compressed block from file
+	const char* bufferFile;//compressed block within runData
+	std::vector<char> bufferRun;//run of adjacent compressed blocks read from file (unless they are preloaded or mapped)
+	const char* runData = NULL;//current run, which starts at file position runStart and of which runBytes are available
+	std::uint64_t runStart = 0, runBytes = 0;
+	size_t runBlock = 0, runEnd = 0;//next and end block of the current run (in reads->blockOrder)
 
 	//main loop to keep processing blocks while they are available
 	while (1)
 	{
-		//get the blockId resource		
-		blockId_t = atomic_fetch_add(blockId, (uint64_t) 1);
+		//get the next block of the current run or, once that is done, the next run, which is fetched from the file with a single read
+		if (runBlock == runEnd)
+		{
+			const std::uint64_t r = atomic_fetch_add(&(reads->runId), (uint64_t)1);
+			if (r + 1 >= reads->runs.size())
+				break;
+			if (isCancelled())
+				break;
+			runBytes = fetchBlockRun(reads, r, &bufferRun, &runStart, &runData);
+			runBlock = reads->runs[r];
+			runEnd = reads->runs[r + 1];
+		}
+		blockId_t = reads->blockOrder[runBlock++];
 
-		//check if we have more blocks
-		if (blockId_t >= numBlocks)
+		if (isCancelled())
 			break;
 
 		//calculate coordinate (in block space)
@@ -990,14 +1534,25 @@ void klb_imageIO::blockUncompressorImageFull(char* bufferOut, std::atomic<uint64
 
 		//uncompress block into temp bufferIn
 		sizeCompressed = header.getBlockCompressedSizeBytes(blockId_t);
-		offset = header.getBlockOffset(blockId_t);
-
-
-		fseek(fid, offsetHeaderBytes + offset, SEEK_SET);
-		fread(bufferFile, 1, sizeCompressed, fid);
+		offset = header.getBlockFilePosition(blockId_t);
+		if (offset + sizeCompressed > runStart + runBytes)//truncated file
+		{
+			cout << "ERROR: blockUncompressorImageFull: reading blocks from file " << filename << endl;
+			*errFlag = 2;
+			break;
+		}
+		bufferFile = runData + (offset - runStart);
 
 		//apply decompression to block
-		switch (header.compressionType)
+		if (header.isBlockConstant(blockId_t))
+		{
+			//the block only stores its voxel value: fill instead of running the codec
+			gcount = bytesPerPixel;
+			for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+				gcount *= std::min(header.blockSize[ii], (uint32_t)(header.xyzct[ii] - coordBlock[ii]));
+			fillConstantBlock(bufferIn, gcount, bufferFile, bytesPerPixel);
+		}
+		else switch (header.compressionType)
 		{
 		case KLB_COMPRESSION_TYPE::NONE://no compression
 			gcount = sizeCompressed;
@@ -1006,10 +1561,10 @@ void klb_imageIO::blockUncompressorImageFull(char* bufferOut, std::atomic<uint64
 		case KLB_COMPRESSION_TYPE::BZIP2://bzip2
 		{
 				   gcount = blockSizeBytes;
-				   int ret = BZ2_bzBuffToBuffDecompress(bufferIn, &gcount, bufferFile, sizeCompressed, 0, 0);
+				   int ret = BZ2_bzBuffToBuffDecompress(bufferIn, &gcount, (char*)bufferFile, sizeCompressed, 0, 0);
 				   if (ret != BZ_OK)
 				   {
-					   std::cout << "ERROR: workerfunc: decompressing data at block " << blockId_t << " with offset " << offsetHeaderBytes + offset << std::endl;
+					   std::cout << "ERROR: workerfunc: decompressing data at block " << blockId_t << " with offset " << offset << std::endl;
 					   *errFlag = 2;
 					   gcount = 0;
 				   }
@@ -1080,7 +1635,7 @@ void klb_imageIO::blockUncompressorImageFull(char* bufferOut, std::atomic<uint64
 		{
 
 			//copy fastest moving coordinate all at once for efficiency
-			memcpy(&(bufferOut[offsetBuffer]), bufferInPtr, bufferCopySize);
+			memcpy(bufferOut[(offsetBuffer / chunkPeriodBytes) * chunksPerPeriod + (offsetBuffer % chunkPeriodBytes) / chunkSizeBytes] + (offsetBuffer % chunkPeriodBytes) % chunkSizeBytes, bufferInPtr, bufferCopySize);//rows never straddle two chunks
 			bufferInPtr += bufferCopySize;
 
 			//increment counter			
@@ -1102,6 +1657,8 @@ void klb_imageIO::blockUncompressorImageFull(char* bufferOut, std::atomic<uint64
 
 
 
+		blockDone();
+
 #ifdef DEBUG_PRINT_THREADS
 		printf("Thread %d finished decompressing block %d into %d bytes\n", (int)(std::this_thread::get_id().hash()), (int)blockId_t, (int)gcount);
 		fflush(stdout); // Will now print everything in the stdout buffer
@@ -1110,36 +1667,35 @@ void klb_imageIO::blockUncompressorImageFull(char* bufferOut, std::atomic<uint64
 
 
 	//release memory
-	fclose(fid);
 	delete[] bufferIn;
-	delete[] bufferFile;
 }
 
 //=========================================================================
 //writes compressed blocks sequentially as they become available (in order) from the workers
-void klb_imageIO::blockWriter(FILE* fout, int* g_blockSize, int* g_blockThreadId, klb_circular_dequeue** cq, int* errFlag)
+void klb_imageIO::blockWriter(klb_output_sink* sink, int* g_blockSize, int* g_blockThreadId, klb_circular_dequeue** cq, int numThreads, bool offsetsKnown, const std::uint64_t* storageOrder, const std::atomic<std::int32_t>* abort, int* errFlag)
 {
 	*errFlag = 0;
 	std::int64_t nextBlockId = 0, offset = 0;
 	std::uint64_t numBlocks = header.getNumBlocks();
 	header.resizeBlockOffset(numBlocks);//just in case it has not been setup
 
-#define USE_MEM_BUFFER_WRITE //uncomment this line to use a large memory buffer before writing to file. It is slower since C++ write already buffers ofstream before flushing. However using C interface (FILE*) it is faster)
-
-#ifdef USE_MEM_BUFFER_WRITE
-	//buffer to avoid writing to disk all the time
-	int bufferMaxSize = std::min( header.getImageSizeBytes() / 10, (uint64_t) (500 * 1048576));//maximum is 500MB or 10th of the original image size
-	bufferMaxSize = std::max(bufferMaxSize, (int) maximumBlockSizeCompressedInBytes());//we need ot be able to fit at least one block
-	char* bufferMem = new char[bufferMaxSize];
-	int bufferOffset = 0;
-#endif		
+	//buffer to avoid writing to disk all the time (the sink is called directly for each block if it cannot hold the largest one)
+	std::uint64_t bufferMaxSize = std::min(header.getImageSizeBytes() / 10, writeBufferBytes);//maximum is writeBufferBytes or 10th of the original image size
+	bufferMaxSize = std::max(bufferMaxSize, (std::uint64_t)maximumBlockSizeCompressedInBytes());//we need ot be able to fit at least one block
+	if (writeBufferBytes < maximumBlockSizeCompressedInBytes())
+		bufferMaxSize = 0;
+	std::vector<char> bufferMem(bufferMaxSize);
+	std::uint64_t bufferOffset = 0;
 
 	//write header
-	header.writeHeader(fout);	
+	std::vector<char> headerBytes;
+	header.writeHeader(headerBytes);
+	if (sink->write(headerBytes.data(), headerBytes.size()) != 0)
+		*errFlag = 5;
 
 	// loop until end is signaled			
 	std::int64_t blockSize;
-	while (nextBlockId < numBlocks)
+	while (nextBlockId < numBlocks && *errFlag == 0)
 	{
 
 #ifdef DEBUG_PRINT_THREADS
@@ -1147,10 +1703,17 @@ void klb_imageIO::blockWriter(FILE* fout, int* g_blockSize, int* g_blockThreadId
 		fflush(stdout); // Will now print everything in the stdout buffer
 #endif
 		std::unique_lock<std::mutex> locker(g_lockqueue);//acquires the lock but this is the only thread using it. We cannot have condition_variables without a mutex
-		g_queuecheck.wait(locker, [&](){return (g_blockSize[nextBlockId] >= 0 && g_blockThreadId[nextBlockId] >= 0); });//releases the lock until notify. If condition is not satisfied, it waits again
+		//releases the lock until notify. If condition is not satisfied, it waits again. The timeout lets us notice a cancellation request even if no worker notifies us anymore
+		while (!g_queuecheck.wait_for(locker, std::chrono::milliseconds(100), [&](){return (g_blockSize[nextBlockId] >= 0 && g_blockThreadId[nextBlockId] >= 0) || isCancelled() || (abort != NULL && abort->load() != 0); }));
 
 		locker.unlock();
 
+		if (isCancelled() || (abort != NULL && abort->load() != 0))
+		{
+			*errFlag = KLB_ERROR_CANCELLED;
+			break;
+		}
+
 #ifdef DEBUG_PRINT_THREADS
 		printf("Writer appending block %d out of %d with %d bytes\n", (int)nextBlockId, (int) numBlocks,g_blockSize[nextBlockId]);
 		fflush(stdout); // Will now print everything in the stdout buffer
@@ -1159,44 +1722,80 @@ void klb_imageIO::blockWriter(FILE* fout, int* g_blockSize, int* g_blockThreadId
 		//write block
 		blockSize = g_blockSize[nextBlockId];
 
-#ifdef USE_MEM_BUFFER_WRITE
-		//use large memory buffer
-		if (bufferOffset + blockSize > bufferMaxSize)//we need to flush the buffer
+		if (bufferMaxSize == 0)
 		{
-			fwrite(bufferMem, 1, bufferOffset, fout);
-			bufferOffset = 0;
+			if (sink->write(cq[g_blockThreadId[nextBlockId]]->getReadBlock(), blockSize) != 0)
+				*errFlag = 5;
+		}
+		else{
+			//use large memory buffer
+			if (bufferOffset + blockSize > bufferMaxSize)//we need to flush the buffer
+			{
+				if (sink->write(bufferMem.data(), bufferOffset) != 0)
+					*errFlag = 5;
+				bufferOffset = 0;
+			}
+
+			//add block to the memory buufer
+			memcpy(&(bufferMem[bufferOffset]), cq[g_blockThreadId[nextBlockId]]->getReadBlock(), blockSize);
+			bufferOffset += blockSize;
 		}
-		
-		//add block to the memory buufer
-		memcpy(&(bufferMem[bufferOffset]), cq[g_blockThreadId[nextBlockId]]->getReadBlock(), blockSize);
-		bufferOffset += blockSize;
-#else
-		fwrite(cq[g_blockThreadId[nextBlockId]]->getReadBlock(),1, blockSize, fout);
-#endif
 		//now we can release data
 		cq[g_blockThreadId[nextBlockId]]->popReadBlock();
 		offset += blockSize;
 
 		//update header blockOffset
-		header.blockOffset[nextBlockId] = offset;//at the end, so we can recover length for all blocks
+		const std::uint64_t blockIdx = (storageOrder == NULL ? nextBlockId : storageOrder[nextBlockId]);//block stored at this position
+		if (!offsetsKnown)
+		{
+			if (storageOrder == NULL)
+				header.blockOffset[nextBlockId] = offset;//at the end, so we can recover length for all blocks
+			else
+				header.blockOffset[blockIdx] = blockSize;//turned into offsets (in index order) once all blocks are written
+		}
+		else if (header.getBlockCompressedSizeBytes(blockIdx) != (std::uint64_t)blockSize)
+		{
+			cout << "ERROR: blockWriter: block " << nextBlockId << " was compressed to a different size than in the first pass" << endl;
+			*errFlag = 5;
+		}
 
 		//update variables
 		nextBlockId++;
+		blockDone();
+	}
+
+	if (*errFlag == 0 && !offsetsKnown && storageOrder != NULL)
+	{
+		//the table holds the end of each block as if they were stored in index order, so it still gives their sizes
+		std::uint64_t blockEnd = 0;
+		for (size_t ii = 0; ii < header.Nb; ii++)
+		{
+			blockEnd += header.blockOffset[ii];
+			header.blockOffset[ii] = blockEnd;
+		}
 	}
-#ifdef USE_MEM_BUFFER_WRITE
-	//flush the rest of the buffer
-	fwrite(bufferMem, 1, bufferOffset, fout);
-#endif
-	//update header.blockOffset	
-	fseek(fout, header.getSizeInBytesFixPortion(), SEEK_SET);
-	fwrite((char*)(&(header.blockOffset[0])), 1, header.Nb * sizeof(std::uint64_t), fout);
 
-	//close file	
-	fclose(fout);
+	if (*errFlag == 0)
+	{
+		//flush the rest of the buffer, followed by the extensions
+		std::vector<char> extensionBytes;
+		header.writeExtensions(extensionBytes);
+		if (sink->write(bufferMem.data(), bufferOffset) != 0 || sink->write(extensionBytes.data(), extensionBytes.size()) != 0)
+			*errFlag = 5;
 
-#ifdef USE_MEM_BUFFER_WRITE
-	delete[] bufferMem;
-#endif
+		//update header.blockOffset	
+		else if (!offsetsKnown && sink->isSeekable() && sink->writeAt((char*)(&(header.blockOffset[0])), header.Nb * sizeof(std::uint64_t), header.getSizeInBytesFixPortion()) != 0)
+			*errFlag = 5;
+	}
+
+	if (*errFlag != 0)
+	{
+		if (*errFlag == 5)
+			cout << "ERROR: blockWriter: writing file " << filename << endl;
+		//workers might be waiting for a free spot in their queue, which we are not going to release anymore
+		for (int ii = 0; ii < numThreads; ii++)
+			cq[ii]->abort();
+	}
 }
 
 
@@ -1209,12 +1808,34 @@ void klb_imageIO::blockWriter(FILE* fout, int* g_blockSize, int* g_blockThreadId
 klb_imageIO::klb_imageIO()
 {
 	numThreads = std::thread::hardware_concurrency();
+	taskStatus = NULL;
+	readThreshold = -std::numeric_limits<double>::infinity();
+	readRunBytes = KLB_READ_RUN_BYTES;
+	readGapBytes = KLB_READ_GAP_BYTES;
+	readAdvise = true;
+	readStrategy = KLB_READ_AUTO;
+	readDataType = -1;
+	readScale = 1.0;
+	readOffset = 0.0;
+	source = NULL;
+	writeBufferBytes = KLB_WRITE_BUFFER_BYTES;
 }
 
 klb_imageIO::klb_imageIO(const std::string &filename_)
 {
 	filename = filename_;//it could be used as output or input file
 	numThreads = std::thread::hardware_concurrency();
+	taskStatus = NULL;
+	readThreshold = -std::numeric_limits<double>::infinity();
+	readRunBytes = KLB_READ_RUN_BYTES;
+	readGapBytes = KLB_READ_GAP_BYTES;
+	readAdvise = true;
+	readStrategy = KLB_READ_AUTO;
+	readDataType = -1;
+	readScale = 1.0;
+	readOffset = 0.0;
+	source = NULL;
+	writeBufferBytes = KLB_WRITE_BUFFER_BYTES;
 }
 
 
@@ -1223,16 +1844,6 @@ klb_imageIO::klb_imageIO(const std::string &filename_)
 
 int klb_imageIO::writeImage(const char* img, int numThreads)
 {
-
-	//redirect standard out
-#ifdef DEBUG_PRINT_THREADS
-	//cout << "Redirecting stdout for klb_imageIO::writeImage" << endl;
-	//freopen("E:/temp/cout_klb_imageIO.txt", "w", stdout);	
-#endif
-
-	if (numThreads <= 0)//use maximum available
-		numThreads = std::thread::hardware_concurrency();
-
 	//open output file
 	//std::ofstream fout(filenameOut.c_str(), std::ios::binary | std::ios::out);	
 	//we do this before calling the thread in case we have problems
@@ -1243,6 +1854,31 @@ int klb_imageIO::writeImage(const char* img, int numThreads)
 		return 5;
 	}
 
+	klb_file_sink sink(fout);
+	int err = writeImage(img, &sink, numThreads);
+	if (sink.close() != 0 && err == 0)
+	{
+		std::cout << "ERROR: file " << filename << " could not be written" << std::endl;
+		err = 5;
+	}
+	if (err == KLB_ERROR_CANCELLED)
+		remove(filename.c_str());//do not leave a truncated file behind
+	return err;
+}
+
+//=================================================
+
+int klb_imageIO::writeImage(const char* img, klb_output_sink* sink, int numThreads)
+{
+
+	//redirect standard out
+#ifdef DEBUG_PRINT_THREADS
+	//cout << "Redirecting stdout for klb_imageIO::writeImage" << endl;
+	//freopen("E:/temp/cout_klb_imageIO.txt", "w", stdout);	
+#endif
+
+	if (numThreads <= 0)//use maximum available
+		numThreads = std::thread::hardware_concurrency();
 
 #ifdef PROFILE_COMPRESSION
 	//reset counter
@@ -1254,12 +1890,46 @@ int klb_imageIO::writeImage(const char* img, int numThreads)
 		header.blockSize[ii] = std::min(header.blockSize[ii], header.xyzct[ii]);//block size cannot be larger than dimensions
 
 	//set constants
-	const uint32_t blockSizeBytes = header.getBlockSizeBytes();
-	const uint64_t fLength = header.getImageSizeBytes();			
 	const std::uint64_t numBlocks = header.calculateNumBlocks();
 	
 	header.resizeBlockOffset(numBlocks);
+	header.releaseBlockFilePos();//the output is written contiguously (header may come from a file with appended timepoints)
+	if (header.blockOrder != KLB_BLOCK_ORDER_LINEAR && header.headerVersion < KLB_HEADER_VERSION_BLOCK_ORDER)
+		header.headerVersion = KLB_HEADER_VERSION_BLOCK_ORDER;//readers cannot find the blocks without the order
+	if (header.headerVersion >= KLB_HEADER_VERSION_EXTENSIONS)
+	{
+		header.allocateBlockStats();
+		header.allocateBlockChecksums();
+	}
+	else{
+		header.releaseBlockStats();
+		header.releaseBlockChecksums();
+	}
+	if (header.headerVersion >= KLB_HEADER_VERSION_BLOCK_FLAGS)
+		header.allocateBlockFlags();
+	else
+		header.releaseBlockFlags();
+
+	if (sink->isSeekable())
+	{
+		setBlocksTotal(numBlocks);
+		return writeBlocks(img, sink, numThreads, false);
+	}
+
+	//the block offsets precede the blocks, so without seeking back they have to be known before the first block is written
+	setBlocksTotal(2 * numBlocks);
+	klb_discard_sink sizing;
+	int err = writeBlocks(img, &sizing, numThreads, false);
+	if (err != 0)
+		return err;
+	return writeBlocks(img, sink, numThreads, true);
+}
+
+//=================================================
 
+int klb_imageIO::writeBlocks(const char* img, klb_output_sink* sink, int numThreads, bool offsetsKnown)
+{
+	const std::uint64_t numBlocks = header.getNumBlocks();
 
 	//number of threads should not be highr than number of blocks (in case somebody set block size too large)
 	numThreads = std::min((std::uint64_t) numThreads, numBlocks);
@@ -1267,6 +1937,12 @@ int klb_imageIO::writeImage(const char* img, int numThreads)
 	std::atomic<uint64_t> blockId;//counter shared all workers so each worker thread knows which block to readblockId = 0;
 	atomic_store(&blockId, (uint64_t)0);
 
+	//blocks are compressed and written in the order they are stored in the file
+	std::vector<std::uint64_t> storageOrder;
+	if (header.blockOrder != KLB_BLOCK_ORDER_LINEAR)
+		header.getBlockStorageOrder(storageOrder);
+	const std::uint64_t* storageOrderPtr = (storageOrder.empty() ? NULL : storageOrder.data());
+
 	int* g_blockSize = new int[numBlocks];//number of bytes (after compression) to be written. If the block has not been compressed yet, it has a -1 value
 	int* g_blockThreadId = new int[numBlocks];//indicates which thread wrote the nlock so the writer can find the appropoate circular queue
 	for (std::uint64_t ii = 0; ii < numBlocks; ii++)
@@ -1289,14 +1965,14 @@ int klb_imageIO::writeImage(const char* img, int numThreads)
 
 	// start the thread to write
 	int errFlagW = 0;
-	std::thread writerthread(&klb_imageIO::blockWriter, this, fout, g_blockSize, g_blockThreadId, cq, &errFlagW);
+	std::thread writerthread(&klb_imageIO::blockWriter, this, sink, g_blockSize, g_blockThreadId, cq, numThreads, offsetsKnown, storageOrderPtr, (const std::atomic<std::int32_t>*)NULL, &errFlagW);
 
 	// start the working threads
 	std::vector<std::thread> threads;
 	std::vector<int> errFlagVec(numThreads, 0);
 	for (int i = 0; i < numThreads; ++i)
 	{
-		threads.push_back(std::thread(&klb_imageIO::blockCompressor, this, img, g_blockSize, &blockId, g_blockThreadId, cq[i], i, &(errFlagVec[i])));
+		threads.push_back(std::thread(&klb_imageIO::blockCompressor, this, img, g_blockSize, &blockId, g_blockThreadId, cq[i], i, &(errFlagVec[i]), (const klb_ROI*)NULL, numBlocks, storageOrderPtr));
 	}
 
 	//wait for the workers to finish
@@ -1378,6 +2054,21 @@ int klb_imageIO::writeImageStackSlices(const char** img, int numThreads)
 	const std::uint64_t numBlocks = header.calculateNumBlocks();
 
 	header.resizeBlockOffset(numBlocks);
+	header.releaseBlockFilePos();//the output is written contiguously (header may come from a file with appended timepoints)
+	header.blockOrder = KLB_BLOCK_ORDER_LINEAR;//slices (slabs) are compressed as they come, in index order
+	if (header.headerVersion >= KLB_HEADER_VERSION_EXTENSIONS)
+	{
+		header.allocateBlockStats();
+		header.allocateBlockChecksums();
+	}
+	else{
+		header.releaseBlockStats();
+		header.releaseBlockChecksums();
+	}
+	if (header.headerVersion >= KLB_HEADER_VERSION_BLOCK_FLAGS)
+		header.allocateBlockFlags();
+	else
+		header.releaseBlockFlags();
 
 
 	//number of threads should not be highr than number of blocks (in case somebody set block size too large)
@@ -1408,7 +2099,9 @@ int klb_imageIO::writeImageStackSlices(const char** img, int numThreads)
 
 	// start the thread to write
 	int errFlagW = 0;
-	std::thread writerthread(&klb_imageIO::blockWriter, this, fout, g_blockSize, g_blockThreadId, cq, &errFlagW);
+	setBlocksTotal(numBlocks);
+	klb_file_sink fileSink(fout);
+	std::thread writerthread(&klb_imageIO::blockWriter, this, &fileSink, g_blockSize, g_blockThreadId, cq, numThreads, false, (const std::uint64_t*)NULL, (const std::atomic<std::int32_t>*)NULL, &errFlagW);
 
 	// start the working threads
 	std::vector<std::thread> threads;
@@ -1426,6 +2119,8 @@ int klb_imageIO::writeImageStackSlices(const char** img, int numThreads)
 
 	//wait for the writer
 	writerthread.join();
+	if (fileSink.close() != 0 && errFlagW == 0)
+		errFlagW = 5;
 
 	//release memory
 	delete[] g_blockSize;
@@ -1434,6 +2129,8 @@ int klb_imageIO::writeImageStackSlices(const char** img, int numThreads)
 		delete cq[ii];
 	delete[] cq;
 
+	if (errFlagW == KLB_ERROR_CANCELLED)
+		remove(filename.c_str());//do not leave a truncated file behind
 	if (errFlagW != 0)
 		return errFlagW;
 	for (int ii = 0; ii < numThreads; ii++)
@@ -1453,44 +2150,935 @@ int klb_imageIO::writeImageStackSlices(const char** img, int numThreads)
 
 //=================================================
 
-int klb_imageIO::readImage(char* img, const klb_ROI* ROI, int numThreads)
+int klb_imageIO::transcodeImage(klb_imageIO& imgIn, int numThreads)
 {
-	if (filename.empty())
-	{
-		std::cerr << "ERROR: Filename has not been defined. We cannot read image" << std::endl;
-		return 3;
-	}
-
-	if (header.Nb == 0)//try to read header
+	if (imgIn.header.Nb == 0)//try to read header
 	{
-		int err = readHeader();
+		int err = imgIn.readHeader();
 		if (err > 0)
 			return err;
-		if (header.Nb == 0)//something is wring
+		if (imgIn.header.Nb == 0)
 		{
 			std::cerr << "ERROR: Image to read has not blocks" << std::endl;
 			return 2;
 		}
 	}
-	
+	if (imgIn.header.dataType != header.dataType || memcmp(imgIn.header.xyzct, header.xyzct, sizeof(std::uint32_t)* KLB_DATA_DIMS) != 0)
+	{
+		std::cerr << "ERROR: transcodeImage: input and output must have the same image size and data type" << std::endl;
+		return 3;
+	}
 
 	if (numThreads <= 0)//use maximum available
 		numThreads = std::thread::hardware_concurrency();
-	
-	const std::uint64_t numBlocks = header.calculateNumBlocks();
-
-	//number of threads should not be highr than number of blocks (in case somebody set block size too large)
-	numThreads = std::min((std::uint64_t) numThreads, numBlocks);	
-	
-	std::atomic<uint64_t> blockId;
-	atomic_store(&blockId, (uint64_t)0);
 
-	// start the working threads
-	std::vector<std::thread> threads;
-	std::vector<int> errFlagVec(numThreads, 0);
-	for (int i = 0; i < numThreads; ++i)
+	FILE* fout = fopen(filename.c_str(), "wb");
+	if (fout == NULL)
 	{
-		threads.push_back(std::thread(&klb_imageIO::blockUncompressor, this, img, &blockId, ROI, &(errFlagVec[i])));
+		std::cout << "ERROR: file " << filename << " could not be opened" << std::endl;
+		return 5;
+	}
+
+	//safety checks to avoid blocksize too large
+	for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+		header.blockSize[ii] = std::min(header.blockSize[ii], header.xyzct[ii]);//block size cannot be larger than dimensions
+
+	const std::uint64_t numBlocks = header.calculateNumBlocks();
+	header.resizeBlockOffset(numBlocks);
+	header.releaseBlockFilePos();//the output is written contiguously (header may come from a file with appended timepoints)
+	header.blockOrder = KLB_BLOCK_ORDER_LINEAR;//slices (slabs) are compressed as they come, in index order
+	if (header.headerVersion >= KLB_HEADER_VERSION_EXTENSIONS)
+	{
+		header.allocateBlockStats();
+		header.allocateBlockChecksums();
+	}
+	else{
+		header.releaseBlockStats();
+		header.releaseBlockChecksums();
+	}
+	if (header.headerVersion >= KLB_HEADER_VERSION_BLOCK_FLAGS)
+		header.allocateBlockFlags();
+	else
+		header.releaseBlockFlags();
+
+	//a slab is made of all the blocks with the same block coordinates in z, c and t, which are consecutive in the file
+	std::uint64_t dimsBlock[KLB_DATA_DIMS];
+	for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+		dimsBlock[ii] = iDivUp((std::uint64_t)header.xyzct[ii], (std::uint64_t)header.blockSize[ii]);
+	const std::uint64_t blocksPerSlab = dimsBlock[0] * dimsBlock[1];
+	const std::uint64_t numSlabs = numBlocks / blocksPerSlab;
+	const std::uint64_t slabSizeBytes = (std::uint64_t)header.xyzct[0] * header.xyzct[1] * header.blockSize[2] * header.blockSize[3] * header.blockSize[4] * header.getBytesPerPixel();
+
+	klb_ROI slabROI[2];
+	std::vector<char> slabBuffer[2];
+	slabBuffer[0].resize(slabSizeBytes);
+	if (numSlabs > 1)
+		slabBuffer[1].resize(slabSizeBytes);
+	auto defineSlab = [&](std::uint64_t slab, klb_ROI& ROI)
+	{
+		ROI.defineFullImage(header.xyzct);
+		for (int ii = 2; ii < KLB_DATA_DIMS; ii++)
+		{
+			ROI.xyzctLB[ii] = (slab % dimsBlock[ii]) * header.blockSize[ii];
+			ROI.xyzctUB[ii] = std::min(ROI.xyzctLB[ii] + header.blockSize[ii], header.xyzct[ii]) - 1;
+			slab /= dimsBlock[ii];
+		}
+	};
+
+	//number of threads should not be highr than number of blocks in a slab
+	numThreads = std::min((std::uint64_t)numThreads, blocksPerSlab);
+
+	int* g_blockSize = new int[numBlocks];//number of bytes (after compression) to be written. If the block has not been compressed yet, it has a -1 value
+	int* g_blockThreadId = new int[numBlocks];//indicates which thread wrote the nlock so the writer can find the appropoate circular queue
+	for (std::uint64_t ii = 0; ii < numBlocks; ii++)
+	{
+		g_blockSize[ii] = -1;
+		g_blockThreadId[ii] = -1;
+	}
+
+	int numBlocskPerQueue = std::max(numThreads, 5);
+	numBlocskPerQueue = std::min(numBlocskPerQueue, 20);
+	numBlocskPerQueue = std::min(numBlocskPerQueue, (int)iDivUp(blocksPerSlab, (std::uint64_t)numThreads));
+	const uint32_t maxBlockSizeBytesCompressed = maximumBlockSizeCompressedInBytes();
+	klb_circular_dequeue** cq = new klb_circular_dequeue*[numThreads];
+	for (int ii = 0; ii < numThreads; ii++)
+		cq[ii] = new klb_circular_dequeue(maxBlockSizeBytesCompressed, numBlocskPerQueue);
+
+	//the writer waits for every block until it is cancelled, so it has to be stopped if reading or compressing fails. This does not touch the caller's taskStatus, which would report the failure as a cancellation
+	std::atomic<std::int32_t> abortWrite;
+	abortWrite.store(0);
+
+	// start the thread to write
+	int errFlagW = 0;
+	setBlocksTotal(numBlocks);
+	klb_file_sink fileSink(fout);
+	std::thread writerthread(&klb_imageIO::blockWriter, this, &fileSink, g_blockSize, g_blockThreadId, cq, numThreads, false, (const std::uint64_t*)NULL, &abortWrite, &errFlagW);
+
+	//compress slab s while slab s + 1 is read
+	int err = 0;
+	std::atomic<uint64_t> blockId;
+	std::vector<std::thread> threads;
+	std::vector<int> errFlagVec(numThreads, 0);
+	defineSlab(0, slabROI[0]);
+	err = imgIn.readImage(slabBuffer[0].data(), &(slabROI[0]), numThreads);
+	for (std::uint64_t slab = 0; slab < numSlabs && err == 0 && !isCancelled(); slab++)
+	{
+		const int cur = slab % 2;
+		atomic_store(&blockId, slab * blocksPerSlab);
+		for (int i = 0; i < numThreads; ++i)
+			threads.push_back(std::thread(&klb_imageIO::blockCompressor, this, slabBuffer[cur].data(), g_blockSize, &blockId, g_blockThreadId, cq[i], i, &(errFlagVec[i]), &(slabROI[cur]), (slab + 1) * blocksPerSlab, (const std::uint64_t*)NULL));
+
+		if (slab + 1 < numSlabs)
+		{
+			defineSlab(slab + 1, slabROI[1 - cur]);
+			err = imgIn.readImage(slabBuffer[1 - cur].data(), &(slabROI[1 - cur]), numThreads);
+		}
+
+		for (auto& t : threads)
+			t.join();
+		threads.clear();
+		for (int ii = 0; ii < numThreads; ii++)
+		{
+			if (errFlagVec[ii] != 0)
+				err = errFlagVec[ii];
+		}
+	}
+
+	if (err != 0)
+		abortWrite.store(1);
+	writerthread.join();
+	if (fileSink.close() != 0 && errFlagW == 0)
+		errFlagW = 5;
+
+	//release memory
+	delete[] g_blockSize;
+	delete[] g_blockThreadId;
+	for (int ii = 0; ii < numThreads; ii++)
+		delete cq[ii];
+	delete[] cq;
+
+	if (errFlagW == KLB_ERROR_CANCELLED)
+		remove(filename.c_str());//do not leave a truncated file behind (cancelled or aborted)
+	if (err != 0)
+		return err;
+	return errFlagW;
+}
+
+//=================================================
+void klb_imageIO::blockCompressorTimepoint(const char* buffer, std::atomic<uint64_t> *blockId, std::vector<std::vector<char> >* blocks, std::uint8_t* flags, klb_block_stats* stats, int* errFlag)
+{
+	*errFlag = 0;
+	std::uint64_t blockId_t;
+	const size_t bytesPerPixel = header.getBytesPerPixel();
+	uint64_t dimsBlock[KLB_DATA_DIMS];//number of blocks on each dimension (a single one along t)
+	uint64_t coordBlock[KLB_DATA_DIMS];//coordinates (in image space) of the block within the timepoint
+	uint64_t offsetBuffer;//starting offset for each buffer
+	uint32_t blockSizeAux[KLB_DATA_DIMS];//for border cases where the blocksize might be different
+	uint64_t xyzctCum[KLB_DATA_DIMS];//to calculate offsets for each dimension
+
+	xyzctCum[0] = bytesPerPixel;
+	for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+	{
+		dimsBlock[ii] = (ii == 4 ? 1 : (uint64_t)ceil((float)(header.xyzct[ii]) / (float)(header.blockSize[ii])));
+		if (ii > 0)
+			xyzctCum[ii] = xyzctCum[ii - 1] * (ii == 4 ? 1 : header.xyzct[ii - 1]);
+	}
+	const std::uint64_t numBlocks = blocks->size();
+	char* bufferIn = new char[header.getBlockSizeBytes()];
+
+	while (1)
+	{
+		blockId_t = atomic_fetch_add(blockId, (uint64_t)1);
+		if (blockId_t >= numBlocks)
+			break;
+		if (isCancelled())
+			break;
+
+		std::uint64_t blockIdx_aux = blockId_t;
+		size_t gcount = bytesPerPixel;
+		offsetBuffer = 0;
+		for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+		{
+			coordBlock[ii] = (blockIdx_aux % dimsBlock[ii]) * header.blockSize[ii];
+			blockIdx_aux /= dimsBlock[ii];
+			blockSizeAux[ii] = (ii == 4 ? 1 : std::min(header.blockSize[ii], (uint32_t)(header.xyzct[ii] - coordBlock[ii])));
+			gcount *= blockSizeAux[ii];
+			offsetBuffer += (ii == 4 ? 0 : coordBlock[ii]) * xyzctCum[ii];
+		}
+
+		//copy block into local buffer bufferIn
+		uint32_t bcount[KLB_DATA_DIMS];//to count elements in the block
+		memset(bcount, 0, sizeof(uint32_t)* KLB_DATA_DIMS);
+		const size_t  bufferCopySize = bytesPerPixel * blockSizeAux[0];
+		char* bufferInAux = bufferIn;
+		int auxDim = 1;
+		while (auxDim < KLB_DATA_DIMS)
+		{
+			memcpy(bufferInAux, &(buffer[offsetBuffer]), bufferCopySize);
+			bufferInAux += bufferCopySize;
+
+			bcount[1]++;
+			offsetBuffer += xyzctCum[1];
+			auxDim = 1;
+			while (bcount[auxDim] == blockSizeAux[auxDim])
+			{
+				offsetBuffer -= bcount[auxDim] * xyzctCum[auxDim];
+				bcount[auxDim++] = 0;
+				if (auxDim == KLB_DATA_DIMS)
+					break;
+				bcount[auxDim]++;
+				offsetBuffer += xyzctCum[auxDim];
+			}
+		}
+
+		//each block is owned by a single thread
+		blockStats(bufferIn, gcount / bytesPerPixel, header.dataType, &(stats[blockId_t]));
+		std::vector<char>& blockOut = (*blocks)[blockId_t];
+		if (isConstantBlock(bufferIn, gcount, bytesPerPixel))
+		{
+			flags[blockId_t] = KLB_BLOCK_FLAG_CONSTANT;
+			blockOut.assign(bufferIn, bufferIn + bytesPerPixel);
+		}
+		else{
+			flags[blockId_t] = 0;
+			unsigned int sizeCompressed = getMaxCompressedSizeInBytes(gcount);
+			blockOut.resize(sizeCompressed);
+			*errFlag = compressBlock(header.compressionType, bufferIn, gcount, &(blockOut[0]), &sizeCompressed);
+			if (*errFlag != 0)
+				break;
+			blockOut.resize(sizeCompressed);
+		}
+		blockDone();
+	}
+
+	delete[] bufferIn;
+}
+
+//=================================================
+int klb_imageIO::appendTimepoint(const char* img, int numThreads)
+{
+	int err = readHeader();//the file may have grown since the header was read
+	if (err > 0)
+		return err;
+	if (header.headerVersion < KLB_HEADER_VERSION_EXTENSIONS || header.blockSize[4] != 1 || header.Nb == 0)
+	{
+		std::cerr << "ERROR: appendTimepoint: file " << filename << " needs header version >= " << KLB_HEADER_VERSION_EXTENSIONS << " and a block size of 1 along t" << std::endl;
+		return 3;
+	}
+
+	if (numThreads <= 0)//use maximum available
+		numThreads = std::thread::hardware_concurrency();
+
+	const std::uint32_t t = header.xyzct[4];
+	const std::uint64_t numBlocks = header.Nb / t;//blocks per timepoint
+	numThreads = std::max(1, (int)std::min((std::uint64_t)numThreads, numBlocks));
+
+	std::vector<std::vector<char> > blocks(numBlocks);
+	std::vector<std::uint8_t> flags(numBlocks);
+	std::vector<klb_block_stats> stats(numBlocks);
+	std::atomic<uint64_t> blockId;
+	atomic_store(&blockId, (uint64_t)0);
+	setBlocksTotal(numBlocks);
+
+	std::vector<std::thread> threads;
+	std::vector<int> errFlagVec(numThreads, 0);
+	for (int i = 0; i < numThreads; ++i)
+		threads.push_back(std::thread(&klb_imageIO::blockCompressorTimepoint, this, img, &blockId, &blocks, &(flags[0]), &(stats[0]), &(errFlagVec[i])));
+	for (auto& th : threads)
+		th.join();
+	for (int ii = 0; ii < numThreads; ii++)
+	{
+		if (errFlagVec[ii] != 0)
+			return errFlagVec[ii];
+	}
+	if (isCancelled())
+		return KLB_ERROR_CANCELLED;//nothing has been written
+
+	//extension payload: index of the timepoint followed by its blocks
+	const std::uint32_t numBlocksT = (std::uint32_t)numBlocks;
+	std::vector<char> index;
+	appendBytes(index, &t, sizeof(std::uint32_t));
+	appendBytes(index, &numBlocksT, sizeof(std::uint32_t));
+	appendBlockIndex(index, blocks, flags, stats);
+
+	err = writeBlocksExtension(KLB_EXTENSION_APPENDED_TIMEPOINT, index, blocks);
+	if (err != 0)
+		return err;
+
+	return readHeader();
+}
+
+//=================================================
+void klb_imageIO::blockUpdater(const char* buffer, const klb_ROI* ROI, const std::vector<std::uint64_t>* blockIdx, std::atomic<uint64_t> *blockId, std::vector<std::vector<char> >* blocks, std::uint8_t* flags, klb_block_stats* stats, int* errFlag)
+{
+	*errFlag = 0;
+	FILE* fid = fopen(filename.c_str(), "rb");
+	if (fid == NULL)
+	{
+		cout << "ERROR: blockUpdater: thread opening file " << filename << endl;
+		*errFlag = 3;
+		return;
+	}
+
+	std::uint64_t blockId_t;
+	const size_t bytesPerPixel = header.getBytesPerPixel();
+	uint64_t dimsBlock[KLB_DATA_DIMS];//number of blocks on each dimension
+	uint64_t coordBlock[KLB_DATA_DIMS];//coordinates (in image space) of the block
+	uint32_t blockSizeAux[KLB_DATA_DIMS];//for border cases where the blocksize might be different
+	uint64_t xyzctCum[KLB_DATA_DIMS];//to calculate offsets for each dimension in the ROI
+	uint64_t blockCum[KLB_DATA_DIMS];//to calculate offsets for each dimension in the block
+	uint64_t lb[KLB_DATA_DIMS], ub[KLB_DATA_DIMS], pos[KLB_DATA_DIMS];//intersection of block and ROI
+
+	xyzctCum[0] = bytesPerPixel;
+	for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+	{
+		dimsBlock[ii] = ceil((float)(header.xyzct[ii]) / (float)(header.blockSize[ii]));
+		if (ii > 0)
+			xyzctCum[ii] = xyzctCum[ii - 1] * ROI->getSizePixels(ii - 1);
+	}
+	char* bufferIn = new char[header.getBlockSizeBytes()];
+	char* bufferFile = new char[maximumBlockSizeCompressedInBytes()];
+
+	while (1)
+	{
+		const std::uint64_t k = atomic_fetch_add(blockId, (uint64_t)1);
+		if (k >= blockIdx->size())
+			break;
+		if (isCancelled())
+			break;
+
+		blockId_t = (*blockIdx)[k];
+		std::uint64_t blockIdx_aux = blockId_t;
+		size_t gcount = bytesPerPixel;
+		bool covered = true;//the ROI replaces all voxels of the block
+		for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+		{
+			coordBlock[ii] = (blockIdx_aux % dimsBlock[ii]) * header.blockSize[ii];
+			blockIdx_aux /= dimsBlock[ii];
+			blockSizeAux[ii] = std::min(header.blockSize[ii], (uint32_t)(header.xyzct[ii] - coordBlock[ii]));
+			blockCum[ii] = (ii == 0 ? bytesPerPixel : blockCum[ii - 1] * blockSizeAux[ii - 1]);
+			gcount *= blockSizeAux[ii];
+			lb[ii] = std::max(coordBlock[ii], (uint64_t)ROI->xyzctLB[ii]);
+			ub[ii] = std::min(coordBlock[ii] + blockSizeAux[ii] - 1, (uint64_t)ROI->xyzctUB[ii]);
+			covered &= (lb[ii] == coordBlock[ii] && ub[ii] == coordBlock[ii] + blockSizeAux[ii] - 1);
+		}
+
+		if (!covered)
+		{
+			//decompress the current content of the block
+			const size_t sizeCompressed = header.getBlockCompressedSizeBytes(blockId_t);
+			fseek(fid, header.getBlockFilePosition(blockId_t), SEEK_SET);
+			if (fread(bufferFile, 1, sizeCompressed, fid) != sizeCompressed)
+			{
+				cout << "ERROR: blockUpdater: reading block " << blockId_t << endl;
+				*errFlag = 3;
+				break;
+			}
+			if (header.isBlockConstant(blockId_t))
+				fillConstantBlock(bufferIn, gcount, bufferFile, bytesPerPixel);
+			else if ((*errFlag = decompressBlock(header.compressionType, bufferFile, sizeCompressed, bufferIn, gcount)) != 0)
+				break;
+		}
+
+		//copy the new voxels, one row along x at a time
+		const size_t rowSize = (ub[0] - lb[0] + 1) * bytesPerPixel;
+		memcpy(pos, lb, sizeof(uint64_t)* KLB_DATA_DIMS);
+		while (1)
+		{
+			uint64_t offsetBlock = 0, offsetBuffer = 0;
+			for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+			{
+				offsetBlock += (pos[ii] - coordBlock[ii]) * blockCum[ii];
+				offsetBuffer += (pos[ii] - ROI->xyzctLB[ii]) * xyzctCum[ii];
+			}
+			memcpy(bufferIn + offsetBlock, buffer + offsetBuffer, rowSize);
+
+			int auxDim = 1;
+			while (auxDim < KLB_DATA_DIMS && ++pos[auxDim] > ub[auxDim])
+			{
+				pos[auxDim] = lb[auxDim];
+				auxDim++;
+			}
+			if (auxDim == KLB_DATA_DIMS)
+				break;
+		}
+
+		//each block is owned by a single thread
+		blockStats(bufferIn, gcount / bytesPerPixel, header.dataType, &(stats[k]));
+		std::vector<char>& blockOut = (*blocks)[k];
+		if (isConstantBlock(bufferIn, gcount, bytesPerPixel))
+		{
+			flags[k] = KLB_BLOCK_FLAG_CONSTANT;
+			blockOut.assign(bufferIn, bufferIn + bytesPerPixel);
+		}
+		else{
+			flags[k] = 0;
+			unsigned int sizeCompressed = getMaxCompressedSizeInBytes(gcount);
+			blockOut.resize(sizeCompressed);
+			*errFlag = compressBlock(header.compressionType, bufferIn, gcount, &(blockOut[0]), &sizeCompressed);
+			if (*errFlag != 0)
+				break;
+			blockOut.resize(sizeCompressed);
+		}
+		blockDone();
+	}
+
+	fclose(fid);
+	delete[] bufferIn;
+	delete[] bufferFile;
+}
+
+//=================================================
+int klb_imageIO::writeImageROI(const char* img, const klb_ROI* ROI, int numThreads)
+{
+	int err = readHeader();//the file may have changed since the header was read
+	if (err > 0)
+		return err;
+	if (header.headerVersion < KLB_HEADER_VERSION_EXTENSIONS || header.Nb == 0)
+	{
+		std::cerr << "ERROR: writeImageROI: file " << filename << " needs header version >= " << KLB_HEADER_VERSION_EXTENSIONS << std::endl;
+		return 3;
+	}
+	for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+	{
+		if (ROI->xyzctLB[ii] > ROI->xyzctUB[ii] || ROI->xyzctUB[ii] >= header.xyzct[ii])
+		{
+			std::cerr << "ERROR: writeImageROI: ROI exceeds the image size" << std::endl;
+			return 3;
+		}
+	}
+
+	if (numThreads <= 0)//use maximum available
+		numThreads = std::thread::hardware_concurrency();
+
+	//blocks intersecting the ROI, in increasing order
+	uint64_t dimsBlock[KLB_DATA_DIMS], blockLB[KLB_DATA_DIMS], blockUB[KLB_DATA_DIMS], coordBlock[KLB_DATA_DIMS];
+	for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+	{
+		dimsBlock[ii] = ceil((float)(header.xyzct[ii]) / (float)(header.blockSize[ii]));
+		blockLB[ii] = ROI->xyzctLB[ii] / header.blockSize[ii];
+		blockUB[ii] = ROI->xyzctUB[ii] / header.blockSize[ii];
+	}
+	std::vector<std::uint64_t> blockIdx;
+	memcpy(coordBlock, blockLB, sizeof(uint64_t)* KLB_DATA_DIMS);
+	while (1)
+	{
+		std::uint64_t idx = 0;
+		for (int ii = KLB_DATA_DIMS - 1; ii >= 0; ii--)
+			idx = idx * dimsBlock[ii] + coordBlock[ii];
+		blockIdx.push_back(idx);
+
+		int auxDim = 0;
+		while (auxDim < KLB_DATA_DIMS && ++coordBlock[auxDim] > blockUB[auxDim])
+		{
+			coordBlock[auxDim] = blockLB[auxDim];
+			auxDim++;
+		}
+		if (auxDim == KLB_DATA_DIMS)
+			break;
+	}
+
+	const std::uint64_t numBlocks = blockIdx.size();
+	numThreads = std::max(1, (int)std::min((std::uint64_t)numThreads, numBlocks));
+	std::vector<std::vector<char> > blocks(numBlocks);
+	std::vector<std::uint8_t> flags(numBlocks);
+	std::vector<klb_block_stats> stats(numBlocks);
+	std::atomic<uint64_t> blockId;
+	atomic_store(&blockId, (uint64_t)0);
+	setBlocksTotal(numBlocks);
+
+	std::vector<std::thread> threads;
+	std::vector<int> errFlagVec(numThreads, 0);
+	for (int i = 0; i < numThreads; ++i)
+		threads.push_back(std::thread(&klb_imageIO::blockUpdater, this, img, ROI, &blockIdx, &blockId, &blocks, &(flags[0]), &(stats[0]), &(errFlagVec[i])));
+	for (auto& th : threads)
+		th.join();
+	for (int ii = 0; ii < numThreads; ii++)
+	{
+		if (errFlagVec[ii] != 0)
+			return errFlagVec[ii];
+	}
+	if (isCancelled())
+		return KLB_ERROR_CANCELLED;//nothing has been written
+
+	//extension payload: indices of the blocks followed by the blocks
+	const std::uint32_t numBlocksU = (std::uint32_t)numBlocks, reserved = 0;
+	std::vector<char> index;
+	appendBytes(index, &numBlocksU, sizeof(std::uint32_t));
+	appendBytes(index, &reserved, sizeof(std::uint32_t));
+	appendBytes(index, &(blockIdx[0]), numBlocks * sizeof(std::uint64_t));
+	appendBlockIndex(index, blocks, flags, stats);
+
+	err = writeBlocksExtension(KLB_EXTENSION_UPDATED_BLOCKS, index, blocks);
+	if (err != 0)
+		return err;
+
+	return readHeader();
+}
+
+//=================================================
+int klb_imageIO::writeBlocksExtension(std::uint32_t tag, const std::vector<char>& index, const std::vector<std::vector<char> >& blocks)
+{
+	std::uint64_t size = index.size();
+	for (size_t ii = 0; ii < blocks.size(); ii++)
+		size += blocks[ii].size();
+
+	FILE* fout = fopen(filename.c_str(), "r+b");//the change only becomes visible once the whole extension has been written
+	if (fout == NULL)
+	{
+		std::cout << "ERROR: file " << filename << " could not be opened" << std::endl;
+		return 5;
+	}
+	fseek(fout, 0, SEEK_END);
+	const std::uint64_t fileSize = ftell(fout);
+	fseek(fout, header.extensionsEnd, SEEK_SET);//overwrites the remains of an interrupted write, if any
+	fwrite((char*)(&tag), 1, sizeof(std::uint32_t), fout);
+	fwrite((char*)(&size), 1, sizeof(std::uint64_t), fout);
+	fwrite(&(index[0]), 1, index.size(), fout);
+	for (size_t ii = 0; ii < blocks.size(); ii++)
+	{
+		if (!blocks[ii].empty())
+			fwrite(&(blocks[ii][0]), 1, blocks[ii].size(), fout);
+	}
+	const std::uint64_t end = header.extensionsEnd + sizeof(std::uint32_t) + sizeof(std::uint64_t) + size;
+	if (end < fileSize)
+	{
+		//cover the rest of the interrupted write with an extension that readers skip (unknown tag)
+		const std::uint32_t tagUnused = 0;
+		const std::uint64_t sizeUnused = (fileSize - end >= sizeof(std::uint32_t) + sizeof(std::uint64_t) ? fileSize - end - sizeof(std::uint32_t) - sizeof(std::uint64_t) : 0);
+		fwrite((char*)(&tagUnused), 1, sizeof(std::uint32_t), fout);
+		fwrite((char*)(&sizeUnused), 1, sizeof(std::uint64_t), fout);
+		std::vector<char> zeros(std::min(sizeUnused, (std::uint64_t)1 << 20), 0);
+		for (std::uint64_t ii = 0; ii < sizeUnused; ii += zeros.size())
+			fwrite(&(zeros[0]), 1, std::min((std::uint64_t)zeros.size(), sizeUnused - ii), fout);
+	}
+	const bool failed = (ferror(fout) != 0);
+	if (fclose(fout) != 0 || failed)
+	{
+		std::cout << "ERROR: writeBlocksExtension: writing to file " << filename << " failed" << std::endl;
+		return 5;
+	}
+	return 0;
+}
+
+//=================================================
+bool klb_imageIO::blockIntersectsROI(std::uint64_t blockId, const klb_ROI* ROI) const
+{
+	for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+	{
+		const std::uint64_t numBlocks = iDivUp((std::uint64_t)header.xyzct[ii], (std::uint64_t)header.blockSize[ii]);
+		const std::uint64_t coordBlock = (blockId % numBlocks) * header.blockSize[ii];
+		blockId /= numBlocks;
+
+		//for each coordinate, we have to check: RectA.X1 < RectB.X2 && RectA.X2 > RectB.X1, where X1 is minimum nad X2 is maximum coordinate
+		//from http://stackoverflow.com/questions/306316/determine-if-two-rectangles-overlap-each-other
+		if (!((coordBlock <= ROI->xyzctUB[ii]) && (coordBlock + header.blockSize[ii] - 1 >= ROI->xyzctLB[ii])))
+			return false;
+	}
+	return true;
+}
+
+//=================================================
+int klb_imageIO::readHeader()
+{
+	if (source == NULL)
+		return header.readHeader(filename.c_str());
+
+	klb_source_streambuf buffer(source);
+	std::istream fid(&buffer);
+	header.readHeader(fid);
+	if (header.headerVersion >= KLB_HEADER_VERSION_EXTENSIONS)
+		header.readExtensions(fid);//blocks cannot be decoded without their flags, and appended timepoints are part of the image
+	return 0;
+}
+
+//=================================================
+int klb_imageIO::readExtensions()
+{
+	if (source == NULL)
+		return header.readExtensions(filename.c_str());
+
+	klb_source_streambuf buffer(source);
+	std::istream fid(&buffer);
+	header.readExtensions(fid);
+	return 0;
+}
+
+//=================================================
+int klb_imageIO::openBlockReads(klb_block_reads* reads, std::uint64_t maxRunBytes, std::uint64_t maxGapBytes, int numThreads, KLB_READ_STRATEGY strategy)
+{
+	if (!reads->openFile(filename, source))
+	{
+		cout << "ERROR: openBlockReads: opening file " << filename << endl;
+		return 3;
+	}
+	numThreads = std::max(1, numThreads);
+
+	//appended timepoints and updated blocks are not in block order
+	std::vector<std::uint64_t>& blockOrder = reads->blockOrder;
+	if (header.blockFilePos != NULL)
+		std::sort(blockOrder.begin(), blockOrder.end(), [this](std::uint64_t a, std::uint64_t b){ return header.blockFilePos[a] < header.blockFilePos[b]; });
+
+	std::uint64_t totalBytes = 0;
+	for (size_t ii = 0; ii < blockOrder.size(); ii++)
+		totalBytes += header.getBlockCompressedSizeBytes(blockOrder[ii]);
+	const std::uint64_t runsPerRound = KLB_READ_RUNS_PER_THREAD * (std::uint64_t)numThreads;
+	std::uint64_t runBytes = std::max((std::uint64_t)1, std::min(maxRunBytes, totalBytes / runsPerRound));
+
+	//a run is extended by the next block as long as the gap between them is small and the run does not exceed runBytes (a single block may). runBytes shrinks with the
+	//bytes that are left (guided scheduling): the first runs are large, so there are few reads, and the last ones are small, so no thread is left alone with a large run
+	//at the end while the others are idle
+	reads->runs.assign(1, 0);
+	std::uint64_t passedBytes = (blockOrder.empty() ? 0 : header.getBlockCompressedSizeBytes(blockOrder[0]));//bytes of the blocks before ii
+	for (size_t ii = 1; ii < blockOrder.size(); ii++)
+	{
+		const std::uint64_t runStart = header.getBlockFilePosition(blockOrder[reads->runs.back()]);
+		const std::uint64_t prevEnd = header.getBlockFilePosition(blockOrder[ii - 1]) + header.getBlockCompressedSizeBytes(blockOrder[ii - 1]);
+		const std::uint64_t pos = header.getBlockFilePosition(blockOrder[ii]);
+		if (pos < prevEnd || pos - prevEnd > maxGapBytes || pos + header.getBlockCompressedSizeBytes(blockOrder[ii]) - runStart > runBytes)
+		{
+			reads->runs.push_back(ii);
+			runBytes = std::max((std::uint64_t)1, std::min(runBytes, (totalBytes - passedBytes) / runsPerRound));
+		}
+		passedBytes += header.getBlockCompressedSizeBytes(blockOrder[ii]);
+	}
+	if (!blockOrder.empty())
+		reads->runs.push_back(blockOrder.size());
+	atomic_store(&(reads->runId), (uint64_t)0);
+
+	//part of the file covered by the blocks, which is preloaded or mapped as a whole
+	std::uint64_t spanStart = 0, spanEnd = 0;
+	if (!blockOrder.empty())
+	{
+		spanStart = header.getBlockFilePosition(blockOrder.front());
+		for (size_t ii = 0; ii < blockOrder.size(); ii++)
+			spanEnd = std::max(spanEnd, header.getBlockFilePosition(blockOrder[ii]) + header.getBlockCompressedSizeBytes(blockOrder[ii]));
+	}
+	if (strategy == KLB_READ_AUTO)
+	{
+		strategy = chooseReadStrategy(totalBytes, spanEnd - spanStart);
+		if (source != NULL && source->data() != NULL)
+			strategy = KLB_READ_MMAP;//an in-memory source is used as it is
+		else if (source != NULL && strategy == KLB_READ_MMAP)
+			strategy = KLB_READ_PER_BLOCK;//other sources cannot be mapped
+	}
+	if (spanEnd == spanStart)
+		strategy = KLB_READ_PER_BLOCK;
+	if (strategy == KLB_READ_PRELOAD && !reads->preload(spanStart, spanEnd - spanStart))
+	{
+		cout << "WARNING: openBlockReads: not enough memory to preload " << (spanEnd - spanStart) << " bytes of file " << filename << ", reading blocks as needed" << endl;
+		strategy = KLB_READ_PER_BLOCK;
+	}
+	if (strategy == KLB_READ_MMAP && !reads->mapFile(spanStart, spanEnd - spanStart))
+	{
+		cout << "WARNING: openBlockReads: could not map file " << filename << ", reading blocks as needed" << endl;
+		strategy = KLB_READ_PER_BLOCK;
+	}
+	reads->prefetch = (readAdvise && strategy != KLB_READ_PRELOAD ? numThreads : 0);//the other threads are busy with the runs in between
+
+	//blocks that are in memory already can be decompressed in any order: they are handed out one by one, largest first (their compressed size is the best estimate
+	//of the time they take), so the expensive blocks (e.g. dense tissue) are done early and the cheap ones (e.g. background, constant blocks) fill the gaps at the end.
+	//Mapped files stay in file order, since their pages are read from disk as they are touched
+	if (strategy == KLB_READ_PRELOAD || (source != NULL && source->data() != NULL))
+	{
+		std::stable_sort(blockOrder.begin(), blockOrder.end(), [this](std::uint64_t a, std::uint64_t b){ return header.getBlockCompressedSizeBytes(a) > header.getBlockCompressedSizeBytes(b); });
+		reads->runs.resize(blockOrder.size() + 1);
+		for (size_t ii = 0; ii <= blockOrder.size(); ii++)
+			reads->runs[ii] = ii;
+		reads->prefetch = 0;
+	}
+	return 0;
+}
+
+//=================================================
+KLB_READ_STRATEGY klb_imageIO::chooseReadStrategy(std::uint64_t numBytes, std::uint64_t spanBytes) const
+{
+	//reading only the blocks that are needed pays off when they are a small part of the span (e.g. a small ROI). Otherwise, a span that fits comfortably in free memory
+	//is preloaded with a single large read (fewest requests, which matters most on network file systems), and a larger one is mapped so that it streams through the page
+	//cache instead of being copied
+	if (numBytes < spanBytes / 2)
+		return KLB_READ_PER_BLOCK;
+	const std::uint64_t freeBytes = availableMemoryBytes();
+	if (freeBytes == 0)
+		return KLB_READ_PER_BLOCK;
+	if (spanBytes <= freeBytes / 2)
+		return KLB_READ_PRELOAD;
+	return KLB_READ_MMAP;
+}
+
+//=================================================
+std::uint64_t klb_imageIO::fetchBlockRun(klb_block_reads* reads, std::uint64_t runId, std::vector<char>* buffer, std::uint64_t* start, const char** data)
+{
+	const size_t first = reads->runs[runId], last = reads->runs[runId + 1];
+	*start = header.getBlockFilePosition(reads->blockOrder[first]);
+	const std::uint64_t runBytes = header.getBlockFilePosition(reads->blockOrder[last - 1]) + header.getBlockCompressedSizeBytes(reads->blockOrder[last - 1]) - *start;
+	if (reads->data != NULL)//preloaded or mapped
+	{
+		*data = reads->data + (*start - reads->dataStart);
+		if (*start >= reads->dataStart + reads->dataBytes)
+			return 0;
+		return std::min(runBytes, reads->dataStart + reads->dataBytes - *start);
+	}
+	buffer->resize(runBytes);
+	*data = buffer->data();
+
+	if (reads->prefetch > 0 && runId + reads->prefetch + 1 < reads->runs.size())
+	{
+		const size_t firstNext = reads->runs[runId + reads->prefetch], lastNext = reads->runs[runId + reads->prefetch + 1];
+		const std::uint64_t startNext = header.getBlockFilePosition(reads->blockOrder[firstNext]);
+		reads->willNeed(startNext, header.getBlockFilePosition(reads->blockOrder[lastNext - 1]) + header.getBlockCompressedSizeBytes(reads->blockOrder[lastNext - 1]) - startNext);
+	}
+
+	return reads->readAt(buffer->data(), buffer->size(), *start);
+}
+
+//=================================================
+void klb_imageIO::blockVerifier(klb_block_reads* reads, std::vector<std::uint64_t>* corruptBlocks, std::mutex* corruptLock, int* errFlag)
+{
+	*errFlag = 0;
+	std::vector<char> bufferRun;
+	const char* runData;
+	std::uint64_t start;
+	while (1)
+	{
+		const std::uint64_t r = atomic_fetch_add(&(reads->runId), (uint64_t)1);
+		if (r + 1 >= reads->runs.size())
+			break;
+		if (isCancelled())
+			break;
+
+		//read the whole run of consecutive blocks at once
+		const std::uint64_t gcount = fetchBlockRun(reads, r, &bufferRun, &start, &runData);
+		for (size_t ii = reads->runs[r]; ii < reads->runs[r + 1]; ii++)
+		{
+			const std::uint64_t blockId_t = reads->blockOrder[ii];
+			const std::uint64_t offset = header.getBlockFilePosition(blockId_t) - start;
+			const size_t sizeCompressed = header.getBlockCompressedSizeBytes(blockId_t);
+			if (offset + sizeCompressed > gcount || blockChecksum(runData + offset, sizeCompressed) != header.blockChecksums[blockId_t])
+			{
+				std::unique_lock<std::mutex> locker(*corruptLock);
+				corruptBlocks->push_back(blockId_t);
+			}
+			blockDone();
+		}
+	}
+}
+
+//=================================================
+int klb_imageIO::verifyChecksums(std::vector<std::uint64_t>* corruptBlocks, int numThreads)
+{
+	corruptBlocks->clear();
+	int err = readHeader();
+	if (err > 0)
+		return err;
+	if (header.blockChecksums == NULL)
+	{
+		//the checksums are stored after the last block: if the file has been truncated, report the blocks that are missing
+		std::uint64_t fileSize = 0;
+		if (source != NULL)
+			fileSize = source->size();
+		else
+		{
+			ifstream fid(filename.c_str(), ios::binary | ios::in);
+			fid.seekg(0, ios::end);
+			fileSize = fid.tellg();
+		}
+		for (size_t ii = 0; ii < header.getNumBlocks(); ii++)
+		{
+			if (header.getBlockFilePosition(ii) + header.getBlockCompressedSizeBytes(ii) > fileSize)
+				corruptBlocks->push_back(ii);
+		}
+		return (corruptBlocks->empty() ? KLB_ERROR_NO_CHECKSUMS : 0);
+	}
+
+	if (numThreads <= 0)//use maximum available
+		numThreads = std::thread::hardware_concurrency();
+
+	//all blocks, read in runs of adjacent blocks of up to KLB_VERIFY_RUN_BYTES
+	const std::uint64_t numBlocks = header.getNumBlocks();
+	klb_block_reads reads;
+	reads.blockOrder.resize(numBlocks);
+	for (std::uint64_t ii = 0; ii < numBlocks; ii++)
+		reads.blockOrder[ii] = ii;
+	err = openBlockReads(&reads, KLB_VERIFY_RUN_BYTES, 0, numThreads, KLB_READ_PER_BLOCK);//every block is read once, so there is nothing to gain from keeping them in memory
+	if (err > 0)
+		return err;
+	numThreads = std::max(1, (int)std::min((std::uint64_t)numThreads, (std::uint64_t)(reads.runs.size() - 1)));
+
+	std::mutex corruptLock;
+	setBlocksTotal(numBlocks);
+
+	std::vector<std::thread> threads;
+	std::vector<int> errFlagVec(numThreads, 0);
+	for (int i = 0; i < numThreads; ++i)
+		threads.push_back(std::thread(&klb_imageIO::blockVerifier, this, &reads, corruptBlocks, &corruptLock, &(errFlagVec[i])));
+	for (auto& th : threads)
+		th.join();
+	for (int ii = 0; ii < numThreads; ii++)
+	{
+		if (errFlagVec[ii] != 0)
+			return errFlagVec[ii];
+	}
+	if (blocksSkipped())
+		return KLB_ERROR_CANCELLED;
+
+	std::sort(corruptBlocks->begin(), corruptBlocks->end());
+	return 0;
+}
+
+//=================================================
+
+int klb_imageIO::readImage(char* img, const klb_ROI* ROI, int numThreads)
+{
+	return readImage(img, ROI, NULL, numThreads);
+}
+
+//=================================================
+int klb_imageIO::readImage(char* img, const klb_ROI* ROI, const std::uint64_t outStrides[KLB_DATA_DIMS], int numThreads)
+{
+	if (filename.empty() && source == NULL)
+	{
+		std::cerr << "ERROR: Filename has not been defined. We cannot read image" << std::endl;
+		return 3;
+	}
+
+	if (header.Nb == 0)//try to read header
+	{
+		int err = readHeader();
+		if (err > 0)
+			return err;
+		if (header.Nb == 0)//something is wring
+		{
+			std::cerr << "ERROR: Image to read has not blocks" << std::endl;
+			return 2;
+		}
+	}
+	
+
+	if (numThreads <= 0)//use maximum available
+		numThreads = std::thread::hardware_concurrency();
+	
+	const std::uint64_t numBlocks = header.calculateNumBlocks();
+
+	//number of threads should not be highr than number of blocks (in case somebody set block size too large)
+	numThreads = std::min((std::uint64_t) numThreads, numBlocks);	
+
+	//strided / binned read
+	for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+	{
+		if (ROI->xyzctStep[ii] == 0 || ROI->xyzctBin[ii] == 0 || ROI->xyzctBin[ii] > ROI->xyzctStep[ii])
+		{
+			std::cerr << "ERROR: ROI step and bin must satisfy 1 <= bin <= step" << std::endl;
+			return 3;
+		}
+	}
+	if (readDataType > FLOAT64_TYPE)
+	{
+		std::cerr << "ERROR: readImage: unknown output data type " << readDataType << std::endl;
+		return 3;
+	}
+	std::vector<double> binSums;
+	std::mutex binLocks[KLB_BIN_LOCKS];
+	if (ROI->isBinned())
+		binSums.resize(ROI->getSizeOutputPixels(), 0.0);
+
+	//strides of the output buffer (in voxels): packed ROI unless the caller scatters it into a larger buffer
+	std::uint64_t strides[KLB_DATA_DIMS];
+	std::uint64_t packedStride = 1;
+	bool packed = true;//strides of the dimensions of size 1 do not matter
+	for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+	{
+		strides[ii] = (outStrides == NULL) ? packedStride : outStrides[ii];
+		packed = packed && (strides[ii] == packedStride || ROI->getSizeOutputPixels(ii) == 1);
+		packedStride *= ROI->getSizeOutputPixels(ii);
+	}
+
+	//thresholded read: skipped blocks (see blockUncompressor) are left at 0 (converted to readDataType)
+	if (readThreshold > -std::numeric_limits<double>::infinity())
+	{
+		if (header.blockStats == NULL)
+		{
+			int err = readExtensions();
+			if (err > 0)
+				return err;
+		}
+		const char zero[8] = { 0 };
+		char value[8] = { 0 };
+		copyPixels(zero, value, 1, getReadBytesPerPixel());
+		if (packed && memcmp(value, zero, sizeof(zero)) == 0)
+			memset(img, 0, ROI->getSizeOutputPixels() * getReadBytesPerPixel());
+		else
+			fillStrided(img, ROI, strides, value, getReadBytesPerPixel());
+	}
+
+	//only blocks intersecting the ROI are decompressed, so those are the ones we report progress on
+	std::uint64_t numBlocksROI = 1;
+	for (int ii = 0; ii < KLB_DATA_DIMS; ii++)
+		numBlocksROI *= (ROI->xyzctUB[ii] / header.blockSize[ii]) - (ROI->xyzctLB[ii] / header.blockSize[ii]) + 1;
+	setBlocksTotal(numBlocksROI);
+
+	//blocks intersecting the ROI, fetched in runs of adjacent blocks. Blocks below the threshold are left at 0 without reading them
+	klb_block_reads reads;
+	for (std::uint64_t ii = 0; ii < numBlocks; ii++)
+	{
+		if (!blockIntersectsROI(ii, ROI))
+			continue;
+		if (header.blockStats != NULL && header.blockStats[ii].maxVal < readThreshold)
+			blockDone();
+		else
+			reads.blockOrder.push_back(ii);
+	}
+	int err = openBlockReads(&reads, readRunBytes, readGapBytes, numThreads, readStrategy);
+	if (err > 0)
+		return err;
+	numThreads = std::max(1, (int)std::min((std::uint64_t)numThreads, (std::uint64_t)(reads.runs.size() - 1)));
+
+	// start the working threads
+	std::vector<std::thread> threads;
+	std::vector<int> errFlagVec(numThreads, 0);
+	for (int i = 0; i < numThreads; ++i)
+	{
+		threads.push_back(std::thread(&klb_imageIO::blockUncompressor, this, img, strides, &reads, ROI, binSums.data(), binLocks, &(errFlagVec[i])));
 	}
 
 	//wait for the workers to finish
@@ -1504,14 +3092,27 @@ int klb_imageIO::readImage(char* img, const klb_ROI* ROI, int numThreads)
 		if (errFlagVec[ii] != 0)
 			return errFlagVec[ii];
 	}
+	if (blocksSkipped())
+		return KLB_ERROR_CANCELLED;
+
+	if (ROI->isBinned())
+		averageBins(ROI, binSums.data(), img, strides);
+
 	return 0;//TODO: catch errors from threads (especially opening file)
 }
 
 //=================================================
 
 int klb_imageIO::readImageFull(char* imgOut, int numThreads)
+{
+	return readImageFull(&imgOut, std::numeric_limits<std::uint64_t>::max(), std::numeric_limits<std::uint64_t>::max(), numThreads);
+}
+
+//=================================================
+
+int klb_imageIO::readImageFull(char** imgOut, std::uint64_t chunkSizeBytes, std::uint64_t chunkPeriodBytes, int numThreads)
 {	
-	if (filename.empty())
+	if (filename.empty() && source == NULL)
 	{
 		std::cerr << "ERROR: Filename has not been defined. We cannot read image" << std::endl;
 		return 3;
@@ -1529,6 +3130,34 @@ int klb_imageIO::readImageFull(char* imgOut, int numThreads)
 		}
 	}
 
+	if (readDataType >= 0)//converted voxels are written by the ROI reader
+	{
+		if (chunkPeriodBytes != std::numeric_limits<std::uint64_t>::max())
+		{
+			std::cerr << "ERROR: readImageFull: chunks cannot be combined with readDataType" << std::endl;
+			return 3;
+		}
+		klb_ROI ROI;
+		ROI.defineFullImage(header.xyzct);
+		return readImage(*imgOut, &ROI, numThreads);
+	}
+
+	if (chunkSizeBytes == 0 || chunkPeriodBytes < chunkSizeBytes)
+	{
+		std::cerr << "ERROR: readImageFull: invalid chunk size " << chunkSizeBytes << " or period " << chunkPeriodBytes << std::endl;
+		return 3;
+	}
+	if (chunkPeriodBytes != std::numeric_limits<std::uint64_t>::max())//a single chunk holds the whole image otherwise
+	{
+		const std::uint64_t rowBytes = header.xyzct[0] * header.getBytesPerPixel();
+		const std::uint64_t imageBytes = header.getImageSizePixels() * header.getBytesPerPixel();
+		if (chunkSizeBytes % rowBytes != 0 || chunkPeriodBytes % rowBytes != 0 || imageBytes % chunkPeriodBytes != 0)
+		{
+			std::cerr << "ERROR: readImageFull: chunks have to hold whole rows of the image and the period has to divide the image size" << std::endl;
+			return 3;
+		}
+	}
+
 	if (numThreads <= 0)//use maximum available
 		numThreads = std::thread::hardware_concurrency();
 
@@ -1537,39 +3166,25 @@ int klb_imageIO::readImageFull(char* imgOut, int numThreads)
 	//number of threads should not be highr than number of blocks (in case somebody set block size too large)
 	numThreads = std::min((std::uint64_t) numThreads, numBlocks);
 
-	std::atomic<uint64_t>	g_blockId;
-	atomic_store(&g_blockId, (uint64_t)0);
+	setBlocksTotal(numBlocks);
 
-	
-//#define USE_MEM_BUFFER_READ //uncomment this line to read the compressed file in memory first to have a single read access to the disk
+	//all blocks, fetched in runs of adjacent blocks
+	klb_block_reads reads;
+	reads.blockOrder.resize(numBlocks);
+	for (std::uint64_t ii = 0; ii < numBlocks; ii++)
+		reads.blockOrder[ii] = ii;
+	int err = openBlockReads(&reads, readRunBytes, readGapBytes, numThreads, readStrategy);
+	if (err > 0)
+		return err;
+	numThreads = std::max(1, (int)std::min((std::uint64_t)numThreads, (std::uint64_t)(reads.runs.size() - 1)));
 
-#ifdef USE_MEM_BUFFER_READ		
-	//read compressed file from disk into memory
-	//open file to read elements	
-	FILE* fid = fopen(filename.c_str(), "rb");
-	if (fid == NULL)
-	{
-		cout << "ERROR: readImageFull: reading file " << filename << endl;
-		return 3;
-	}
-	//auto t1 = Clock::now();
-	char* imgIn = new char[header.getCompressedFileSizeInBytes()];
-	fread(imgIn, 1, header.getCompressedFileSizeInBytes(), fid);
-	fclose(fid);
-	//auto t2 = Clock::now();
-	//std::cout << "=======DEBUGGING:took " << std::chrono::duration_cast<std::chrono::milliseconds>(t2 - t1).count() << " ms to read file from disk memory by a single thread" << std::endl;
-#endif
 
 	// start the working threads
 	std::vector<std::thread> threads;
 	std::vector<int> errFlagVec(numThreads, 0);
 	for (int i = 0; i < numThreads; ++i)
 	{
-#ifdef USE_MEM_BUFFER_READ		
-			threads.push_back(std::thread(&klb_imageIO::blockUncompressorInMem, this, imgOut, &g_blockId, imgIn, &(errFlagVec[i])));
-#else
-		threads.push_back(std::thread(&klb_imageIO::blockUncompressorImageFull, this, imgOut, &g_blockId, &(errFlagVec[i])));		
-#endif
+		threads.push_back(std::thread(&klb_imageIO::blockUncompressorImageFull, this, imgOut, chunkSizeBytes, chunkPeriodBytes, &reads, &(errFlagVec[i])));		
 	}
 
 	//wait for the workers to finish
@@ -1577,18 +3192,123 @@ int klb_imageIO::readImageFull(char* imgOut, int numThreads)
 		t.join();
 
 	//release memory
-#ifdef USE_MEM_BUFFER_READ		
-	delete[] imgIn;
-#endif
 	for (int ii = 0; ii < numThreads; ii++)
 	{
 		if (errFlagVec[ii] != 0)
 			return errFlagVec[ii];
 	}
+	if (blocksSkipped())
+		return KLB_ERROR_CANCELLED;
 	return 0;//TODO: catch errors from threads (especially opening file)
 }
 
 
+//======================================================
+int klb_imageIO::compressBlock(KLB_COMPRESSION_TYPE compressionType, const char* bufferIn, unsigned int numBytes, char* bufferOut, unsigned int* sizeCompressed)
+{
+	switch (compressionType)
+	{
+	case KLB_COMPRESSION_TYPE::NONE://no compression
+		if (*sizeCompressed < numBytes)
+			return 2;
+		memcpy(bufferOut, bufferIn, numBytes);
+		*sizeCompressed = numBytes;
+		return 0;
+	case KLB_COMPRESSION_TYPE::BZIP2:
+	{
+		const int BWTblockSize = std::min(9, iDivUp((int)numBytes, (int)100000));//packages of 100,000 bytes
+		int ret = BZ2_bzBuffToBuffCompress(bufferOut, sizeCompressed, (char*)bufferIn, numBytes, std::max(BWTblockSize, 1), 0, 30);
+		if (ret != BZ_OK)
+		{
+			std::cout << "ERROR: compressBlock: compressing data with bzip2. Error code " << ret << std::endl;
+			return 2;
+		}
+		return 0;
+	}
+	case KLB_COMPRESSION_TYPE::ZLIB:
+	{
+		z_stream strm;
+		strm.zalloc = Z_NULL;
+		strm.zfree = Z_NULL;
+		strm.opaque = Z_NULL;
+		if (deflateInit(&strm, Z_DEFAULT_COMPRESSION) != Z_OK)
+			return 3;
+
+		strm.avail_in = numBytes;
+		strm.next_in = (Bytef*)bufferIn;
+		strm.avail_out = *sizeCompressed;
+		strm.next_out = (Bytef*)bufferOut;
+		strm.data_type = Z_BINARY;
+
+		int ret = deflate(&strm, Z_FINISH);
+		*sizeCompressed -= strm.avail_out;
+		(void)deflateEnd(&strm);
+		if (ret != Z_STREAM_END)
+		{
+			std::cout << "ERROR: compressBlock: compressing data with zlib. Error code " << ret << std::endl;
+			return 3;
+		}
+		return 0;
+	}
+	default:
+		std::cout << "ERROR: compressBlock: compression type not implemented" << std::endl;
+		return 5;
+	}
+}
+
+//======================================================
+int klb_imageIO::decompressBlock(KLB_COMPRESSION_TYPE compressionType, const char* bufferIn, unsigned int sizeCompressed, char* bufferOut, unsigned int numBytes)
+{
+	switch (compressionType)
+	{
+	case KLB_COMPRESSION_TYPE::NONE://no compression
+		if (sizeCompressed != numBytes)
+			return 2;
+		memcpy(bufferOut, bufferIn, numBytes);
+		return 0;
+	case KLB_COMPRESSION_TYPE::BZIP2:
+	{
+		unsigned int gcount = numBytes;
+		int ret = BZ2_bzBuffToBuffDecompress(bufferOut, &gcount, (char*)bufferIn, sizeCompressed, 0, 0);
+		if (ret != BZ_OK || gcount != numBytes)
+		{
+			std::cout << "ERROR: decompressBlock: uncompressing data with bzip2. Error code " << ret << std::endl;
+			return 2;
+		}
+		return 0;
+	}
+	case KLB_COMPRESSION_TYPE::ZLIB:
+	{
+		z_stream strm;
+		strm.zalloc = Z_NULL;
+		strm.zfree = Z_NULL;
+		strm.opaque = Z_NULL;
+		strm.avail_in = 0;
+		strm.next_in = Z_NULL;
+		if (inflateInit(&strm) != Z_OK)
+			return 3;
+
+		strm.avail_in = sizeCompressed;
+		strm.next_in = (Bytef*)bufferIn;
+		strm.avail_out = numBytes;
+		strm.next_out = (Bytef*)bufferOut;
+		strm.data_type = Z_BINARY;
+
+		int ret = inflate(&strm, Z_FINISH);
+		(void)inflateEnd(&strm);
+		if (ret != Z_STREAM_END && ret != Z_OK)
+		{
+			std::cout << "ERROR: decompressBlock: uncompressing data with zlib. Error code " << ret << std::endl;
+			return 3;
+		}
+		return 0;
+	}
+	default:
+		std::cout << "ERROR: decompressBlock: decompression type not implemented" << std::endl;
+		return 5;
+	}
+}
+
 //======================================================
 std::uint32_t klb_imageIO::maximumBlockSizeCompressedInBytes()
 {
@@ -19,6 +19,7 @@
 #include <condition_variable>
 #include <vector>
 #include <atomic>
+#include <cstring>
 
 //#define PROFILE_COMPRESSION //uncomment to check how much is spent in compression
 
@@ -44,12 +45,79 @@ EXPIMP_TEMPLATE class DECLSPECIFIER std::mutex;
 EXPIMP_TEMPLATE class DECLSPECIFIER std::condition_variable;
 #endif
 
+/*
+\brief Shared state between a caller and the worker threads of a single read / write. The caller may own the memory (e.g. a direct buffer from Java), so the layout is fixed: 
+int32 cancel flag, 4 padding bytes, uint64 blocks done, uint64 blocks total (all in native byte order)
+*/
+struct klb_task_status
+{
+	std::atomic<std::int32_t>	cancel;//set to non-zero by the caller to ask the workers to stop after the block they are currently processing
+	std::int32_t				reserved;
+	std::atomic<std::uint64_t>	blocksDone;//updated by the workers after each block
+	std::atomic<std::uint64_t>	blocksTotal;//set before the workers start
+};
+
+struct klb_block_reads;//plan of the positional reads of a readImage / readImageFull call (see klb_imageIO.cpp)
+
+//destination of writeImage(const char*, klb_output_sink*, int) other than the file of the klb_imageIO object (e.g. a Java channel). Called from the writer thread only
+class DECLSPECIFIER klb_output_sink
+{
+public:
+	virtual ~klb_output_sink(){};
+	virtual int write(const char* buffer, std::uint64_t numBytes) = 0;//appends numBytes to the output. Returns 0 on success
+	virtual bool isSeekable() const = 0;//if false, writeAt is never called
+	virtual int writeAt(const char* /*buffer*/, std::uint64_t /*numBytes*/, std::uint64_t /*position*/){ return 5; };//overwrites numBytes at position (relative to the start of the output). Returns 0 on success
+};
+
+//origin of the file read by readHeader / readImage / readImageFull other than the file of the klb_imageIO object (e.g. an in-memory copy or a Java channel). Called from all the reading threads at once
+class DECLSPECIFIER klb_input_source
+{
+public:
+	virtual ~klb_input_source(){};
+	virtual std::uint64_t readAt(char* buffer, std::uint64_t numBytes, std::uint64_t position) = 0;//reads numBytes at position into buffer and returns the number of bytes read (less than numBytes only at the end of the input or on error)
+	virtual std::uint64_t size() = 0;//size of the whole input in bytes
+	virtual const char* data(){ return NULL; };//the whole input, if it is in memory. Blocks are then decompressed from it without copying them
+};
+
+//KLB file that is already in memory (e.g. fetched from a cache or an object store). The memory is not copied, so it has to stay valid while it is read
+class DECLSPECIFIER klb_memory_source : public klb_input_source
+{
+public:
+	klb_memory_source(const char* bytes_, std::uint64_t numBytes_) : bytes(bytes_), numBytes(numBytes_){};
+
+	std::uint64_t readAt(char* buffer, std::uint64_t n, std::uint64_t position)
+	{
+		if (position >= numBytes)
+			return 0;
+		if (n > numBytes - position)
+			n = numBytes - position;
+		memcpy(buffer, bytes + position, n);
+		return n;
+	};
+	std::uint64_t size(){ return numBytes; };
+	const char* data(){ return bytes; };
+
+private:
+	const char* bytes;
+	std::uint64_t numBytes;
+};
+
 class DECLSPECIFIER klb_imageIO
 {
 public:
 	
 	klb_image_header header;
 	int numThreads;//number of threads to use
+	klb_task_status* taskStatus;//optional (NULL by default). Progress is reported here and workers stop early (returning KLB_ERROR_CANCELLED) if cancel is set
+	double readThreshold;//readImage sets voxels below this value to 0 and does not decompress blocks whose maximum (header.blockStats) is below it. -infinity by default (no threshold)
+	std::uint64_t readRunBytes;//readImage / readImageFull fetch blocks that are adjacent in the file with single reads of up to this many bytes (8 MB by default). Few large reads matter on network file systems, where each read has a high latency
+	std::uint64_t readGapBytes;//blocks that are at most this many bytes apart (64 KB by default) are still fetched with a single read; the gap is read and discarded
+	bool readAdvise;//if true (default), the kernel is asked to prefetch the runs of blocks that will be read next (posix_fadvise, ignored where it is not available)
+	std::uint64_t writeBufferBytes;//writeImage collects compressed blocks in a buffer of up to this many bytes (and at most a tenth of the image) before writing them, 500 MB by default. Blocks are written one by one if it cannot hold the largest compressed block (e.g. 0)
+	klb_input_source* source;//if not NULL (default), readHeader, readImage, readImageFull and verifyChecksums read from it instead of the file. Writing functions always use the file
+	int readDataType;//if not -1 (default), readImage / readImageFull convert the voxels to this KLB_DATA_TYPE while copying them out of the decompressed blocks, as value * readScale + readOffset (rounded and saturated for integer types). The output buffer then holds voxels of this type. readThreshold applies to the stored values
+	double readScale, readOffset;//linear scaling of the converted voxels (1 and 0 by default), only used if readDataType is set
+	KLB_READ_STRATEGY readStrategy;//how readImage / readImageFull get the compressed blocks, KLB_READ_AUTO by default. PRELOAD and MMAP fall back to PER_BLOCK if the memory cannot be allocated or the file cannot be mapped
 
 	//constructor / destructor
 	klb_imageIO();
@@ -57,10 +125,11 @@ public:
 
 	//set/get functions
 	std::string getFilename() const{ return filename; };
+	size_t getReadBytesPerPixel() const;//size of the voxels written by readImage / readImageFull: of readDataType if it is set, of header.dataType otherwise
 	void setFilename(const std::string &filename_){ filename = filename_; };	
 
 	//main functions
-	int readHeader(){ return header.readHeader(filename.c_str()); };
+	int readHeader();
 	int readHeader(const std::string &filename_)
 	{
 		filename = filename_;
@@ -72,6 +141,12 @@ public:
 	*/
 	int writeImage(const char* BYTE, int numThreads);
 
+	/*
+	\brief Same as writeImage(const char*, int), but the file is written to sink. If the sink is seekable, the block offsets are written back to the header at the end as for files. Otherwise 
+	they have to precede the blocks in the stream, so the image is compressed twice: the first pass only measures the compressed blocks and the second one writes them
+	*/
+	int writeImage(const char* BYTE, klb_output_sink* sink, int numThreads);
+
 	/*
 	\brief Special case to write 3D stacks using double pointer (one pointer per 2D XY slice in the image)
 	*/
@@ -79,15 +154,68 @@ public:
 
 	/*
 	\brief	Main function to read an image (or part of an image defined by ROI).We assume the correct header has been set prior to calling this function. 
+	If the ROI defines a step (or bin) other than 1, the output buffer holds ROI->getSizeOutputPixels() voxels and only the sampled (or binned) voxels are written to it while decompressing
 	*/
 	int readImage(char* BYTE, const klb_ROI* ROI, int numThreads);
 
+	/*
+	\brief Same as readImage(char*, const klb_ROI*, int), but the ROI is scattered into a larger buffer (e.g. a tile of a mosaic) instead of being packed: BYTE points to the first voxel of the ROI and
+	voxel (x, y, z, c, t) of the (sampled) ROI is written to BYTE + (x * outStrides[0] + y * outStrides[1] + ... + t * outStrides[4]) * bytesPerPixel. Voxels of the buffer outside of the ROI are
+	not touched. Strides must not make two voxels of the ROI overlap, since they are written from several threads at once. outStrides = NULL packs the ROI as readImage does
+	*/
+	int readImage(char* BYTE, const klb_ROI* ROI, const std::uint64_t outStrides[KLB_DATA_DIMS], int numThreads);
+
 
 	/*
 	\brief We preload all the file in memory and the threads read from memory (not from disk). Consumes more memory but it is XXX faster. It only makes sense to read the whole image
 	*/
 	int readImageFull(char* BYTE, int numThreads);
 
+	/*
+	\brief Same as readImageFull(char*, int), but the image is decoded into several buffers (chunks) instead of a single one, e.g. to exceed the size limits of a single allocation.
+	The image (in x fastest order) is cut into periods of chunkPeriodBytes, and each period into consecutive chunks of chunkSizeBytes (the last one of a period may be shorter): byte i of the image
+	is stored in chunk (i / chunkPeriodBytes) * ceil(chunkPeriodBytes / chunkSizeBytes) + (i % chunkPeriodBytes) / chunkSizeBytes. Chunk size and period have to be multiples of the size of an
+	image row (xyzct[0] pixels), and the period has to divide the image size
+	*/
+	int readImageFull(char** imgOut, std::uint64_t chunkSizeBytes, std::uint64_t chunkPeriodBytes, int numThreads);
+
+	/*
+	\brief Writes the image stored in imgIn (an existing KLB file whose header has been read) to this object's file, decoding and re-encoding it block by block. The header of this object
+	defines the output (e.g. compression type and block size, which may differ from the input); image size and data type have to match imgIn. The image is streamed in slabs that are one output
+	block high in z, c and t, so at most two slabs (plus the compression queues) are held in memory at any time
+	*/
+	int transcodeImage(klb_imageIO& imgIn, int numThreads);
+
+	/*
+	\brief Appends one timepoint (voxels x fastest, all channels) to the existing file without rewriting it: only the new blocks are compressed and written at the end of the file, 
+	as a KLB_EXTENSION_APPENDED_TIMEPOINT extension. The header is (re)read from the file, and contains the new timepoint on return. The file needs header version >= KLB_HEADER_VERSION_EXTENSIONS 
+	and a block size of 1 along t. Channels cannot be appended, since the blocks of all channels of a timepoint are stored in between the timepoints
+	*/
+	int appendTimepoint(const char* BYTE, int numThreads);
+
+	/*
+	\brief Replaces the voxels of the region ROI (step and bin are ignored) of the existing file with img (ROI->getSizePixels() voxels, x fastest). Only the blocks intersecting the ROI are decompressed 
+	(if they are not entirely replaced), updated and compressed again. They are written at the end of the file as a KLB_EXTENSION_UPDATED_BLOCKS extension, which replaces the old blocks once it has been 
+	written completely, so the file is never left in an inconsistent state. The old blocks are not reclaimed: transcodeImage compacts files that have been updated many times. 
+	The header is (re)read from the file. The file needs header version >= KLB_HEADER_VERSION_EXTENSIONS
+	*/
+	int writeImageROI(const char* BYTE, const klb_ROI* ROI, int numThreads);
+
+	/*
+	\brief Checks the compressed bytes of every block against the CRC-32 stored when it was written (KLB_EXTENSION_BLOCK_CHECKSUMS, or the index of appended timepoints and updated blocks), without decompressing anything. 
+	Blocks are read in the order they are stored, in runs of adjacent blocks that each thread reads with a single call, so the file is read almost sequentially and the check is bound by disk bandwidth. 
+	The indices of the blocks that do not match (or are truncated) are returned in corruptBlocks in ascending order. The header is (re)read from the file. Returns KLB_ERROR_NO_CHECKSUMS if the file has none (unless it is truncated, which also removes the checksums: the missing blocks are then returned as corrupt)
+	*/
+	int verifyChecksums(std::vector<std::uint64_t>* corruptBlocks, int numThreads);
+
+	/*
+	\brief Compresses a single block (numBytes bytes, voxels stored x fastest as in a file) the same way writeImage does, e.g. to assemble a file from existing and new blocks. 
+	On input, sizeCompressed is the capacity of bufferOut, which should be getMaxCompressedSizeInBytes(numBytes). On output, it is the size of the compressed block
+	*/
+	static int compressBlock(KLB_COMPRESSION_TYPE compressionType, const char* bufferIn, unsigned int numBytes, char* bufferOut, unsigned int* sizeCompressed);
+	static int decompressBlock(KLB_COMPRESSION_TYPE compressionType, const char* bufferIn, unsigned int sizeCompressed, char* bufferOut, unsigned int numBytes);//inverse of compressBlock, numBytes is the size of the uncompressed block
+	static std::uint32_t getMaxCompressedSizeInBytes(std::uint32_t numBytes){ return numBytes * 2 + 50; };//same bound as maximumBlockSizeCompressedInBytes
+
 protected:
 
 private:
@@ -101,15 +229,38 @@ private:
 	
 	
 	//functions to call for each thread
-	void blockWriter(FILE* fout, int* g_blockSize, int* g_blockThreadId, klb_circular_dequeue** cq, int* errFlag);
-	void blockCompressor(const char* buffer, int* g_blockSize, std::atomic<uint64_t> *blockId, int* g_blockThreadId, klb_circular_dequeue* cq, int threadId, int* errFlag);
+	void blockWriter(klb_output_sink* sink, int* g_blockSize, int* g_blockThreadId, klb_circular_dequeue** cq, int numThreads, bool offsetsKnown, const std::uint64_t* storageOrder, const std::atomic<std::int32_t>* abort, int* errFlag);//if offsetsKnown, header.blockOffset already holds the offsets of the blocks (see writeImage) and they are checked instead of being written back. storageOrder is the block index at each position in the file (see klb_image_header::getBlockStorageOrder) or NULL for index order. If abort is not NULL, setting it to non-zero stops the writer like a cancellation (e.g. when the blocks cannot be produced)
+	int writeBlocks(const char* img, klb_output_sink* sink, int numThreads, bool offsetsKnown);//compression pipeline of writeImage
+	void blockCompressor(const char* buffer, int* g_blockSize, std::atomic<uint64_t> *blockId, int* g_blockThreadId, klb_circular_dequeue* cq, int threadId, int* errFlag, const klb_ROI* bufferROI, std::uint64_t blockIdEnd, const std::uint64_t* storageOrder);//buffer holds the region bufferROI of the image (NULL for the whole image). Processes blocks up to (excluding) blockIdEnd, which have to lie within bufferROI. blockId counts positions in the file, and storageOrder (NULL for index order) gives the block at each of them; g_blockSize and g_blockThreadId are indexed by position
 	void blockCompressorStackSlices(const char** buffer, int* g_blockSize, std::atomic<uint64_t> *blockId, int* g_blockThreadId, klb_circular_dequeue* cq, int threadId, int* errFlag);
+	void blockCompressorTimepoint(const char* buffer, std::atomic<uint64_t> *blockId, std::vector<std::vector<char> >* blocks, std::uint8_t* flags, klb_block_stats* stats, int* errFlag);//compresses the blocks of a single timepoint into blocks (indexed by block within the timepoint)
+
+	void blockUpdater(const char* buffer, const klb_ROI* ROI, const std::vector<std::uint64_t>* blockIdx, std::atomic<uint64_t> *blockId, std::vector<std::vector<char> >* blocks, std::uint8_t* flags, klb_block_stats* stats, int* errFlag);//merges the ROI buffer into the blocks blockIdx and compresses them into blocks (indexed as blockIdx)
 
-	void blockUncompressor(char* bufferOut, std::atomic<uint64_t> *blockId, const klb_ROI* ROI, int* errFlag);
-	void blockUncompressorImageFull(char* bufferOut, std::atomic<uint64_t> *blockId, int* errFlag);
-	void blockUncompressorInMem(char* bufferOut, std::atomic<uint64_t>	*blockId, char* bufferImgFull, int* errFlag);
+	void blockVerifier(klb_block_reads* reads, std::vector<std::uint64_t>* corruptBlocks, std::mutex* corruptLock, int* errFlag);//checks the runs of blocks handed out through reads
+
+	void blockUncompressor(char* bufferOut, const std::uint64_t* outStrides, klb_block_reads* reads, const klb_ROI* ROI, double* binSums, std::mutex* binLocks, int* errFlag);
+	void blockUncompressorImageFull(char** bufferOut, std::uint64_t chunkSizeBytes, std::uint64_t chunkPeriodBytes, klb_block_reads* reads, int* errFlag);
+
+	void copyBlockSampled(const char* bufferIn, const std::uint64_t coordBlock[KLB_DATA_DIMS], const klb_ROI* ROI, char* bufferOut, const std::uint64_t* outStrides, double* binSums, std::mutex* binLocks);//scatters the sampled voxels of an uncompressed block into the output buffer (or adds them to binSums)
+	void averageBins(const klb_ROI* ROI, const double* binSums, char* bufferOut, const std::uint64_t* outStrides);
+	void copyPixels(const char* bufferIn, char* bufferOut, std::uint64_t numPixels, std::uint64_t outStrideBytes) const;//copies numPixels consecutive voxels of a decompressed block to voxels outStrideBytes apart, converting them to readDataType if set
+
+	bool blockIntersectsROI(std::uint64_t blockId, const klb_ROI* ROI) const;
+	int openBlockReads(klb_block_reads* reads, std::uint64_t maxRunBytes, std::uint64_t maxGapBytes, int numThreads, KLB_READ_STRATEGY strategy);//opens the file and splits reads->blockOrder (sorted by file position) into runs of up to maxRunBytes whose blocks are at most maxGapBytes apart. Runs are kept small enough to give each of numThreads threads several of them and get smaller towards the end of the file. Blocks that are in memory (preloaded or an in-memory source) are handed out one by one, largest first. With KLB_READ_PRELOAD / KLB_READ_MMAP the blocks are loaded / mapped here
+	KLB_READ_STRATEGY chooseReadStrategy(std::uint64_t numBytes, std::uint64_t spanBytes) const;//strategy of KLB_READ_AUTO for reading numBytes of blocks spread over spanBytes of the file
+	std::uint64_t fetchBlockRun(klb_block_reads* reads, std::uint64_t runId, std::vector<char>* buffer, std::uint64_t* start, const char** data);//sets data to run runId (which starts at file position start), either within the preloaded / mapped blocks or read into buffer, and returns the number of bytes available (less than the run only if the file is truncated)
+
+	int readExtensions();//header.readExtensions from the file or source
+
+	int writeBlocksExtension(std::uint32_t tag, const std::vector<char>& index, const std::vector<std::vector<char> >& blocks);//writes the extension (index followed by the blocks) after the last complete extension of the file
 
 	std::uint32_t maximumBlockSizeCompressedInBytes();//some formats have overhead so for small blocks of random noise it could be larger than block size
+
+	bool isCancelled() const{ return (taskStatus != NULL && taskStatus->cancel.load() != 0); };
+	bool blocksSkipped() const{ return (isCancelled() && taskStatus->blocksDone.load() < taskStatus->blocksTotal.load()); };//the workers stopped early. A cancel that comes after the last block does not change the result
+	void setBlocksTotal(std::uint64_t n){ if (taskStatus != NULL){ taskStatus->blocksDone.store(0); taskStatus->blocksTotal.store(n); } };
+	void blockDone(){ if (taskStatus != NULL) taskStatus->blocksDone.fetch_add(1); };
 };
 
 